@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Used in hold-until-ack mode (HUA): lets the delivery thread wait until all messages
+ * that were delivered in a transaction were acknowledged, or until delivery is 
+ * stopping. The waiting thread wakes up as soon as either happens, without polling.
+ * 
+ * Acknowledgements may arrive before the corresponding message is counted as 
+ * expected, e.g. when the MDB calls acknowledge() in onMessage().
+ * 
+ * Uses a lock rather than a monitor so that a waiting virtual thread does not pin
+ * its carrier thread.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class AckWaiter {
+    private final Lock mLock = new ReentrantLock();
+    private final Condition mDone = mLock.newCondition();
+    private int mExpected;
+    private int mReceived;
+    private boolean mCancelled;
+
+    /**
+     * Adds to the number of acknowledgements to wait for
+     * 
+     * @param n number of messages delivered
+     */
+    public void expect(int n) {
+        mLock.lock();
+        try {
+            mExpected += n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Called when a message was acknowledged
+     */
+    public void ack() {
+        mLock.lock();
+        try {
+            mReceived++;
+            if (mReceived >= mExpected) {
+                mDone.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Makes await() return without waiting for the outstanding acknowledgements
+     */
+    public void cancel() {
+        mLock.lock();
+        try {
+            mCancelled = true;
+            mDone.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until all expected acknowledgements were received or until cancelled
+     * 
+     * @return true if all expected acknowledgements were received
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public boolean await() throws InterruptedException {
+        mLock.lock();
+        try {
+            while (mReceived < mExpected && !mCancelled) {
+                mDone.await();
+            }
+            return mReceived >= mExpected;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.stc.jmsjca.core;
 
 import com.stc.jmsjca.localization.LocalizedString;
 import com.stc.jmsjca.localization.Localizer;
+import com.stc.jmsjca.util.ClassLoaderHelper;
 import com.stc.jmsjca.util.Exc;
 import com.stc.jmsjca.util.InterceptorChainBuilder;
 import com.stc.jmsjca.util.Logger;
@@ -100,6 +101,7 @@ public class Activation extends ActivationBase {
     private volatile Destination mPublishedDestination;
 
     private static final Localizer LOCALE = Localizer.get();
+    private static final int DEFAULT_MOVE_POOL_SIZE = 4;
     
     /**
      * All states in string format (for diagnostics)
@@ -131,6 +133,11 @@ public class Activation extends ActivationBase {
     private boolean mXConnectingInterruptRequest;
     private boolean mRedeliveryRedirect;
     private boolean mWrapAlways;
+    private int mRedeliveryLookback = 5000;
+    private long mRedeliveryTTL;
+    private Integer mRedeliveryWaiters;
+    private RedeliveryStore mRedeliveryStore;
+    private MoveConnectionPool mMoveConnectionPool;
     private RAJMSObjectFactory mObjFactory;
     private String mURL;
     private boolean mStopByConnectorInProgress;
@@ -231,6 +238,19 @@ public class Activation extends ActivationBase {
             // Extract options for redelivery handling
             mRedeliveryRedirect = Utility.isTrue(p.getProperty(Options.In.OPTION_REDIRECT), false);
             mWrapAlways = "1".equals(p.getProperty(Options.In.OPTION_REDELIVERYWRAP, "1"));
+            mRedeliveryLookback = Utility.getIntProperty(p, Options.In.OPTION_REDELIVERY_LOOKBACK, 
+                mRedeliveryLookback);
+            mRedeliveryTTL = Utility.getIntProperty(p, Options.In.OPTION_REDELIVERY_TTL, 
+                (int) mRedeliveryTTL);
+            int waiters = Utility.getIntProperty(p, Options.In.OPTION_REDELIVERY_WAITERS, -1);
+            mRedeliveryWaiters = waiters < 0 ? null : Integer.valueOf(waiters);
+            String storeLocation = p.getProperty(Options.In.OPTION_REDELIVERY_STORE);
+            if (!Str.empty(storeLocation)) {
+                mRedeliveryStore = createRedeliveryStore(storeLocation, 
+                    p.getProperty(Options.In.OPTION_REDELIVERY_STORE_CLASS, FileRedeliveryStore.class.getName()));
+            }
+            mMoveConnectionPool = new MoveConnectionPool(this, 
+                Utility.getIntProperty(p, Options.In.OPTION_MOVE_POOL_SIZE, DEFAULT_MOVE_POOL_SIZE));
             String redeliveryHandling = p.getProperty(Options.In.OPTION_REDELIVERYHANDLING
                 , mSpec.getRedeliveryHandling());
             RedeliveryHandler.parse(redeliveryHandling, mSpec.getDestination(), mSpec.getDestinationType());
@@ -297,13 +317,62 @@ public class Activation extends ActivationBase {
             mDeliveryMode = mSpec.getInternalDeliveryConcurrencyMode();
             mDeliveryMode = getObjectFactory().adjustDeliveryMode(mDeliveryMode, mIsCMT && !mIsXAEmulated);
             
+            // Grouped delivery commits the receipt of messages separately from their 
+            // processing; this would break XA semantics
+            if (mDeliveryMode == RAJMSActivationSpec.DELIVERYCONCURRENCY_GROUPED && mIsCMT && !mIsXAEmulated) {
+                throw Exc.exc(LOCALE.x("E234: [{0}]: concurrency mode ''grouped'' cannot be used with XA because "
+                    + "messages are processed in transactions that do not include their receipt; use " 
+                    + "XA emulation (JMSJCA.NoXA=true) or a different concurrency mode", getName()));
+            }
+            
             internalStart();
         } catch (Exception e) {
             killMBean();
+            closeRedeliveryStore();
             throw e;
         }
     }
     
+    /**
+     * Instantiates the store for redelivery state; the name of the store is derived
+     * from the properties that identify the message stream, including the server
+     * 
+     * @param location JMSJCA.redeliverystore
+     * @param classname implementation class
+     * @return new store
+     * @throws Exception on failure
+     */
+    private RedeliveryStore createRedeliveryStore(String location, String classname) throws Exception {
+        String name = mSpec.getDestinationType() + "-" + mSpec.getDestination() 
+            + (Str.empty(mSpec.getSubscriptionName()) ? "" : "-" + mSpec.getSubscriptionName())
+            + (Str.empty(mSpec.getContextName()) ? "" : "-" + mSpec.getContextName())
+            + "-" + Integer.toHexString(String.valueOf(mURL).hashCode());
+        Class<?> c = ClassLoaderHelper.loadClass(classname);
+        return (RedeliveryStore) c.getConstructor(new Class<?>[] {String.class, String.class, Integer.TYPE})
+            .newInstance(new Object[] {location, name, Integer.valueOf(mRedeliveryLookback)});
+    }
+    
+    private void closeRedeliveryStore() {
+        if (mRedeliveryStore != null) {
+            mRedeliveryStore.close();
+            mRedeliveryStore = null;
+        }
+    }
+    
+    /**
+     * @return the pool of sessions to move messages to a dead letter queue
+     */
+    public MoveConnectionPool getMoveConnectionPool() {
+        return mMoveConnectionPool;
+    }
+    
+    /**
+     * @return the store in which redelivery state is persisted, null if not persisted
+     */
+    public RedeliveryStore getRedeliveryStore() {
+        return mRedeliveryStore;
+    }
+    
     /**
      * Returns the statistics gathering object associated with this activation
      *
@@ -402,6 +471,9 @@ public class Activation extends ActivationBase {
         mDelivery.deactivate();
         mDelivery = null;
         
+        // Connection may be broken; will be recreated on demand
+        mMoveConnectionPool.close();
+        
         synchronized (mLock) {
             setState(DISCONNECTED);
         }
@@ -524,6 +596,7 @@ public class Activation extends ActivationBase {
                 // perform deactivation (may take a long time)
                 mDelivery.deactivate();
                 mDelivery = null;
+                getObjectFactory().invalidateDestinations();
                 setState(CONNECTING);
             }
 
@@ -683,6 +756,11 @@ public class Activation extends ActivationBase {
             sLog.warn(LOCALE.x("E019: Unexpected exception in undeploying MBean " 
                 + "during endpoint deactivation: {0}", e), e);
         }
+        try {
+            closeRedeliveryStore();
+        } catch (RuntimeException e) {
+            sLog.warn(LOCALE.x("E018: Unexpected exception in endpoint deactivation: {0}", e), e);
+        }
     }
     
     /**
@@ -950,6 +1028,29 @@ public class Activation extends ActivationBase {
         return mRedeliveryRedirect;
     }
     
+    /**
+     * @return maximum number of redelivered msgs to keep track of
+     */
+    public int getRedeliveryLookback() {
+        return mRedeliveryLookback;
+    }
+    
+    /**
+     * @return time in ms after which the redelivery state of a msg is dropped; 0 means
+     *   no limit
+     */
+    public long getRedeliveryTTL() {
+        return mRedeliveryTTL;
+    }
+    
+    /**
+     * @return maximum number of endpoints that may wait for a delayed message; 
+     *   null if not specified or negative, i.e. delays are not deferred
+     */
+    public Integer getRedeliveryWaiters() {
+        return mRedeliveryWaiters;
+    }
+    
     /**
      * @return true if the message should always be wrapped for stateful redelivery
      */
@@ -191,6 +191,214 @@ public class ActivationMBean extends CommonMBean implements EmManagementInterfac
         return "Highest number of active endpoints reached";
     }
     
+    /**
+     * MBean getter
+     * 
+     * @return Integer
+     */
+    public Integer getRedeliveryIndexSize() {
+        return Integer.valueOf(mActivation.getStats().getEncounterIndexSize());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaRedeliveryIndexSize() {
+        return "Number of redelivered messages for which redelivery state is kept";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Long
+     */
+    public Long getRedeliveryIndexHits() {
+        return Long.valueOf(mActivation.getStats().getEncounterIndexHits());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaRedeliveryIndexHits() {
+        return "Number of times a redelivered message was found in the redelivery index";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Long
+     */
+    public Long getRedeliveryIndexMisses() {
+        return Long.valueOf(mActivation.getStats().getEncounterIndexMisses());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaRedeliveryIndexMisses() {
+        return "Number of times a redelivered message was not found in the redelivery index";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Long
+     */
+    public Long getRedeliveryIndexEvictions() {
+        return Long.valueOf(mActivation.getStats().getEncounterIndexEvictions());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaRedeliveryIndexEvictions() {
+        return "Number of messages whose redelivery state was dropped because the index was full or the state expired";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Integer, null if the concurrency is not adaptive
+     */
+    public Integer getConcurrencyLimit() {
+        ConcurrencyController c = mActivation.getStats().getConcurrency();
+        return c == null ? null : Integer.valueOf(c.getLimit());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaConcurrencyLimit() {
+        return "Maximum number of endpoints currently allowed to process messages concurrently "
+            + "(only if JMSJCA.concurrencymin is set)";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return String
+     */
+    public String getConcurrencyState() {
+        ConcurrencyController c = mActivation.getStats().getConcurrency();
+        return c == null ? "not adaptive" : c.toString();
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaConcurrencyState() {
+        return "Current limit, measured and baseline onMessage() latency, and last decision "
+            + "of the adaptive concurrency controller";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Integer, null if messages are not delivered in batches
+     */
+    public Integer getBatchSizeCurrent() {
+        BatchSizer b = mActivation.getStats().getBatchSizer();
+        return b == null ? null : Integer.valueOf(b.getTarget());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaBatchSizeCurrent() {
+        return "Number of messages that sync delivery currently waits for to complete a batch "
+            + "(adapted if JMSJCA.batchadaptive is set)";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Double, null if messages are not delivered in batches
+     */
+    public Double getBatchSizeAverage() {
+        BatchSizer b = mActivation.getStats().getBatchSizer();
+        return b == null ? null : Double.valueOf(b.getAverage());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaBatchSizeAverage() {
+        return "Average number of messages per batch";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Long
+     */
+    public Long getDestinationCacheHits() {
+        ResolvedDestinationCache c = mActivation.getObjectFactory().getDestinationCache();
+        return Long.valueOf(c == null ? 0 : c.getHits());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaDestinationCacheHits() {
+        return "Number of times a destination name was found in the cache of resolved destinations";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Long
+     */
+    public Long getDestinationCacheMisses() {
+        ResolvedDestinationCache c = mActivation.getObjectFactory().getDestinationCache();
+        return Long.valueOf(c == null ? 0 : c.getMisses());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaDestinationCacheMisses() {
+        return "Number of times a destination name had to be resolved (lookup, createQueue(), createTopic())";
+    }
+    
+    /**
+     * MBean getter
+     * 
+     * @return Integer
+     */
+    public Integer getDestinationCacheHitRatio() {
+        ResolvedDestinationCache c = mActivation.getObjectFactory().getDestinationCache();
+        return Integer.valueOf(c == null ? 0 : c.getHitRatio());
+    }
+    
+    /**
+     * MBean Attribute information (meta data)
+     * 
+     * @return attribute description
+     */
+    public String mbaDestinationCacheHitRatio() {
+        return "Percentage of destination lookups that were satisfied from the cache of resolved destinations";
+    }
+    
     /**
      * Number of endpoints in the delivery
      * 
@@ -0,0 +1,461 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.localization.Localizer;
+import com.stc.jmsjca.util.Exc;
+import com.stc.jmsjca.util.Logger;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TopicSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends messages on behalf of the application on a separate thread (JMSJCA.asyncsend).
+ * There is one pipeline per managed connection; it is created when the first message
+ * is sent asynchronously, and lives as long as the managed connection, i.e. it is not
+ * flushed when the application closes the connection and the connection is returned
+ * to the pool.
+ *
+ * Messages are queued in a bounded ring buffer. If the ring is full, the sender
+ * blocks up to the configured timeout (back-pressure) and then fails. A dedicated
+ * thread takes the messages off the ring in batches and sends them on a session of
+ * its own (JMS sessions cannot be used by more than one thread), created on a
+ * connection of its own. Each batch is committed as a single local transaction if the
+ * provider supports transacted sessions; otherwise messages are sent one by one on a
+ * non-transacted session. Since the pipeline has a separate connection, the clientID
+ * of the managed connection is not set on it.
+ *
+ * The outcome of each send is made available through a Result, and optionally through
+ * a Listener. If a batch fails, the session and connection are closed and recreated
+ * for the next batch, and all messages in the batch that were not sent are reported
+ * as failed.
+ *
+ * The application should not modify a message after it was sent asynchronously.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class AsyncSendPipeline implements Runnable {
+    private static Logger sLog = Logger.getLogger(AsyncSendPipeline.class);
+    private static final Localizer LOCALE = Localizer.get();
+
+    /**
+     * Time in ms the sending thread waits for a message before it checks if the
+     * pipeline is stopped
+     */
+    private static final long POLL_TIMEOUT = 1000;
+
+    private final XManagedConnection mMC;
+    private final ArrayBlockingQueue<Result> mRing;
+    private final int mBatchSize;
+    private final long mTimeout;
+    private final AsyncSendStats mStats;
+    private final AtomicInteger mPending = new AtomicInteger();
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    // Owned by the sending thread
+    private Connection mConnection;
+    private Session mSession;
+    private MessageProducer mProducer;
+    private boolean mSessionTransacted;
+    private boolean mTryTransacted = true;
+    private boolean mFailureLogged;
+
+    /**
+     * Receives the outcome of an asynchronous send; called on the sending thread
+     */
+    public interface Listener {
+        /**
+         * Called when a message was sent (and committed)
+         *
+         * @param msg message
+         */
+        void onCompletion(Message msg);
+
+        /**
+         * Called when a message could not be sent
+         *
+         * @param msg message
+         * @param ex cause
+         */
+        void onException(Message msg, Exception ex);
+    }
+
+    /**
+     * The outcome of an asynchronous send
+     */
+    public static final class Result {
+        private final Destination mDest;
+        private final Message mMsg;
+        private final int mDeliveryMode;
+        private final int mPriority;
+        private final long mTimeToLive;
+        private final Listener mListener;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Exception mException;
+
+        private Result(Destination dest, Message msg, int deliveryMode, int priority, long timeToLive,
+            Listener listener) {
+            mDest = dest;
+            mMsg = msg;
+            mDeliveryMode = deliveryMode;
+            mPriority = priority;
+            mTimeToLive = timeToLive;
+            mListener = listener;
+        }
+
+        /**
+         * Creates a result for a message that was sent synchronously
+         *
+         * @param msg message
+         * @return completed result
+         */
+        public static Result completed(Message msg) {
+            Result ret = new Result(null, msg, 0, 0, 0, null);
+            ret.mDone.countDown();
+            return ret;
+        }
+
+        /**
+         * @return true if the message was sent or failed to be sent
+         */
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * Waits until the message was sent or failed to be sent
+         *
+         * @param timeoutMs maximum time to wait
+         * @return true if done, false if timed out or interrupted
+         */
+        public boolean await(long timeoutMs) {
+            try {
+                return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return the reason why the message could not be sent; null if the message
+         *   was sent or if the send has not completed yet
+         */
+        public Exception getException() {
+            return mException;
+        }
+
+        /**
+         * @return the message
+         */
+        public Message getMessage() {
+            return mMsg;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param mc owner
+     * @param capacity maximum number of messages waiting to be sent
+     * @param batchSize maximum number of messages per batch
+     * @param timeout maximum time in ms a sender waits for room in the ring
+     * @param stats statistics to update
+     */
+    public AsyncSendPipeline(XManagedConnection mc, int capacity, int batchSize, long timeout,
+        AsyncSendStats stats) {
+        mMC = mc;
+        mRing = new ArrayBlockingQueue<Result>(Math.max(1, capacity));
+        mBatchSize = Math.max(1, batchSize);
+        mTimeout = timeout;
+        mStats = stats;
+    }
+
+    /**
+     * Queues a message for sending; blocks if the ring is full
+     *
+     * @param dest destination
+     * @param msg message
+     * @param deliveryMode delivery mode
+     * @param priority priority
+     * @param timeToLive time to live
+     * @param listener optional listener
+     * @return result
+     * @throws JMSException if the pipeline is closed or if the message could not be
+     *   queued in time
+     */
+    public Result send(Destination dest, Message msg, int deliveryMode, int priority, long timeToLive,
+        Listener listener) throws JMSException {
+        Result r = new Result(dest, msg, deliveryMode, priority, timeToLive, listener);
+        start();
+
+        mPending.incrementAndGet();
+        mStats.onEnqueue();
+        boolean queued = mRing.offer(r);
+        if (!queued) {
+            mStats.onBlocked();
+            try {
+                queued = mRing.offer(r, mTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                queued = false;
+            }
+        }
+        if (!queued) {
+            mStats.onRejected();
+            onDone();
+            throw Exc.jmsExc(LOCALE.x("E229: Message could not be queued for asynchronous sending "
+                + "within {0} ms; {1} messages are waiting to be sent", Long.toString(mTimeout),
+                Integer.toString(mRing.size())));
+        }
+        return r;
+    }
+
+    private synchronized void start() throws JMSException {
+        if (mStopped) {
+            throw Exc.illstate(LOCALE.x("E153: This {0} is closed", "AsyncSendPipeline"));
+        }
+        if (mThread == null) {
+            mThread = new Thread(this, "JMSJCA async send");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * @return number of messages queued but not yet sent
+     */
+    public int getPending() {
+        return mPending.get();
+    }
+
+    /**
+     * Waits until all messages that were queued have been sent or failed to be sent
+     *
+     * @param timeoutMs maximum time to wait
+     * @return true if all messages were processed
+     */
+    public boolean flush(long timeoutMs) {
+        long until = System.currentTimeMillis() + timeoutMs;
+        synchronized (this) {
+            while (mPending.get() > 0) {
+                long left = until - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void onDone() {
+        if (mPending.decrementAndGet() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sends the queued messages, then stops the sending thread which closes the
+     * session and connection. Waits at most the configured timeout.
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            mStopped = true;
+            t = mThread;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            flush(mTimeout);
+            try {
+                t.join(POLL_TIMEOUT * 2);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Sending thread: takes batches off the ring until the pipeline is closed and
+     * the ring is empty
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        List<Result> batch = new ArrayList<Result>(mBatchSize);
+        try {
+            for (;;) {
+                Result first;
+                try {
+                    first = mRing.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    first = null;
+                }
+                if (first == null) {
+                    if (mStopped && mRing.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                mRing.drainTo(batch, mBatchSize - 1);
+                sendBatch(batch);
+                batch.clear();
+            }
+        } finally {
+            closeSession();
+        }
+    }
+
+    /**
+     * Sends a batch of messages and reports the outcome of each
+     */
+    private void sendBatch(List<Result> batch) {
+        mStats.onBatch();
+        int done = 0;
+        try {
+            ensureSession();
+            for (int i = 0; i < batch.size(); i++) {
+                Result r = batch.get(i);
+                mProducer.send(r.mDest, r.mMsg, r.mDeliveryMode, r.mPriority, r.mTimeToLive);
+                if (!mSessionTransacted) {
+                    complete(r, null);
+                    done = i + 1;
+                }
+            }
+            if (mSessionTransacted) {
+                mSession.commit();
+            }
+        } catch (Exception e) {
+            if (!mFailureLogged) {
+                sLog.warn(LOCALE.x("E230: Messages could not be sent asynchronously; the connection "
+                    + "will be recreated. Subsequent failures will only be logged at debug level: {0}", e), e);
+                mFailureLogged = true;
+            } else if (sLog.isDebugEnabled()) {
+                sLog.debug("Asynchronous send failed: " + e, e);
+            }
+            closeSession();
+            for (int i = done; i < batch.size(); i++) {
+                complete(batch.get(i), e);
+            }
+            return;
+        }
+        for (int i = done; i < batch.size(); i++) {
+            complete(batch.get(i), null);
+        }
+    }
+
+    private void complete(Result r, Exception ex) {
+        r.mException = ex;
+        r.mDone.countDown();
+        mStats.onCompleted(ex == null);
+        onDone();
+        if (r.mListener != null) {
+            try {
+                if (ex == null) {
+                    r.mListener.onCompletion(r.mMsg);
+                } else {
+                    r.mListener.onException(r.mMsg, ex);
+                }
+            } catch (RuntimeException e) {
+                if (sLog.isDebugEnabled()) {
+                    sLog.debug("Listener of asynchronous send threw exception: " + e, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the connection, session and producer if necessary. A transacted session
+     * is tried first; if the provider does not support it, a non-transacted session is
+     * used from then on.
+     */
+    private void ensureSession() throws JMSException {
+        if (mSession != null) {
+            return;
+        }
+        XManagedConnectionFactory mcf = mMC.getManagedConnectionFactory();
+        RAJMSObjectFactory o = mcf.getObjFactory();
+        RAJMSResourceAdapter ra = mcf.getRAJMSResourceAdapter();
+        XConnectionRequestInfo descr = mMC.getDescription();
+        Connection conn = o.createConnection(mcf.getConnectionFactory(false, descr), descr.getDomain(false),
+            null, ra, mMC.getUserid(), mMC.getPassword());
+        try {
+            Session s = null;
+            if (mTryTransacted) {
+                try {
+                    s = o.createSession(conn, false, descr.getSessionClass(), ra, null, true,
+                        Session.SESSION_TRANSACTED);
+                } catch (JMSException e) {
+                    if (sLog.isDebugEnabled()) {
+                        sLog.debug("Transacted session could not be created; batches will not be "
+                            + "sent in a transaction: " + e, e);
+                    }
+                    mTryTransacted = false;
+                }
+            }
+            if (s == null) {
+                s = o.createSession(conn, false, descr.getSessionClass(), ra, null, false,
+                    Session.AUTO_ACKNOWLEDGE);
+            }
+            mProducer = o.createMessageProducer(s, false, descr.getSessionClass() == TopicSession.class,
+                null, ra);
+            mSession = s;
+            mSessionTransacted = mTryTransacted;
+            mConnection = conn;
+        } catch (JMSException e) {
+            try {
+                conn.close();
+            } catch (JMSException ignore) {
+                // ignore
+            }
+            throw e;
+        }
+    }
+
+    private void closeSession() {
+        Connection conn = mConnection;
+        mConnection = null;
+        mSession = null;
+        mProducer = null;
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (JMSException ignore) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.util.StripedCounter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runtime statistics of the asynchronous send pipelines (JMSJCA.asyncsend) of all
+ * connections of a managed connection factory. Exposed through the pool information
+ * of the RA MBean.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class AsyncSendStats {
+    private final StripedCounter mEnqueued = new StripedCounter();
+    private final StripedCounter mSent = new StripedCounter();
+    private final StripedCounter mFailed = new StripedCounter();
+    private final StripedCounter mBatches = new StripedCounter();
+    private final StripedCounter mBlocked = new StripedCounter();
+    private final StripedCounter mRejected = new StripedCounter();
+    private final AtomicInteger mDepth = new AtomicInteger();
+    private final AtomicInteger mMaxDepth = new AtomicInteger();
+
+    /**
+     * Called before a message is queued
+     */
+    public void onEnqueue() {
+        mEnqueued.increment();
+        int depth = mDepth.incrementAndGet();
+        for (;;) {
+            int max = mMaxDepth.get();
+            if (depth <= max || mMaxDepth.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Called when a message could not be queued after onEnqueue() was called
+     */
+    public void onRejected() {
+        mEnqueued.add(-1);
+        mDepth.decrementAndGet();
+        mRejected.increment();
+    }
+
+    /**
+     * Called when the sender had to wait because the pipeline was full
+     */
+    public void onBlocked() {
+        mBlocked.increment();
+    }
+
+    /**
+     * Called when a batch of messages is about to be sent
+     */
+    public void onBatch() {
+        mBatches.increment();
+    }
+
+    /**
+     * Called when a queued message was sent or failed to be sent
+     *
+     * @param ok true if sent
+     */
+    public void onCompleted(boolean ok) {
+        mDepth.decrementAndGet();
+        if (ok) {
+            mSent.increment();
+        } else {
+            mFailed.increment();
+        }
+    }
+
+    /**
+     * @return number of messages queued
+     */
+    public long getEnqueued() {
+        return mEnqueued.sum();
+    }
+
+    /**
+     * @return number of queued messages that were sent
+     */
+    public long getSent() {
+        return mSent.sum();
+    }
+
+    /**
+     * @return number of queued messages that could not be sent
+     */
+    public long getFailed() {
+        return mFailed.sum();
+    }
+
+    /**
+     * @return number of batches
+     */
+    public long getBatches() {
+        return mBatches.sum();
+    }
+
+    /**
+     * @return number of times a sender had to wait for room in a pipeline
+     */
+    public long getBlocked() {
+        return mBlocked.sum();
+    }
+
+    /**
+     * @return number of messages that could not be queued in time
+     */
+    public long getRejected() {
+        return mRejected.sum();
+    }
+
+    /**
+     * @return number of messages queued but not yet sent
+     */
+    public int getDepth() {
+        return mDepth.get();
+    }
+
+    /**
+     * @return highest number of messages queued but not yet sent
+     */
+    public int getMaxDepth() {
+        return mMaxDepth.get();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        long batches = getBatches();
+        long done = getSent() + getFailed();
+        return "enqueued=" + getEnqueued() + ", sent=" + getSent() + ", failed=" + getFailed()
+            + ", depth=" + getDepth() + ", maxdepth=" + getMaxDepth()
+            + ", batches=" + batches + ", avgbatch=" + (batches == 0 ? 0 : done / batches)
+            + ", blocked=" + getBlocked() + ", rejected=" + getRejected();
+    }
+}
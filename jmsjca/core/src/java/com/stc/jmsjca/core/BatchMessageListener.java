@@ -0,0 +1,45 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import javax.jms.Message;
+
+import java.util.List;
+
+/**
+ * Can be implemented by a message endpoint to receive the messages of a batch 
+ * (batchsize > 1) in a single call instead of one onMessage() call per message 
+ * followed by an end-of-batch message. This is only used if the endpoint that the
+ * container creates implements this interface, and if no interceptors are configured.
+ * 
+ * All messages in the list are processed in one transaction. The transaction is 
+ * rolled back if onMessages() throws an exception, or if the boolean property 
+ * WMessageIn.SETROLLBACKONLY is set to true on any of the messages. In hold-until-ack
+ * mode, each message should be acknowledged, as with onMessage().
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public interface BatchMessageListener {
+    /**
+     * Delivers a batch of messages
+     * 
+     * @param msgs messages in the order in which they were received; the list 
+     *   should not be kept after this method returns
+     */
+    void onMessages(List<Message> msgs);
+}
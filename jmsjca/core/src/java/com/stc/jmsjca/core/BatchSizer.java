@@ -0,0 +1,190 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+/**
+ * Decides how many messages the workers of a SyncDelivery should try to collect in
+ * one batch (one transaction), between 1 and the configured batch size.
+ *
+ * A batch is filled as follows: the first message is waited for as usual; after
+ * that, messages that are immediately available (a backlog) are always taken, up to
+ * the configured batch size. The worker only waits for more messages if the batch
+ * has not reached the target size yet, and never longer than the batch deadline,
+ * counted from when the first message was received. This avoids holding a
+ * transaction open waiting for messages on a queue with a low arrival rate.
+ *
+ * The target size is the number of messages a worker can expect to receive within 
+ * the deadline plus the time a commit takes, based on the observed arrival rate and
+ * commit latency (exponentially weighted moving averages), with the arrivals shared
+ * by the workers that receive concurrently. If not adaptive, the target size is 
+ * always the configured batch size.
+ *
+ * The arrival rate is measured as the number of messages over the wall time between
+ * batch starts (the receipt of the first message of a batch), so that the time the
+ * workers spent waiting for a first message is included. A sample is taken once at
+ * least the deadline has passed since the previous sample, so that batches that
+ * start nearly at the same time on different workers do not produce spikes.
+ *
+ * One object is shared by all workers; the averages are updated at most once per 
+ * batch.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class BatchSizer {
+    private static final double ALPHA = 0.2;
+
+    private final int mMax;
+    private final long mMaxWaitMs;
+    private final boolean mAdaptive;
+    private final int mReceivers;
+
+    private volatile int mTarget;
+    private double mRate;
+    private double mCommitMs;
+    private boolean mRateInitialized;
+    private boolean mCommitInitialized;
+    private long mBatches;
+    private long mMessages;
+    
+    // Start of the current sample window (System.nanoTime()), and the number of 
+    // messages of the batches that started in it
+    private boolean mWindowStarted;
+    private long mWindowStart;
+    private long mWindowMessages;
+
+    /**
+     * Constructor
+     *
+     * @param max configured batch size
+     * @param maxWaitMs batch deadline
+     * @param adaptive false if the target size should always be the configured size
+     * @param receivers number of workers that receive concurrently
+     */
+    public BatchSizer(int max, long maxWaitMs, boolean adaptive, int receivers) {
+        mMax = Math.max(1, max);
+        mMaxWaitMs = Math.max(1, maxWaitMs);
+        mAdaptive = adaptive;
+        mReceivers = Math.max(1, receivers);
+        mTarget = mMax;
+    }
+
+    /**
+     * @return true if the target size is adapted
+     */
+    public boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * @return configured batch size: the maximum number of messages in a batch
+     */
+    public int getMax() {
+        return mMax;
+    }
+
+    /**
+     * @return time (ms) after receiving the first message of a batch after which
+     *   the worker should no longer wait for more messages
+     */
+    public long getMaxWait() {
+        return mMaxWaitMs;
+    }
+
+    /**
+     * @return number of messages for which it is worth waiting
+     */
+    public int getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Reports a completed batch and recomputes the target size
+     *
+     * @param n number of messages in the batch
+     * @param startNanos when the first message of the batch was received 
+     *   (System.nanoTime())
+     * @param commitNanos time it took to complete the transaction
+     */
+    public synchronized void onBatchCompleted(int n, long startNanos, long commitNanos) {
+        if (n <= 0) {
+            return;
+        }
+        mBatches++;
+        mMessages += n;
+        if (!mAdaptive) {
+            return;
+        }
+
+        double commitMs = commitNanos / 1E6;
+        if (!mCommitInitialized) {
+            mCommitMs = commitMs;
+            mCommitInitialized = true;
+        } else {
+            mCommitMs += ALPHA * (commitMs - mCommitMs);
+        }
+
+        if (!mWindowStarted) {
+            mWindowStarted = true;
+            mWindowStart = startNanos;
+            mWindowMessages = n;
+        } else if (startNanos - mWindowStart >= mMaxWaitMs * 1000000L) {
+            // The messages of the batches that started in the window arrived over the
+            // time until this batch started
+            double rate = mWindowMessages / ((startNanos - mWindowStart) / 1E6);
+            if (!mRateInitialized) {
+                mRate = rate;
+                mRateInitialized = true;
+            } else {
+                mRate += ALPHA * (rate - mRate);
+            }
+            mWindowStart = startNanos;
+            mWindowMessages = n;
+        } else {
+            mWindowMessages += n;
+        }
+
+        if (mRateInitialized) {
+            double expected = mRate * (mMaxWaitMs + mCommitMs) / mReceivers;
+            mTarget = (int) Math.max(1, Math.min(mMax, Math.ceil(expected)));
+        }
+    }
+
+    /**
+     * @return number of batches
+     */
+    public synchronized long getBatches() {
+        return mBatches;
+    }
+
+    /**
+     * @return average number of messages per batch
+     */
+    public synchronized double getAverage() {
+        return mBatches == 0 ? 0 : (double) mMessages / mBatches;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "target=" + mTarget + ", max=" + mMax + ", avg=" + (float) getAverage() 
+            + ", batches=" + mBatches + (mAdaptive ? ", rate(msg/ms)=" + (float) mRate 
+            + ", commit(ms)=" + (float) mCommitMs : ", not adaptive");
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.QueueSender;
+import javax.jms.Topic;
+import javax.jms.TopicPublisher;
+
+/**
+ * Makes an anonymous producer (a producer created without a destination) behave as 
+ * a producer for a specific destination. This is used for producers on temporary 
+ * destinations when producer pooling is on: a producer on a temporary destination 
+ * cannot be reused, but an anonymous producer can, so the session pools anonymous 
+ * producers and binds them to the temporary destination while in use.
+ * 
+ * When not bound, all calls are passed to the anonymous producer as-is.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class BoundProducer implements QueueSender, TopicPublisher {
+    private final MessageProducer mDelegate;
+    private Destination mDestination;
+
+    /**
+     * Constructor
+     *
+     * @param delegate anonymous producer
+     */
+    public BoundProducer(MessageProducer delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * Binds this producer to a destination
+     *
+     * @param dest destination; null to unbind
+     */
+    public void bind(Destination dest) {
+        mDestination = dest;
+    }
+
+    /**
+     * @return the destination this producer is bound to; null if not bound
+     */
+    public Destination getBoundDestination() {
+        return mDestination;
+    }
+
+    private void checkUnbound() {
+        if (mDestination != null) {
+            throw new UnsupportedOperationException("This producer was created with a destination");
+        }
+    }
+
+    // MessageProducer
+
+    /**
+     * @see javax.jms.MessageProducer#close()
+     */
+    public void close() throws JMSException {
+        mDelegate.close();
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#getDeliveryMode()
+     */
+    public int getDeliveryMode() throws JMSException {
+        return mDelegate.getDeliveryMode();
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#getDestination()
+     */
+    public Destination getDestination() throws JMSException {
+        return mDestination != null ? mDestination : mDelegate.getDestination();
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#getDisableMessageID()
+     */
+    public boolean getDisableMessageID() throws JMSException {
+        return mDelegate.getDisableMessageID();
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#getDisableMessageTimestamp()
+     */
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        return mDelegate.getDisableMessageTimestamp();
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#getPriority()
+     */
+    public int getPriority() throws JMSException {
+        return mDelegate.getPriority();
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#getTimeToLive()
+     */
+    public long getTimeToLive() throws JMSException {
+        return mDelegate.getTimeToLive();
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#setDeliveryMode(int)
+     */
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        mDelegate.setDeliveryMode(deliveryMode);
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#setDisableMessageID(boolean)
+     */
+    public void setDisableMessageID(boolean value) throws JMSException {
+        mDelegate.setDisableMessageID(value);
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#setDisableMessageTimestamp(boolean)
+     */
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        mDelegate.setDisableMessageTimestamp(value);
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#setPriority(int)
+     */
+    public void setPriority(int defaultPriority) throws JMSException {
+        mDelegate.setPriority(defaultPriority);
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#setTimeToLive(long)
+     */
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        mDelegate.setTimeToLive(timeToLive);
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#send(javax.jms.Message)
+     */
+    public void send(Message message) throws JMSException {
+        if (mDestination != null) {
+            mDelegate.send(mDestination, message);
+        } else {
+            mDelegate.send(message);
+        }
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#send(javax.jms.Message, int, int, long)
+     */
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        if (mDestination != null) {
+            mDelegate.send(mDestination, message, deliveryMode, priority, timeToLive);
+        } else {
+            mDelegate.send(message, deliveryMode, priority, timeToLive);
+        }
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#send(javax.jms.Destination, javax.jms.Message)
+     */
+    public void send(Destination destination, Message message) throws JMSException {
+        checkUnbound();
+        mDelegate.send(destination, message);
+    }
+
+    /**
+     * @see javax.jms.MessageProducer#send(javax.jms.Destination, javax.jms.Message, int, int, long)
+     */
+    public void send(Destination destination, Message message, int deliveryMode, int priority,
+        long timeToLive) throws JMSException {
+        checkUnbound();
+        mDelegate.send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    // QueueSender
+
+    /**
+     * @see javax.jms.QueueSender#getQueue()
+     */
+    public Queue getQueue() throws JMSException {
+        return (Queue) getDestination();
+    }
+
+    /**
+     * @see javax.jms.QueueSender#send(javax.jms.Queue, javax.jms.Message)
+     */
+    public void send(Queue queue, Message message) throws JMSException {
+        checkUnbound();
+        ((QueueSender) mDelegate).send(queue, message);
+    }
+
+    /**
+     * @see javax.jms.QueueSender#send(javax.jms.Queue, javax.jms.Message, int, int, long)
+     */
+    public void send(Queue queue, Message message, int deliveryMode, int priority, long timeToLive)
+        throws JMSException {
+        checkUnbound();
+        ((QueueSender) mDelegate).send(queue, message, deliveryMode, priority, timeToLive);
+    }
+
+    // TopicPublisher
+
+    /**
+     * @see javax.jms.TopicPublisher#getTopic()
+     */
+    public Topic getTopic() throws JMSException {
+        return (Topic) getDestination();
+    }
+
+    /**
+     * @see javax.jms.TopicPublisher#publish(javax.jms.Message)
+     */
+    public void publish(Message message) throws JMSException {
+        if (mDestination != null) {
+            ((TopicPublisher) mDelegate).publish((Topic) mDestination, message);
+        } else {
+            ((TopicPublisher) mDelegate).publish(message);
+        }
+    }
+
+    /**
+     * @see javax.jms.TopicPublisher#publish(javax.jms.Message, int, int, long)
+     */
+    public void publish(Message message, int deliveryMode, int priority, long timeToLive)
+        throws JMSException {
+        if (mDestination != null) {
+            ((TopicPublisher) mDelegate).publish((Topic) mDestination, message, deliveryMode, priority, 
+                timeToLive);
+        } else {
+            ((TopicPublisher) mDelegate).publish(message, deliveryMode, priority, timeToLive);
+        }
+    }
+
+    /**
+     * @see javax.jms.TopicPublisher#publish(javax.jms.Topic, javax.jms.Message)
+     */
+    public void publish(Topic topic, Message message) throws JMSException {
+        checkUnbound();
+        ((TopicPublisher) mDelegate).publish(topic, message);
+    }
+
+    /**
+     * @see javax.jms.TopicPublisher#publish(javax.jms.Topic, javax.jms.Message, int, int, long)
+     */
+    public void publish(Topic topic, Message message, int deliveryMode, int priority, long timeToLive)
+        throws JMSException {
+        checkUnbound();
+        ((TopicPublisher) mDelegate).publish(topic, message, deliveryMode, priority, timeToLive);
+    }
+}
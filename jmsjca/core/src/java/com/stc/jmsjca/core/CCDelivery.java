@@ -86,6 +86,7 @@ public class CCDelivery extends Delivery implements javax.jms.ServerSessionPool,
         mNMaxWorkContainers = 
             a.getActivationSpec().getEndpointPoolMaxSize().intValue();
         mWorkManager = a.getRA().getBootstrapCtx().getWorkManager();
+        createConcurrencyController(mNMaxWorkContainers);
     }
 
     /**
@@ -97,6 +98,7 @@ public class CCDelivery extends Delivery implements javax.jms.ServerSessionPool,
      */
     @Override
     public void start() throws Exception {
+        resetAckWaiters();
         RAJMSObjectFactory o = mActivation.getObjectFactory();
         final int domain = XConnectionRequestInfo.guessDomain(mActivation.isCMT() && !mActivation.isXAEmulated()
             , mActivation.isTopic()); 
@@ -311,6 +313,37 @@ public class CCDelivery extends Delivery implements javax.jms.ServerSessionPool,
 
         growPoolIfNecessary();
 
+        // Wait until another endpoint is allowed to become active; the provider has a 
+        // message for it, so having to wait means that there is a backlog
+        if (mConcurrency != null && !mConcurrency.acquire(0)) {
+            mConcurrency.onSaturated();
+            while (!mConcurrency.acquire(1000)) {
+                if (mActivation.isStopping()) {
+                    throw Exc.exc(LOCALE.x("E115: Cannot create endpoint: connector is shutting down"));
+                }
+            }
+        }
+
+        try {
+            ret = getEmptyWorkContainer0();
+        } catch (Exception e) {
+            if (mConcurrency != null) {
+                mConcurrency.release();
+            }
+            throw e;
+        }
+        
+        // Endpoints are allowed but not used: the provider is waiting for messages
+        if (mConcurrency != null && mConcurrency.getActive() < mConcurrency.getLimit()) {
+            onIdle();
+        }
+
+        return ret;
+    }
+
+    private WorkContainer getEmptyWorkContainer0() throws Exception {
+        WorkContainer ret = null;
+
         // Get WorkContainer from pool while checking for shutdown
         for (;;) {
             if (!mEmptyWorkContainerSemaphore.attempt(1000)) {
@@ -358,6 +391,9 @@ public class CCDelivery extends Delivery implements javax.jms.ServerSessionPool,
      */
     public void workDone(WorkContainer w) {
         addEmptyWorkContainer(w);
+        if (mConcurrency != null) {
+            mConcurrency.release();
+        }
     }
     
     private void waitUntilAllWorkContainersAreDestroyed() {
@@ -398,6 +434,9 @@ public class CCDelivery extends Delivery implements javax.jms.ServerSessionPool,
         // Block the geServerSession() method
         // This should already have been done by the caller
         
+        // Work containers waiting for HUA acknowledgements should give up
+        cancelAckWaiters();
+        
         // Wait until all work has finished
         waitUntilAllWorkContainersAreDestroyed();
         
@@ -0,0 +1,340 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.util.Logger;
+import com.stc.jmsjca.util.StripedCounter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of endpoints that process messages concurrently, and adapts that
+ * limit between a minimum and a maximum using additive increase / multiplicative
+ * decrease (AIMD):
+ *
+ * - the limit is decreased by a factor if the average onMessage() latency over the
+ *   last interval exceeds the baseline latency by more than the tolerance factor,
+ *   i.e. when the resources the MDB depends on are slowing down
+ * - the limit is increased by one if the latency is within the tolerance, and there
+ *   is a backlog of messages: the JMS server has no way to report the queue depth,
+ *   so a backlog is assumed if messages had to wait for an endpoint (saturated), or
+ *   if no endpoint had to wait for a message (idle) during the interval. Only the
+ *   delivery knows if a message was waiting: with a server session pool, the 
+ *   provider has a message when it asks for an endpoint; with synchronous receives,
+ *   a message was waiting if a receive returned it without waiting. An endpoint 
+ *   that waits for permission to become active is not a backlog by itself.
+ *
+ * The baseline latency is the lowest latency observed; it drifts slowly towards the
+ * current latency so that a lasting change in latency is eventually accepted as
+ * normal.
+ *
+ * The limit is adjusted by the threads that report latencies, at most once per
+ * interval; there is no separate thread. Endpoints wait on a lock rather than on a
+ * monitor so that a waiting virtual thread does not pin its carrier thread.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class ConcurrencyController {
+    private static Logger sLog = Logger.getLogger(ConcurrencyController.class);
+
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final int BASELINE_DRIFT = 16;
+
+    /**
+     * Last decision: none taken yet
+     */
+    public static final String NONE = "none";
+
+    /**
+     * Last decision: limit was increased
+     */
+    public static final String INCREASE = "increase";
+
+    /**
+     * Last decision: limit was decreased
+     */
+    public static final String DECREASE = "decrease";
+
+    /**
+     * Last decision: limit was not changed
+     */
+    public static final String HOLD = "hold";
+
+    private final int mMin;
+    private final int mMax;
+    private final long mIntervalNs;
+    private final double mTolerance;
+
+    private volatile int mLimit;
+    private int mActive;
+    private final Lock mLock = new ReentrantLock();
+    private final Condition mBelowLimit = mLock.newCondition();
+
+    private final StripedCounter mCount = new StripedCounter();
+    private final StripedCounter mLatencySum = new StripedCounter();
+    private final StripedCounter mIdle = new StripedCounter();
+    private final StripedCounter mSaturated = new StripedCounter();
+
+    private final AtomicBoolean mAdjusting = new AtomicBoolean();
+    private volatile long mNextAdjust;
+    private long mLastCount;
+    private long mLastLatencySum;
+    private long mLastIdle;
+    private long mLastSaturated;
+    private volatile double mLatencyMs;
+    private volatile double mBaselineMs;
+    private volatile String mLastDecision = NONE;
+    private volatile long mIncreases;
+    private volatile long mDecreases;
+
+    /**
+     * Constructor
+     *
+     * @param min lower bound for the limit (at least 1)
+     * @param max upper bound for the limit; this is also the initial limit
+     * @param intervalMs how often the limit is reconsidered
+     * @param tolerance factor by which the latency may exceed the baseline before the
+     *   limit is decreased
+     */
+    public ConcurrencyController(int min, int max, long intervalMs, double tolerance) {
+        mMax = Math.max(1, max);
+        mMin = Math.max(1, Math.min(min, mMax));
+        mIntervalNs = intervalMs * 1000000L;
+        mTolerance = tolerance;
+        mLimit = mMax;
+        mNextAdjust = System.nanoTime() + mIntervalNs;
+    }
+
+    /**
+     * Waits until the number of active endpoints is below the limit and then
+     * registers an active endpoint; must be followed by release() if successful.
+     *
+     * @param timeoutMs maximum time to wait
+     * @return false if timed out
+     */
+    public boolean acquire(long timeoutMs) {
+        mLock.lock();
+        try {
+            if (mActive >= mLimit) {
+                long left = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                while (mActive >= mLimit) {
+                    if (left <= 0) {
+                        return false;
+                    }
+                    try {
+                        left = mBelowLimit.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+            mActive++;
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Unregisters an active endpoint
+     */
+    public void release() {
+        mLock.lock();
+        try {
+            mActive--;
+            mBelowLimit.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Reports the time an endpoint spent in onMessage()
+     *
+     * @param nanos latency in ns
+     */
+    public void onMessage(long nanos) {
+        mCount.increment();
+        mLatencySum.add(nanos);
+        maybeAdjust();
+    }
+
+    /**
+     * Reports that a message was available while no endpoint was allowed to process 
+     * it, or that a message had been waiting when it was received
+     */
+    public void onSaturated() {
+        mSaturated.increment();
+        maybeAdjust();
+    }
+
+    /**
+     * Reports that an endpoint was available while there was no message to process
+     */
+    public void onIdle() {
+        mIdle.increment();
+        maybeAdjust();
+    }
+
+    private void maybeAdjust() {
+        long now = System.nanoTime();
+        if (now - mNextAdjust >= 0 && mAdjusting.compareAndSet(false, true)) {
+            try {
+                mNextAdjust = now + mIntervalNs;
+                adjust();
+            } finally {
+                mAdjusting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Reconsiders the limit based on the measurements since the last call
+     */
+    private void adjust() {
+        long count = mCount.sum();
+        long sum = mLatencySum.sum();
+        long idle = mIdle.sum();
+        long saturated = mSaturated.sum();
+        long n = count - mLastCount;
+        long dLatency = sum - mLastLatencySum;
+        long dIdle = idle - mLastIdle;
+        long dSaturated = saturated - mLastSaturated;
+        mLastCount = count;
+        mLastLatencySum = sum;
+        mLastIdle = idle;
+        mLastSaturated = saturated;
+
+        if (n == 0) {
+            mLastDecision = HOLD;
+            return;
+        }
+
+        double latency = dLatency / (double) n / 1E6;
+        double baseline = mBaselineMs;
+        if (baseline == 0 || latency < baseline) {
+            baseline = latency;
+        } else {
+            baseline += (latency - baseline) / BASELINE_DRIFT;
+        }
+        mLatencyMs = latency;
+        mBaselineMs = baseline;
+
+        int limit = mLimit;
+        int newLimit = limit;
+        if (latency > baseline * mTolerance) {
+            newLimit = Math.max(mMin, (int) (limit * DECREASE_FACTOR));
+        } else if (dSaturated > 0 || dIdle == 0) {
+            newLimit = Math.min(mMax, limit + 1);
+        }
+
+        if (newLimit < limit) {
+            mDecreases++;
+            mLastDecision = DECREASE;
+        } else if (newLimit > limit) {
+            mIncreases++;
+            mLastDecision = INCREASE;
+        } else {
+            mLastDecision = HOLD;
+        }
+
+        if (newLimit != limit) {
+            if (sLog.isDebugEnabled()) {
+                sLog.debug("Concurrency limit changed from " + limit + " to " + newLimit + ": " + this);
+            }
+            mLock.lock();
+            try {
+                mLimit = newLimit;
+                mBelowLimit.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return current limit
+     */
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @return number of endpoints currently processing
+     */
+    public int getActive() {
+        mLock.lock();
+        try {
+            return mActive;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return lower bound
+     */
+    public int getMin() {
+        return mMin;
+    }
+
+    /**
+     * @return upper bound
+     */
+    public int getMax() {
+        return mMax;
+    }
+
+    /**
+     * @return average onMessage() latency in ms in the last interval
+     */
+    public double getLatencyMs() {
+        return mLatencyMs;
+    }
+
+    /**
+     * @return baseline latency in ms
+     */
+    public double getBaselineMs() {
+        return mBaselineMs;
+    }
+
+    /**
+     * @return last decision: one of NONE, INCREASE, DECREASE, HOLD
+     */
+    public String getLastDecision() {
+        return mLastDecision;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "limit=" + mLimit + " (min=" + mMin + ", max=" + mMax + ")"
+            + "; latency=" + Math.round(mLatencyMs * 100) / 100.0 + " ms"
+            + "; baseline=" + Math.round(mBaselineMs * 100) / 100.0 + " ms"
+            + "; last=" + mLastDecision
+            + "; increases=" + mIncreases
+            + "; decreases=" + mDecreases;
+    }
+}
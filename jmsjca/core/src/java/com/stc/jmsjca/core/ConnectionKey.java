@@ -0,0 +1,115 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.util.Str;
+
+/**
+ * Identifies the partition of a connection pool that a managed connection belongs to:
+ * two connections with equal keys are interchangeable, i.e. the key holds exactly the
+ * attributes that XManagedConnectionFactory.matchManagedConnections() compares: the
+ * connection class (domain), session class, transacted, override URL, clientID and
+ * the effective userid and password.
+ *
+ * The acknowledge mode is not part of the key because it is not taken into account
+ * when matching connections either (see XConnectionRequestInfo.isCompatible()).
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public final class ConnectionKey {
+    private final Class<?> mConnectionClass;
+    private final Class<?> mSessionClass;
+    private final boolean mTransacted;
+    private final String mOverrideUrl;
+    private final String mClientID;
+    private final String mUserid;
+    private final String mPassword;
+    private final int mHash;
+
+    /**
+     * Constructor
+     *
+     * @param descr request
+     * @param userid effective userid (may be null)
+     * @param password effective password (may be null)
+     */
+    public ConnectionKey(XConnectionRequestInfo descr, String userid, String password) {
+        mConnectionClass = descr.getConnectionClass();
+        mSessionClass = descr.getSessionClass();
+        mTransacted = descr.getTransacted();
+        mOverrideUrl = descr.getOverrideUrl();
+        mClientID = descr.getClientID();
+        mUserid = userid;
+        mPassword = password;
+
+        int h = 17;
+        h = Str.hash(h, mConnectionClass == null ? null : mConnectionClass.getName());
+        h = Str.hash(h, mSessionClass == null ? null : mSessionClass.getName());
+        h = Str.hash(h, mTransacted);
+        h = Str.hash(h, mOverrideUrl);
+        h = Str.hash(h, mClientID);
+        h = Str.hash(h, mUserid);
+        h = Str.hash(h, mPassword);
+        mHash = h;
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof ConnectionKey)) {
+            return false;
+        }
+        ConnectionKey that = (ConnectionKey) obj;
+        return mHash == that.mHash
+            && mConnectionClass == that.mConnectionClass
+            && mSessionClass == that.mSessionClass
+            && mTransacted == that.mTransacted
+            && Str.isEqual(mOverrideUrl, that.mOverrideUrl)
+            && Str.isEqual(mClientID, that.mClientID)
+            && Str.isEqual(mUserid, that.mUserid)
+            && Str.isEqual(mPassword, that.mPassword);
+    }
+
+    /**
+     * The password is not shown
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return (mSessionClass == null ? "?" : mSessionClass.getName().substring(
+            mSessionClass.getName().lastIndexOf('.') + 1))
+            + (mTransacted ? "/transacted" : "/non-transacted")
+            + (mUserid == null ? "" : "/" + mUserid)
+            + (mOverrideUrl == null ? "" : "/" + mOverrideUrl)
+            + (mClientID == null ? "" : "/clientID=" + mClientID);
+    }
+}
@@ -30,9 +30,6 @@ import com.stc.jmsjca.util.Utility;
 import com.stc.jmsjca.util.XAssert;
 
 import javax.jms.BytesMessage;
-import javax.jms.Connection;
-import javax.jms.ConnectionFactory;
-import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
@@ -52,12 +49,14 @@ import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAResource;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 /**
  * Baseclass and interface definition of a delivery-strategy. The connector provides
@@ -111,35 +110,57 @@ public abstract class Delivery {
      */
     protected boolean mHoldUntilAck;
 
+    /**
+     * Limits the number of endpoints that process messages concurrently; null if
+     * the concurrency is not adaptive
+     */
+    protected ConcurrencyController mConcurrency;
+
     private static final long MAX_CREATE_ENDPOINT_TIME = 20000;
     private static final long CREATE_ENDPOINT_RETRY_DELAY = 1000;
+    private static final long MAX_DEFERRED_WAIT = 5000;
+    private static final long DEFERRED_BACKOFF = 100;
     private RedeliveryHandler mRedeliveryChecker;
     private TransactionManager mTxMgr;
     private Object mTxMgrCacheLock = new Object();
     private boolean mTxFailureLoggedOnce;
-    private IdentityHashMap<Thread, String> mThreadsCurrentlyInOnMessage = new IdentityHashMap<Thread, String>();
+    private final ThreadLocal<DeliveryContext> mContext = new ThreadLocal<DeliveryContext>();
+    
+    // Message type per message class, see wrapMsg()
+    private final ConcurrentHashMap<Class<?>, Integer> mMessageTypes = new ConcurrentHashMap<Class<?>, Integer>();
+    
+    // HUA: threads waiting for acknowledgements; see awaitAcks()
+    private final ConcurrentHashMap<AckWaiter, Boolean> mAckWaiters = new ConcurrentHashMap<AckWaiter, Boolean>();
+    private volatile boolean mAckWaitersCancelled;
+    private static final int MSGTYPE_MESSAGE = 0;
+    private static final int MSGTYPE_TEXT = 1;
+    private static final int MSGTYPE_BYTES = 2;
+    private static final int MSGTYPE_MAP = 3;
+    private static final int MSGTYPE_OBJECT = 4;
+    private static final int MSGTYPE_STREAM = 5;
+    private static final int MSGTYPE_AMBIGUOUS = -1;
     private InterceptorChainBuilder mInterceptorChainBuilder;
     
     
     private static final Localizer LOCALE = Localizer.get();
 
     /**
-     * Holds and caches a JMS connection, session etc for the dead letter queue. Since
-     * the derived delivery classes may have multiple threads, multiple of these
-     * objects may be created for each Delivery. This object is passed as an opaque
-     * object to the RedeliveryHandler who will pass it back to the move-method; in that
-     * sense this object is like a cookie for the move operation.
+     * Holds a JMS session etc for the dead letter queue. Since the derived delivery 
+     * classes may have multiple threads, multiple of these objects may be created for 
+     * each Delivery. This object is passed as an opaque object to the RedeliveryHandler 
+     * who will pass it back to the move-method; in that sense this object is like a 
+     * cookie for the move operation.
+     * 
+     * The session is leased from the MoveConnectionPool of the activation for the 
+     * duration of the transaction, so that the endpoints share a connection and a small
+     * number of sessions.
      */
     public class ConnectionForMove {
-        private boolean mIsTopic;
-        private Connection mConn;
-        private Session mSession;
-        private Destination mDest;
-        private String mDestName;
-        private MessageProducer mProducer;
+        private MoveConnectionPool.Lease mLease;
         private boolean mBusy;
         private boolean mDelayedCommit;
         private boolean mNeedsCommit;
+        private boolean mReleaseOnCompletion;
         
         /**
          * Constructor
@@ -148,102 +169,75 @@ public abstract class Delivery {
         }
         
         /**
-         * Closes any allocated resources.
+         * Returns the session to the pool, or discards it if it was involved in a 
+         * failure.
          */
-        public void destroy() {
-            if (mSession != null) {
-                try {
-                    mSession.close();
-                } catch (JMSException ignore) {
-                    // ignore
-                }
-                mSession = null;
-            }
-            if (mConn != null) {
-                try {
-                    mConn.close();
-                } catch (JMSException ignore) {
-                    // ignore
+        public synchronized void destroy() {
+            if (mLease != null) {
+                if (mBusy || mNeedsCommit) {
+                    mActivation.getMoveConnectionPool().discard(mLease);
+                } else {
+                    mActivation.getMoveConnectionPool().release(mLease);
                 }
-                mConn = null;
+                mLease = null;
             }
-                mDest = null;
-                mDestName = null;
-                mProducer = null;
+            mNeedsCommit = false;
+            mReleaseOnCompletion = false;
         }
         
-        private Connection getConnection(boolean isTopic) throws JMSException {
-            if (mConn != null) {
-                if (isTopic != mIsTopic) {
-                    throw Exc.jmsExc(LOCALE.x("E007: Internal fault: cannot change messaging " +
-                            "domain after connection has been created."));
-                }
-            } else {
-                mIsTopic = isTopic;
-                RAJMSObjectFactory o = mActivation.getObjectFactory();
-                ConnectionFactory fact = o.createConnectionFactory(
-                    XConnectionRequestInfo.guessDomain(mActivation.isCMT() && !mActivation.isXAEmulated(), mIsTopic),
-                    mActivation.getRA(),
-                    mActivation.getActivationSpec(),
-                    null,
-                    null);
-                mConn = o.createConnection(
-                    fact,
-                    XConnectionRequestInfo.guessDomain(mActivation.isCMT() && !mActivation.isXAEmulated(), mIsTopic),
-                    mActivation.getActivationSpec(),
-                    mActivation.getRA(),
-                    mActivation.getUserName() == null 
-                    ? mActivation.getRA().getUserName() : mActivation.getUserName(),
-                    mActivation.getPassword() == null 
-                    ? mActivation.getRA().getClearTextPassword() : mActivation.getPassword());
+        /**
+         * Returns the session to the pool when the transaction is done with it
+         */
+        private synchronized void release() {
+            if (mLease != null && !mBusy && !mNeedsCommit) {
+                mActivation.getMoveConnectionPool().release(mLease);
+                mLease = null;
             }
-            return mConn;
+            mReleaseOnCompletion = false;
         }
         
-        private Session getSession(boolean isTopic) throws JMSException {
-            if (mSession != null) {
-                // Check isTopic is still same
-                getConnection(isTopic);
-            } else {
-                RAJMSObjectFactory o = mActivation.getObjectFactory();
-                mSession = o.createSession(getConnection(isTopic)
-                    , mActivation.isCMT() && !mActivation.isXAEmulated()
-                    , mIsTopic ? TopicSession.class : QueueSession.class
-                    , mActivation.getRA()
-                    , mActivation.getActivationSpec()
-                    , true
-                    , javax.jms.Session.SESSION_TRANSACTED);
+        private synchronized Session getSession(boolean isTopic) throws JMSException {
+            if (mLease == null) {
+                mLease = mActivation.getMoveConnectionPool().lease(isTopic);
+            } else if (isTopic != mLease.isTopic()) {
+                throw Exc.jmsExc(LOCALE.x("E007: Internal fault: cannot change messaging " +
+                        "domain after connection has been created."));
             }
-            return mSession;
+            return mLease.getSession();
         }
 
-        private Destination getDestination(boolean isTopic, String destname) throws JMSException {
-            if (mDest != null) {
-                getConnection(isTopic);
-                if (!destname.equals(mDestName)) {
-                    throw Exc.jmsExc(LOCALE.x("E033:Cannot change destination"));
+        private MessageProducer getProducer(boolean isTopic, String destname) throws JMSException {
+            getSession(isTopic);
+            return mLease.getProducer(destname);
+        }
+        
+        /**
+         * Returns the session to the pool when the specified transaction completes;
+         * if that is not possible, the session remains associated with this object
+         * 
+         * @param tx transaction the session is enlisted in
+         */
+        private void releaseOnCompletion(Transaction tx) {
+            synchronized (this) {
+                if (mReleaseOnCompletion) {
+                    return;
                 }
-            } else {
-                RAJMSObjectFactory o = mActivation.getObjectFactory();
-                mDest = o.createDestination(getSession(isTopic),
-                    mActivation.isCMT() && !mActivation.isXAEmulated(), isTopic, mActivation.getActivationSpec(), null,
-                    mActivation.getRA(), destname, null, mIsTopic ? TopicSession.class : QueueSession.class);
-                mDestName = destname;
+                mReleaseOnCompletion = true;
             }
-            return mDest;
-        }
+            try {
+                tx.registerSynchronization(new Synchronization() {
+                    public void beforeCompletion() {
+                    }
 
-        private MessageProducer getProducer(boolean isTopic, String destname) throws JMSException {
-            getConnection(isTopic);
-            if (mProducer == null) {
-                RAJMSObjectFactory o = mActivation.getObjectFactory();
-                mProducer = o.createMessageProducer(getSession(isTopic),
-                    mActivation.isCMT() && !mActivation.isXAEmulated(), 
-                    isTopic, 
-                    getDestination(isTopic, destname), 
-                    mActivation.getRA());
+                    public void afterCompletion(int status) {
+                        release();
+                    }
+                });
+            } catch (Exception e) {
+                if (sLog.isDebugEnabled()) {
+                    sLog.debug("Session for moving messages will not be returned to the pool: " + e, e);
+                }
             }
-            return mProducer;
         }
 
         /**
@@ -271,15 +265,21 @@ public abstract class Delivery {
          * @throws JMSException propagated
          */
         public void nonXACommit(boolean commit) throws JMSException {
-            if (mSession != null && mNeedsCommit) {
-                if (commit) {
-                    mSession.commit();
-                } else {
-                    mSession.rollback();
+            if (mLease != null && mNeedsCommit) {
+                try {
+                    if (commit) {
+                        mLease.getSession().commit();
+                    } else {
+                        mLease.getSession().rollback();
+                    }
+                } catch (JMSException e) {
+                    destroy();
+                    throw e;
                 }
             }
             // TODO: setbusy???
             mNeedsCommit = false;
+            release();
         }
 
         /**
@@ -290,9 +290,10 @@ public abstract class Delivery {
         public void setNeedsNonXACommit() throws JMSException {
             if (!mDelayedCommit) {
                 //TODO: REMOVE
-                mSession.commit();
+                mLease.getSession().commit();
                 mBusy = false;
                 mNeedsCommit = false;
+                release();
             } else {
                 mNeedsCommit = true;
             }
@@ -376,9 +377,12 @@ public abstract class Delivery {
     }
     
     private class DeliveryActions extends RedeliveryHandler {
+        private Semaphore mWaiters;
+        private boolean mWaitersInitialized;
 
-        public DeliveryActions(RAJMSActivationSpec spec, DeliveryStats stats, int lookbackSize) {
-            super(spec, stats, lookbackSize);
+        public DeliveryActions(RAJMSActivationSpec spec, DeliveryStats stats, int lookbackSize,
+            long ttl) {
+            super(spec, stats, lookbackSize, ttl);
         }
         
         @Override
@@ -404,6 +408,60 @@ public abstract class Delivery {
             mActivation.sleepAndMonitorStatus(delay);
         }
 
+        /**
+         * @return semaphore that limits the number of endpoints waiting for a delay, or
+         *   null if delays should not be deferred
+         */
+        private synchronized Semaphore getWaiters() {
+            if (!mWaitersInitialized) {
+                mWaitersInitialized = true;
+                Integer max = mActivation.getRedeliveryWaiters();
+                
+                // Opt-in only: each deferral is an extra rollback. A rollback would also 
+                // roll back the whole batch
+                if (max != null && mBatchSize <= 1) {
+                    mWaiters = new Semaphore(max.intValue());
+                }
+            }
+            return mWaiters;
+        }
+
+        @Override
+        protected boolean deferMessageDelivery(Message m, Encounter e, long delay
+            , LocalizedString logmsg, RedeliveryHandler.BaseCookie cookie) {
+            if (delay == 0 || getWaiters() == null) {
+                return false;
+            }
+            if (logmsg != null) {
+                sLog.info(logmsg);
+            }
+            e.setDeferredUntil(System.currentTimeMillis() + delay);
+            ((Cookie) cookie).getResults().setRollbackOnly(true);
+            return true;
+        }
+
+        @Override
+        protected boolean waitForDeferred(Message m, Encounter e, long left
+            , RedeliveryHandler.BaseCookie cookie) {
+            // If no waiter is available, pause briefly anyway so that a message that is
+            // redelivered immediately after rollback does not cause a busy loop
+            Semaphore waiters = getWaiters();
+            boolean acquired = waiters.tryAcquire();
+            long wait = acquired ? MAX_DEFERRED_WAIT : DEFERRED_BACKOFF;
+            try {
+                mActivation.sleepAndMonitorStatus(Math.min(left, wait));
+            } finally {
+                if (acquired) {
+                    waiters.release();
+                }
+            }
+            if (left <= wait) {
+                return true;
+            }
+            ((Cookie) cookie).getResults().setRollbackOnly(true);
+            return false;
+        }
+
         @Override
         protected void deleteMessage(Message m, Encounter e, RedeliveryHandler.BaseCookie cookie) {
             sLog.info(LOCALE.x("E026: Message with msgid=[{0}] was seen {1} times. It "
@@ -435,7 +493,9 @@ public abstract class Delivery {
                         xa = new WXAResourceNoIsSameRM(xa);
                     }
                 }
-                getTransactionNotNull().enlistResource(xa);
+                Transaction tx = getTransactionNotNull();
+                tx.enlistResource(xa);
+                x.releaseOnCompletion(tx);
                 // Note: MUST delist lateron!
             }
             
@@ -558,7 +618,9 @@ public abstract class Delivery {
         mActivation = a;
         mStats = stats;
         mMethod = mActivation.getOnMessageMethod();
-        mRedeliveryChecker = new DeliveryActions(a.getActivationSpec(), mStats, 5000);
+        mRedeliveryChecker = new DeliveryActions(a.getActivationSpec(), mStats, 
+            a.getRedeliveryLookback(), a.getRedeliveryTTL());
+        mRedeliveryChecker.setStore(a.getRedeliveryStore());
         
         // Batch
         mBatchSize = a.getActivationSpec().getBatchSize() == null ? 0 : a.getActivationSpec().getBatchSize().intValue();
@@ -595,6 +657,49 @@ public abstract class Delivery {
         mInterceptorChainBuilder = new InterceptorChainBuilder(interceptors.values());
     }
 
+    /**
+     * Creates the controller that adapts the number of concurrently active endpoints
+     * if so configured (JMSJCA.concurrencymin); to be called by the subclass once
+     * the maximum number of endpoints is known
+     *
+     * @param max maximum number of endpoints
+     * @throws JMSException on failure to read the options
+     */
+    protected void createConcurrencyController(int max) throws JMSException {
+        Properties p = new Properties();
+        mActivation.getObjectFactory().getProperties(p, mActivation.getRA(), 
+            mActivation.getActivationSpec(), null, null);
+        int min = Utility.getIntProperty(p, Options.In.OPTION_CONCURRENCY_MIN, 0);
+        if (min > 0 && min < max) {
+            int interval = Utility.getIntProperty(p, Options.In.OPTION_CONCURRENCY_INTERVAL, 1000);
+            String tolerance = p.getProperty(Options.In.OPTION_CONCURRENCY_TOLERANCE);
+            mConcurrency = new ConcurrencyController(min, max, interval, 
+                tolerance == null ? 2.0 : Double.parseDouble(tolerance));
+            if (sLog.isDebugEnabled()) {
+                sLog.debug("Adaptive concurrency: " + mConcurrency);
+            }
+        }
+        mStats.setConcurrency(mConcurrency);
+    }
+
+    /**
+     * To be called when an endpoint was available but there was no message for it
+     */
+    protected void onIdle() {
+        if (mConcurrency != null) {
+            mConcurrency.onIdle();
+        }
+    }
+
+    /**
+     * To be called when a message had to wait for an endpoint
+     */
+    protected void onSaturated() {
+        if (mConcurrency != null) {
+            mConcurrency.onSaturated();
+        }
+    }
+
     /**
      * Creates a MessageEndpoint
      *
@@ -786,51 +891,127 @@ public abstract class Delivery {
     }
     
     /**
-     * Wraps a message for HUA mode
+     * HUA: waits until all messages delivered in the current transaction have been
+     * acknowledged, or until cancelAckWaiters() is called because delivery is 
+     * stopping. The time spent waiting is recorded in the delivery stats.
      * 
-     * @param msgToWrap msg
-     * @return wrapped message if HUA mode is active, unwrapped otherwise
-     * @throws JMSException on failure
+     * @param waiter waiter of the current transaction
+     * @return true if all messages were acknowledged; false if cancelled
+     * @throws InterruptedException if the thread was interrupted
      */
-    protected WMessageIn wrapMsg(Message msgToWrap) throws JMSException {
-        // Protect against unnecessary double wrapping
-        if (msgToWrap instanceof WMessageIn) {
-            return (WMessageIn) msgToWrap;
+    protected boolean awaitAcks(AckWaiter waiter) throws InterruptedException {
+        long t0 = System.nanoTime();
+        mAckWaiters.put(waiter, Boolean.TRUE);
+        try {
+            if (mAckWaitersCancelled) {
+                waiter.cancel();
+            }
+            boolean ret = waiter.await();
+            if (ret) {
+                mStats.onAcksCompleted(System.nanoTime() - t0);
+            }
+            return ret;
+        } finally {
+            mAckWaiters.remove(waiter);
         }
-        
-        WMessageIn ret = null;
+    }
+    
+    /**
+     * HUA: wakes up all threads in awaitAcks(), and makes future calls return 
+     * immediately; the transactions of these threads will be rolled back. Called when
+     * delivery is stopping.
+     */
+    protected void cancelAckWaiters() {
+        mAckWaitersCancelled = true;
+        for (Iterator<AckWaiter> iter = mAckWaiters.keySet().iterator(); iter.hasNext();/*-*/) {
+            iter.next().cancel();
+        }
+    }
+    
+    /**
+     * HUA: undoes cancelAckWaiters(); called when delivery is (re)started
+     */
+    protected void resetAckWaiters() {
+        mAckWaitersCancelled = false;
+    }
+    
+    /**
+     * Determines which message interface a message implements
+     * 
+     * @param m message
+     * @return one of MSGTYPE_XXX; MSGTYPE_AMBIGUOUS if it implements more than one
+     */
+    private static int getMessageType(Message m) {
+        int ret = MSGTYPE_MESSAGE;
         
         // Check for multiple interfaces
         int nItf = 0;
 
-        if (msgToWrap instanceof TextMessage) {
+        if (m instanceof TextMessage) {
             nItf++;
-            ret = new WTextMessageIn((TextMessage) msgToWrap);
+            ret = MSGTYPE_TEXT;
         } 
-        if (msgToWrap instanceof BytesMessage) {
+        if (m instanceof BytesMessage) {
             nItf++;
-            ret = new WBytesMessageIn((BytesMessage) msgToWrap);
+            ret = MSGTYPE_BYTES;
         } 
-        if (msgToWrap instanceof MapMessage) {
+        if (m instanceof MapMessage) {
             nItf++;
-            ret = new WMapMessageIn((MapMessage) msgToWrap);
+            ret = MSGTYPE_MAP;
         } 
-        if (msgToWrap instanceof ObjectMessage) {
+        if (m instanceof ObjectMessage) {
             nItf++;
-            ret = new WObjectMessageIn((ObjectMessage) msgToWrap);
+            ret = MSGTYPE_OBJECT;
         } 
-        if (msgToWrap instanceof StreamMessage) {
+        if (m instanceof StreamMessage) {
             nItf++;
-            ret = new WStreamMessageIn((StreamMessage) msgToWrap);
+            ret = MSGTYPE_STREAM;
         }
         
-        // None found
-        if (ret == null) {
-            nItf++;
-            ret = new WMessageIn(msgToWrap);
+        return nItf > 1 ? MSGTYPE_AMBIGUOUS : ret;
+    }
+    
+    /**
+     * Wraps a message for HUA mode
+     * 
+     * @param msgToWrap msg
+     * @return wrapped message if HUA mode is active, unwrapped otherwise
+     * @throws JMSException on failure
+     */
+    protected WMessageIn wrapMsg(Message msgToWrap) throws JMSException {
+        // Protect against unnecessary double wrapping
+        if (msgToWrap instanceof WMessageIn) {
+            return (WMessageIn) msgToWrap;
+        }
+        
+        // The type only depends on the class of the message: look it up only once per class
+        Integer type = mMessageTypes.get(msgToWrap.getClass());
+        if (type == null) {
+            type = Integer.valueOf(getMessageType(msgToWrap));
+            mMessageTypes.put(msgToWrap.getClass(), type);
         }
         
-        if (nItf > 1) {
+        WMessageIn ret;
+        switch (type.intValue()) {
+        case MSGTYPE_TEXT:
+            ret = new WTextMessageIn((TextMessage) msgToWrap);
+            break;
+        case MSGTYPE_BYTES:
+            ret = new WBytesMessageIn((BytesMessage) msgToWrap);
+            break;
+        case MSGTYPE_MAP:
+            ret = new WMapMessageIn((MapMessage) msgToWrap);
+            break;
+        case MSGTYPE_OBJECT:
+            ret = new WObjectMessageIn((ObjectMessage) msgToWrap);
+            break;
+        case MSGTYPE_STREAM:
+            ret = new WStreamMessageIn((StreamMessage) msgToWrap);
+            break;
+        case MSGTYPE_MESSAGE:
+            ret = new WMessageIn(msgToWrap);
+            break;
+        default:
             throw Exc.jmsExc(LOCALE.x("E032: Cannot determine message type: the message " 
                 + "implements multiple interfaces."));
         }
@@ -888,6 +1069,8 @@ public abstract class Delivery {
                             } else {
                                 mStats.msgDeliveryCommit();
                             }
+                        } else {
+                            mStats.msgDeliveryRollback();
                         }
                     }
                 });
@@ -1025,6 +1208,7 @@ public abstract class Delivery {
         } else {
             try {
                 session.rollback();
+                mStats.msgDeliveryRollback();
             } catch (JMSException ex) {
                 sLog.error(LOCALE.x("E066: The message could not be rolled back: {0}", ex), ex);
             }
@@ -1035,7 +1219,13 @@ public abstract class Delivery {
         private DeliveryResults mResults;
         private ConnectionForMove mConnectionForMove;
         
-        public Cookie(DeliveryResults results, ConnectionForMove connectionForMove) {
+        /**
+         * Associates the cookie with the message being delivered
+         * 
+         * @param results results (null to clear)
+         * @param connectionForMove connection (null to clear)
+         */
+        public void set(DeliveryResults results, ConnectionForMove connectionForMove) {
             mResults = results;
             mConnectionForMove = connectionForMove;
         }
@@ -1057,6 +1247,58 @@ public abstract class Delivery {
         }
         
     }
+    
+    /**
+     * The state of a thread that delivers messages for this Delivery. Since this 
+     * state is only accessed by the thread itself, it does not need synchronization,
+     * and the objects in it can be reused for each message. Threads that are not 
+     * owned by this Delivery (WorkManager threads, threads of the JMS provider) 
+     * should not keep this state after delivery, see releaseContext().
+     */
+    private static class DeliveryContext {
+        private boolean mInOnMessage;
+        private final Cookie mCookie = new Cookie();
+        private final DeliveryResults mResults = new DeliveryResults();
+    }
+    
+    /**
+     * @return the delivery state of the calling thread, never null
+     */
+    private DeliveryContext getContext() {
+        DeliveryContext ret = mContext.get();
+        if (ret == null) {
+            ret = new DeliveryContext();
+            mContext.set(ret);
+        }
+        return ret;
+    }
+    
+    /**
+     * Discards the delivery state of the calling thread; to be called when a thread
+     * that is not owned by this Delivery is done delivering, so that the thread does
+     * not keep a reference to this Delivery when it is returned to its pool.
+     */
+    protected void releaseContext() {
+        mContext.remove();
+    }
+    
+    /**
+     * Provides a results object for a delivery thread so that a new one does not need
+     * to be allocated for each message. The object is owned by the calling thread; it
+     * should not be used anymore after the next call to this method on that thread.
+     * In CMT a new object is returned since the results are also read when the 
+     * transaction completes (see beforeDelivery()), which may be after the next call.
+     * 
+     * @return cleared results object
+     */
+    protected DeliveryResults getThreadResults() {
+        if (mActivation.isCMT()) {
+            return new DeliveryResults();
+        }
+        DeliveryResults ret = getContext().mResults;
+        ret.reset();
+        return ret;
+    }
 
     /**
      * Delivers the message to the specified MessageEndpoint; can be called both from CC
@@ -1080,34 +1322,28 @@ public abstract class Delivery {
         // Stats
         mStats.aboutToDeliverMessage();
         
+        DeliveryContext context = getContext();
         boolean mustSetRollback = false;
         try {
             if (mActivation.shouldWrapAlways()) {
                 m = wrapMsg(m);
             }
-            boolean shouldDeliver = mRedeliveryChecker.shouldDeliver(new Cookie(result, connectionForMove), m);
+            boolean shouldDeliver = shouldDeliver(context, result, connectionForMove, m);
             
             if (!shouldDeliver || result.getBeforeDeliveryFailed()) {
                 result.setOnMessageWasBypassed(true);
             } else {
+                long t0 = enterOnMessage(context);
                 try {
-                    registerThreadAsInOnMessage(true);
                     result.setOnMessageWasCalled(true);
                     target.onMessage(m);
                     result.setOnMessageSucceeded(true);
                 } catch (RuntimeException ex) {
-                    Exc.fixup(ex);
-                    sLog.warn(LOCALE.x("E031: The entity the message was sent to for "
-                        + "processing, threw an exception. The message will be "
-                        + "rolled back. Exception: [{0}]", ex), ex);
-                    result.setOnMessageFailed(true);
-                    result.setException(ex);
-                    result.setShouldDiscardEndpoint(true);
+                    onMessageFailed(result, ex);
                     mRedeliveryChecker.rememberException(ex, m);
-                    result.setRollbackOnly(true);
                     mustSetRollback = true;
                 } finally {
-                    registerThreadAsInOnMessage(false);
+                    exitOnMessage(context, t0);
                 }
             }
         } catch (Exception ex) {
@@ -1123,16 +1359,158 @@ public abstract class Delivery {
         }
     }
     
-    private void registerThreadAsInOnMessage(boolean register) {
-        synchronized (mThreadsCurrentlyInOnMessage) {
-            if (register) {
-                Object verify = mThreadsCurrentlyInOnMessage.put(Thread.currentThread(), "");
-                XAssert.xassert(verify == null);
+    /**
+     * Delivers a batch of messages to an endpoint that implements BatchMessageListener
+     * in a single call; the equivalent of deliverToEndpoint() for a batch. Messages 
+     * that are handled by the redelivery handler (e.g. moved to a dead letter queue)
+     * are left out of the batch. The result is marked rollback-only if onMessages()
+     * throws an exception, or if SETROLLBACKONLY was set on any of the messages.
+     * 
+     * @param result Result; getNOnMessageWasCalled() is incremented for each message
+     *   that was passed to the endpoint
+     * @param connectionForMove provides a point to get access through to the JMS 
+     *   connection that can be used to move a message
+     * @param target endpoint; isBatchListener() should be true
+     * @param msgs wrapped messages
+     * @param rethrowSystemExceptions throw instead of log system failures (tx mgr only)
+     * @return the messages that were passed to the endpoint
+     * @throws Exception rollback exceptions
+     */
+    public List<Message> deliverToEndpoint(DeliveryResults result, ConnectionForMove connectionForMove, 
+        XMessageEndpoint target, List<WMessageIn> msgs, boolean rethrowSystemExceptions) throws Exception {
+        if (sLog.isDebugEnabled()) {
+            sLog.debug("Delivering batch of " + msgs.size() + " messages to endpoint");
+        }
+        
+        DeliveryContext context = getContext();
+        List<Message> batch = new ArrayList<Message>(msgs.size());
+        boolean mustSetRollback = false;
+        int nPending = 0;
+        try {
+            for (int i = 0; i < msgs.size(); i++) {
+                // Stats
+                mStats.aboutToDeliverMessage();
+                nPending++;
+                
+                Message m = msgs.get(i);
+                if (shouldDeliver(context, result, connectionForMove, m)) {
+                    batch.add(m);
+                } else {
+                    mStats.messageDelivered();
+                    nPending--;
+                }
+            }
+            
+            if (batch.isEmpty() || result.getBeforeDeliveryFailed()) {
+                result.setOnMessageWasBypassed(true);
             } else {
-                Object verify = mThreadsCurrentlyInOnMessage.remove(Thread.currentThread());
-                XAssert.xassert(verify != null);
+                long t0 = enterOnMessage(context);
+                try {
+                    result.addOnMessageWasCalled(batch.size());
+                    target.onMessages(batch);
+                    result.setOnMessageSucceeded(true);
+                } catch (RuntimeException ex) {
+                    onMessageFailed(result, ex);
+                    for (int i = 0; i < batch.size(); i++) {
+                        mRedeliveryChecker.rememberException(ex, batch.get(i));
+                    }
+                    mustSetRollback = true;
+                } finally {
+                    exitOnMessage(context, t0);
+                }
+                
+                // Rollback requested on any message?
+                if (!mustSetRollback) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (((WMessageIn) batch.get(i)).isRollbackOnly()) {
+                            result.setRollbackOnly(true);
+                            mustSetRollback = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            sLog.warn(LOCALE.x("E030: An unexpected exception was encountered " 
+                + "processing a message. Exception: {0}", ex), ex);
+        } finally {
+            // Stats
+            for (int i = 0; i < nPending; i++) {
+                mStats.messageDelivered();
             }
         }
+        
+        if (mustSetRollback) { 
+            txSetRollbackOnly(result, rethrowSystemExceptions);
+        }
+        return batch;
+    }
+    
+    /**
+     * Asks the redelivery handler if a message should be delivered; the handler may
+     * e.g. move the message to a dead letter queue instead
+     * 
+     * @param context state of the calling thread
+     * @param result Result
+     * @param connectionForMove connection to move the message with
+     * @param m message
+     * @return true if the message should be delivered
+     * @throws Exception propagated
+     */
+    private boolean shouldDeliver(DeliveryContext context, DeliveryResults result, 
+        ConnectionForMove connectionForMove, Message m) throws Exception {
+        context.mCookie.set(result, connectionForMove);
+        try {
+            return mRedeliveryChecker.shouldDeliver(context.mCookie, m);
+        } finally {
+            context.mCookie.set(null, null);
+        }
+    }
+    
+    /**
+     * Marks the calling thread as being in onMessage()
+     * 
+     * @param context state of the calling thread
+     * @return start time for exitOnMessage()
+     */
+    private long enterOnMessage(DeliveryContext context) {
+        XAssert.xassert(!context.mInOnMessage);
+        context.mInOnMessage = true;
+        return System.nanoTime();
+    }
+    
+    /**
+     * Marks the calling thread as no longer being in onMessage() and records the 
+     * time spent in onMessage()
+     * 
+     * @param context state of the calling thread
+     * @param t0 value returned by enterOnMessage()
+     */
+    private void exitOnMessage(DeliveryContext context, long t0) {
+        context.mInOnMessage = false;
+        long latency = System.nanoTime() - t0;
+        mStats.onMessageCompleted(latency);
+        if (mConcurrency != null) {
+            mConcurrency.onMessage(latency);
+        }
+    }
+    
+    /**
+     * Processes an exception thrown by onMessage(): the endpoint is discarded and 
+     * the result is marked rollback-only
+     * 
+     * @param result Result
+     * @param ex exception thrown by the endpoint
+     */
+    private void onMessageFailed(DeliveryResults result, RuntimeException ex) {
+        Exc.fixup(ex);
+        sLog.warn(LOCALE.x("E031: The entity the message was sent to for "
+            + "processing, threw an exception. The message will be "
+            + "rolled back. Exception: [{0}]", ex), ex);
+        result.setOnMessageFailed(true);
+        result.setException(ex);
+        result.setShouldDiscardEndpoint(true);
+        result.setRollbackOnly(true);
     }
     
     /**
@@ -1140,9 +1518,8 @@ public abstract class Delivery {
      * this Delivery
      */
     public boolean isThisCalledFromOnMessage() {
-        synchronized (mThreadsCurrentlyInOnMessage) {
-            return mThreadsCurrentlyInOnMessage.containsKey(Thread.currentThread());
-        }        
+        DeliveryContext context = mContext.get();
+        return context != null && context.mInOnMessage;
     }
     
     /**
@@ -1261,6 +1638,10 @@ public abstract class Delivery {
                     } else {
                         dump.append("* Thread " + th.getName() + "\r\n");
                         StackTraceElement[] stack = allStackTraces.get(th);
+                        if (stack == null) {
+                            // Virtual threads are not included
+                            stack = th.getStackTrace();
+                        }
                         for (int i = 0; i < stack.length; i++) {
                             dump.append(stack[i]).append("\r\n");
                         }
@@ -196,6 +196,17 @@ public class DeliveryResults {
         }
     }
 
+    /**
+     * Records that a number of messages were passed to onMessage in a single call 
+     * (BatchMessageListener)
+     *
+     * @param nMessages number of messages
+     */
+    public void addOnMessageWasCalled(int nMessages) {
+        mOnMessageWasCalled = nMessages > 0;
+        mNOnMessageWasCalled += nMessages;
+    }
+
     /**
      * Getter for isRollbackOnly
      *
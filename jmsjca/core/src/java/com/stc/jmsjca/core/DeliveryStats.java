@@ -16,107 +16,235 @@
 
 package com.stc.jmsjca.core;
 
+import com.stc.jmsjca.util.LRUIndex;
+import com.stc.jmsjca.util.LatencyHistogram;
+import com.stc.jmsjca.util.StripedCounter;
+
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Runtime statistics information on message delivery (used by an activation and the MBean
  * tied to that activation)
+ * 
+ * The counters that are updated for each message are striped so that endpoint threads
+ * do not contend with each other; none of the methods in this class block. As a
+ * consequence, values read while messages are being delivered are not an atomic 
+ * snapshot, and the timestamps at the sample points are approximate.
  *
  * @author fkieviet
- * @version $Revision: 1.8 $
+ * @version $Revision: 1.9 $
  */
 public class DeliveryStats {
-    private int mNMessages;
-    private long mt0;
-    private long mt1;
-    private long mt2;
-    private long mt3;
-    private long mt4;
     private static final int SAMPLEPOINT_0 = 1;
     private static final int SAMPLEPOINT_1 = 1000;
     private static final int SAMPLEPOINT_2 = 10000;
     private static final int SAMPLEPOINT_3 = 20000;
     private static final int SAMPLEPOINT_4 = 100000;
-    private int mNEndpoints;
-    private int mNActiveEndpoints;
-    private int mNHighestActiveEndpoints;
-    private int mRedeliveredMsgs;
-    private int mRedeliveries;
-    private int mBypassCommits;
-    private int mDeliveryCommits;
-    private int mBypassCommitsSinceLastDeliveryCommit;
-    private int mDeliveryCommitsSinceLastBypassCommit;
+    private static final int[] SAMPLEPOINTS = new int[] {
+        SAMPLEPOINT_0, SAMPLEPOINT_1, SAMPLEPOINT_2, SAMPLEPOINT_3, SAMPLEPOINT_4 };
+    
+    /**
+     * A thread checks the sample points every so many messages it delivers 
+     */
+    private static final int SAMPLE_CHECK_MASK = 0x7;
+    
+    /**
+     * Interval at which the moving averages are updated 
+     */
+    private static final long TICK_INTERVAL_NS = 5000000000L;
+
+    private final StripedCounter mNMessages = new StripedCounter();
+    private final AtomicLongArray mSampleTimes = new AtomicLongArray(SAMPLEPOINTS.length);
+    private volatile boolean mAllSamplesTaken;
+    private final AtomicInteger mNEndpoints = new AtomicInteger();
+    private final AtomicInteger mNActiveEndpoints = new AtomicInteger();
+    private final AtomicInteger mNHighestActiveEndpoints = new AtomicInteger();
+    private final AtomicInteger mRedeliveredMsgs = new AtomicInteger();
+    private final AtomicInteger mRedeliveries = new AtomicInteger();
+    private final StripedCounter mBypassCommits = new StripedCounter();
+    private final StripedCounter mDeliveryCommits = new StripedCounter();
+    private final StripedCounter mRollbacks = new StripedCounter();
+    private final AtomicInteger mBypassCommitsSinceLastDeliveryCommit = new AtomicInteger();
+    private final StripedCounter mDeliveryCommitsSinceLastBypassCommit = new StripedCounter();
+    private final LatencyHistogram mOnMessageLatency = new LatencyHistogram();
+    private final LatencyHistogram mAckLatency = new LatencyHistogram();
+    private final AtomicLong mLastTick = new AtomicLong(System.nanoTime());
+    private volatile long mNMessagesAtLastTick;
+    private final Ewma mRate1 = new Ewma(60);
+    private final Ewma mRate5 = new Ewma(5 * 60);
+    private final Ewma mRate15 = new Ewma(15 * 60);
+    private volatile LRUIndex<?, ?> mEncounterIndex;
+    private volatile ConcurrencyController mConcurrency;
+    private volatile BatchSizer mBatchSizer;
+    
+    /**
+     * Exponentially weighted moving average of the delivery rate, similar to the
+     * load averages in Unix. Only the thread that wins the tick updates the average.
+     */
+    private static class Ewma {
+        private final double mAlpha;
+        private volatile double mRate;
+        private volatile boolean mInitialized;
+        
+        public Ewma(int periodSeconds) {
+            mAlpha = 1 - Math.exp(-(TICK_INTERVAL_NS / 1E9) / periodSeconds);
+        }
+        
+        public void tick(long n) {
+            double instantRate = n / (TICK_INTERVAL_NS / 1E9);
+            if (mInitialized) {
+                mRate += mAlpha * (instantRate - mRate);
+            } else {
+                mRate = instantRate;
+                mInitialized = true;
+            }
+        }
+        
+        public double getRate() {
+            return mRate;
+        }
+        
+        public void reset() {
+            mInitialized = false;
+            mRate = 0;
+        }
+    }
 
     /**
      * reset
      */
-    public synchronized void reset() {
-        mNMessages = 0; 
-        mt0 = 0;
-        mt1 = 0;
-        mt2 = 0;
-        mt3 = 0;
-        mt4 = 0;
-        mNHighestActiveEndpoints = 0;
-        mBypassCommits = 0;
-        mDeliveryCommits = 0;
-        mBypassCommitsSinceLastDeliveryCommit = 0;
-        mDeliveryCommitsSinceLastBypassCommit = 0;
+    public void reset() {
+        mNMessages.reset();
+        for (int i = 0; i < SAMPLEPOINTS.length; i++) {
+            mSampleTimes.set(i, 0);
+        }
+        mAllSamplesTaken = false;
+        mNHighestActiveEndpoints.set(0);
+        mRollbacks.reset();
+        mOnMessageLatency.reset();
+        mAckLatency.reset();
+        mNMessagesAtLastTick = 0;
+        mRate1.reset();
+        mRate5.reset();
+        mRate15.reset();
+        LRUIndex<?, ?> index = mEncounterIndex;
+        if (index != null) {
+            index.resetStats();
+        }
+        resetDeliveryStats();
     }
     
     /**
      * Partial reset: called when the delivery starts so that the stats can be used
      * to monitor deadletter activity 
      */
-    public synchronized void resetDeliveryStats() {
-        mBypassCommits = 0;
-        mDeliveryCommits = 0;
-        mBypassCommitsSinceLastDeliveryCommit = 0;
-        mDeliveryCommitsSinceLastBypassCommit = 0;
+    public void resetDeliveryStats() {
+        mBypassCommits.reset();
+        mDeliveryCommits.reset();
+        mBypassCommitsSinceLastDeliveryCommit.set(0);
+        mDeliveryCommitsSinceLastBypassCommit.reset();
     }
 
     /**
      * messageDelivered (irrespective transaction outcome)
      */
-    public synchronized void messageDelivered() {
-        mNMessages++;
-        if (mNMessages == SAMPLEPOINT_0) {
-            mt0 = System.currentTimeMillis();
-        } else if (mNMessages == SAMPLEPOINT_1) {
-            mt1 = System.currentTimeMillis();
-        } else if (mNMessages == SAMPLEPOINT_2) {
-            mt2 = System.currentTimeMillis();
-        } else if (mNMessages == SAMPLEPOINT_3) {
-            mt3 = System.currentTimeMillis();
-        } else if (mNMessages == SAMPLEPOINT_4) {
-            mt4 = System.currentTimeMillis();
+    public void messageDelivered() {
+        long local = mNMessages.add(1);
+        if (!mAllSamplesTaken && (local == 1 || (local & SAMPLE_CHECK_MASK) == 0)) {
+            takeSamples();
+        }
+        mNActiveEndpoints.decrementAndGet();
+        tickIfNecessary(System.nanoTime());
+    }
+    
+    /**
+     * Records the time of the sample points that were passed
+     */
+    private void takeSamples() {
+        long n = mNMessages.sum();
+        boolean all = true;
+        for (int i = 0; i < SAMPLEPOINTS.length; i++) {
+            if (mSampleTimes.get(i) == 0) {
+                if (n >= SAMPLEPOINTS[i]) {
+                    mSampleTimes.compareAndSet(i, 0, System.currentTimeMillis());
+                } else {
+                    all = false;
+                }
+            }
+        }
+        mAllSamplesTaken = all;
+    }
+    
+    /**
+     * Updates the moving averages if the tick interval has passed. Only one thread
+     * will do the update.
+     * 
+     * @param now System.nanoTime()
+     */
+    private void tickIfNecessary(long now) {
+        long last = mLastTick.get();
+        long age = now - last;
+        if (age > TICK_INTERVAL_NS) {
+            if (mLastTick.compareAndSet(last, now - age % TICK_INTERVAL_NS)) {
+                long n = mNMessages.sum();
+                long delta = n - mNMessagesAtLastTick;
+                mNMessagesAtLastTick = n;
+                for (long ticks = age / TICK_INTERVAL_NS; ticks > 0; ticks--) {
+                    mRate1.tick(delta);
+                    mRate5.tick(delta);
+                    mRate15.tick(delta);
+                    delta = 0;
+                }
+            }
         }
-        mNActiveEndpoints--;
     }
 
     /**
      * Called before a message is delivered to an endpoint
      */
-    public synchronized void aboutToDeliverMessage() {
-        mNActiveEndpoints++;
-        if (mNActiveEndpoints > mNHighestActiveEndpoints) {
-            mNHighestActiveEndpoints = mNActiveEndpoints;
+    public void aboutToDeliverMessage() {
+        int n = mNActiveEndpoints.incrementAndGet();
+        for (int max = mNHighestActiveEndpoints.get(); n > max; max = mNHighestActiveEndpoints.get()) {
+            if (mNHighestActiveEndpoints.compareAndSet(max, n)) {
+                break;
+            }
         }
     }
+    
+    /**
+     * Called after onMessage() returns or throws
+     * 
+     * @param nanos time spent in onMessage() in nanoseconds
+     */
+    public void onMessageCompleted(long nanos) {
+        mOnMessageLatency.record(nanos / 1000);
+    }
+
+    /**
+     * HUA: called when all messages of a transaction were acknowledged
+     * 
+     * @param nanos time between the end of delivery and the last acknowledgement
+     */
+    public void onAcksCompleted(long nanos) {
+        mAckLatency.record(nanos / 1000);
+    }
 
     /**
      * addMessageEndpoint
      */
-    public synchronized void addMessageEndpoint() {
-        mNEndpoints++;
+    public void addMessageEndpoint() {
+        mNEndpoints.incrementAndGet();
     }
 
     /**
      * removeMessageEndpoint
      */
-    public synchronized void removeMessageEndpoint() {
-        mNEndpoints--;
+    public void removeMessageEndpoint() {
+        mNEndpoints.decrementAndGet();
     }
 
     /**
@@ -124,17 +252,47 @@ public class DeliveryStats {
      *
      * @return int
      */
-    public synchronized int getNMessages() {
-        return mNMessages;
+    public int getNMessages() {
+        return (int) mNMessages.sum();
     }
 
-    private static String rate(int n, long dt) {
+    private static String rate(long n, long dt) {
         if (n <= 0 || dt <= 0) {
             return "n/a";
         }
 
         return "" + 1000 * (float) n / dt;
     }
+    
+    /**
+     * @return onMessage() latency histogram in microseconds
+     */
+    public LatencyHistogram getOnMessageLatency() {
+        return mOnMessageLatency;
+    }
+    
+    /**
+     * @return HUA: histogram in microseconds of the time spent waiting for 
+     * acknowledgements per transaction
+     */
+    public LatencyHistogram getAckLatency() {
+        return mAckLatency;
+    }
+    
+    /**
+     * @param minutes 1, 5 or 15
+     * @return moving average of the delivery rate in msgs/sec 
+     */
+    public double getDeliveryRate(int minutes) {
+        tickIfNecessary(System.nanoTime());
+        if (minutes <= 1) {
+            return mRate1.getRate();
+        } else if (minutes <= 5) {
+            return mRate5.getRate();
+        } else {
+            return mRate15.getRate();
+        }
+    }
 
     /**
      * Dumps out all stats in human readable form
@@ -142,9 +300,15 @@ public class DeliveryStats {
      * @return String
      */
     @Override
-    public synchronized String toString() {
+    public String toString() {
         long tnow = System.currentTimeMillis();
-        return "nMessages=" + mNMessages
+        long n = mNMessages.sum();
+        long mt0 = mSampleTimes.get(0);
+        long mt1 = mSampleTimes.get(1);
+        long mt2 = mSampleTimes.get(2);
+        long mt3 = mSampleTimes.get(3);
+        long mt4 = mSampleTimes.get(4);
+        return "nMessages=" + n
             + "; t(" + SAMPLEPOINT_0 + ")=" + mt0
             + "; t(" + SAMPLEPOINT_1 + ")=" + mt1
             + "; t(" + SAMPLEPOINT_2 + ")=" + mt2
@@ -155,15 +319,102 @@ public class DeliveryStats {
             + "; rate(" + SAMPLEPOINT_1 + "," + SAMPLEPOINT_2 + ")=" + rate(SAMPLEPOINT_2 - SAMPLEPOINT_1, mt2 - mt1)
             + "; rate(" + SAMPLEPOINT_2 + "," + SAMPLEPOINT_3 + ")=" + rate(SAMPLEPOINT_3 - SAMPLEPOINT_2, mt3 - mt2)
             + "; rate(" + SAMPLEPOINT_3 + "," + SAMPLEPOINT_4 + ")=" + rate(SAMPLEPOINT_4 - SAMPLEPOINT_3, mt4 - mt3)
-            + "; rate(" + SAMPLEPOINT_0 + "," + mNMessages + ")=" + rate(mNMessages - SAMPLEPOINT_1, tnow - mt0)
-            + "; nEndpoints=" + mNEndpoints
-            + "; nRedelivies=" + mRedeliveries
-            + "; nRedeliveredMsgs=" + mRedeliveredMsgs
-            + "; msgsDeliveryCommits=" + mDeliveryCommits
-            + "; msgsDeliveryCommitsSinceLastBypassCommit=" + mDeliveryCommitsSinceLastBypassCommit
-            + "; msgsBypassCommits=" + mBypassCommits
-            + "; msgsBypassCommitsSinceLastDeliveryCommit=" + mBypassCommitsSinceLastDeliveryCommit;
-        
+            + "; rate(" + SAMPLEPOINT_0 + "," + n + ")=" + rate(n - SAMPLEPOINT_1, tnow - mt0)
+            + "; rate(1min)=" + (float) getDeliveryRate(1)
+            + "; rate(5min)=" + (float) getDeliveryRate(5)
+            + "; rate(15min)=" + (float) getDeliveryRate(15)
+            + "; onMessage(us)=[" + mOnMessageLatency + "]"
+            + (mAckLatency.getCount() == 0 ? "" : "; ackWait(us)=[" + mAckLatency + "]")
+            + "; nEndpoints=" + mNEndpoints.get()
+            + "; nRedelivies=" + mRedeliveries.get()
+            + "; nRedeliveredMsgs=" + mRedeliveredMsgs.get()
+            + "; msgsDeliveryCommits=" + mDeliveryCommits.sum()
+            + "; msgsDeliveryCommitsSinceLastBypassCommit=" + mDeliveryCommitsSinceLastBypassCommit.sum()
+            + "; msgsBypassCommits=" + mBypassCommits.sum()
+            + "; msgsBypassCommitsSinceLastDeliveryCommit=" + mBypassCommitsSinceLastDeliveryCommit.get()
+            + "; msgsRollbacks=" + mRollbacks.sum()
+            + "; redeliveryIndex=[size=" + getEncounterIndexSize()
+            + ", hits=" + getEncounterIndexHits()
+            + ", misses=" + getEncounterIndexMisses()
+            + ", evictions=" + getEncounterIndexEvictions() + "]"
+            + (mConcurrency == null ? "" : "; concurrency=[" + mConcurrency + "]")
+            + (mBatchSizer == null ? "" : "; batch=[" + mBatchSizer + "]");
+    }
+
+    /**
+     * Associates the index of redelivered messages with these stats so that its
+     * effectiveness can be monitored
+     * 
+     * @param index index used by the RedeliveryHandler
+     */
+    public void setEncounterIndex(LRUIndex<?, ?> index) {
+        mEncounterIndex = index;
+    }
+
+    /**
+     * @return number of redelivered messages currently tracked
+     */
+    public int getEncounterIndexSize() {
+        LRUIndex<?, ?> index = mEncounterIndex;
+        return index == null ? 0 : index.size();
+    }
+
+    /**
+     * @return number of times a redelivered message was found in the index
+     */
+    public long getEncounterIndexHits() {
+        LRUIndex<?, ?> index = mEncounterIndex;
+        return index == null ? 0 : index.getHits();
+    }
+
+    /**
+     * @return number of times a redelivered message was not found in the index
+     */
+    public long getEncounterIndexMisses() {
+        LRUIndex<?, ?> index = mEncounterIndex;
+        return index == null ? 0 : index.getMisses();
+    }
+
+    /**
+     * @return number of redelivered messages that were dropped from the index 
+     */
+    public long getEncounterIndexEvictions() {
+        LRUIndex<?, ?> index = mEncounterIndex;
+        return index == null ? 0 : index.getEvictions();
+    }
+
+    /**
+     * Associates the controller that limits the number of concurrently active
+     * endpoints with these stats so that its decisions can be monitored
+     * 
+     * @param concurrency controller; null if the concurrency is not adaptive
+     */
+    public void setConcurrency(ConcurrencyController concurrency) {
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * @return controller that limits the number of active endpoints; may be null
+     */
+    public ConcurrencyController getConcurrency() {
+        return mConcurrency;
+    }
+
+    /**
+     * Associates the object that decides on the number of messages per batch with 
+     * these stats so that the batch sizes can be monitored
+     * 
+     * @param sizer null if messages are not delivered in batches
+     */
+    public void setBatchSizer(BatchSizer sizer) {
+        mBatchSizer = sizer;
+    }
+
+    /**
+     * @return object that decides on the number of messages per batch; may be null
+     */
+    public BatchSizer getBatchSizer() {
+        return mBatchSizer;
     }
 
     /**
@@ -171,8 +422,8 @@ public class DeliveryStats {
      *
      * @return int
      */
-    public synchronized int getNTotalEndpoints() {
-        return mNEndpoints;
+    public int getNTotalEndpoints() {
+        return mNEndpoints.get();
     }
 
     /**
@@ -180,8 +431,8 @@ public class DeliveryStats {
      *
      * @return int
      */
-    public synchronized int getNActiveEndpoints() {
-        return mNActiveEndpoints;
+    public int getNActiveEndpoints() {
+        return mNActiveEndpoints.get();
     }
 
     /**
@@ -189,67 +440,89 @@ public class DeliveryStats {
      *
      * @return int
      */
-    public synchronized int getNHighestEndpoints() {
-        return mNHighestActiveEndpoints;
+    public int getNHighestEndpoints() {
+        return mNHighestActiveEndpoints.get();
     }
 
     /**
      * Called when a msg is being redelivered (irrespective transaction outcome)
      */
-    public synchronized void msgRedelivered() {
-        mRedeliveries++;
+    public void msgRedelivered() {
+        mRedeliveries.incrementAndGet();
     }
 
     /**
      * Called when a new redelivery is detected, e.g. a msg that was not seen before
      */
-    public synchronized void msgRedeliveredFirstTime() {
-        mRedeliveredMsgs++;
+    public void msgRedeliveredFirstTime() {
+        mRedeliveredMsgs.incrementAndGet();
     }
 
     /**
      * Called when a msg bypass (moved to DLQ or deleted) was successful
      */
-    public synchronized void msgDeliveryBypassCommit() {
-        mBypassCommits++;
-        mBypassCommitsSinceLastDeliveryCommit++;
-        mDeliveryCommitsSinceLastBypassCommit = 0;
+    public void msgDeliveryBypassCommit() {
+        mBypassCommits.increment();
+        mBypassCommitsSinceLastDeliveryCommit.incrementAndGet();
+        mDeliveryCommitsSinceLastBypassCommit.reset();
     }
 
     /**
      * Called when a msg was successfully delivered and committed
      */
-    public synchronized void msgDeliveryCommit() {
-        mDeliveryCommits++;
-        mBypassCommitsSinceLastDeliveryCommit = 0;
-        mDeliveryCommitsSinceLastBypassCommit++;
+    public void msgDeliveryCommit() {
+        mDeliveryCommits.increment();
+        // Avoid writing to a shared location for each message
+        if (mBypassCommitsSinceLastDeliveryCommit.get() != 0) {
+            mBypassCommitsSinceLastDeliveryCommit.set(0);
+        }
+        mDeliveryCommitsSinceLastBypassCommit.increment();
+    }
+    
+    /**
+     * Called when the receipt of a msg was rolled back
+     */
+    public void msgDeliveryRollback() {
+        mRollbacks.increment();
     }
     
     /**
      * @return all stats in the form of a map
      */
-    public synchronized Map<String, Long> getDump() {
+    public Map<String, Long> getDump() {
         Map<String, Long> ret = new HashMap<String, Long>();
-        ret.put(Options.Stats.NMESSAGES, Long.valueOf(mNMessages));
-        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_0, mt0);
-        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_1, mt1);
-        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_2, mt2);
-        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_3, mt3);
-        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_4, mt4);
+        ret.put(Options.Stats.NMESSAGES, Long.valueOf(mNMessages.sum()));
+        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_0, mSampleTimes.get(0));
+        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_1, mSampleTimes.get(1));
+        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_2, mSampleTimes.get(2));
+        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_3, mSampleTimes.get(3));
+        ret.put(Options.Stats.TIME_AT_SAMPLEPOINT_4, mSampleTimes.get(4));
         ret.put(Options.Stats.MSGS_AT_SAMPLEPOINT_0, Long.valueOf(SAMPLEPOINT_0));
         ret.put(Options.Stats.MSGS_AT_SAMPLEPOINT_1, Long.valueOf(SAMPLEPOINT_1));
         ret.put(Options.Stats.MSGS_AT_SAMPLEPOINT_2, Long.valueOf(SAMPLEPOINT_2));
         ret.put(Options.Stats.MSGS_AT_SAMPLEPOINT_3, Long.valueOf(SAMPLEPOINT_3));
         ret.put(Options.Stats.MSGS_AT_SAMPLEPOINT_4, Long.valueOf(SAMPLEPOINT_4));
-        ret.put(Options.Stats.ENDPOINTS, Long.valueOf(mNEndpoints));
-        ret.put(Options.Stats.ACTIVE_ENDPOINTS, Long.valueOf(mNActiveEndpoints));
-        ret.put(Options.Stats.HIGEST_ENDPOINTS, Long.valueOf(mNHighestActiveEndpoints));
-        ret.put(Options.Stats.REDELIVERED_MSGS, Long.valueOf(mRedeliveredMsgs));
-        ret.put(Options.Stats.REDELIVERIES, Long.valueOf(mRedeliveries));
-        ret.put(Options.Stats.BYPASS_COMMITS, Long.valueOf(mBypassCommits));
-        ret.put(Options.Stats.DELIVERY_COMMITS, Long.valueOf(mDeliveryCommits));
-        ret.put(Options.Stats.BYPASS_COMMITS_SINCE_LAST_DELIVERY_COMMIT, Long.valueOf(mBypassCommitsSinceLastDeliveryCommit));
-        ret.put(Options.Stats.DELIVERY_COMMITS_SINCE_LAST_BYPASS_COMMIT, Long.valueOf(mDeliveryCommitsSinceLastBypassCommit));
+        ret.put(Options.Stats.ENDPOINTS, Long.valueOf(mNEndpoints.get()));
+        ret.put(Options.Stats.ACTIVE_ENDPOINTS, Long.valueOf(mNActiveEndpoints.get()));
+        ret.put(Options.Stats.HIGEST_ENDPOINTS, Long.valueOf(mNHighestActiveEndpoints.get()));
+        ret.put(Options.Stats.REDELIVERED_MSGS, Long.valueOf(mRedeliveredMsgs.get()));
+        ret.put(Options.Stats.REDELIVERIES, Long.valueOf(mRedeliveries.get()));
+        ret.put(Options.Stats.BYPASS_COMMITS, Long.valueOf(mBypassCommits.sum()));
+        ret.put(Options.Stats.DELIVERY_COMMITS, Long.valueOf(mDeliveryCommits.sum()));
+        ret.put(Options.Stats.BYPASS_COMMITS_SINCE_LAST_DELIVERY_COMMIT, 
+            Long.valueOf(mBypassCommitsSinceLastDeliveryCommit.get()));
+        ret.put(Options.Stats.DELIVERY_COMMITS_SINCE_LAST_BYPASS_COMMIT, 
+            Long.valueOf(mDeliveryCommitsSinceLastBypassCommit.sum()));
+        ret.put(Options.Stats.ROLLBACKS, Long.valueOf(mRollbacks.sum()));
+        ret.put(Options.Stats.LATENCY_P50, Long.valueOf(mOnMessageLatency.getPercentile(0.5)));
+        ret.put(Options.Stats.LATENCY_P99, Long.valueOf(mOnMessageLatency.getPercentile(0.99)));
+        ret.put(Options.Stats.LATENCY_P999, Long.valueOf(mOnMessageLatency.getPercentile(0.999)));
+        ret.put(Options.Stats.RATE_1MIN, Long.valueOf(Math.round(getDeliveryRate(1) * 60)));
+        ret.put(Options.Stats.RATE_5MIN, Long.valueOf(Math.round(getDeliveryRate(5) * 60)));
+        ret.put(Options.Stats.RATE_15MIN, Long.valueOf(Math.round(getDeliveryRate(15) * 60)));
+        ret.put(Options.Stats.ENCOUNTER_HITS, Long.valueOf(getEncounterIndexHits()));
+        ret.put(Options.Stats.ENCOUNTER_MISSES, Long.valueOf(getEncounterIndexMisses()));
+        ret.put(Options.Stats.ENCOUNTER_EVICTIONS, Long.valueOf(getEncounterIndexEvictions()));
         return ret;
     }
 }
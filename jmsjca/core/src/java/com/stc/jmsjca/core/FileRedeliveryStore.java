@@ -0,0 +1,580 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.localization.Localizer;
+import com.stc.jmsjca.util.Exc;
+import com.stc.jmsjca.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A RedeliveryStore that appends records to a file in a directory. Records are queued
+ * by the delivery threads and written in batches by a background thread so that
+ * message delivery does not wait for the disk. The log is compacted (only the most
+ * recent record per message is kept, up to the maximum number of messages) when it
+ * is loaded and when it has grown to several times the maximum number of messages.
+ *
+ * A partially written record at the end of the file (e.g. after a crash) is ignored;
+ * so is everything from a corrupt record onwards. Compaction writes a new file and
+ * replaces the old file by renaming; where the file system cannot rename over an existing
+ * file, the old file is kept as a backup until the new file is in place, and is used
+ * again if the process stopped before that.
+ * Records are flushed to the operating system, but not forced to disk, so that the
+ * state survives a restart of the process, but not necessarily a power failure.
+ * If a record could not be written completely, the file is truncated to the end of
+ * the last complete record before further records are appended.
+ * 
+ * A file can only be used by one store at a time: a second store on the same file,
+ * in the same or in a different process, cannot be created.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class FileRedeliveryStore implements RedeliveryStore {
+    private static Logger sLog = Logger.getLogger(FileRedeliveryStore.class);
+    private static final Localizer LOCALE = Localizer.get();
+
+    private static final int MAGIC = 0x4a524431;
+    private static final long FLUSH_INTERVAL = 200;
+    private static final int BATCH_SIZE = 256;
+    private static final int COMPACTION_FACTOR = 4;
+    private static final int MIN_COMPACTION_THRESHOLD = 1000;
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+    private static final int MAX_PROPERTIES = 10000;
+
+    private final File mFile;
+    private final File mTmpFile;
+    private final File mBackupFile;
+    private final File mLockFile;
+    private final int mMaxRecords;
+    private final ConcurrentLinkedQueue<Record> mPending = new ConcurrentLinkedQueue<Record>();
+    private final AtomicInteger mNPending = new AtomicInteger();
+    private final Object mIOLock = new Object();
+    private DataOutputStream mOut;
+    private FileOutputStream mOutFile;
+    // Length of the file up to the end of the last complete record; -1 if not known
+    private long mGoodLength = -1;
+    private int mWrittenSinceCompaction;
+    private boolean mFailureLogged;
+    private volatile boolean mClosed;
+    private final Thread mWriter;
+    private boolean mInUse;
+    private RandomAccessFile mLockRAF;
+    private FileLock mLock;
+    
+    // Canonical paths of the files in use by a store in this JVM
+    private static final Set<String> sFilesInUse = new HashSet<String>();
+
+    /**
+     * Constructor
+     *
+     * @param location directory in which the file is created
+     * @param name name that identifies the activation; used to derive the file name
+     * @param maxRecords maximum number of messages to keep
+     * @throws Exception if the directory cannot be created or if the file is in use
+     */
+    public FileRedeliveryStore(String location, String name, int maxRecords) throws Exception {
+        File dir = new File(location);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw Exc.exc(LOCALE.x("E223: Directory for redelivery state [{0}] could not be created",
+                dir.getAbsolutePath()));
+        }
+        mFile = new File(dir, toFileName(name));
+        mTmpFile = new File(mFile.getPath() + ".tmp");
+        mBackupFile = new File(mFile.getPath() + ".bak");
+        mLockFile = new File(mFile.getPath() + ".lck");
+        mMaxRecords = maxRecords;
+        lock();
+
+        mWriter = new Thread("JMSJCA redelivery store " + mFile.getName()) {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Derives a file name that is valid on any file system from an arbitrary string
+     *
+     * @param name arbitrary string
+     * @return file name
+     */
+    static String toFileName(String name) {
+        StringBuffer ret = new StringBuffer("redelivery-");
+        for (int i = 0; i < name.length() && i < 64; i++) {
+            char c = name.charAt(i);
+            ret.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
+        }
+        ret.append('-').append(Integer.toHexString(name.hashCode())).append(".log");
+        return ret.toString();
+    }
+
+    /**
+     * Makes sure that no other store uses the file: stores in this JVM are tracked
+     * in a static set, other processes are excluded with a file lock
+     * 
+     * @throws Exception if the file is in use
+     */
+    private void lock() throws Exception {
+        String path = mFile.getCanonicalPath();
+        boolean locked;
+        synchronized (sFilesInUse) {
+            locked = sFilesInUse.add(path);
+            mInUse = locked;
+        }
+        if (locked) {
+            try {
+                mLockRAF = new RandomAccessFile(mLockFile, "rw");
+                mLock = mLockRAF.getChannel().tryLock();
+            } catch (IOException e) {
+                mLock = null;
+            }
+            if (mLock == null) {
+                unlock();
+                locked = false;
+            }
+        }
+        if (!locked) {
+            throw Exc.exc(LOCALE.x("E235: Redelivery state file [{0}] is already in use; activations "
+                + "on the same destination and server should use different context names or "
+                + "different directories (JMSJCA.redeliverystore)", path));
+        }
+    }
+    
+    private void unlock() {
+        try {
+            if (mLock != null) {
+                mLock.release();
+                mLock = null;
+            }
+            if (mLockRAF != null) {
+                mLockRAF.close();
+                mLockRAF = null;
+            }
+        } catch (IOException ignore) {
+            // ignore
+        }
+        try {
+            synchronized (sFilesInUse) {
+                if (mInUse) {
+                    sFilesInUse.remove(mFile.getCanonicalPath());
+                    mInUse = false;
+                }
+            }
+        } catch (IOException ignore) {
+            // ignore
+        }
+    }
+
+    /**
+     * @return the file the records are written to
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.RedeliveryStore#save(com.stc.jmsjca.core.RedeliveryStore.Record)
+     */
+    public void save(Record r) {
+        if (mClosed) {
+            return;
+        }
+        mPending.add(r);
+        if (mNPending.incrementAndGet() >= BATCH_SIZE) {
+            synchronized (mPending) {
+                mPending.notify();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (!mClosed) {
+            synchronized (mPending) {
+                try {
+                    if (mNPending.get() < BATCH_SIZE) {
+                        mPending.wait(FLUSH_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    // Closing
+                }
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // Keep the thread alive: the records are a best effort
+                sLog.warn(LOCALE.x("E190: Caught unexpected Throwable: {0}", e), e);
+            }
+        }
+    }
+
+    /**
+     * Writes all queued records; the file is truncated to the last complete record
+     * before writing so that a record that was partially written in a previous failure
+     * does not make the records after it unreadable
+     */
+    private void flush() {
+        synchronized (mIOLock) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            try {
+                if (mOut == null) {
+                    openOut();
+                }
+                for (Record r = mPending.poll(); r != null; r = mPending.poll()) {
+                    mNPending.decrementAndGet();
+                    write(mOut, r);
+                    mWrittenSinceCompaction++;
+                }
+                mOut.flush();
+                mGoodLength = mOutFile.getChannel().position();
+
+                if (mWrittenSinceCompaction > COMPACTION_FACTOR
+                    * Math.max(mMaxRecords, MIN_COMPACTION_THRESHOLD)) {
+                    compact();
+                }
+            } catch (IOException e) {
+                // Drop the records; they are a best effort
+                mPending.clear();
+                mNPending.set(0);
+                closeOut();
+                if (!mFailureLogged) {
+                    mFailureLogged = true;
+                    sLog.warn(LOCALE.x("E224: Redelivery state could not be written to [{0}]: {1}; "
+                        + "for subsequent similar failures, this warning will not be logged.",
+                        mFile.getAbsolutePath(), e), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the file for appending; must be called with the IO lock. If the last
+     * write failed, the file is truncated to the end of the last complete record.
+     */
+    private void openOut() throws IOException {
+        recover();
+        boolean exists = mFile.exists() && mFile.length() > 0;
+        if (exists && mGoodLength < 0) {
+            read();
+        }
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            if (exists && mGoodLength >= 0 && mGoodLength < out.getChannel().size()) {
+                out.getChannel().truncate(mGoodLength);
+            }
+            mOutFile = out;
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            if (!exists) {
+                mOut.writeInt(MAGIC);
+                mOut.flush();
+            }
+            mGoodLength = out.getChannel().position();
+        } catch (IOException e) {
+            mOutFile = null;
+            mOut = null;
+            out.close();
+            throw e;
+        }
+    }
+
+    private void closeOut() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException ignore) {
+                // ignore
+            }
+            mOut = null;
+            mOutFile = null;
+        }
+    }
+
+    /**
+     * Completes or undoes an interrupted compaction: if the file is missing, the backup
+     * is the most recent complete file; a left over temporary file may be incomplete.
+     * Must be called with the IO lock.
+     */
+    private void recover() throws IOException {
+        if (mBackupFile.exists()) {
+            if (!mFile.exists()) {
+                if (!mBackupFile.renameTo(mFile)) {
+                    throw new IOException("Could not restore " + mFile.getAbsolutePath() 
+                        + " from " + mBackupFile.getAbsolutePath());
+                }
+            } else {
+                mBackupFile.delete();
+            }
+        }
+        if (mTmpFile.exists()) {
+            mTmpFile.delete();
+        }
+    }
+
+    /**
+     * Reads the file; must be called with the IO lock
+     *
+     * @return most recent record per msgid, from least to most recent
+     */
+    private Map<String, Record> read() throws IOException {
+        LinkedHashMap<String, Record> ret = new LinkedHashMap<String, Record>();
+        recover();
+        if (!mFile.exists() || mFile.length() == 0) {
+            return ret;
+        }
+
+        CountingInputStream count = new CountingInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        DataInputStream in = new DataInputStream(count);
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a redelivery state file: " + mFile.getAbsolutePath());
+            }
+            mGoodLength = count.getCount();
+            for (;;) {
+                Record r;
+                try {
+                    r = read(in);
+                } catch (EOFException e) {
+                    // End of file, or partially written record
+                    break;
+                } catch (CorruptRecordException e) {
+                    sLog.warn(LOCALE.x("E233: Redelivery state in [{0}] is corrupt after {1} messages; " 
+                        + "the remainder is ignored: {2}", mFile.getAbsolutePath(), 
+                        Integer.toString(ret.size()), e.getMessage()));
+                    break;
+                }
+                ret.remove(r.getMsgid());
+                ret.put(r.getMsgid(), r);
+                mGoodLength = count.getCount();
+            }
+        } finally {
+            in.close();
+        }
+
+        // Keep the most recent
+        for (Iterator<Record> iter = ret.values().iterator(); ret.size() > mMaxRecords;/*-*/) {
+            iter.next();
+            iter.remove();
+        }
+        return ret;
+    }
+
+    /**
+     * Rewrites the file so that it only contains the most recent record per message;
+     * must be called with the IO lock
+     */
+    private void compact() throws IOException {
+        closeOut();
+        Map<String, Record> records = read();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mTmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            for (Iterator<Record> iter = records.values().iterator(); iter.hasNext();/*-*/) {
+                write(out, iter.next());
+            }
+        } finally {
+            out.close();
+        }
+        if (!mTmpFile.renameTo(mFile)) {
+            // Cannot rename over an existing file on this file system: keep the old file 
+            // until the new one is in place
+            if (!mFile.renameTo(mBackupFile)) {
+                throw new IOException("Could not replace " + mFile.getAbsolutePath());
+            }
+            if (!mTmpFile.renameTo(mFile)) {
+                recover();
+                throw new IOException("Could not replace " + mFile.getAbsolutePath());
+            }
+            mBackupFile.delete();
+        }
+        mGoodLength = mFile.length();
+        mWrittenSinceCompaction = 0;
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.RedeliveryStore#load()
+     */
+    public List<Record> load() throws Exception {
+        flush();
+        synchronized (mIOLock) {
+            recover();
+            if (mFile.exists()) {
+                compact();
+            }
+            return new ArrayList<Record>(read().values());
+        }
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.RedeliveryStore#close()
+     */
+    public void close() {
+        mClosed = true;
+        mWriter.interrupt();
+        try {
+            mWriter.join(FLUSH_INTERVAL * 10);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        flush();
+        synchronized (mIOLock) {
+            closeOut();
+        }
+        unlock();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n == -1) {
+            return null;
+        }
+        if (n < 0 || n > MAX_STRING_LENGTH) {
+            throw new CorruptRecordException("invalid string length " + n);
+        }
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    private static void write(DataOutputStream out, Record r) throws IOException {
+        writeString(out, r.getMsgid());
+        out.writeLong(r.getTimestamp());
+        out.writeInt(r.getNEncountered());
+        out.writeInt(r.getActionCursor());
+        writeString(out, r.getActions());
+        Map<String, String> props = r.getProperties();
+        out.writeInt(props == null ? 0 : props.size());
+        if (props != null) {
+            for (Iterator<Map.Entry<String, String>> iter = props.entrySet().iterator(); iter.hasNext();/*-*/) {
+                Map.Entry<String, String> e = iter.next();
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+        }
+    }
+
+    private static Record read(DataInputStream in) throws IOException {
+        String msgid = readString(in);
+        long timestamp = in.readLong();
+        int n = in.readInt();
+        int cursor = in.readInt();
+        String actions = readString(in);
+        int nprops = in.readInt();
+        if (nprops < 0 || nprops > MAX_PROPERTIES) {
+            throw new CorruptRecordException("invalid number of properties " + nprops);
+        }
+        Map<String, String> props = null;
+        if (nprops > 0) {
+            props = new HashMap<String, String>();
+            for (int i = 0; i < nprops; i++) {
+                String key = readString(in);
+                props.put(key, readString(in));
+            }
+        }
+        if (msgid == null || n < 0 || cursor < 0) {
+            throw new CorruptRecordException("invalid record for msgid " + msgid);
+        }
+        return new Record(msgid, timestamp, n, cursor, actions, props);
+    }
+
+    /**
+     * Keeps track of the number of bytes read so that the end of the last complete
+     * record is known
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+        
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int ret = super.read();
+            if (ret >= 0) {
+                mCount++;
+            }
+            return ret;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int ret = super.read(b, off, len);
+            if (ret > 0) {
+                mCount += ret;
+            }
+            return ret;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long ret = super.skip(n);
+            mCount += ret;
+            return ret;
+        }
+        
+        public long getCount() {
+            return mCount;
+        }
+    }
+
+    /**
+     * Thrown when a record is read that cannot have been written by this class
+     */
+    private static class CorruptRecordException extends IOException {
+        public CorruptRecordException(String msg) {
+            super(msg);
+        }
+    }
+}
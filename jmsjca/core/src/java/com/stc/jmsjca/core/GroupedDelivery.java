@@ -0,0 +1,608 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.localization.Localizer;
+import com.stc.jmsjca.util.Exc;
+import com.stc.jmsjca.util.Logger;
+import com.stc.jmsjca.util.Utility;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.QueueSession;
+import javax.jms.TopicSession;
+import javax.transaction.xa.XAResource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A strategy for concurrent delivery that preserves the order of messages within a 
+ * group: messages with the same group key (JMSXGroupID by default, see 
+ * JMSJCA.groupkey) are delivered one after the other in the order in which they 
+ * were received, while messages of different groups are delivered concurrently.
+ * 
+ * The threading model is as follows: a dispatcher thread receives messages on a 
+ * single session and hands them to lanes; the lane is chosen by hashing the group
+ * key, so that all messages of a group go to the same lane. Each lane has its own
+ * thread and endpoint and delivers its messages in order. Messages without a group
+ * key are distributed round robin. A lane holds a bounded number of messages 
+ * (JMSJCA.grouplanecapacity); when full, the dispatcher waits (back-pressure).
+ * 
+ * Messages are received in a local transaction. When the dispatcher has received 
+ * batchsize messages or when no more messages are available, it waits until the 
+ * lanes have processed all messages and then commits, or rolls back if any message 
+ * failed. In that case the lanes skip the remaining messages of the same group in 
+ * the transaction so that no message overtakes a failed message of its group, but
+ * continue with the messages of other groups. The messages that were processed 
+ * successfully in a transaction that was rolled back are recognized by their msgid 
+ * when they are redelivered, and are not processed again (nor counted by the 
+ * redelivery handler). Note that since all lanes must be done before the transaction
+ * is committed, the slowest message in a transaction holds up all lanes; also, 
+ * messages are only delivered concurrently within a transaction, so the batch size
+ * should be larger than the number of lanes.
+ * 
+ * In CMT mode, each message is processed in its own transaction that does not 
+ * include the receipt of the message, so this mode can only be used with XA emulation
+ * (JMSJCA.NoXA=true; see Activation).
+ * 
+ * The number of lanes that is used can only change when all lanes are empty, i.e.
+ * between two local transactions, so that the assignment of groups to lanes can 
+ * change without affecting the order. This is used when the concurrency is 
+ * adaptive (JMSJCA.concurrencymin).
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class GroupedDelivery extends Delivery {
+    private static Logger sLog = Logger.getLogger(GroupedDelivery.class);
+    private static final Localizer LOCALE = Localizer.get();
+
+    /**
+     * Default maximum number of messages waiting in a lane
+     */
+    public static final int DEFAULT_LANE_CAPACITY = 100;
+    
+    private static final String JMSCORRELATIONID = "JMSCorrelationID";
+    private static final long POLL_TIMEOUT = 1000;
+    private static final int MAX_PROCESSED = 10000;
+
+    private int mReceiveTimeout = 10000;
+    private final int mNLanes;
+    private final int mLaneCapacity;
+    private final int mCommitSize;
+    private final String mGroupKey;
+
+    private javax.jms.Connection mConnection;
+    private javax.jms.Session mSess;
+    private javax.jms.MessageConsumer mCons;
+    private Thread mDispatcher;
+    private Lane[] mLanes;
+    private int mNextLane;
+    private volatile boolean mIsStopped = true;
+
+    // Messages handed to lanes in the current transaction but not processed yet
+    private final Object mOutstandingLock = new Object();
+    private int mOutstanding;
+    private volatile boolean mFailed;
+    
+    // Msgids of the messages processed successfully in the current transaction
+    private final List<String> mProcessedInTx = new ArrayList<String>();
+    
+    // Groups of the messages that failed in the current transaction
+    private final Set<String> mFailedGroups = new HashSet<String>();
+    
+    // Msgids of the messages that were processed successfully in a transaction that 
+    // was rolled back; only accessed by the dispatcher
+    private final Set<String> mProcessed = new LinkedHashSet<String>();
+
+    /**
+     * Constructor
+     * 
+     * @param a Activation
+     * @param stats DeliveryStats
+     * @throws Exception on failure
+     */
+    public GroupedDelivery(Activation a, DeliveryStats stats) throws Exception {
+        super(a, stats);
+        Properties p = new Properties();
+        a.getObjectFactory().getProperties(p, a.getRA(), a.getActivationSpec(), null, null);
+        mReceiveTimeout = Utility.getIntProperty(p, Options.In.RECEIVE_TIMEOUT, mReceiveTimeout);
+        mGroupKey = p.getProperty(Options.In.OPTION_GROUP_KEY, "JMSXGroupID");
+        mLaneCapacity = Math.max(1, Utility.getIntProperty(p, Options.In.OPTION_GROUP_LANE_CAPACITY, 
+            DEFAULT_LANE_CAPACITY));
+        mCommitSize = Math.max(1, mBatchSize);
+        mNLanes = Math.max(1, a.getActivationSpec().getEndpointPoolMaxSize().intValue());
+        createConcurrencyController(mNLanes);
+        
+        if (sLog.isDebugEnabled()) {
+            sLog.debug("Grouped delivery: " + mNLanes + " lanes, group key " + mGroupKey);
+        }
+    }
+
+    /**
+     * Holds the messages of a subset of the groups and delivers them in order to its
+     * own endpoint
+     */
+    private class Lane implements Runnable {
+        private final BlockingQueue<Message> mQueue = new ArrayBlockingQueue<Message>(mLaneCapacity);
+        private final Thread mThread;
+        private final XAResource mXA;
+        private final Delivery.MDB mMDB;
+        private final ConnectionForMove mMessageMoveConnection;
+        private XMessageEndpoint mEndpoint;
+
+        public Lane(String name) {
+            mThread = new Thread(this, name);
+            mThread.setDaemon(true);
+            // The receipt of the message is not part of the transaction
+            mXA = mActivation.isCMT() ? new PseudoXAResourceNOP() : null;
+            mMDB = new Delivery.MDB(mXA);
+            mMessageMoveConnection = createConnectionForMove();
+            mMessageMoveConnection.setDelayedCommit();
+        }
+
+        /**
+         * Hands a message to this lane; waits if the lane is full
+         */
+        public void put(Message m) throws InterruptedException {
+            mQueue.put(m);
+        }
+
+        public void run() {
+            mActivation.enterContext();
+            try {
+                while (!mIsStopped || !mQueue.isEmpty()) {
+                    Message m;
+                    try {
+                        m = mQueue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        m = null;
+                    }
+                    if (m != null) {
+                        String key = null;
+                        try {
+                            key = getGroupKey(m);
+                            if (isFailedGroup(key)) {
+                                // Skip: would overtake a failed message of the same group
+                            } else if (deliver(m)) {
+                                onProcessedSuccessfully(m.getJMSMessageID());
+                            } else {
+                                onFailed(key);
+                            }
+                        } catch (Throwable e) {
+                            onFailed(key);
+                            sLog.warn(LOCALE.x("E190: Caught unexpected Throwable: {0}", e), e);
+                        } finally {
+                            onProcessed();
+                        }
+                    }
+                }
+            } finally {
+                release(mEndpoint);
+                mEndpoint = null;
+                mActivation.exitContext();
+            }
+        }
+
+        /**
+         * Delivers a single message in its own transaction (CMT) 
+         * 
+         * @return false if the message should be rolled back
+         */
+        private boolean deliver(Message m) throws Exception {
+            if (mEndpoint == null) {
+                mEndpoint = createMessageEndpoint(mXA, null);
+                if (mEndpoint == null) {
+                    throw Exc.exc(LOCALE.x("E143: No endpoint was created, "
+                        + "possibly because the RA may be shutting down"));
+                }
+            }
+            DeliveryResults result = getThreadResults();
+            beforeDelivery(result, mEndpoint, true);
+            deliverToEndpoint(result, mMessageMoveConnection, mEndpoint, m, true);
+            afterDelivery(result, mMessageMoveConnection, mEndpoint, mMDB, true);
+            if (result.getShouldDiscardEndpoint()) {
+                release(mEndpoint);
+                mEndpoint = null;
+            }
+            return !result.getIsRollbackOnly() && !result.getAfterDeliveryFailed();
+        }
+    }
+
+    /**
+     * Called by a lane when it is done with a message
+     */
+    private void onProcessed() {
+        synchronized (mOutstandingLock) {
+            mOutstanding--;
+            if (mOutstanding == 0) {
+                mOutstandingLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called when a message failed: the transaction will be rolled back, and the 
+     * remaining messages of the same group should not be delivered
+     * 
+     * @param key group key of the message; may be null
+     */
+    private void onFailed(String key) {
+        mFailed = true;
+        if (key != null) {
+            synchronized (mFailedGroups) {
+                mFailedGroups.add(key);
+            }
+        }
+    }
+    
+    /**
+     * @param key group key, may be null
+     * @return true if a message of this group failed in the current transaction
+     */
+    private boolean isFailedGroup(String key) {
+        if (key == null || !mFailed) {
+            return false;
+        }
+        synchronized (mFailedGroups) {
+            return mFailedGroups.contains(key);
+        }
+    }
+
+    /**
+     * Called when a message was processed successfully (in CMT: committed)
+     * 
+     * @param msgid msgid of the message
+     */
+    private void onProcessedSuccessfully(String msgid) {
+        if (msgid != null) {
+            synchronized (mProcessedInTx) {
+                mProcessedInTx.add(msgid);
+            }
+        }
+    }
+
+    /**
+     * Checks if a message was processed successfully before, in a transaction that
+     * was rolled back because of the failure of another message
+     * 
+     * @param m received message
+     * @return true if the message should not be processed again
+     * @throws JMSException propagated
+     */
+    private boolean wasProcessed(Message m) throws JMSException {
+        if (mProcessed.isEmpty()) {
+            return false;
+        }
+        String msgid = m.getJMSMessageID();
+        if (msgid != null && mProcessed.remove(msgid)) {
+            // Remember it in case this transaction is rolled back too
+            onProcessedSuccessfully(msgid);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits until all messages handed to lanes were processed
+     */
+    private void waitForLanes() {
+        synchronized (mOutstandingLock) {
+            while (mOutstanding > 0) {
+                try {
+                    mOutstandingLock.wait(POLL_TIMEOUT);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @param m message
+     * @return the group the message belongs to; null if none
+     * @throws JMSException propagated
+     */
+    private String getGroupKey(Message m) throws JMSException {
+        return JMSCORRELATIONID.equals(mGroupKey) ? m.getJMSCorrelationID() : m.getStringProperty(mGroupKey);
+    }
+
+    /**
+     * Selects the lane for a message
+     * 
+     * @param m message
+     * @param nActive number of lanes to choose from
+     * @return lane
+     * @throws JMSException propagated
+     */
+    private Lane getLane(Message m, int nActive) throws JMSException {
+        String key = getGroupKey(m);
+        if (key == null) {
+            mNextLane = (mNextLane + 1) % nActive;
+            return mLanes[mNextLane];
+        }
+        return mLanes[(key.hashCode() & 0x7fffffff) % nActive];
+    }
+
+    /**
+     * The dispatcher loop: receives messages in a local transaction, hands them to
+     * lanes and commits when the lanes have processed them
+     */
+    private void dispatch() throws Exception {
+        while (!mIsStopped) {
+            // Lanes are empty: the number of lanes used may change
+            int nActive = mConcurrency == null ? mNLanes : Math.min(mNLanes, mConcurrency.getLimit());
+            
+            Message m = mCons.receive(mReceiveTimeout);
+            if (m == null) {
+                onIdle();
+                continue;
+            }
+            
+            for (int n = 0; m != null; n++) {
+                if (!wasProcessed(m)) {
+                    synchronized (mOutstandingLock) {
+                        mOutstanding++;
+                    }
+                    getLane(m, nActive).put(m);
+                }
+                if (n + 1 >= mCommitSize || mFailed) {
+                    break;
+                }
+                m = mCons.receive(SyncDelivery.TIMEOUTBATCH);
+            }
+            
+            waitForLanes();
+            complete(!mFailed);
+            mFailed = false;
+        }
+    }
+
+    /**
+     * Commits or rolls back the local transaction, including the messages that 
+     * were moved (redelivery handling)
+     */
+    private void complete(boolean commit) {
+        if (!mActivation.isCMT()) {
+            for (int i = 0; i < mLanes.length; i++) {
+                try {
+                    mLanes[i].mMessageMoveConnection.nonXACommit(commit);
+                } catch (JMSException ex) {
+                    if (commit) {
+                        commit = false;
+                        sLog.error(LOCALE.x("E098: The message sent as part of redelivery handling " 
+                            + "could not be committed. The receiving of the message will be rolled "
+                            + "back. The error was: {0}", ex), ex);
+                    } else {
+                        sLog.error(LOCALE.x("E097: The message sent as part of redelivery handling " 
+                            + "could not be rolled back: {0}", ex), ex);
+                    }
+                }
+            }
+        }
+        
+        boolean committed = false;
+        if (commit) {
+            try {
+                mSess.commit();
+                committed = true;
+                if (!mActivation.isCMT()) {
+                    mStats.msgDeliveryCommit();
+                }
+            } catch (JMSException ex) {
+                sLog.error(LOCALE.x("E065: The message could not be committed: {0}", ex), ex);
+            }
+        } else {
+            try {
+                mSess.rollback();
+                if (!mActivation.isCMT()) {
+                    mStats.msgDeliveryRollback();
+                }
+            } catch (JMSException ex) {
+                sLog.error(LOCALE.x("E066: The message could not be rolled back: {0}", ex), ex);
+            }
+        }
+        
+        // Messages processed in a transaction that was not committed will be redelivered
+        synchronized (mProcessedInTx) {
+            if (!committed) {
+                mProcessed.addAll(mProcessedInTx);
+                for (Iterator<String> iter = mProcessed.iterator(); mProcessed.size() > MAX_PROCESSED;/*-*/) {
+                    iter.next();
+                    iter.remove();
+                }
+            }
+            mProcessedInTx.clear();
+        }
+        synchronized (mFailedGroups) {
+            mFailedGroups.clear();
+        }
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.Delivery#start()
+     */
+    @Override
+    public synchronized void start() throws Exception {
+        if (!mIsStopped) {
+            return;
+        }
+        mIsStopped = false;
+        
+        try {
+            RAJMSObjectFactory o = mActivation.getObjectFactory();
+            int domain = XConnectionRequestInfo.guessDomain(false, mActivation.isTopic());
+            Class<?> sessionClass = mActivation.isTopic() ? TopicSession.class : QueueSession.class;
+            javax.jms.ConnectionFactory fact = o.createConnectionFactory(
+                domain,
+                mActivation.getRA(),
+                mActivation.getActivationSpec(),
+                null,
+                null);
+            mConnection = o.createConnection(
+                fact,
+                domain,
+                mActivation.getActivationSpec(),
+                mActivation.getRA(),
+                mActivation.getUserName() == null 
+                ? mActivation.getRA().getUserName() : mActivation.getUserName(),
+                mActivation.getPassword() == null 
+                ? mActivation.getRA().getClearTextPassword() : mActivation.getPassword());
+            o.setClientID(mConnection, 
+                mActivation.isTopic(), 
+                mActivation.getActivationSpec(), 
+                mActivation.getRA());
+            createDLQDest();
+            mSess = o.createSession(
+                mConnection,
+                false,
+                sessionClass,
+                mActivation.getRA(),
+                mActivation.getActivationSpec(),
+                true,
+                javax.jms.Session.SESSION_TRANSACTED);
+            javax.jms.Destination dest = o.createDestination(
+                mSess,
+                false,
+                mActivation.isTopic(),
+                mActivation.getActivationSpec(),
+                null,
+                mActivation.getRA(),
+                mActivation.getActivationSpec().getDestination(), 
+                null,
+                sessionClass);
+            mActivation.publishInboundDestination(dest);
+            mCons = o.createMessageConsumer(
+                mSess,
+                false,
+                mActivation.isTopic(),
+                dest,
+                mActivation.getActivationSpec(),
+                mActivation.getRA());
+            
+            String destname = mActivation.getActivationSpec().getDestination();
+            mLanes = new Lane[mNLanes];
+            for (int i = 0; i < mNLanes; i++) {
+                mLanes[i] = new Lane("JMSJCA grouped #" + i + "(" + destname + ")");
+            }
+            mDispatcher = new Thread(new Runnable() {
+                public void run() {
+                    mActivation.enterContext();
+                    try {
+                        dispatch();
+                    } catch (Throwable e) {
+                        // Let the lanes finish before the activation reconnects
+                        waitForLanes();
+                        complete(false);
+                        mActivation.distress(e instanceof Exception ? (Exception) e 
+                            : Exc.exc(LOCALE.x("E190: Caught unexpected Throwable: {0}", e), e));
+                    } finally {
+                        mActivation.exitContext();
+                    }
+                }
+            }, "JMSJCA grouped dispatcher(" + destname + ")");
+
+            mConnection.start();
+            for (int i = 0; i < mNLanes; i++) {
+                mLanes[i].mThread.start();
+            }
+            mDispatcher.start();
+        } catch (JMSException e) {
+            deactivate();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the dispatcher, waits until the lanes have processed all messages and
+     * then closes the connection
+     * 
+     * @see com.stc.jmsjca.core.Delivery#deactivate()
+     */
+    @Override
+    public synchronized void deactivate() {
+        mIsStopped = true;
+
+        // Stop connection: will cause receive() to return null
+        try {
+            if (mConnection != null) {
+                mConnection.stop();
+            }
+        } catch (Exception ex) {
+            sLog.warn(LOCALE.x("E058: Unexpected exception stopping JMS connection: {0}", ex), ex);
+        }
+
+        // Wait for the dispatcher, which waits for the lanes, and then for the lanes
+        List<Thread> threads = new ArrayList<Thread>();
+        if (mDispatcher != null) {
+            threads.add(mDispatcher);
+        }
+        if (mLanes != null) {
+            for (int i = 0; i < mLanes.length; i++) {
+                threads.add(mLanes[i].mThread);
+            }
+        }
+        DeactivationWaiter waiter = new DeactivationWaiter();
+        for (;;) {
+            int nAlive = 0;
+            for (int i = 0; i < threads.size(); i++) {
+                if (threads.get(i).isAlive()) {
+                    nAlive++;
+                }
+            }
+            if (waiter.isDone(nAlive, threads)) {
+                break;
+            }
+        }
+        mDispatcher = null;
+        if (mLanes != null) {
+            for (int i = 0; i < mLanes.length; i++) {
+                mLanes[i].mMessageMoveConnection.destroy();
+            }
+            mLanes = null;
+        }
+
+        // Close JMS resources
+        try {
+            if (mConnection != null) {
+                mConnection.close();
+            }
+        } catch (Exception ex) {
+            sLog.warn(LOCALE.x("E060: Unexpected exception closing JMS Connection: {0}", ex), ex);
+        }
+        mConnection = null;
+        mSess = null;
+        mCons = null;
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.Delivery#getConfiguredEndpoints()
+     */
+    @Override
+    public int getConfiguredEndpoints() {
+        return mNLanes;
+    }
+}
@@ -105,7 +105,7 @@ public class JConnectionFactory implements javax.jms.ConnectionFactory,
         mManagedConnectionFactory = managedConnectionFactory;
         mConnectionManager = connectionManager;
         if (mConnectionManager == null) {
-            mConnectionManager = new XDefaultConnectionManager(managedConnectionFactory);
+            mConnectionManager = managedConnectionFactory.createDefaultConnectionManager();
         }
 
         // The connection manager in Weblogic cannot be serialized, hence use an 
@@ -22,6 +22,7 @@ import com.stc.jmsjca.util.Logger;
 import com.stc.jmsjca.util.NoProxyWrapper;
 
 import javax.jms.DeliveryMode;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.MessageProducer;
 import javax.jms.QueueSender;
@@ -94,6 +95,9 @@ public class JProducer extends NoProxyWrapper {
      * Marks the state as CLOSED
      */
     public void virtualClose() {
+        if (mDelegate instanceof BoundProducer) {
+            ((BoundProducer) mDelegate).bind(null);
+        }
         createNewWrapper();
 
         // Reset state
@@ -109,6 +113,21 @@ public class JProducer extends NoProxyWrapper {
         }
     }
 
+    /**
+     * Makes this producer, which must have been created without a destination, behave
+     * as a producer on the specified destination until it is closed. Used for
+     * temporary destinations so that the producer can be pooled.
+     *
+     * @param dest destination
+     */
+    public void bind(Destination dest) {
+        if (!(mDelegate instanceof BoundProducer)) {
+            mDelegate = new BoundProducer(mDelegate);
+        }
+        ((BoundProducer) mDelegate).bind(dest);
+        createNewWrapper();
+    }
+
     /**
      * Returns true if this producer can be pooled. Producers on temporary destinations
      * cannot be pooled.
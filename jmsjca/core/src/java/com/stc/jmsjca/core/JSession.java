@@ -19,6 +19,7 @@ package com.stc.jmsjca.core;
 import com.stc.jmsjca.localization.Localizer;
 import com.stc.jmsjca.util.Exc;
 import com.stc.jmsjca.util.Logger;
+import com.stc.jmsjca.util.Str;
 
 import javax.jms.ConnectionMetaData;
 import javax.jms.Destination;
@@ -58,7 +59,8 @@ import java.util.List;
 public class JSession {
     private static Logger sLog = Logger.getLogger(JSession.class);
     private SessionConnection mSessionConnection;
-    private List<JProducer> mPooledProducers;
+    private ProducerPool mPooledProducers;
+    private boolean mPrecreating;
     private List<JProducer> mActiveProducers;
     private List<JConsumer> mActiveConsumers;
     private XManagedConnection mManagedConnection;
@@ -96,7 +98,8 @@ public class JSession {
             objfact, ra, mc, descr, xa,
             isTransacted, acknowledgeMode, sessionClass);
 
-        mPooledProducers = new ArrayList<JProducer>();
+        mPooledProducers = new ProducerPool(mc.getManagedConnectionFactory().getProducerPoolSize(),
+            mc.getManagedConnectionFactory().getProducerPoolStats());
         mActiveProducers = new ArrayList<JProducer>();
         mActiveConsumers = new ArrayList<JConsumer>();
     }
@@ -158,7 +161,7 @@ public class JSession {
                 && p.canBePooled()
                 && !producersInvalidated) {
                 p.virtualClose();
-                mPooledProducers.add(p);
+                mPooledProducers.put(p);
             } else {
                 p.physicalClose();
             }
@@ -241,7 +244,7 @@ public class JSession {
             p.physicalClose();
         } else {
             p.virtualClose();
-            addToPool(p);
+            mPooledProducers.put(p);
         }
     }
 
@@ -287,35 +290,6 @@ public class JSession {
         mSessionConnection.stop();
     }
 
-    /**
-     * Tries to locate a session from the pool with the specified signature. Returns
-     * null if not found.
-     *
-     * @param signature specifies characteristics of the session (transacted, etc)
-     * @return null if not found
-     */
-    private JProducer getFromPool(String signature) {
-        JProducer ret = null;
-        for (Iterator<JProducer> it = mPooledProducers.iterator(); it.hasNext();/*-*/) {
-            JProducer p = it.next();
-            if (p.getSignature().equals(signature)) {
-                ret = p;
-                it.remove();
-                break;
-            }
-        }
-        return ret;
-    }
-
-    /**
-     * Pools a producer
-     *
-     * @param p JProducer
-     */
-    private void addToPool(JProducer p) {
-        mPooledProducers.add(p);
-    }
-
     /**
      * Creates a producer
      */
@@ -337,12 +311,15 @@ public class JSession {
      * @param producerClass the return class
      * @param isTemp boolean
      * @param creator little object factory that creates a new session if necessary
+     * @param bindTo if not null, the creator creates an anonymous producer that will
+     *   behave as a producer on this (temporary) destination
      * @param connection JConnection
      * @return new or reused session
      * @throws JMSException on failure
      */
     public MessageProducer createProducer(String signature, Class<?> producerClass,
-        boolean isTemp, ProducerCreator creator, JConnection connection) throws JMSException {
+        boolean isTemp, ProducerCreator creator, Destination bindTo, JConnection connection) 
+    throws JMSException {
         JProducer wrapped = null;
 
         // Actuate
@@ -350,7 +327,7 @@ public class JSession {
 
         // Try to get from pool
         if (mManagedConnection.useProducerPooling()) {
-            wrapped = getFromPool(signature);
+            wrapped = mPooledProducers.get(signature, mPrecreating);
         }
 
         // Create new one if necessary
@@ -358,6 +335,10 @@ public class JSession {
             MessageProducer producer = creator.createProducer();
             wrapped = new JProducer(producerClass, this, producer, signature, isTemp);
         }
+        
+        if (bindTo != null) {
+            wrapped.bind(bindTo);
+        }
 
         mActiveProducers.add(wrapped);
         
@@ -536,14 +517,15 @@ public class JSession {
      */
     public QueueSender createSender(final Queue queue, JConnection connection) 
     throws JMSException {
-        return (QueueSender) createProducer("QueueSender:" + (queue != null ? queue.getQueueName() : "-"),
+        final boolean bind = queue instanceof TemporaryQueue && mManagedConnection.useProducerPooling();
+        return (QueueSender) createProducer("QueueSender:" + (queue != null && !bind ? queue.getQueueName() : "-"),
             QueueSender.class,
-            queue != null && queue instanceof TemporaryQueue,
+            queue != null && queue instanceof TemporaryQueue && !bind,
             new ProducerCreator() {
             public MessageProducer createProducer() throws JMSException {
-                return ((QueueSession) getDelegate()).createSender(queue);
+                return ((QueueSession) getDelegate()).createSender(bind ? null : queue);
             }
-        }, connection);
+        }, bind ? queue : null, connection);
     }
 
     /**
@@ -556,14 +538,15 @@ public class JSession {
      */
     public TopicPublisher createPublisher(final Topic topic, JConnection connection)
     throws JMSException {
-        return (TopicPublisher) createProducer("TopicPublisher:" + (topic != null ? topic.getTopicName() : "-"),
+        final boolean bind = topic instanceof TemporaryTopic && mManagedConnection.useProducerPooling();
+        return (TopicPublisher) createProducer("TopicPublisher:" + (topic != null && !bind ? topic.getTopicName() : "-"),
             TopicPublisher.class,
-            topic != null && topic instanceof TemporaryTopic,
+            topic != null && topic instanceof TemporaryTopic && !bind,
             new ProducerCreator() {
             public MessageProducer createProducer() throws JMSException {
-                return ((TopicSession) getDelegate()).createPublisher(topic);
+                return ((TopicSession) getDelegate()).createPublisher(bind ? null : topic);
             }
-        }, connection);
+        }, bind ? topic : null, connection);
     }
 
     /**
@@ -646,8 +629,10 @@ public class JSession {
      */
     public MessageProducer createProducer(final Destination destination, 
         JConnection connection) throws JMSException {
+        final boolean isTemp = destination instanceof TemporaryQueue || destination instanceof TemporaryTopic;
+        final boolean bind = isTemp && mManagedConnection.useProducerPooling();
         String name = "-";
-        if (destination != null) {
+        if (destination != null && !bind) {
             if (destination instanceof Queue) {
                 name = ((Queue) destination).getQueueName();
             } else {
@@ -656,13 +641,69 @@ public class JSession {
         }
         return createProducer("MessageProducer:" + name,
             MessageProducer.class,
-            destination != null && (destination instanceof TemporaryQueue
-            || destination instanceof TemporaryTopic),
+            isTemp && !bind,
             new ProducerCreator() {
             public MessageProducer createProducer() throws JMSException {
-                return ((Session) getDelegate()).createProducer(destination);
+                return ((Session) getDelegate()).createProducer(bind ? null : destination);
             }
-        }, connection);
+        }, bind ? destination : null, connection);
+    }
+
+    /**
+     * Creates producers for the specified destinations and puts them in the producer
+     * pool, so that the application does not incur the cost of creating them when it
+     * first sends to these destinations (JMSJCA.producerprecreate). Failures are
+     * logged and otherwise ignored.
+     *
+     * @param destinations comma delimited list of destination names, each optionally
+     *   prefixed with queue: or topic:, e.g. "queue:Queue1, topic:Topic1"; queue is the
+     *   default
+     */
+    public void precreateProducers(String destinations) {
+        if (Str.empty(destinations) || !mManagedConnection.useProducerPooling()) {
+            return;
+        }
+        String[] names = destinations.split(",");
+        
+        // Producers created in advance are counted separately, not as pool misses
+        mPrecreating = true;
+        try {
+            precreateProducers(names);
+        } finally {
+            mPrecreating = false;
+        }
+    }
+    
+    private void precreateProducers(String[] names) {
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            boolean isTopic = false;
+            if (name.startsWith("topic:")) {
+                isTopic = true;
+                name = name.substring("topic:".length()).trim();
+            } else if (name.startsWith("queue:")) {
+                name = name.substring("queue:".length()).trim();
+            }
+            if (name.length() == 0) {
+                continue;
+            }
+            try {
+                Destination dest = mSessionConnection.createDestination(isTopic, name, null);
+                MessageProducer p;
+                if (mSessionClass == QueueSession.class) {
+                    p = createSender((Queue) dest, null);
+                } else if (mSessionClass == TopicSession.class) {
+                    p = createPublisher((Topic) dest, null);
+                } else {
+                    p = createProducer(dest, null);
+                }
+                p.close();
+                mManagedConnection.getManagedConnectionFactory().getProducerPoolStats().onPrecreated();
+            } catch (Exception e) {
+                sLog.warn(LOCALE.x("E231: A producer for destination {0} could not be created in advance "
+                    + "(JMSJCA.producerprecreate): {1}", names[i].trim(), e), e);
+            }
+        }
     }
 
     /**
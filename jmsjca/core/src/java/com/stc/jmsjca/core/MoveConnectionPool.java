@@ -0,0 +1,334 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.util.Logger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+import javax.jms.TopicSession;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of sessions and producers that are used to move messages to a dead letter
+ * queue or other destination as part of redelivery handling (see
+ * RedeliveryHandler.Move). There is one pool per activation that is shared by all
+ * endpoints: all sessions are created on one connection per messaging domain, so that
+ * the number of connections to the JMS server does not grow with the number of
+ * endpoints.
+ *
+ * A ConnectionForMove leases a session for the duration of a transaction, and returns
+ * it when the transaction has completed. Idle sessions keep their producers, which
+ * are cached by destination name, as are the destination objects. At most a
+ * configured number of idle sessions is kept per domain (JMSJCA.movepoolsize).
+ *
+ * When a move fails, the session is discarded. If the connection is broken, it is
+ * closed and the next lease will create a new connection. Only the first failure on a
+ * connection closes that connection, so that a broken connection causes only one
+ * reconnect rather than one per endpoint.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class MoveConnectionPool {
+    private static Logger sLog = Logger.getLogger(MoveConnectionPool.class);
+    private final Activation mActivation;
+    private final int mMaxIdle;
+    private Connection mQueueConnection;
+    private Connection mTopicConnection;
+    private final LinkedList<Lease> mIdleQueue = new LinkedList<Lease>();
+    private final LinkedList<Lease> mIdleTopic = new LinkedList<Lease>();
+    private final Map<String, Destination> mDestinations = new HashMap<String, Destination>();
+
+    /**
+     * A session and its producers, leased by a ConnectionForMove
+     */
+    public class Lease {
+        private final Connection mConnection;
+        private final boolean mIsTopic;
+        private final Session mSession;
+        private final Map<String, MessageProducer> mProducers = new HashMap<String, MessageProducer>();
+
+        private Lease(Connection conn, boolean isTopic, Session session) {
+            mConnection = conn;
+            mIsTopic = isTopic;
+            mSession = session;
+        }
+
+        /**
+         * @return true if this is a topic session
+         */
+        public boolean isTopic() {
+            return mIsTopic;
+        }
+
+        /**
+         * @return the session
+         */
+        public Session getSession() {
+            return mSession;
+        }
+
+        /**
+         * Returns a producer for the specified destination; producers are cached
+         *
+         * @param destname destination name as specified in the move action
+         * @return producer
+         * @throws JMSException on failure
+         */
+        public MessageProducer getProducer(String destname) throws JMSException {
+            MessageProducer ret = mProducers.get(destname);
+            if (ret == null) {
+                ret = mActivation.getObjectFactory().createMessageProducer(mSession,
+                    isXA(), mIsTopic, getDestination(this, destname), mActivation.getRA());
+                mProducers.put(destname, ret);
+            }
+            return ret;
+        }
+
+        private void close() {
+            try {
+                mSession.close();
+            } catch (JMSException ignore) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param activation owner
+     * @param maxIdle maximum number of idle sessions to keep per domain
+     */
+    public MoveConnectionPool(Activation activation, int maxIdle) {
+        mActivation = activation;
+        mMaxIdle = maxIdle;
+    }
+
+    private boolean isXA() {
+        return mActivation.isCMT() && !mActivation.isXAEmulated();
+    }
+
+    private LinkedList<Lease> getIdle(boolean isTopic) {
+        return isTopic ? mIdleTopic : mIdleQueue;
+    }
+
+    /**
+     * Creates a new connection for the specified domain. Is called without holding 
+     * the lock, because connecting may take long.
+     */
+    private Connection createConnection(boolean isTopic) throws JMSException {
+        RAJMSObjectFactory o = mActivation.getObjectFactory();
+        int domain = XConnectionRequestInfo.guessDomain(isXA(), isTopic);
+        ConnectionFactory fact = o.createConnectionFactory(domain, mActivation.getRA(),
+            mActivation.getActivationSpec(), null, null);
+        return o.createConnection(fact, domain, mActivation.getActivationSpec(), mActivation.getRA(),
+            mActivation.getUserName() == null
+            ? mActivation.getRA().getUserName() : mActivation.getUserName(),
+            mActivation.getPassword() == null
+            ? mActivation.getRA().getClearTextPassword() : mActivation.getPassword());
+    }
+
+    /**
+     * Returns the shared connection for the specified domain; creates one if
+     * necessary. The connection is created outside of the lock, so that other 
+     * endpoints can lease idle sessions and return sessions in the mean time. If 
+     * another endpoint published a connection first, that one is used and the new 
+     * one is closed.
+     */
+    private Connection getConnection(boolean isTopic) throws JMSException {
+        synchronized (this) {
+            Connection current = isTopic ? mTopicConnection : mQueueConnection;
+            if (current != null) {
+                return current;
+            }
+        }
+        
+        Connection created = createConnection(isTopic);
+        Connection ret;
+        synchronized (this) {
+            ret = isTopic ? mTopicConnection : mQueueConnection;
+            if (ret == null) {
+                ret = created;
+                created = null;
+                if (isTopic) {
+                    mTopicConnection = ret;
+                } else {
+                    mQueueConnection = ret;
+                }
+            }
+        }
+        if (created != null) {
+            close(null, created);
+        }
+        return ret;
+    }
+
+    private synchronized Destination getDestination(Lease lease, String destname) throws JMSException {
+        String key = (lease.mIsTopic ? "topic:" : "queue:") + destname;
+        Destination ret = mDestinations.get(key);
+        if (ret == null) {
+            ret = mActivation.getObjectFactory().createDestination(lease.mSession, isXA(), lease.mIsTopic,
+                mActivation.getActivationSpec(), null, mActivation.getRA(), destname, null,
+                lease.mIsTopic ? TopicSession.class : QueueSession.class);
+            mDestinations.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Leases a session; an idle session is reused if available
+     *
+     * @param isTopic domain
+     * @return lease, to be returned with release() or discard()
+     * @throws JMSException on failure to create a connection or session
+     */
+    public Lease lease(boolean isTopic) throws JMSException {
+        synchronized (this) {
+            LinkedList<Lease> idle = getIdle(isTopic);
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+        }
+
+        Connection conn = getConnection(isTopic);
+        Session s = mActivation.getObjectFactory().createSession(conn, isXA(),
+            isTopic ? TopicSession.class : QueueSession.class, mActivation.getRA(),
+            mActivation.getActivationSpec(), true, javax.jms.Session.SESSION_TRANSACTED);
+        return new Lease(conn, isTopic, s);
+    }
+
+    /**
+     * Returns a session after the transaction it was used in has completed
+     *
+     * @param lease session to return
+     */
+    public void release(Lease lease) {
+        synchronized (this) {
+            Connection current = lease.mIsTopic ? mTopicConnection : mQueueConnection;
+            LinkedList<Lease> idle = getIdle(lease.mIsTopic);
+            if (lease.mConnection == current && idle.size() < mMaxIdle) {
+                idle.addFirst(lease);
+                return;
+            }
+        }
+        lease.close();
+    }
+
+    /**
+     * Closes a session that may be in an undefined state, e.g. because sending a
+     * message failed. If the connection it was created on turns out to be broken, 
+     * that connection is closed too, unless it was already replaced.
+     *
+     * @param lease session to discard
+     */
+    public void discard(Lease lease) {
+        lease.close();
+        if (isAlive(lease.mConnection)) {
+            return;
+        }
+        List<Lease> toClose = null;
+        synchronized (this) {
+            Connection current = lease.mIsTopic ? mTopicConnection : mQueueConnection;
+            if (lease.mConnection == current) {
+                if (sLog.isDebugEnabled()) {
+                    sLog.debug("Closing connection for moving messages after failure");
+                }
+                toClose = new ArrayList<Lease>(getIdle(lease.mIsTopic));
+                getIdle(lease.mIsTopic).clear();
+                mDestinations.clear();
+                if (lease.mIsTopic) {
+                    mTopicConnection = null;
+                } else {
+                    mQueueConnection = null;
+                }
+            }
+        }
+        if (toClose != null) {
+            close(toClose, lease.mConnection);
+        }
+    }
+
+    /**
+     * Probes a connection by creating a session on it
+     *
+     * @param conn connection to probe
+     * @return false if the connection cannot be used anymore
+     */
+    private boolean isAlive(Connection conn) {
+        try {
+            conn.createSession(true, Session.SESSION_TRANSACTED).close();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes all idle sessions and the connections; sessions that are leased are
+     * closed when they are returned. The pool can still be used afterwards.
+     */
+    public void close() {
+        List<Lease> toClose;
+        Connection q;
+        Connection t;
+        synchronized (this) {
+            toClose = new ArrayList<Lease>(mIdleQueue);
+            toClose.addAll(mIdleTopic);
+            mIdleQueue.clear();
+            mIdleTopic.clear();
+            mDestinations.clear();
+            q = mQueueConnection;
+            t = mTopicConnection;
+            mQueueConnection = null;
+            mTopicConnection = null;
+        }
+        close(toClose, q);
+        close(null, t);
+    }
+
+    private void close(List<Lease> leases, Connection conn) {
+        for (int i = 0; leases != null && i < leases.size(); i++) {
+            leases.get(i).close();
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (JMSException ignore) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return number of idle sessions (for diagnostics)
+     */
+    public synchronized int getIdleCount() {
+        return mIdleQueue.size() + mIdleTopic.size();
+    }
+}
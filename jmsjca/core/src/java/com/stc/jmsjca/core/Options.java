@@ -76,7 +76,10 @@ public interface Options {
 
         /**
          * Override for concurrency mode (e.g. to switch the concurrency to sync for 
-         * STCMS FIFO modes)
+         * STCMS FIFO modes); "virtual" selects sync mode on virtual threads; "grouped"
+         * selects concurrent delivery that preserves the order within message groups
+         * (with CMT, only in combination with JMSJCA.NoXA=true); in grouped mode, 
+         * messages are received in transactions of batchsize messages
          */
         String OPTION_CONCURRENCYMODE = "JMSJCA.concurrencymode";
 
@@ -106,6 +109,110 @@ public interface Options {
          * Prints only one error message for a durable subscriber error
          */
         String OPTION_MINIMAL_RECONNECT_LOGGING_DURSUB = "JMSJCA.minimalreconnectloggingds";
+
+        /**
+         * The maximum number of redelivered messages for which the redelivery state
+         * (number of times seen, actions taken) is kept; the least recently seen are
+         * dropped first
+         */
+        String OPTION_REDELIVERY_LOOKBACK = "JMSJCA.redeliverylookback";
+
+        /**
+         * Time in ms after which the redelivery state of a message that was not seen
+         * again is dropped; 0 means no time limit
+         */
+        String OPTION_REDELIVERY_TTL = "JMSJCA.redeliveryttl";
+
+        /**
+         * Directory in which the redelivery state of messages is persisted so that it 
+         * survives restarts; not persisted if not specified. The file name is derived 
+         * from the destination, subscription name, context name and connection URL; an
+         * activation cannot be started if its file is already in use by another one.
+         */
+        String OPTION_REDELIVERY_STORE = "JMSJCA.redeliverystore";
+
+        /**
+         * Implementation of RedeliveryStore to use if the redelivery state is 
+         * persisted; default is FileRedeliveryStore
+         */
+        String OPTION_REDELIVERY_STORE_CLASS = "JMSJCA.redeliverystoreclass";
+
+        /**
+         * Maximum number of endpoints that may wait for the delay of a redelivered 
+         * message to expire; other delayed messages are rolled back immediately and 
+         * their delay is checked when they are seen again. A negative value or no value 
+         * (the default) means that all delays are waited for on the endpoint. 
+         * 
+         * Each deferral is an additional rollback: it increases the server's delivery 
+         * count, so that a server side redelivery limit may be reached earlier. In CMT,
+         * each deferral also discards the endpoint.
+         */
+        String OPTION_REDELIVERY_WAITERS = "JMSJCA.redeliverywaiters";
+
+        /**
+         * Maximum number of idle sessions per messaging domain that are kept to move 
+         * messages to a dead letter queue or other destination (redelivery handling); 
+         * these sessions are shared by all endpoints of an activation
+         */
+        String OPTION_MOVE_POOL_SIZE = "JMSJCA.movepoolsize";
+
+        /**
+         * Minimum number of endpoints that process messages concurrently. If set to a
+         * value between 0 and the maximum number of endpoints, the number of endpoints
+         * that is allowed to process messages concurrently is adapted between this
+         * minimum and the maximum based on the onMessage() latency (CC and serial 
+         * delivery only)
+         */
+        String OPTION_CONCURRENCY_MIN = "JMSJCA.concurrencymin";
+
+        /**
+         * How often (ms) the number of concurrently active endpoints is reconsidered;
+         * the default is 1000
+         */
+        String OPTION_CONCURRENCY_INTERVAL = "JMSJCA.concurrencyinterval";
+
+        /**
+         * Factor by which the onMessage() latency may exceed the baseline latency 
+         * before the number of concurrently active endpoints is reduced; the default 
+         * is 2.0
+         */
+        String OPTION_CONCURRENCY_TOLERANCE = "JMSJCA.concurrencytolerance";
+
+        /**
+         * If true, the number of messages that sync delivery collects in a batch is 
+         * adapted between 1 and the batch size, based on the arrival rate and commit 
+         * latency, and messages that are already available are taken without waiting
+         */
+        String OPTION_BATCH_ADAPTIVE = "JMSJCA.batchadaptive";
+
+        /**
+         * Maximum time (ms) that sync delivery waits for more messages in a batch; with 
+         * JMSJCA.batchadaptive this applies to the batch as a whole, otherwise to each
+         * message. The default is 100.
+         */
+        String OPTION_BATCH_MAXWAIT = "JMSJCA.batchmaxwait";
+
+        /**
+         * If true, each sync delivery worker uses two sessions and endpoints that take 
+         * turns: one receives and delivers messages while the other one completes its
+         * transaction, so that the commit is no longer on the critical path. Doubles 
+         * the number of endpoints. Not used for serial delivery or topics, so that the
+         * order of messages is preserved.
+         */
+        String OPTION_PIPELINED_COMMIT = "JMSJCA.pipelinedcommit";
+
+        /**
+         * For grouped delivery: the message property that identifies the group of a
+         * message; messages of the same group are delivered in order. Use 
+         * JMSCorrelationID to group on the correlation ID. The default is JMSXGroupID.
+         */
+        String OPTION_GROUP_KEY = "JMSJCA.groupkey";
+
+        /**
+         * For grouped delivery: the maximum number of messages waiting to be delivered
+         * per endpoint before the receiving thread waits. The default is 100.
+         */
+        String OPTION_GROUP_LANE_CAPACITY = "JMSJCA.grouplanecapacity";
     }
     
     /**
@@ -166,10 +273,76 @@ public interface Options {
          */
         String POOL_TIMEOUT = "JMSJCA.pooltimeout";
         
+        /**
+         * Interval in ms at which the connection pool (only applies when the connection 
+         * manager provided by the RA is used) creates connections up to the poolminsize
+         * and destroys idle connections that have become invalid or stale 
+         * (JMSJCA.idletimeout). 0 turns this off. By default this is only done if 
+         * poolminsize is greater than 0, at half the idletimeout. Maintenance starts
+         * one second after the pool is created, and has a granularity of one second.
+         */
+        String POOL_MAINTENANCE_INTERVAL = "JMSJCA.poolmaintenanceinterval";
+
+        /**
+         * The maximum number of idle connections in the pool (only applies when the 
+         * connection manager provided by the RA is used) that are interchangeable, i.e. 
+         * that have the same domain, transaction mode, credentials, URL and clientID. A 
+         * connection that is returned to the pool when this number is reached is 
+         * destroyed. 0 (the default) means no limit other than the poolmaxsize.
+         */
+        String POOL_MAXIDLE_PER_KEY = "JMSJCA.poolmaxidleperkey";
+
+        /**
+         * Selects the implementation of the connection pool that is used when the 
+         * connection manager provided by the RA is used. Valid values: default, 
+         * concurrent 
+         */
+        String POOL_ENGINE = "JMSJCA.poolengine";
+
+        /**
+         * Value for POOL_ENGINE: a pool that does not serialize allocations on a 
+         * monitor
+         */
+        String POOL_ENGINE_CONCURRENT = "concurrent";
+        
         /**
          * Turns on producer pooling
          */
         String PRODUCER_POOLING = "JMSJCA.producerpooling";
+
+        /**
+         * Maximum number of producers kept per connection when producer pooling is
+         * on; when exceeded, the least recently used producer is closed
+         */
+        String PRODUCER_POOL_SIZE = "JMSJCA.producerpoolsize";
+
+        /**
+         * Comma delimited list of destinations for which producers are created when
+         * a connection is created, e.g. "queue:Queue1, topic:Topic1"; only applies 
+         * when producer pooling is on
+         */
+        String PRODUCER_PRECREATE = "JMSJCA.producerprecreate";
+
+        /**
+         * Turns on asynchronous sending: non-persistent messages sent on a connection
+         * that can never participate in a transaction (i.e. with JMSJCA.NoXA=true and
+         * createSession(false, ...) with JMSJCA.IgnoreTx=false) are queued and sent in 
+         * batches on a separate thread. The send() call returns when the message is queued; failures are 
+         * logged and counted.
+         */
+        String ASYNC_SEND = "JMSJCA.asyncsend";
+
+        /**
+         * Maximum number of messages per connection waiting to be sent asynchronously;
+         * when reached, send() blocks up to the JMSJCA.pooltimeout
+         */
+        String ASYNC_SEND_CAPACITY = "JMSJCA.asyncsendcapacity";
+
+        /**
+         * Maximum number of messages sent asynchronously in one batch (one local 
+         * transaction if the JMS provider supports it)
+         */
+        String ASYNC_SEND_BATCH = "JMSJCA.asyncsendbatch";
     }
 
     /**
@@ -588,6 +761,64 @@ public interface Options {
          * @see DeliveryStats
          */
         String MSGS_AT_SAMPLEPOINT_0 = "D(s4)";
+        /**
+         * @see DeliveryStats
+         */
+        String ROLLBACKS = "RB";
+        /**
+         * onMessage() latency in microseconds (median)
+         * 
+         * @see DeliveryStats
+         */
+        String LATENCY_P50 = "L(p50)";
+        /**
+         * onMessage() latency in microseconds (99th percentile)
+         * 
+         * @see DeliveryStats
+         */
+        String LATENCY_P99 = "L(p99)";
+        /**
+         * onMessage() latency in microseconds (99.9th percentile)
+         * 
+         * @see DeliveryStats
+         */
+        String LATENCY_P999 = "L(p999)";
+        /**
+         * Moving average of delivery rate over one minute, in msgs per minute
+         * 
+         * @see DeliveryStats
+         */
+        String RATE_1MIN = "R(1)";
+        /**
+         * Moving average of delivery rate over five minutes, in msgs per minute
+         * 
+         * @see DeliveryStats
+         */
+        String RATE_5MIN = "R(5)";
+        /**
+         * Moving average of delivery rate over fifteen minutes, in msgs per minute
+         * 
+         * @see DeliveryStats
+         */
+        String RATE_15MIN = "R(15)";
+        /**
+         * Number of redelivered messages found in the redelivery index
+         * 
+         * @see DeliveryStats
+         */
+        String ENCOUNTER_HITS = "EH";
+        /**
+         * Number of redelivered messages not found in the redelivery index
+         * 
+         * @see DeliveryStats
+         */
+        String ENCOUNTER_MISSES = "EM";
+        /**
+         * Number of messages dropped from the redelivery index
+         * 
+         * @see DeliveryStats
+         */
+        String ENCOUNTER_EVICTIONS = "EE";
     }
     
     /**
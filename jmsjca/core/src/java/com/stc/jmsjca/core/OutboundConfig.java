@@ -0,0 +1,328 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.util.Utility;
+
+import java.util.Properties;
+
+/**
+ * The configuration of a managed connection factory as it is used when allocating
+ * connections, sessions and producers: the options of the RA, the MCF and the system
+ * properties merged and parsed into typed values.
+ * 
+ * A snapshot is immutable: when the configuration of the RA or MCF changes, the MCF
+ * builds a new snapshot and publishes it through a volatile field, so that readers 
+ * do not need to synchronize and always see a consistent set of values.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public final class OutboundConfig {
+    /**
+     * Default maximum number of connections in a pool (JMSJCA.poolmaxsize)
+     */
+    public static final int DEFAULT_POOL_MAXSIZE = 32;
+    
+    // To detect changes in the RA
+    private final String mRAUrl;
+    private final String mRAOptionsStr;
+    
+    private final RAJMSObjectFactory mObjFactory;
+    private final Properties mOptions;
+    private final boolean mNoXA;
+    private final boolean mIgnoreTx;
+    private final boolean mClientContainer;
+    private final boolean mBypassRA;
+    private final boolean mOverrideIsSameRM;
+    private final boolean mDoNotCacheConnectionFactories;
+    private final boolean mStrict;
+    private final String mTxMgrLocatorClass;
+    private final boolean mProducerPoolingOn;
+    private final int mProducerPoolSize;
+    private final String mProducerPrecreate;
+    private final long mIdleTimeout;
+    private final boolean mAsyncSend;
+    private final int mAsyncSendCapacity;
+    private final int mAsyncSendBatch;
+    private final long mAsyncSendTimeout;
+    private final boolean mConcurrentPool;
+    private final int mPoolMaxSize;
+    private final int mPoolMinSize;
+    private final int mPoolTimeout;
+    private final int mPoolMaintenanceInterval;
+    private final int mPoolMaxIdlePerKey;
+    private final String mInterceptorServiceName;
+
+    /**
+     * Constructor
+     * 
+     * @param raUrl connection URL of the RA at the time the options were obtained
+     * @param raOptionsStr options of the RA at the time the options were obtained
+     * @param o object factory
+     * @param p merged options of RA and MCF
+     * @param producerPoolingBeanProperty value of the ProducerPooling property of the MCF
+     * @param idleTimeoutBeanProperty value of the IdleTimeout property of the MCF
+     */
+    public OutboundConfig(String raUrl, String raOptionsStr, RAJMSObjectFactory o, Properties p, 
+        boolean producerPoolingBeanProperty, long idleTimeoutBeanProperty) {
+        mRAUrl = raUrl;
+        mRAOptionsStr = raOptionsStr;
+        mObjFactory = o;
+        mOptions = p;
+        
+        // System properties have highest precedence
+        boolean clientContainer = Utility.isTrue(p.getProperty(Options.Out.CLIENTCONTAINER), false);
+        mClientContainer = Utility.getSystemProperty(Options.Out.CLIENTCONTAINER, clientContainer);
+        boolean ignoreTx = Utility.isTrue(p.getProperty(Options.Out.IGNORETX), !mClientContainer);
+        mIgnoreTx = Utility.getSystemProperty(Options.Out.IGNORETX, ignoreTx);
+        boolean noXA = Utility.isTrue(p.getProperty(Options.NOXA), mClientContainer);
+        mNoXA = Utility.getSystemProperty(Options.NOXA, noXA);
+        boolean bypassRA = Utility.isTrue(p.getProperty(Options.Out.BYPASSRA), false);
+        mBypassRA = Utility.getSystemProperty(Options.Out.BYPASSRA, bypassRA);
+        mOverrideIsSameRM = Utility.isTrue(p.getProperty(Options.OVERRIDEISSAMERM), false);
+        mDoNotCacheConnectionFactories = Utility.isTrue(p.getProperty(Options.Out.DONOTCACHECONNECTIONFACTORIES), 
+            !o.shouldCacheConnectionFactories());
+        boolean strict = Utility.isTrue(p.getProperty(Options.Out.STRICT), false);
+        mStrict = Utility.getSystemProperty(Options.Out.STRICT, strict);
+        String txMgrLocatorClass = p.getProperty(Options.TXMGRLOCATOR, TxMgr.class.getName());
+        mTxMgrLocatorClass = Utility.getSystemProperty(Options.TXMGRLOCATOR, txMgrLocatorClass);
+        
+        mProducerPoolingOn = Utility.isTrue(p.getProperty(Options.Out.PRODUCER_POOLING, null)
+            , producerPoolingBeanProperty || o.shouldUseProducerPooling());
+        mProducerPoolSize = Utility.getIntProperty(p, Options.Out.PRODUCER_POOL_SIZE, ProducerPool.DEFAULT_SIZE);
+        mProducerPrecreate = p.getProperty(Options.Out.PRODUCER_PRECREATE);
+        
+        mIdleTimeout = Long.parseLong(p.getProperty(Options.Out.STALETIMEOUT, Long.toString(idleTimeoutBeanProperty)));
+        
+        boolean asyncSend = Utility.isTrue(p.getProperty(Options.Out.ASYNC_SEND), false);
+        mAsyncSend = Utility.getSystemProperty(Options.Out.ASYNC_SEND, asyncSend);
+        mAsyncSendCapacity = Utility.getIntProperty(p, Options.Out.ASYNC_SEND_CAPACITY, 1000);
+        mAsyncSendBatch = Utility.getIntProperty(p, Options.Out.ASYNC_SEND_BATCH, 50);
+        mAsyncSendTimeout = toTimeout(Utility.getIntProperty(p, Options.Out.POOL_TIMEOUT, 30000));
+        
+        String engine = p.getProperty(Options.Out.POOL_ENGINE, "");
+        engine = Utility.getSystemProperty(Options.Out.POOL_ENGINE, engine);
+        mConcurrentPool = Options.Out.POOL_ENGINE_CONCURRENT.equalsIgnoreCase(engine);
+        mPoolMaxSize = Utility.getIntProperty(p, Options.Out.POOL_MAXSIZE, DEFAULT_POOL_MAXSIZE);
+        mPoolMinSize = Utility.getIntProperty(p, Options.Out.POOL_MINSIZE, 0);
+        mPoolTimeout = toTimeout(Utility.getIntProperty(p, Options.Out.POOL_TIMEOUT, -1));
+        mPoolMaintenanceInterval = Utility.getIntProperty(p, Options.Out.POOL_MAINTENANCE_INTERVAL, -1);
+        mPoolMaxIdlePerKey = Utility.getIntProperty(p, Options.Out.POOL_MAXIDLE_PER_KEY, 0);
+        
+        mInterceptorServiceName = p.getProperty(Options.Interceptor.SERVICENAME, 
+            Options.Interceptor.DEFAULT_SERVICENAME);
+    }
+    
+    /**
+     * Converts a configured timeout: 0 means wait forever, negative means don't wait
+     */
+    private static int toTimeout(int timeout) {
+        if (timeout == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return timeout < 0 ? 0 : timeout;
+    }
+    
+    /**
+     * Indicates if this snapshot still reflects the configuration of the RA
+     * 
+     * @param ra RA
+     * @return false if the URL or options of the RA were changed
+     */
+    public boolean isCurrent(RAJMSResourceAdapter ra) {
+        // Note: == is intentional
+        return mRAUrl == ra.getConnectionURL() && mRAOptionsStr == ra.getOptions();
+    }
+
+    /**
+     * @return object factory
+     */
+    public RAJMSObjectFactory getObjFactory() {
+        return mObjFactory;
+    }
+
+    /**
+     * @return a copy of the merged options
+     */
+    public Properties getOptions() {
+        Properties ret = new Properties();
+        ret.putAll(mOptions);
+        return ret;
+    }
+
+    /**
+     * @return true if XA has been disabled (JMSJCA.NoXA)
+     */
+    public boolean isNoXA() {
+        return mNoXA;
+    }
+
+    /**
+     * @return true if the transacted-attribute of createSession() should be ignored
+     */
+    public boolean isIgnoreTx() {
+        return mIgnoreTx;
+    }
+
+    /**
+     * @return true if running in the client container
+     */
+    public boolean isClientContainer() {
+        return mClientContainer;
+    }
+
+    /**
+     * @return true if the RA should be bypassed completely
+     */
+    public boolean isBypassRA() {
+        return mBypassRA;
+    }
+
+    /**
+     * @return true if the XAResource needs to be wrapped to override isSameRM
+     */
+    public boolean isOverrideIsSameRM() {
+        return mOverrideIsSameRM;
+    }
+
+    /**
+     * @return true if connection factories should not be cached
+     */
+    public boolean isDoNotCacheConnectionFactories() {
+        return mDoNotCacheConnectionFactories;
+    }
+
+    /**
+     * @return true if settings closest to CTS should be used
+     */
+    public boolean isStrict() {
+        return mStrict;
+    }
+
+    /**
+     * @return class name of the transaction manager locator
+     */
+    public String getTxMgrLocatorClass() {
+        return mTxMgrLocatorClass;
+    }
+
+    /**
+     * @return true if producer pooling is on
+     */
+    public boolean isProducerPoolingOn() {
+        return mProducerPoolingOn;
+    }
+
+    /**
+     * @return maximum number of pooled producers per connection
+     */
+    public int getProducerPoolSize() {
+        return mProducerPoolSize;
+    }
+
+    /**
+     * @return destinations for which producers are created in advance; may be null
+     */
+    public String getProducerPrecreate() {
+        return mProducerPrecreate;
+    }
+
+    /**
+     * @return idle timeout in ms
+     */
+    public long getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * @return true if asynchronous sending is on
+     */
+    public boolean isAsyncSend() {
+        return mAsyncSend;
+    }
+
+    /**
+     * @return maximum number of messages in an asynchronous send pipeline
+     */
+    public int getAsyncSendCapacity() {
+        return mAsyncSendCapacity;
+    }
+
+    /**
+     * @return maximum number of messages sent in one batch by an asynchronous send pipeline
+     */
+    public int getAsyncSendBatch() {
+        return mAsyncSendBatch;
+    }
+
+    /**
+     * @return time in ms that a sender waits for room in an asynchronous send pipeline
+     */
+    public long getAsyncSendTimeout() {
+        return mAsyncSendTimeout;
+    }
+
+    /**
+     * @return true if the concurrent pool engine should be used
+     */
+    public boolean isConcurrentPool() {
+        return mConcurrentPool;
+    }
+
+    /**
+     * @return maximum number of connections in a pool
+     */
+    public int getPoolMaxSize() {
+        return mPoolMaxSize;
+    }
+
+    /**
+     * @return minimum number of connections in a pool
+     */
+    public int getPoolMinSize() {
+        return mPoolMinSize;
+    }
+
+    /**
+     * @return time in ms to wait for a connection from a pool
+     */
+    public int getPoolTimeout() {
+        return mPoolTimeout;
+    }
+
+    /**
+     * @return pool maintenance interval in ms; negative if not configured
+     */
+    public int getPoolMaintenanceInterval() {
+        return mPoolMaintenanceInterval;
+    }
+
+    /**
+     * @return maximum number of idle connections per connection key; 0 if unlimited
+     */
+    public int getPoolMaxIdlePerKey() {
+        return mPoolMaxIdlePerKey;
+    }
+
+    /**
+     * @return service name used to load interceptors
+     */
+    public String getInterceptorServiceName() {
+        return mInterceptorServiceName;
+    }
+}
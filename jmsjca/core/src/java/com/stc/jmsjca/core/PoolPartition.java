@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The idle connections in a connection pool that share the same ConnectionKey, and
+ * statistics on how requests for that key were served. The connection managers
+ * extend this class with the data structure that holds the idle connections.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class PoolPartition {
+    private final ConnectionKey mKey;
+    private final AtomicInteger mIdle = new AtomicInteger();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param key key of the connections in this partition
+     */
+    public PoolPartition(ConnectionKey key) {
+        mKey = key;
+    }
+
+    /**
+     * @return key of the connections in this partition
+     */
+    public ConnectionKey getKey() {
+        return mKey;
+    }
+
+    /**
+     * Called when an idle connection was added to or taken from this partition
+     *
+     * @param delta +1 or -1
+     */
+    public void onIdle(int delta) {
+        mIdle.addAndGet(delta);
+    }
+
+    /**
+     * Called when a request was served with an idle connection from this partition
+     */
+    public void onHit() {
+        mHits.incrementAndGet();
+    }
+
+    /**
+     * Called when this partition had no idle connection for a request
+     */
+    public void onMiss() {
+        mMisses.incrementAndGet();
+    }
+
+    /**
+     * @return number of idle connections
+     */
+    public int getIdleCount() {
+        return mIdle.get();
+    }
+
+    /**
+     * @return number of requests served with an idle connection
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return number of requests that found no idle connection
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "[" + mKey + ": idle=" + getIdleCount() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+}
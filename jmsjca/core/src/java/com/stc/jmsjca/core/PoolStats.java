@@ -0,0 +1,153 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.util.StripedCounter;
+
+/**
+ * Runtime statistics of a connection pool managed by the RA (i.e. when the connection
+ * manager of the RA is used rather than the one of the application server). Exposed
+ * through the RA MBean.
+ *
+ * Counters are striped so that application threads that allocate connections do
+ * not contend on them.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class PoolStats {
+    private final StripedCounter mHits = new StripedCounter();
+    private final StripedCounter mMisses = new StripedCounter();
+    private final StripedCounter mCreated = new StripedCounter();
+    private final StripedCounter mDestroyed = new StripedCounter();
+    private final StripedCounter mPrewarmed = new StripedCounter();
+    private final StripedCounter mValidated = new StripedCounter();
+    private final StripedCounter mEvicted = new StripedCounter();
+
+    /**
+     * Called when a request was served with a connection that was idle
+     */
+    public void onHit() {
+        mHits.increment();
+    }
+
+    /**
+     * Called when a request could not be served with an idle connection
+     */
+    public void onMiss() {
+        mMisses.increment();
+    }
+
+    /**
+     * Called when a connection was created
+     */
+    public void onCreated() {
+        mCreated.increment();
+    }
+
+    /**
+     * Called when a connection was destroyed
+     */
+    public void onDestroyed() {
+        mDestroyed.increment();
+    }
+
+    /**
+     * Called when a connection was created ahead of demand by the maintenance task
+     */
+    public void onPrewarmed() {
+        mPrewarmed.increment();
+    }
+
+    /**
+     * Called when an idle connection was validated by the maintenance task
+     */
+    public void onValidated() {
+        mValidated.increment();
+    }
+
+    /**
+     * Called when an idle connection was found to be invalid or stale by the
+     * maintenance task
+     */
+    public void onEvicted() {
+        mEvicted.increment();
+    }
+
+    /**
+     * @return number of requests served with an idle connection
+     */
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    /**
+     * @return number of requests that required a new connection
+     */
+    public long getMisses() {
+        return mMisses.sum();
+    }
+
+    /**
+     * @return number of connections created
+     */
+    public long getCreated() {
+        return mCreated.sum();
+    }
+
+    /**
+     * @return number of connections destroyed
+     */
+    public long getDestroyed() {
+        return mDestroyed.sum();
+    }
+
+    /**
+     * @return number of connections created ahead of demand
+     */
+    public long getPrewarmed() {
+        return mPrewarmed.sum();
+    }
+
+    /**
+     * @return number of background validations of idle connections
+     */
+    public long getValidated() {
+        return mValidated.sum();
+    }
+
+    /**
+     * @return number of idle connections destroyed in the background
+     */
+    public long getEvicted() {
+        return mEvicted.sum();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "hits=" + getHits()
+            + ", misses=" + getMisses()
+            + ", created=" + getCreated()
+            + ", destroyed=" + getDestroyed()
+            + ", prewarmed=" + getPrewarmed()
+            + ", validated=" + getValidated()
+            + ", evicted=" + getEvicted();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.util.StripedCounter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * The producers of a session that are not in use by the application (producer 
+ * pooling), indexed by signature, i.e. by the type of producer and its destination.
+ * The pool is bounded: when full, the producer for the signature that was least
+ * recently used is closed.
+ * 
+ * Like the session it belongs to, this class is not thread safe.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class ProducerPool {
+    /**
+     * Default maximum number of producers per session
+     */
+    public static final int DEFAULT_SIZE = 64;
+
+    private final int mMaxSize;
+    private final Stats mStats;
+    private final LinkedHashMap<String, LinkedList<JProducer>> mIndex 
+        = new LinkedHashMap<String, LinkedList<JProducer>>(16, 0.75f, true);
+    private int mSize;
+
+    /**
+     * Statistics of the producer pools of all connections of a managed connection
+     * factory
+     */
+    public static class Stats {
+        private final StripedCounter mHits = new StripedCounter();
+        private final StripedCounter mMisses = new StripedCounter();
+        private final StripedCounter mEvictions = new StripedCounter();
+        private final StripedCounter mPrecreated = new StripedCounter();
+
+        /**
+         * @return number of requests for a producer that were served from the pool
+         */
+        public long getHits() {
+            return mHits.sum();
+        }
+
+        /**
+         * @return number of requests for a producer that required a new producer
+         */
+        public long getMisses() {
+            return mMisses.sum();
+        }
+
+        /**
+         * @return number of producers closed because the pool was full
+         */
+        public long getEvictions() {
+            return mEvictions.sum();
+        }
+
+        /**
+         * @return number of producers created when the connection was created
+         */
+        public long getPrecreated() {
+            return mPrecreated.sum();
+        }
+
+        /**
+         * Called when a producer was created in advance
+         */
+        public void onPrecreated() {
+            mPrecreated.increment();
+        }
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            long hits = getHits();
+            long total = hits + getMisses();
+            return "hits=" + hits + ", misses=" + getMisses() + ", hitratio=" 
+                + (total == 0 ? 0 : hits * 100 / total) + "%, evictions=" + getEvictions() 
+                + ", precreated=" + getPrecreated();
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxSize maximum number of producers in the pool
+     * @param stats where statistics are accumulated
+     */
+    public ProducerPool(int maxSize, Stats stats) {
+        mMaxSize = maxSize < 1 ? 1 : maxSize;
+        mStats = stats;
+    }
+
+    /**
+     * Takes a producer with the specified signature from the pool
+     *
+     * @param signature specifies the type of producer and its destination
+     * @param isPrecreate true if the producer is requested to create it in advance
+     *   (JMSJCA.producerprecreate); such requests are not counted as hits or misses
+     * @return null if not found
+     */
+    public JProducer get(String signature, boolean isPrecreate) {
+        LinkedList<JProducer> producers = mIndex.get(signature);
+        if (producers == null) {
+            if (!isPrecreate) {
+                mStats.mMisses.increment();
+            }
+            return null;
+        }
+        JProducer ret = producers.removeLast();
+        if (producers.isEmpty()) {
+            mIndex.remove(signature);
+        }
+        mSize--;
+        if (!isPrecreate) {
+            mStats.mHits.increment();
+        }
+        return ret;
+    }
+
+    /**
+     * Adds a producer to the pool; may close the least recently used producer
+     *
+     * @param p producer that was closed by the application (virtual close)
+     */
+    public void put(JProducer p) {
+        LinkedList<JProducer> producers = mIndex.get(p.getSignature());
+        if (producers == null) {
+            producers = new LinkedList<JProducer>();
+            mIndex.put(p.getSignature(), producers);
+        }
+        producers.addLast(p);
+        mSize++;
+        
+        while (mSize > mMaxSize) {
+            Iterator<Map.Entry<String, LinkedList<JProducer>>> it = mIndex.entrySet().iterator();
+            LinkedList<JProducer> eldest = it.next().getValue();
+            JProducer victim = eldest.removeFirst();
+            if (eldest.isEmpty()) {
+                it.remove();
+            }
+            mSize--;
+            mStats.mEvictions.increment();
+            victim.physicalClose();
+        }
+    }
+
+    /**
+     * Removes all producers without closing them, e.g. when the session is destroyed
+     */
+    public void clear() {
+        mIndex.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return number of producers in the pool
+     */
+    public int size() {
+        return mSize;
+    }
+}
@@ -69,12 +69,31 @@ public abstract class RAJMSActivationSpec implements javax.resource.spi.Activati
      * MultiReceiver mode
      */
     public static final int DELIVERYCONCURRENCY_SYNC = 3;
+    /**
+     * Sync mode with virtual threads, if supported by the JVM
+     */
+    public static final int DELIVERYCONCURRENCY_VIRTUAL = 4;
+    /**
+     * Concurrent delivery that preserves the order within message groups
+     */
+    public static final int DELIVERYCONCURRENCY_GROUPED = 5;
 
     /**
      * To give meaningful names to modes
      */
     public static final String[] DELIVERYCONCURRENCY_STRS = new String[] {
-        "serial", "cc", "multi-receiver", "sync" };
+        "serial", "cc", "multi-receiver", "sync", "virtual", "grouped" };
+
+    /**
+     * Indicates if a mode uses synchronous receive() calls, i.e. is SYNC, VIRTUAL or GROUPED
+     * 
+     * @param mode one of DELIVERYCONCURRENCY_XXX
+     * @return true if sync
+     */
+    public static boolean isSyncMode(int mode) {
+        return mode == DELIVERYCONCURRENCY_SYNC || mode == DELIVERYCONCURRENCY_VIRTUAL
+            || mode == DELIVERYCONCURRENCY_GROUPED;
+    }
 
     /**
      * Name of a queue
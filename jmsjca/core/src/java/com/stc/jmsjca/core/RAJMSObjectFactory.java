@@ -18,6 +18,7 @@ package com.stc.jmsjca.core;
 
 
 import com.stc.jmsjca.localization.Localizer;
+import com.stc.jmsjca.util.BufferPool;
 import com.stc.jmsjca.util.ConnectionUrl;
 import com.stc.jmsjca.util.Exc;
 import com.stc.jmsjca.util.Logger;
@@ -98,6 +99,13 @@ public abstract class RAJMSObjectFactory {
     public static final int CANDO_XA = 0;
 
     private static final Localizer LOCALE = Localizer.get();
+    
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final BufferPool sCopyBuffers = new BufferPool(COPY_BUFFER_SIZE, 
+        2 * Runtime.getRuntime().availableProcessors());
+    
+    private ResolvedDestinationCache mDestinationCache;
+    private volatile boolean mDestinationCacheInitialized;
 
     /**
      * Returns if this RA has a particular capability
@@ -401,6 +409,46 @@ public abstract class RAJMSObjectFactory {
         if (Str.empty(destName)) {
             throw Exc.jmsExc(LOCALE.x("E095: The destination should not be empty or null"));
         }
+        
+        // Previously resolved?
+        ResolvedDestinationCache cache = getDestinationCache();
+        Object key = null;
+        if (cache != null) {
+            key = cache.createKey(isTopic, destName, options);
+            Destination ret = cache.get(key);
+            if (ret != null) {
+                return ret;
+            }
+        }
+        
+        Destination ret = resolveDestination(sess, isXA, isTopic, activationSpec, fact, ra, destName, 
+            options, sessionClass);
+        
+        if (cache != null) {
+            cache.put(key, ret);
+        }
+        return ret;
+    }
+    
+    /**
+     * Resolves a destination name into a provider specific destination; called from
+     * createDestination() if the destination was not found in the cache
+     *
+     * @param sess Session
+     * @param isXA boolean
+     * @param isTopic boolean
+     * @param activationSpec RAJMSActivationSpec
+     * @param fact MCF
+     * @param ra RAJMSResourceAdapter
+     * @param destName String
+     * @param options optional settings for destination creation (may be null)
+     * @param sessionClass exact interface class of the session
+     * @return Destination
+     * @throws JMSException failure
+     */
+    private Destination resolveDestination(Session sess, boolean isXA, boolean isTopic,
+        RAJMSActivationSpec activationSpec, XManagedConnectionFactory fact,  RAJMSResourceAdapter ra,
+        String destName, Properties options, Class<?> sessionClass) throws JMSException {
 
         // Check for lookup:// destination: this may return an admin destination 
         Destination ret = adminDestinationLookup(destName);
@@ -446,6 +494,48 @@ public abstract class RAJMSObjectFactory {
         return ret;
     }
     
+    /**
+     * Returns the maximum number of resolved destinations that are cached by this 
+     * object factory. Providers whose destination objects cannot be shared between
+     * sessions should return 0 to disable the cache.
+     * 
+     * @return maximum number of destinations, 0 to disable
+     */
+    protected int getDestinationCacheSize() {
+        return ResolvedDestinationCache.DEFAULT_SIZE;
+    }
+    
+    /**
+     * Returns the cache of resolved destinations
+     * 
+     * @return cache, or null if caching is disabled
+     */
+    public ResolvedDestinationCache getDestinationCache() {
+        if (!mDestinationCacheInitialized) {
+            synchronized (this) {
+                if (!mDestinationCacheInitialized) {
+                    int size = getDestinationCacheSize();
+                    if (size > 0) {
+                        mDestinationCache = new ResolvedDestinationCache(size);
+                    }
+                    mDestinationCacheInitialized = true;
+                }
+            }
+        }
+        return mDestinationCache;
+    }
+    
+    /**
+     * Discards all resolved destinations; should be called when the connection to 
+     * the JMS server is re-established
+     */
+    public void invalidateDestinations() {
+        ResolvedDestinationCache cache = getDestinationCache();
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+    
     /**
      * Instantiates a destination. Called from createDestination() which does all the 
      * unwrapping. Default implementation: calls createQueue() or createTopic().
@@ -958,6 +1048,12 @@ public abstract class RAJMSObjectFactory {
         case RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC:
             ret = new SyncDelivery(activation, stats);
             break;
+        case RAJMSActivationSpec.DELIVERYCONCURRENCY_VIRTUAL:
+            ret = new SyncDelivery(activation, stats, true);
+            break;
+        case RAJMSActivationSpec.DELIVERYCONCURRENCY_GROUPED:
+            ret = new GroupedDelivery(activation, stats);
+            break;
         default:
             throw Exc.exc(LOCALE.x("E140 Invalid concurrency ''{0}''",
                 Integer.toString(activation.getActivationSpec().getInternalDeliveryConcurrencyMode())));
@@ -978,7 +1074,9 @@ public abstract class RAJMSObjectFactory {
     }
 
     /**
-     * Copies a JMS message from one type to the other
+     * Copies a JMS message from one type to the other. The body is obtained through
+     * forwardMessage() if the provider supports that, or copied otherwise. The 
+     * properties and some of the headers are copied; JMSX properties are renamed.
      * 
      * @param toCopy message to copy
      * @param s session to be used to create the new msg
@@ -990,6 +1088,42 @@ public abstract class RAJMSObjectFactory {
      */
     public Message copyMessage(Message toCopy, Session s, boolean isXA,
         boolean isTopic, RAJMSResourceAdapter ra) throws JMSException {
+        Message ret = forwardMessage(toCopy, s, isXA, isTopic, ra);
+        if (ret == null) {
+            ret = copyBody(toCopy, s);
+        }
+        copyProperties(toCopy, ret);
+        return ret;
+    }
+    
+    /**
+     * Creates a new message with the same body as the specified message, without 
+     * copying the body through the JMS API. Can be overridden by providers that can
+     * do that natively; the default implementation returns null. The properties and
+     * headers are copied by the caller.
+     * 
+     * @param toCopy message to forward
+     * @param s session to be used to create the new msg
+     * @param isXA true if XA
+     * @param isTopic true if topic
+     * @param ra owning RA
+     * @return new writable message, or null if the body should be copied
+     * @throws JMSException propagated
+     */
+    protected Message forwardMessage(Message toCopy, Session s, boolean isXA,
+        boolean isTopic, RAJMSResourceAdapter ra) throws JMSException {
+        return null;
+    }
+
+    /**
+     * Creates a new message of the same type and copies the payload
+     * 
+     * @param toCopy message to copy
+     * @param s session to be used to create the new msg
+     * @return new message
+     * @throws JMSException propagated
+     */
+    private Message copyBody(Message toCopy, Session s) throws JMSException {
         Message ret = null;
         
         // Check for multiple interfaces
@@ -1017,13 +1151,24 @@ public abstract class RAJMSObjectFactory {
         } else if (toCopy instanceof BytesMessage) {
             BytesMessage in = (BytesMessage) toCopy;
             BytesMessage b = s.createBytesMessage();
-            byte[] buf = new byte[4 * 1024];
-            for (;;) {
-                int n = in.readBytes(buf);
-                if (n < 0) {
-                    break;
+            
+            // The listener may have read (part of) the body
+            in.reset();
+            long left = in.getBodyLength();
+            if (left > 0) {
+                byte[] buf = sCopyBuffers.take();
+                try {
+                    while (left > 0) {
+                        int n = in.readBytes(buf, (int) Math.min(left, buf.length));
+                        if (n < 0) {
+                            break;
+                        }
+                        b.writeBytes(buf, 0, n);
+                        left -= n;
+                    }
+                } finally {
+                    sCopyBuffers.give(buf);
                 }
-                b.writeBytes(buf, 0, n);
             }
             ret = b;
         } else if (toCopy instanceof MapMessage) {
@@ -1041,6 +1186,7 @@ public abstract class RAJMSObjectFactory {
         } else if (toCopy instanceof StreamMessage) {
             StreamMessage in = (StreamMessage) toCopy;
             StreamMessage out = s.createStreamMessage();
+            in.reset();
             for (;;) {
                 Object o;
                 try {
@@ -1057,21 +1203,30 @@ public abstract class RAJMSObjectFactory {
         } else {
             ret = s.createMessage();
         }
-        
-        // Copy user properties
+        return ret;
+    }
+    
+    /**
+     * Copies the user properties and the correlation id, reply-to and type headers
+     * 
+     * @param toCopy message to copy
+     * @param ret new message
+     * @throws JMSException propagated
+     */
+    private void copyProperties(Message toCopy, Message ret) throws JMSException {
         for (Enumeration<?> en = toCopy.getPropertyNames(); en.hasMoreElements();/*-*/) {
-            String name = (String) en.nextElement();
-            Object o = toCopy.getObjectProperty(name);
-            String originalName = name;
-            if (name.startsWith("JMSX")) {
-                name = Options.MessageProperties.MSG_PROP_PREFIX + name;
-            }
-            if (o instanceof Integer) {
+            String originalName = (String) en.nextElement();
+            Object o = toCopy.getObjectProperty(originalName);
+            
+            // JMSX properties are set by the provider and are renamed
+            String name = originalName.startsWith("JMSX") 
+                ? Options.MessageProperties.MSG_PROP_PREFIX + originalName : originalName;
+            if (o instanceof String) {
+                ret.setStringProperty(name, (String) o);
+            } else if (o instanceof Integer) {
                 ret.setIntProperty(name, ((Integer) o).intValue());
             } else if (o instanceof Long) {
                 ret.setLongProperty(name, ((Long) o).longValue());
-            } else if (o instanceof String) {
-                ret.setStringProperty(name, ((String) o).toString());
             } else if (o instanceof Boolean) {
                 ret.setBooleanProperty(name, ((Boolean) o).booleanValue());
             } else if (o instanceof Byte) {
@@ -1086,20 +1241,18 @@ public abstract class RAJMSObjectFactory {
                 throw Exc.jmsExc(LOCALE.x("E189: Unknown property type for {0}: {1}"
                     , originalName, o.getClass().getName()));
             }
+        }
             
-            // Copy other properties
-            if (toCopy.getJMSCorrelationID() != null) {
-                ret.setJMSCorrelationID(toCopy.getJMSCorrelationID());
-            }
-            if (toCopy.getJMSReplyTo() != null) {
-                ret.setJMSReplyTo(toCopy.getJMSReplyTo());
-            }
-            if (toCopy.getJMSType() != null) {
-                ret.setJMSType(toCopy.getJMSType());
-            }
+        // Copy other properties
+        if (toCopy.getJMSCorrelationID() != null) {
+            ret.setJMSCorrelationID(toCopy.getJMSCorrelationID());
+        }
+        if (toCopy.getJMSReplyTo() != null) {
+            ret.setJMSReplyTo(toCopy.getJMSReplyTo());
+        }
+        if (toCopy.getJMSType() != null) {
+            ret.setJMSType(toCopy.getJMSType());
         }
-        
-        return ret;
     }
 
     /**
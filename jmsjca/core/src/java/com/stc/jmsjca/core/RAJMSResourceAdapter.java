@@ -56,6 +56,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.WeakHashMap;
 
 /**
@@ -116,6 +118,9 @@ public abstract class RAJMSResourceAdapter implements ResourceAdapter, java.io.S
     private transient MBeanServer mMBeanServer;
     
     private transient Map<RAStopListener, Object> mStopListeners;
+    
+    // Runs the maintenance tasks of all connection pools of this RA; created on demand
+    private transient Timer mPoolMaintenanceTimer;
 
     private static final Localizer LOCALE = Localizer.get();
     //flag for ldap MBean initialization
@@ -264,6 +269,13 @@ public abstract class RAJMSResourceAdapter implements ResourceAdapter, java.io.S
             }
         }
 
+        synchronized (this) {
+            if (mPoolMaintenanceTimer != null) {
+                mPoolMaintenanceTimer.cancel();
+                mPoolMaintenanceTimer = null;
+            }
+        }
+
         if (sLog.isDebugEnabled()) {
             sLog.debug("RA is now stopped");
         }
@@ -1067,6 +1079,29 @@ public abstract class RAJMSResourceAdapter implements ResourceAdapter, java.io.S
         return ret.toString();
     }
 
+    /**
+     * Dumps the statistics of the connection pools that are managed by the RA (i.e.
+     * the pools that are used when the application server does not provide one)
+     * 
+     * @return String
+     */
+    public String dumpPoolInfo() {
+        StringBuffer ret = new StringBuffer();
+        
+        Object[] factories;
+        synchronized (mMCFCreated) {
+            factories = mMCFCreated.keySet().toArray();
+        }
+        
+        for (int i = 0; i < factories.length; i++) {
+            if (factories[i] != null) {
+                ret.append(((XManagedConnectionFactory) factories[i]).dumpPoolInfo());
+            }
+        }
+        
+        return ret.toString();
+    }
+
     /**
      * getMBeanServerDomain
      * 
@@ -1298,6 +1333,21 @@ public abstract class RAJMSResourceAdapter implements ResourceAdapter, java.io.S
         mStopListeners.put(listener, null);
     }
 
+    /**
+     * Schedules a periodic connection pool maintenance task on the timer that is 
+     * shared by all connection pools of this RA. The timer is created on demand and 
+     * is cancelled when the RA is stopped.
+     * 
+     * @param task task to run
+     * @param period interval in ms
+     */
+    public synchronized void schedulePoolMaintenance(TimerTask task, long period) {
+        if (mPoolMaintenanceTimer == null) {
+            mPoolMaintenanceTimer = new Timer("JMSJCA pool maintenance", true);
+        }
+        mPoolMaintenanceTimer.schedule(task, period, period);
+    }
+
     /**
      * Matches an object factory to the configuration set in the RA, MCF and / or spec
      * 
@@ -89,6 +89,26 @@ public class RAMBean extends CommonMBean implements EmManagementInterface {
         };
     }
 
+    /**
+     * Statistics of the connection pools managed by the RA: hits, misses, connections 
+     * created, destroyed, pre-warmed, validated and evicted
+     * 
+     * @return String
+     */
+    public String getConnectionPoolStats() {
+        return mAdapter.dumpPoolInfo();
+    }
+    
+    /**
+     * Exposes the attribute as an MBean attribute
+     * 
+     * @return Attribute description
+     */
+    public String mbaConnectionPoolStats() {
+        return "Statistics of the connection pools that the RA manages (only applies when "
+            + "the connection manager of the RA is used)";
+    }
+
     /**
      * @see com.stc.jmsjca.core.EmManagementInterface#start()
      */
@@ -19,14 +19,18 @@ package com.stc.jmsjca.core;
 import com.stc.jmsjca.localization.LocalizedString;
 import com.stc.jmsjca.localization.Localizer;
 import com.stc.jmsjca.util.Exc;
+import com.stc.jmsjca.util.LRUIndex;
 import com.stc.jmsjca.util.Logger;
+import com.stc.jmsjca.util.Str;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.Queue;
 import javax.jms.Topic;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -108,7 +112,7 @@ import java.util.regex.Pattern;
  * - JMS_Sun-JMSJCA.RedeliveryCount: number of times the message was seen with the redelivered 
  *   flag set by JMSJCA. Will accurately reflect the total number of redelivery attempts 
  *   only if there's one instance of the inbound adapter, and the inbound adapter was 
- *   not redeployed.
+ *   not redeployed, or if the redelivery state is persisted (JMSJCA.redeliverystore). 
  * - JMS_Sun-JMSJCA.OriginalDestinationName: name of the destination as specified in the 
  *   activation spec
  * - JMS_Sun-JMSJCA.OriginalDestinationType: either "javax.jms.Queue" or "javax.jms.Topic"
@@ -121,6 +125,14 @@ import java.util.regex.Pattern;
  * msg delay is divisible by 1000, an INFO message is written to the log indicating that
  * the thead is delaying message delivery.
  * 
+ * To prevent a few messages that are being delayed from occupying all threads, the
+ * delay may optionally be deferred instead (see deferMessageDelivery()): the message is
+ * rolled back immediately, and when it is seen again, it is delivered if the delay has 
+ * expired. Only a limited number of threads will wait for the remainder of a delay
+ * (JMSJCA.redeliverywaiters; deferring is off if not specified). Deferring does not 
+ * count as an encounter, but each deferral is a real rollback that is counted by the
+ * server (JMSXDeliveryCount, backout thresholds).
+ * 
  * There is a default behavior for message redelivery handling: see source.
  * 
  * Implementation notes: this class is made abstract to enhance testability.
@@ -156,9 +168,9 @@ import java.util.regex.Pattern;
 public abstract class RedeliveryHandler {
     private static Logger sLog = Logger.getLogger(RedeliveryHandler.class);
     private DeliveryStats mStats;
-    private int mLookbackSize;
-    private HashMap<String, Encounter> mOldMsgs;
-    private HashMap<String, Encounter> mNewMsgs;
+    private final LRUIndex<String, Encounter> mEncounters;
+    private final long mTTL;
+    private volatile RedeliveryStore mStore;
     private boolean mLoggedOnce;
     private final ActionInstruction[] mImmutableActions;
     private final ExecutableAction[] mExecutables;
@@ -386,6 +398,9 @@ public abstract class RedeliveryHandler {
                     e.getMsgid(), Integer.toString(e.getNEncountered()), Long.toString(mDelay));
             }
 
+            if (owner.deferMessageDelivery(m, e, mDelay, logmsg, cookie)) {
+                return false;
+            }
             owner.delayMessageDelivery(m, e, mDelay, logmsg, cookie);
             return true;
         }
@@ -505,6 +520,11 @@ public abstract class RedeliveryHandler {
                         e.getMsgid(), Integer.toString(e.getNEncountered())
                         , Long.toString(mInstruction.getHowLong()));
                 }
+                if (owner.deferMessageDelivery(m, e, mInstruction.getHowLong(), logmsg, cookie)) {
+                    mStartTime = 0;
+                    mIsDone = true;
+                    return false;
+                }
             }
             
             long toSleep = Math.min(mLeftToSleep, Delay.MAX);
@@ -885,6 +905,7 @@ public abstract class RedeliveryHandler {
         private ExecutableAction[] mEncActions;
         private String mEncActionString;
         private boolean mEncActionsHaveChanged;
+        private volatile long mDeferredUntil;
         
         /**
          * Constructor 
@@ -929,6 +950,23 @@ public abstract class RedeliveryHandler {
             mActionCursor = actionCursor;
         }
 
+        /**
+         * @return time (ms) until which delivery of this msg is deferred, or 0 if
+         *   delivery is not deferred
+         */
+        public final long getDeferredUntil() {
+            return mDeferredUntil;
+        }
+        
+        /**
+         * Defers delivery of this msg (see deferMessageDelivery())
+         * 
+         * @param deferredUntil time (ms) until which delivery is deferred; 0 to clear
+         */
+        public final void setDeferredUntil(long deferredUntil) {
+            mDeferredUntil = deferredUntil;
+        }
+
         /**
          * @return msgid for this encounter
          */
@@ -983,14 +1021,27 @@ public abstract class RedeliveryHandler {
      * @param spec activation spec
      * @param stats runtime statistics
      * @param lookbackSize cache size (configurable for testing)
-     * @throws Exception
      */
     public RedeliveryHandler(RAJMSActivationSpec spec, DeliveryStats stats, int lookbackSize) {
+        this(spec, stats, lookbackSize, 0);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param spec activation spec
+     * @param stats runtime statistics
+     * @param lookbackSize maximum number of redelivered msgs to keep track of
+     * @param ttl time in ms after which a msg that was not seen again is forgotten;
+     *   0 for no limit 
+     */
+    public RedeliveryHandler(RAJMSActivationSpec spec, DeliveryStats stats, int lookbackSize, 
+        long ttl) {
         mStats = stats;
-        mLookbackSize = lookbackSize;
         mActivationSpec = spec;
-        mOldMsgs = new HashMap<String, Encounter>();
-        mNewMsgs = new HashMap<String, Encounter>(mLookbackSize);
+        mEncounters = new LRUIndex<String, Encounter>(lookbackSize, ttl);
+        mTTL = ttl;
+        mStats.setEncounterIndex(mEncounters);
         
         // Setup actions
         ActionInstruction[] actions = new ActionInstruction[0];
@@ -1160,10 +1211,12 @@ public abstract class RedeliveryHandler {
             if (key.startsWith(Options.MessageProperties.USER_ROLLBACK_DATA_PREFIX)) {
                 // User data
                 mEncounter.getStatefulRedeliveryProperties().put(key, value);
+                persist(mEncounter);
                 return true;
             } else if (key.equals(Options.MessageProperties.REDELIVERY_HANDLING)) {
                 // Redelivery
                 setActions(value, mEncounter);
+                persist(mEncounter);
                 return true;
             } else if (key.equals(Options.MessageProperties.STOP_CONNECTOR)) {
                 stopConnector(value);
@@ -1298,51 +1351,153 @@ public abstract class RedeliveryHandler {
                 Options.MessageProperties.LAST_EXCEPTIONCLASS, e.getClass().getName());
             enc.getStatefulRedeliveryProperties().put(
                 Options.MessageProperties.LAST_EXCEPTIONTRACE, Exc.getStackTrace(e));
+            persist(enc);
         }
     }
 
-    private synchronized Encounter getEncounter(String msgid, boolean redelivered) {
-        // Check most recent msgs first (msg may be in old AND new cache)
+    private Encounter getEncounter(String msgid, boolean redelivered) {
         if (redelivered) {
             mStats.msgRedelivered();
         }
-        Encounter enc = mNewMsgs.get(msgid);
+        
+        // Lookup marks the msg as most recently seen
+        Encounter enc = mEncounters.get(msgid);
         if (enc == null) {
-            // Check old msgs
-            enc = mOldMsgs.get(msgid);
-            if (enc == null) {
-                // First encounter
+            // First encounter
+            enc = newEncounter(msgid);
+            
+            // Another thread may have seen the same msg concurrently
+            Encounter existing = mEncounters.putIfAbsent(msgid, enc);
+            if (existing != null) {
+                enc = existing;
+            } else if (redelivered) {
+                mStats.msgRedeliveredFirstTime();
+            }
+        }
+        return enc;
+    }
+    
+    /**
+     * Creates an Encounter with the actions of the activation 
+     */
+    private Encounter newEncounter(String msgid) {
+        // Assemble actions array; a new one MUST be created if there are any 
+        // stateful actions such as LongDelay
+        ExecutableAction[] actions = mExecutables;
+        if (mExecutables == null) {
+            actions = new ExecutableAction[mImmutableActions.length];
+            for (int i = 0; i < mImmutableActions.length; i++) {
+                actions[i] = mImmutableActions[i].getInstance();
+            }
+        }
 
-                // Assemble actions array; a new one MUST be created if there are any 
-                // stateful actions such as LongDelay
-                ExecutableAction[] actions = mExecutables;
-                if (mExecutables == null) {
-                    actions = new ExecutableAction[mImmutableActions.length];
-                    for (int i = 0; i < mImmutableActions.length; i++) {
-                        actions[i] = mImmutableActions[i].getInstance();
-                    }
-                }
+        return new Encounter(msgid, actions, mActionStr);
+    }
+    
+    /**
+     * Associates a store with this handler: the state of all redelivered msgs is 
+     * read from the store, and from now on changes are written to the store.
+     * 
+     * @param store store; may be null
+     */
+    public void setStore(RedeliveryStore store) {
+        mStore = null;
+        if (store == null) {
+            return;
+        }
+        
+        List<RedeliveryStore.Record> records;
+        try {
+            records = store.load();
+        } catch (Exception e) {
+            sLog.warn(LOCALE.x("E225: Redelivery state could not be read; state of previously " 
+                + "redelivered messages is lost: {0}", e), e);
+            records = new ArrayList<RedeliveryStore.Record>();
+        }
 
-                enc = new Encounter(msgid, actions, mActionStr);
-                if (redelivered) {
-                    mStats.msgRedeliveredFirstTime();
+        long now = System.currentTimeMillis();
+        for (RedeliveryStore.Record r : records) {
+            if (mTTL > 0 && now - r.getTimestamp() > mTTL) {
+                continue;
+            }
+            Encounter enc = newEncounter(r.getMsgid());
+            enc.mNEncountered = r.getNEncountered();
+            try {
+                if (r.getActions() != null && !r.getActions().equals(mActionStr)) {
+                    setActions(r.getActions(), enc);
+                    enc.mEncActionsHaveChanged = false;
                 }
+                restoreActionCursor(enc, r.getActionCursor());
+            } catch (JMSException e) {
+                sLog.warn(LOCALE.x("E226: Redelivery actions [{0}] of message with msgid {1} " 
+                    + "could not be restored: {2}", r.getActions(), r.getMsgid(), e), e);
             }
-            
-            // Ensure msg is in most recent cache
-            mNewMsgs.put(msgid, enc);
-            
-            // Check for cache overflow
-            if (mNewMsgs.size() > mLookbackSize) {
-                // Discard the old segment, create a new segment
-                mOldMsgs = mNewMsgs;
-                mNewMsgs = new HashMap<String, Encounter>(mLookbackSize);
+            if (r.getProperties() != null) {
+                enc.getStatefulRedeliveryProperties().putAll(r.getProperties());
             }
+            mEncounters.putIfAbsent(r.getMsgid(), enc);
+        }
+        
+        mStore = store;
+    }
+    
+    /**
+     * Sets the action cursor of a restored encounter to the saved cursor if that is 
+     * consistent with the encounter's actions; the configured actions may have changed 
+     * since the state was saved, in which case the cursor is derived from the encounter 
+     * count.
+     * 
+     * @param enc restored encounter
+     * @param saved saved cursor
+     */
+    private static void restoreActionCursor(Encounter enc, int saved) {
+        ExecutableAction[] actions = enc.mEncActions;
+        if (saved >= 0 && saved < actions.length 
+            && actions[saved].getInstruction().getAt() <= enc.mNEncountered) {
+            enc.setActionCursor(saved);
+            return;
+        }
+        
+        int cursor = 0;
+        for (int i = 0; i < actions.length; i++) {
+            if (actions[i].getInstruction().getAt() <= enc.mNEncountered) {
+                cursor = i;
+            } else {
+                break;
+            }
+        }
+        enc.setActionCursor(cursor);
+    }
+    
+    /**
+     * Writes the state of the specified encounter to the store if there is one
+     * 
+     * @param enc changed encounter
+     */
+    private void persist(Encounter enc) {
+        RedeliveryStore store = mStore;
+        if (store != null) {
+            String actions = enc.getEncActionString();
+            store.save(new RedeliveryStore.Record(enc.getMsgid(), System.currentTimeMillis(), 
+                enc.getNEncountered(), enc.getActionCursor(), 
+                Str.isEqual(actions, mActionStr) ? null : actions, 
+                enc.mStatefulRedeliveryProperties));
         }
-        return enc;
     }
     
     private boolean shouldDeliver(BaseCookie cookie, Encounter enc, Message m) {
+        // A delay that was deferred: this is the same encounter, so the counter is 
+        // not bumped and no action is taken
+        long deferredUntil = enc.getDeferredUntil();
+        if (deferredUntil != 0) {
+            long left = deferredUntil - System.currentTimeMillis();
+            if (left > 0 && !waitForDeferred(m, enc, left, cookie)) {
+                return false;
+            }
+            enc.setDeferredUntil(0);
+            return true;
+        }
+        
         // Preconditions:
         // - ienc indicates the number of times this msg was seen before, i.e. 1 on the 
         //   first redelivery
@@ -1370,6 +1525,8 @@ public abstract class RedeliveryHandler {
                     action = next;
                 }
             }
+            
+            persist(enc);
         }
         
         try {
@@ -1410,6 +1567,43 @@ public abstract class RedeliveryHandler {
     protected abstract void longDelayMessageDelivery(Message m, Encounter e, long delay
     , LocalizedString logmsg, RedeliveryHandler.BaseCookie cookie);
 
+    /**
+     * Called before a message delivery is delayed; allows the implementation to 
+     * roll the message back right away rather than to tie up the endpoint for the 
+     * duration of the delay. The implementation should mark the encounter with
+     * Encounter.setDeferredUntil(). When the message is seen again, it is delivered
+     * if the delay has expired, or waitForDeferred() is called if not.
+     * 
+     * @param m message
+     * @param e encounter
+     * @param delay how long to delay
+     * @param logmsg message to log
+     * @param cookie allows for information to flow from the concrete implementation 
+     *   of the RedeliveryHandler to the concrete Actions
+     * @return true if the message was rolled back; false if delivery should be delayed
+     *   through delayMessageDelivery() or longDelayMessageDelivery()
+     */
+    protected boolean deferMessageDelivery(Message m, Encounter e, long delay
+    , LocalizedString logmsg, RedeliveryHandler.BaseCookie cookie) {
+        return false;
+    }
+
+    /**
+     * Called when a message of which the delivery was deferred, is seen again before
+     * the delay has expired
+     * 
+     * @param m message
+     * @param e encounter
+     * @param left time left in ms
+     * @param cookie allows for information to flow from the concrete implementation 
+     *   of the RedeliveryHandler to the concrete Actions
+     * @return true if the message should be delivered; false if it was rolled back
+     */
+    protected boolean waitForDeferred(Message m, Encounter e, long left
+    , RedeliveryHandler.BaseCookie cookie) {
+        return false;
+    }
+
     /**
      * Made abstract to enhance testability; will be called when a message should be
      * deleted
@@ -0,0 +1,137 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the redelivery state of messages (see RedeliveryHandler.Encounter) so that
+ * the number of times a message was seen, the position in the redelivery actions
+ * and the stateful redelivery properties survive a restart of the activation or of
+ * the server.
+ *
+ * An implementation is selected with JMSJCA.redeliverystoreclass and must have a
+ * public constructor that takes the location (JMSJCA.redeliverystore), a name that
+ * identifies the activation, and the maximum number of messages to keep
+ * (String, String, int). The default implementation is FileRedeliveryStore.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public interface RedeliveryStore {
+
+    /**
+     * A snapshot of the redelivery state of a message
+     */
+    public static class Record {
+        private final String mMsgid;
+        private final long mTimestamp;
+        private final int mNEncountered;
+        private final int mActionCursor;
+        private final String mActions;
+        private final Map<String, String> mProperties;
+
+        /**
+         * Constructor
+         *
+         * @param msgid message id
+         * @param timestamp when the snapshot was taken (ms)
+         * @param nEncountered number of times the message was seen redelivered
+         * @param actionCursor index into the redelivery actions
+         * @param actions redelivery actions if set specifically for this message, or
+         *   null if the actions of the activation apply
+         * @param properties stateful redelivery properties; a copy is made
+         */
+        public Record(String msgid, long timestamp, int nEncountered, int actionCursor,
+            String actions, Map<String, String> properties) {
+            mMsgid = msgid;
+            mTimestamp = timestamp;
+            mNEncountered = nEncountered;
+            mActionCursor = actionCursor;
+            mActions = actions;
+            mProperties = properties == null || properties.isEmpty()
+                ? null : new HashMap<String, String>(properties);
+        }
+
+        /**
+         * @return message id
+         */
+        public String getMsgid() {
+            return mMsgid;
+        }
+
+        /**
+         * @return when the snapshot was taken (ms)
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @return number of times the message was seen redelivered
+         */
+        public int getNEncountered() {
+            return mNEncountered;
+        }
+
+        /**
+         * @return index into the redelivery actions
+         */
+        public int getActionCursor() {
+            return mActionCursor;
+        }
+
+        /**
+         * @return actions specific for this message or null
+         */
+        public String getActions() {
+            return mActions;
+        }
+
+        /**
+         * @return stateful redelivery properties; may be null
+         */
+        public Map<String, String> getProperties() {
+            return mProperties;
+        }
+    }
+
+    /**
+     * Queues the state of a message for persisting; should not block on I/O as this
+     * is called on the delivery thread.
+     *
+     * @param r state
+     */
+    void save(Record r);
+
+    /**
+     * Reads back the state of all messages, i.e. the most recent Record per message
+     * id, ordered from least recently to most recently saved. Records that are queued
+     * for persisting are included.
+     *
+     * @return records
+     * @throws Exception on failure
+     */
+    List<Record> load() throws Exception;
+
+    /**
+     * Persists all queued records and releases all resources
+     */
+    void close();
+}
@@ -0,0 +1,180 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.util.LRUIndex;
+
+import javax.jms.Destination;
+
+import java.util.Properties;
+
+/**
+ * Caches the result of RAJMSObjectFactory.createDestination(): the provider specific
+ * destination that a destination name resolves to after lookup:// lookups, unwrapping
+ * of admin destinations, parsing of jmsjca:// names and createQueue()/createTopic().
+ *
+ * There is one cache per object factory, and hence one per managed connection factory
+ * and one per activation, so that the key only needs to consist of the domain, the
+ * name and the options. The cache is bounded (least recently used entries are
+ * evicted) and is invalidated when the connection to the JMS server is re-established,
+ * since a lookup:// name may then resolve to a different object.
+ *
+ * Unlike DestinationCache, this cache is not specific for JNDI based providers.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class ResolvedDestinationCache {
+    /**
+     * Default maximum number of destinations
+     */
+    public static final int DEFAULT_SIZE = 256;
+
+    private final LRUIndex<Key, Destination> mIndex;
+
+    /**
+     * Cache key: domain, name and options
+     */
+    private static final class Key {
+        private final boolean mIsTopic;
+        private final String mName;
+        private final Properties mOptions;
+        private final int mHash;
+
+        public Key(boolean isTopic, String name, Properties options) {
+            mIsTopic = isTopic;
+            mName = name;
+            if (options == null || options.isEmpty()) {
+                mOptions = null;
+            } else {
+                mOptions = new Properties();
+                mOptions.putAll(options);
+            }
+            mHash = (mIsTopic ? 31 : 0) + mName.hashCode() * 17 + (mOptions == null ? 0 : mOptions.hashCode());
+        }
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) obj;
+            return mIsTopic == that.mIsTopic && mName.equals(that.mName)
+                && (mOptions == null ? that.mOptions == null : mOptions.equals(that.mOptions));
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxSize maximum number of destinations kept
+     */
+    public ResolvedDestinationCache(int maxSize) {
+        mIndex = new LRUIndex<Key, Destination>(maxSize, 0);
+    }
+
+    /**
+     * Creates a key for get() and put()
+     *
+     * @param isTopic domain
+     * @param name destination name as passed to createDestination()
+     * @param options options as passed to createDestination(); may be null
+     * @return key
+     */
+    public Object createKey(boolean isTopic, String name, Properties options) {
+        return new Key(isTopic, name, options);
+    }
+
+    /**
+     * Looks up a resolved destination
+     *
+     * @param key obtained through createKey()
+     * @return destination or null if not cached
+     */
+    public Destination get(Object key) {
+        return mIndex.get((Key) key);
+    }
+
+    /**
+     * Adds a resolved destination
+     *
+     * @param key obtained through createKey()
+     * @param dest destination
+     */
+    public void put(Object key, Destination dest) {
+        if (dest != null) {
+            mIndex.putIfAbsent((Key) key, dest);
+        }
+    }
+
+    /**
+     * Removes all destinations, e.g. after a reconnect
+     */
+    public void invalidate() {
+        mIndex.clear();
+    }
+
+    /**
+     * @return number of destinations cached
+     */
+    public int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * @return number of lookups that found a destination
+     */
+    public long getHits() {
+        return mIndex.getHits();
+    }
+
+    /**
+     * @return number of lookups that did not find a destination
+     */
+    public long getMisses() {
+        return mIndex.getMisses();
+    }
+
+    /**
+     * @return percentage of lookups that found a destination
+     */
+    public int getHitRatio() {
+        long hits = mIndex.getHits();
+        long total = hits + mIndex.getMisses();
+        return total == 0 ? 0 : (int) (hits * 100 / total);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+            + ", hitratio=" + getHitRatio() + "%";
+    }
+}
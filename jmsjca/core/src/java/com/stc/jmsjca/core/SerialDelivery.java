@@ -68,6 +68,7 @@ public class SerialDelivery extends Delivery implements MessageListener,
      */
     @Override
     public void start() throws Exception {
+        resetAckWaiters();
         mObjFactory = mActivation.getObjectFactory();
         final int domain = XConnectionRequestInfo.guessDomain(
             mActivation.isCMT() && !mActivation.isXAEmulated(), mActivation.isTopic());
@@ -152,6 +153,10 @@ public class SerialDelivery extends Delivery implements MessageListener,
             sLog.debug("SerialDelivery.deactivate() -- begin");
         }
 
+        // Threads waiting for HUA acknowledgements should give up before the
+        // connection is stopped, since stop() waits for the JMS thread
+        cancelAckWaiters();
+
         try {
             if (mConnection != null) {
                 mConnection.stop();
@@ -271,6 +276,7 @@ public class SerialDelivery extends Delivery implements MessageListener,
                 }
             }
         } finally {
+            releaseContext();
             mActivation.exitContext();
         }
     }
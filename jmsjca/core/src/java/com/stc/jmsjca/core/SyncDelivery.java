@@ -19,8 +19,8 @@ package com.stc.jmsjca.core;
 import com.stc.jmsjca.localization.Localizer;
 import com.stc.jmsjca.util.Exc;
 import com.stc.jmsjca.util.Logger;
-import com.stc.jmsjca.util.Semaphore;
 import com.stc.jmsjca.util.Utility;
+import com.stc.jmsjca.util.VirtualThreads;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -34,6 +34,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
 
 /**
  * This delivery class is used for those JMS servers that do not support
@@ -55,7 +56,13 @@ import java.util.Properties;
  * 
  * <p>Threading model: each worker has its own dedicated thread. These threads are
  * created by the RAR; they do not share the appserver's threadpool. If an
- * activation is setup with 32 MDBs, there will be 32 workers.
+ * activation is setup with 32 MDBs, there will be 32 workers. In "virtual" mode,
+ * these threads are virtual threads if the JVM supports them, so that a large
+ * number of mostly idle workers does not tie up as many OS threads. Since a virtual
+ * thread is a java.lang.Thread, transaction association, stopping and waiting for
+ * workers to finish are the same in both modes. The waits of the RA itself (turns,
+ * concurrency limit, HUA acknowledgements) use java.util.concurrent locks, which do
+ * not pin a virtual thread to its carrier thread.
  * 
  * <p>Workers can exit in one of two ways: an exception during polling, or an
  * orderly shutdown.
@@ -102,15 +109,24 @@ public class SyncDelivery extends Delivery {
     private int mReceiveTimeout = 10000; // will be overridden in constructor
     /**
      * batch will be "truncated" if no messages were received for x milliseconds
+     * (default of JMSJCA.batchmaxwait)
      */
     public static final int TIMEOUTBATCH = 100;
+    /**
+     * A receive that returns a message within this time (ns) is taken to have found a
+     * message that was already waiting
+     */
+    private static final long IMMEDIATE_RECEIVE = 1000000L;
     
     private static Logger sLog = Logger.getLogger(SyncDelivery.class);
     private javax.jms.Connection mConnection;
     private int mNThreads;
+    private boolean mVirtual;
     private List<SyncWorker> mWorkers = new ArrayList<SyncWorker>();
     private boolean mIsStopped = true;
     private Object mIsStoppedLock = new Object();
+    private BatchSizer mBatchSizer;
+    private boolean mPipelined;
     
     private static final Localizer LOCALE = Localizer.get();
 
@@ -122,11 +138,34 @@ public class SyncDelivery extends Delivery {
      * @throws Exception on failure
      */
     public SyncDelivery(Activation a, DeliveryStats stats) throws Exception {
+        this(a, stats, false);
+    }
+
+    /**
+     * Constructor 
+     * 
+     * @param a Activation
+     * @param stats DeliveryStats
+     * @param virtual true if the workers should run on virtual threads
+     * @throws Exception on failure
+     */
+    public SyncDelivery(Activation a, DeliveryStats stats, boolean virtual) throws Exception {
         super(a, stats);
+        if (virtual && !VirtualThreads.isSupported()) {
+            sLog.warn(LOCALE.x("E227: Virtual threads are not supported by this JVM; "
+                + "platform threads will be used instead (activation={0})", a));
+            virtual = false;
+        } else if (virtual && VirtualThreads.isPinnedByMonitors()) {
+            sLog.warn(LOCALE.x("E236: Virtual threads of this JVM stay pinned to their carrier thread while they "
+                + "wait in synchronized code, e.g. in the JMS client; Java 24 or later is recommended for "
+                + "virtual threads (activation={0})", a));
+        }
+        mVirtual = virtual;
         Properties p = new Properties();
         a.getObjectFactory().getProperties(p, a.getRA(), a.getActivationSpec(), null, null);
         mReceiveTimeout = Utility.getIntProperty(p, Options.In.RECEIVE_TIMEOUT, mReceiveTimeout);
         
+        boolean singleSession = true;
         if (a.getActivationSpec().getInternalDeliveryConcurrencyMode() == 
             RAJMSActivationSpec.DELIVERYCONCURRENCY_SERIAL) {
             mNThreads = 1;
@@ -134,10 +173,28 @@ public class SyncDelivery extends Delivery {
                 javax.jms.Topic.class.getName())) {            
             mNThreads = 1;
         } else {
+            singleSession = false;
             mNThreads = 
                 a.getActivationSpec().getEndpointPoolMaxSize().intValue();            
         }
         
+        mPipelined = Utility.isTrue(p.getProperty(Options.In.OPTION_PIPELINED_COMMIT), false);
+        if (mPipelined && singleSession) {
+            sLog.warn(LOCALE.x("E232: Pipelined commit (JMSJCA.pipelinedcommit) will not be used because "
+                + "messages are delivered serially or the destination is a topic (activation={0})", a));
+            mPipelined = false;
+        }
+        
+        createConcurrencyController(getConfiguredEndpoints());
+        
+        if (mBatchSize > 1) {
+            // The lanes of a pipelined worker take turns receiving
+            mBatchSizer = new BatchSizer(mBatchSize, 
+                Utility.getIntProperty(p, Options.In.OPTION_BATCH_MAXWAIT, TIMEOUTBATCH),
+                Utility.isTrue(p.getProperty(Options.In.OPTION_BATCH_ADAPTIVE), false), mNThreads);
+        }
+        mStats.setBatchSizer(mBatchSizer);
+        
         if (sLog.isDebugEnabled()) {
             sLog.debug("number of endpoints specified to be " + mNThreads);
             sLog.debug("RECEIVE TIMEOUT of endpoints specified to be " + mReceiveTimeout);
@@ -164,6 +221,7 @@ public class SyncDelivery extends Delivery {
             }
             mIsStopped = false;
         }
+        resetAckWaiters();
         
         if (mConnection != null) {
             throw Exc.jmsExc(LOCALE.x("E148: Logic fault: connection not null"));
@@ -194,14 +252,18 @@ public class SyncDelivery extends Delivery {
             mConnection.start();
             
             
-            // Create sync workers
+            // Create sync workers; with pipelined commit, each worker consists of two
+            // lanes that take turns receiving
             try {
                 for (int i = 0; i < mNThreads; i++) {
-                    SyncWorker w = new SyncWorker("JMSJCA sync #" + i + "("
-                        + mActivation.getActivationSpec().getDestination() + ")");
-                    w.init();
-                    // Do not start worker here yet
-                    mWorkers.add(w);
+                    Semaphore turn = mPipelined ? new Semaphore(1, true) : null;
+                    for (int lane = 0; lane < (mPipelined ? 2 : 1); lane++) {
+                        SyncWorker w = new SyncWorker("JMSJCA sync #" + i + (mPipelined ? "." + lane : "") + "("
+                            + mActivation.getActivationSpec().getDestination() + ")", turn);
+                        w.init();
+                        // Do not start worker here yet
+                        mWorkers.add(w);
+                    }
                 }
             } catch (JMSException e) {
                 Exc.checkLinkedException(e);
@@ -235,6 +297,9 @@ public class SyncDelivery extends Delivery {
         if (sLog.isDebugEnabled()) {
             sLog.debug("Delivery.stop() -- begin");
         }
+        
+        // Workers waiting for HUA acknowledgements should give up
+        cancelAckWaiters();
 
         // Stop connection: will cause receive() to return null
         try {
@@ -260,7 +325,11 @@ public class SyncDelivery extends Delivery {
                 }
             }
 
-            if (waiter.isDone(mWorkers.size(), mWorkers)) {
+            List<Thread> threads = new ArrayList<Thread>();
+            for (Iterator<SyncWorker> it = mWorkers.iterator(); it.hasNext();/*-*/) {
+                threads.add(it.next().getThread());
+            }
+            if (waiter.isDone(mWorkers.size(), threads)) {
                 break;
             }
         }
@@ -357,8 +426,7 @@ public class SyncDelivery extends Delivery {
     }
 
     private class HUACoordinator extends Coordinator {
-        private Semaphore mSemaphore = new Semaphore(0);
-        private int mNAcksToExpect;
+        private final AckWaiter mAcks = new AckWaiter();
         private boolean mIsRollbackOnly;
         private boolean mNeedsToDiscardEndpoint;
         private int mNMsgsDelivered;
@@ -381,7 +449,7 @@ public class SyncDelivery extends Delivery {
             if (isRollbackOnly) {
                 setRollbackOnly();
             }
-            mSemaphore.release();
+            mAcks.ack();
         }
         
         @Override
@@ -392,24 +460,16 @@ public class SyncDelivery extends Delivery {
         @Override
         public void msgDelivered(boolean wasDelivered) {
             if (wasDelivered) {
-                mNAcksToExpect++;
+                mAcks.expect(1);
                 mNMsgsDelivered++;
             }
         }
         
         @Override
         public void waitForAcks() throws InterruptedException {
-            done: for (int i = 0; i < mNAcksToExpect; i++) {
-                for (;;) {
-                    // TODO: find better way to wait both on stop signal and semaphore
-                    if (mSemaphore.attempt(500)) {
-                        break;
-                    }
-                    if (isStopped()) {
-                        setRollbackOnly();
-                        break done;
-                    }
-                }
+            if (!awaitAcks(mAcks)) {
+                // Stopping
+                setRollbackOnly();
             }
         }
 
@@ -454,7 +514,8 @@ public class SyncDelivery extends Delivery {
             mActivation.isTopic());        
     }
     
-    private class SyncWorker extends Thread {
+    private class SyncWorker implements Runnable {
+        private Thread mThread;
         private javax.jms.MessageConsumer mCons;
         private javax.jms.Session mSess;
         private XAResource mXA;
@@ -462,14 +523,51 @@ public class SyncDelivery extends Delivery {
         private XMessageEndpoint mEndpoint;
         private boolean mRunning;
         private ConnectionForMove mMessageMoveConnection;
+        private Semaphore mTurn;
+        private boolean mHasTurn;
         
         /**
          * Constructor
          * 
          * @param name threadname
+         * @param turn shared with the other lane of the same worker if pipelined;
+         *   null otherwise
+         */
+        public SyncWorker(String name, Semaphore turn) {
+            mThread = VirtualThreads.newThread(this, name, mVirtual);
+            mTurn = turn;
+        }
+        
+        /**
+         * Pipelined commit: waits until the other lane of this worker has received and
+         * delivered its messages, so that only one lane receives at a time while the 
+         * other one completes its transaction
+         * 
+         * @throws InterruptedException propagated
+         */
+        private void takeTurn() throws InterruptedException {
+            if (mTurn != null && !mHasTurn) {
+                mTurn.acquire();
+                mHasTurn = true;
+            }
+        }
+        
+        /**
+         * Pipelined commit: lets the other lane receive; called when all messages 
+         * of the transaction have been delivered
+         */
+        private void yieldTurn() {
+            if (mHasTurn) {
+                mHasTurn = false;
+                mTurn.release();
+            }
+        }
+        
+        /**
+         * @return the thread the worker runs on
          */
-        public SyncWorker(String name) {
-            super(name);
+        public Thread getThread() {
+            return mThread;
         }
         
         /**
@@ -549,9 +647,8 @@ public class SyncDelivery extends Delivery {
         }
         
         /**
-         * @see java.lang.Thread#start()
+         * Starts the thread
          */
-        @Override
         public void start() {
             // Mark as running
             synchronized (this) {
@@ -559,13 +656,15 @@ public class SyncDelivery extends Delivery {
             }
             
             // Start the thread
-            super.start();
+            mThread.start();
         }
         
         private void runOnceStdXA(Coordinator coord) throws Exception {
-            DeliveryResults result = new DeliveryResults();
+            DeliveryResults result = getThreadResults();
 
-            // XA Mode
+            // XA Mode; the transaction is started once it is this lane's turn, so that 
+            // it is not held open while the other lane receives
+            takeTurn();
             beforeDelivery(result, mEndpoint, true);
             
             // The MDB may move the transaction to a different thread
@@ -574,7 +673,7 @@ public class SyncDelivery extends Delivery {
                 tx = getTransaction(true);
             }
             
-            Message m = mCons.receive(mReceiveTimeout);
+            Message m = receiveFirst();
             if (m != null) {
                 if (mHoldUntilAck) {
                     m = wrapMsg(m).setBatchSize(mBatchSize, coord, -1);
@@ -583,6 +682,7 @@ public class SyncDelivery extends Delivery {
                 coord.msgDelivered(result.getOnMessageSucceeded());
                 coord.setRollbackOnly(result.getException());
             }
+            yieldTurn();
             
             coord.waitForAcks();
             
@@ -610,18 +710,93 @@ public class SyncDelivery extends Delivery {
             afterDelivery(result, mMessageMoveConnection, mEndpoint, mMDB, true);
         }
         
+        /**
+         * Receives the first message of a transaction, and tells the concurrency 
+         * controller whether this endpoint had to wait for it (idle) or the message
+         * had been waiting for an endpoint (a backlog)
+         * 
+         * @return null if no message was received within the receive timeout
+         * @throws JMSException propagated
+         */
+        private Message receiveFirst() throws JMSException {
+            long t0 = System.nanoTime();
+            Message m = mCons.receive(mReceiveTimeout);
+            if (m == null || System.nanoTime() - t0 >= IMMEDIATE_RECEIVE) {
+                onIdle();
+            } else {
+                onSaturated();
+            }
+            return m;
+        }
+        
+        /**
+         * Receives the next message of a batch, i.e. not the first one: see BatchSizer
+         * 
+         * @param n number of messages in the batch so far
+         * @param first when the first message was received (System.nanoTime())
+         * @return null if the batch is complete
+         * @throws JMSException propagated
+         */
+        private Message receiveNextInBatch(int n, long first) throws JMSException {
+            if (!mBatchSizer.isAdaptive()) {
+                return mCons.receive(mBatchSizer.getMaxWait());
+            }
+            Message m = mCons.receiveNoWait();
+            if (m == null && n < mBatchSizer.getTarget()) {
+                long left = mBatchSizer.getMaxWait() - (System.nanoTime() - first) / 1000000L;
+                if (left > 0) {
+                    m = mCons.receive(left);
+                }
+            }
+            return m;
+        }
+        
+        /**
+         * Delivers the messages of a batch to an endpoint that implements 
+         * BatchMessageListener in one call
+         * 
+         * @param coord coordinator of the batch
+         * @param result state
+         * @param batch wrapped messages
+         * @throws Exception propagated
+         */
+        private void deliverBatch(Coordinator coord, DeliveryResults result, List<WMessageIn> batch) 
+            throws Exception {
+            List<Message> delivered = deliverToEndpoint(result, mMessageMoveConnection, mEndpoint, batch, true);
+            for (int i = 0; i < delivered.size(); i++) {
+                coord.msgDelivered(result.getOnMessageSucceeded());
+            }
+            coord.setRollbackOnly(result.getException());
+            if (result.getIsRollbackOnly()) {
+                coord.setRollbackOnly();
+            }
+        }
+        
         private void runOnceBatchXA(Coordinator coord) throws Exception {
-            // XA Mode
-            DeliveryResults lastResult = new DeliveryResults();
+            // XA Mode; the transaction is started once it is this lane's turn
+            DeliveryResults lastResult = getThreadResults();
+            takeTurn();
             beforeDelivery(lastResult, mEndpoint, true);
 
             Transaction tx = getTransaction(mHoldUntilAck);
 
+            int n = 0;
+            long first = 0;
+            List<WMessageIn> batch = mEndpoint.isBatchListener() ? new ArrayList<WMessageIn>(mBatchSize) : null;
             for (int i = 0; i < mBatchSize; i++) {
-                Message m = mCons.receive(i == 0 ? mReceiveTimeout : TIMEOUTBATCH);                
+                Message m = i == 0 ? receiveFirst() : receiveNextInBatch(i, first);
                 if (m == null) {
                     break;
                 } else {
+                    if (i == 0) {
+                        first = System.nanoTime();
+                    }
+                    n++;
+                    if (batch != null) {
+                        // Delivered below in one call
+                        batch.add(wrapMsg(m).setBatchSize(mBatchSize, mHoldUntilAck ? coord : null, i));
+                        continue;
+                    }
                     if (mHoldUntilAck) {
                         m = wrapMsg(m).setBatchSize(mBatchSize, coord, coord.getNMsgsDelivered());
                     }
@@ -636,17 +811,24 @@ public class SyncDelivery extends Delivery {
                     }
                 }
             }
+            if (batch != null && !batch.isEmpty()) {
+                lastResult.resetDeliveryState();
+                deliverBatch(coord, lastResult, batch);
+            }
+            yieldTurn();
                         
             if (coord.getNMsgsDelivered() > 0) {            
                 // Msgs were delivered; signal end of batch                
-                Message m = new EndOfBatchMessage();
-                if (mHoldUntilAck) {
-                    m = wrapMsg(m).setBatchSize(mBatchSize, coord, coord.getNMsgsDelivered());
+                if (batch == null) {
+                    Message m = new EndOfBatchMessage();
+                    if (mHoldUntilAck) {
+                        m = wrapMsg(m).setBatchSize(mBatchSize, coord, coord.getNMsgsDelivered());
+                    }
+                    lastResult.resetDeliveryState();
+                    deliverToEndpoint(lastResult, mMessageMoveConnection, mEndpoint, m, true);
+                    coord.msgDelivered(lastResult.getOnMessageSucceeded());
+                    coord.setRollbackOnly(lastResult.getException());
                 }
-                lastResult.resetDeliveryState();
-                deliverToEndpoint(lastResult, mMessageMoveConnection, mEndpoint, m, true);
-                coord.msgDelivered(lastResult.getOnMessageSucceeded());
-                coord.setRollbackOnly(lastResult.getException());
                 
                 // Wait until all msgs were acknowledged
                 if (mHoldUntilAck) {
@@ -675,22 +857,37 @@ public class SyncDelivery extends Delivery {
             }
 
             // End transaction
+            long t0 = System.nanoTime();
             afterDelivery(lastResult, mMessageMoveConnection, mEndpoint, mMDB, true);
+            mBatchSizer.onBatchCompleted(n, first, System.nanoTime() - t0);
         }
         
         private void runOnceBatchNoXA(Coordinator coord) throws Exception {
             // Transacted mode
 
             boolean msgsWereDelivered = false;
-            DeliveryResults lastResult = new DeliveryResults();
+            DeliveryResults lastResult = getThreadResults();
 
             // Read and deliver batch
+            int n = 0;
+            long first = 0;
+            List<WMessageIn> batch = mEndpoint.isBatchListener() ? new ArrayList<WMessageIn>(mBatchSize) : null;
+            takeTurn();
             for (int i = 0; i < mBatchSize; i++) {
-                Message m = mCons.receive(i == 0 ? mReceiveTimeout : TIMEOUTBATCH);
+                Message m = i == 0 ? receiveFirst() : receiveNextInBatch(i, first);
                 if (m == null) {
                     break;
                 } else {
+                    if (i == 0) {
+                        first = System.nanoTime();
+                    }
+                    n++;
                     msgsWereDelivered = true;
+                    if (batch != null) {
+                        // Delivered below in one call
+                        batch.add(wrapMsg(m).setBatchSize(mBatchSize, mHoldUntilAck ? coord : null, i));
+                        continue;
+                    }
                     if (mHoldUntilAck) {
                         m = wrapMsg(m).setBatchSize(mBatchSize, coord, coord.getNMsgsDelivered());
                     }
@@ -705,25 +902,34 @@ public class SyncDelivery extends Delivery {
                     }
                 }
             }
+            if (batch != null && !batch.isEmpty()) {
+                lastResult.reset();
+                deliverBatch(coord, lastResult, batch);
+            }
+            yieldTurn();
 
             // Commit/rollback and end-of-batch notification
             if (msgsWereDelivered) {
                 // Msgs were delivered; signal end of batch
-                Message m = new EndOfBatchMessage();
-                if (mHoldUntilAck) {
-                    m = wrapMsg(m).setBatchSize(mBatchSize, coord, coord.getNMsgsDelivered());
+                if (batch == null) {
+                    Message m = new EndOfBatchMessage();
+                    if (mHoldUntilAck) {
+                        m = wrapMsg(m).setBatchSize(mBatchSize, coord, coord.getNMsgsDelivered());
+                    }
+                    lastResult.reset();
+                    deliverToEndpoint(lastResult, mMessageMoveConnection, mEndpoint, m, true);
+                    coord.msgDelivered(lastResult.getOnMessageSucceeded());
+                    coord.setRollbackOnly(lastResult.getException());
                 }
-                lastResult.reset();
-                deliverToEndpoint(lastResult, mMessageMoveConnection, mEndpoint, m, true);
-                coord.msgDelivered(lastResult.getOnMessageSucceeded());
-                coord.setRollbackOnly(lastResult.getException());
                 
                 coord.waitForAcks();
                 
                 if (coord.isRollbackOnly()) {
                     lastResult.setRollbackOnly(true);
                 }
+                long t0 = System.nanoTime();
                 afterDeliveryNoXA(lastResult, mSess, mMessageMoveConnection, mEndpoint);
+                mBatchSizer.onBatchCompleted(n, first, System.nanoTime() - t0);
             }
             
             if (lastResult.getShouldDiscardEndpoint()) {
@@ -735,7 +941,8 @@ public class SyncDelivery extends Delivery {
             // Transacted mode
             
             // Receive
-            Message m = mCons.receive(mReceiveTimeout);
+            takeTurn();
+            Message m = receiveFirst();
             
             if (m != null) {
                 // Optionally wrap for ack() call
@@ -744,12 +951,13 @@ public class SyncDelivery extends Delivery {
                 }
                 
                 // Deliver
-                DeliveryResults result = new DeliveryResults(); 
+                DeliveryResults result = getThreadResults();
                 deliverToEndpoint(result, mMessageMoveConnection, mEndpoint, m, true);
 
                 // Increment counter if msg was delivered
                 coord.msgDelivered(result.getOnMessageSucceeded());
                 coord.setRollbackOnly(result.getException());
+                yieldTurn();
                 
                 // Wait for ack() to be called if applicable
                 coord.waitForAcks();
@@ -772,7 +980,6 @@ public class SyncDelivery extends Delivery {
          * 
          * @see java.lang.Runnable#run()
          */
-        @Override
         public void run() {
             mActivation.enterContext();
             
@@ -787,19 +994,37 @@ public class SyncDelivery extends Delivery {
                             + "possibly because the RA may be shutting down"));
                     }
                     
+                    // Wait until allowed to become active; the worker does not have a 
+                    // message yet, so this does not indicate a backlog
+                    if (mConcurrency != null && !mConcurrency.acquire(1000)) {
+                        synchronized (mIsStoppedLock) {
+                            if (mIsStopped) {
+                                break;
+                            }
+                        }
+                        continue;
+                    }
+                    
                     // Run single receive-onMessage() loop
                     Coordinator coord = newCoord();
-                    if (mXA != null) {
-                        if (mBatchSize > 1) {
-                            runOnceBatchXA(coord);
+                    try {
+                        if (mXA != null) {
+                            if (mBatchSize > 1) {
+                                runOnceBatchXA(coord);
+                            } else {
+                                runOnceStdXA(coord);
+                            }
                         } else {
-                            runOnceStdXA(coord);
+                            if (mBatchSize > 1) {
+                                runOnceBatchNoXA(coord);
+                            } else {
+                                runOnceStdNoXA(coord);
+                            }
                         }
-                    } else {
-                        if (mBatchSize > 1) {
-                            runOnceBatchNoXA(coord);
-                        } else {
-                            runOnceStdNoXA(coord);
+                    } finally {
+                        yieldTurn();
+                        if (mConcurrency != null) {
+                            mConcurrency.release();
                         }
                     }
                     
@@ -863,6 +1088,6 @@ public class SyncDelivery extends Delivery {
      */
     @Override
     public int getConfiguredEndpoints() {
-        return mNThreads;
+        return mPipelined ? mNThreads * 2 : mNThreads;
     }
 }
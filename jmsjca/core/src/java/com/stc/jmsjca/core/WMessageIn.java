@@ -24,6 +24,8 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A wrapper around a javax.jms.Message; this wrapper is given out to the 
@@ -108,6 +110,30 @@ public class WMessageIn implements Message, Unwrappable {
      */
     public static final String BATCHSIZE = "JMSJCA.batchSize";
     
+    // Dispatch table for getObjectProperty(): special names, including legacy names
+    private static final int PROP_IBATCH = 1;
+    private static final int PROP_BATCHSIZE = 2;
+    private static final int PROP_REDELIVERYCOUNT = 3;
+    private static final int PROP_MBEANSERVER = 4;
+    private static final int PROP_DELIVERYSTATS = 5;
+    private static final int PROP_INBOUND_DESTINATION = 6;
+    private static final Map<String, Integer> sObjectProperties = new HashMap<String, Integer>();
+    static {
+        addObjectProperty(IBATCH, PROP_IBATCH);
+        addObjectProperty(BATCHSIZE, PROP_BATCHSIZE);
+        addObjectProperty(Options.MessageProperties.REDELIVERYCOUNT, PROP_REDELIVERYCOUNT);
+        addObjectProperty(Options.MessageProperties.MBEANSERVER, PROP_MBEANSERVER);
+        addObjectProperty(Options.MessageProperties.DELIVERYSTATS, PROP_DELIVERYSTATS);
+        addObjectProperty(Options.MessageProperties.INBOUND_DESTINATION, PROP_INBOUND_DESTINATION);
+    }
+    
+    private static void addObjectProperty(String name, int code) {
+        sObjectProperties.put(name, Integer.valueOf(code));
+        if (name.startsWith(Options.MessageProperties.MSG_PROP_PREFIX)) {
+            sObjectProperties.put(Options.MessageProperties.OLDPREFIX + name, Integer.valueOf(code));
+        }
+    }
+    
     /**
      * Constructor
      * 
@@ -298,28 +324,65 @@ public class WMessageIn implements Message, Unwrappable {
      * @see javax.jms.Message#getObjectProperty(java.lang.String)
      */
     public Object getObjectProperty(String name) throws JMSException {
-        // Legacy key?
-        String original = name;
-        if (name.startsWith(Options.MessageProperties.OLDFULLPREFIX)) {
-            name = name.substring(Options.MessageProperties.OLDPREFIX.length());
+        // Fast path: all special names start with '_' or 'J', or 'j' (case insensitive)
+        if (!mayBeSpecial(name, true)) {
+            return mDelegate.getObjectProperty(name);
         }
-
-        if (mBatchAndHua && IBATCH.equalsIgnoreCase(name)) {
+        
+        Integer code = sObjectProperties.get(name);
+        int prop = code != null ? code.intValue() : getObjectPropertyIgnoreCase(name);
+        
+        if (mBatchAndHua && prop == PROP_IBATCH) {
             return Integer.valueOf(mIBatch);
-        } else if (mBatchAndHua && BATCHSIZE.equalsIgnoreCase(name)) {
+        } else if (mBatchAndHua && prop == PROP_BATCHSIZE) {
             return Integer.valueOf(mBatchSize);
-        } else if (mRedeliveryStateHandler != null 
-            && Options.MessageProperties.REDELIVERYCOUNT.equalsIgnoreCase(name)) {
+        } else if (mRedeliveryStateHandler != null && prop == PROP_REDELIVERYCOUNT) {
             return Integer.valueOf(mRedeliveryStateHandler.getRedeliveryCount());
-        } else if (Options.MessageProperties.MBEANSERVER.equals(name)) {
+        } else if (prop == PROP_MBEANSERVER) {
             return mActivation.getRA().getMBeanServer();
-        } else if (Options.MessageProperties.DELIVERYSTATS.equals(name)) {
+        } else if (prop == PROP_DELIVERYSTATS) {
             return mActivation.getStats().getDump();
-        } else if (Options.MessageProperties.INBOUND_DESTINATION.equals(name)) {
+        } else if (prop == PROP_INBOUND_DESTINATION) {
             return mActivation.getPublishedDestination();
         } else {
-            return mDelegate.getObjectProperty(original);
+            return mDelegate.getObjectProperty(name);
+        }
+    }
+    
+    /**
+     * Looks up the special object properties that are not case sensitive
+     * 
+     * @param name property name
+     * @return PROP_XXX or 0 if not special
+     */
+    private static int getObjectPropertyIgnoreCase(String name) {
+        // Legacy key?
+        if (name.startsWith(Options.MessageProperties.OLDFULLPREFIX)) {
+            name = name.substring(Options.MessageProperties.OLDPREFIX.length());
+        }
+        if (IBATCH.equalsIgnoreCase(name)) {
+            return PROP_IBATCH;
+        } else if (BATCHSIZE.equalsIgnoreCase(name)) {
+            return PROP_BATCHSIZE;
+        } else if (Options.MessageProperties.REDELIVERYCOUNT.equalsIgnoreCase(name)) {
+            return PROP_REDELIVERYCOUNT;
         }
+        return 0;
+    }
+    
+    /**
+     * Quick check to see if a property name could be a JMSJCA property
+     * 
+     * @param name property name
+     * @param ignoreCase true if a lower case j can be the start of a JMSJCA property
+     * @return false if it is certainly not a JMSJCA property
+     */
+    private static boolean mayBeSpecial(String name, boolean ignoreCase) {
+        if (name == null || name.length() == 0) {
+            return false;
+        }
+        char c = name.charAt(0);
+        return c == '_' || c == 'J' || (ignoreCase && c == 'j');
     }
 
     /**
@@ -340,6 +403,11 @@ public class WMessageIn implements Message, Unwrappable {
      * @see javax.jms.Message#getStringProperty(java.lang.String)
      */
     public String getStringProperty(String name) throws JMSException {
+        // Fast path: all special names start with _JMSJCA_ or JMS_Sun_JMSJCA_
+        if (!mayBeSpecial(name, false)) {
+            return mDelegate.getStringProperty(name);
+        }
+        
         String ret = null;
         // Is using new name?
         if (name.startsWith(Options.MessageProperties.MSG_PROP_PREFIX)) {
@@ -547,6 +615,13 @@ public class WMessageIn implements Message, Unwrappable {
         return this;
     }
 
+    /**
+     * @return true if the application set SETROLLBACKONLY on this message
+     */
+    public boolean isRollbackOnly() {
+        return mIsRollbackOnly;
+    }
+
     /**
      * Associates the redelivery state with this message wrapper
      * 
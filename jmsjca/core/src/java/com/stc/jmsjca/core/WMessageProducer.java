@@ -21,14 +21,13 @@ import com.stc.jmsjca.util.Exc;
 import com.stc.jmsjca.util.InterceptorChain;
 import com.stc.jmsjca.util.InterceptorUtil;
 
+import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * A wrapper around a javax.jms.MessageConsumer; this wrapper is given out to the
@@ -46,6 +45,7 @@ public class WMessageProducer implements MessageProducer {
     protected JProducer mMgr;
     private MessageProducer mDelegate;
     private InterceptorChain mInterceptorChain;
+    private AsyncSendPipeline mAsync;
     private static final Localizer LOCALE = Localizer.get();
 
     /**
@@ -58,6 +58,105 @@ public class WMessageProducer implements MessageProducer {
         mMgr = mgr;
         mDelegate = delegate;
         mInterceptorChain =  mMgr.getSession().getManagedConnection().getInterceptorChain();
+        mAsync = mMgr.getSession().getManagedConnection().getAsyncSendPipeline();
+    }
+
+    /**
+     * Queues a message for asynchronous sending if that applies (JMSJCA.asyncsend): 
+     * only non-persistent messages are sent asynchronously, and only if there are no
+     * interceptors. The message and destination should already be unwrapped.
+     *
+     * @param destination destination; null for the destination of the producer
+     * @param message message
+     * @param deliveryMode delivery mode
+     * @param priority priority
+     * @param timeToLive time to live
+     * @return true if queued, false if the message should be sent synchronously
+     * @throws JMSException if the message could not be queued
+     */
+    protected boolean sendAsync(Destination destination, Message message, int deliveryMode,
+        int priority, long timeToLive) throws JMSException {
+        if (mAsync == null || mInterceptorChain != null || deliveryMode != DeliveryMode.NON_PERSISTENT) {
+            return false;
+        }
+        if (destination == null) {
+            destination = mDelegate.getDestination();
+            if (destination == null) {
+                return false;
+            }
+        }
+        mAsync.send(destination, message, deliveryMode, priority, timeToLive, null);
+        mMgr.onSend();
+        return true;
+    }
+
+    /**
+     * Same as above, using the delivery mode, priority and time to live of the 
+     * producer
+     *
+     * @param destination destination; null for the destination of the producer
+     * @param message message
+     * @return true if queued, false if the message should be sent synchronously
+     * @throws JMSException if the message could not be queued
+     */
+    protected boolean sendAsync(Destination destination, Message message) throws JMSException {
+        if (mAsync == null) {
+            return false;
+        }
+        return sendAsync(destination, message, mDelegate.getDeliveryMode(), mDelegate.getPriority(),
+            mDelegate.getTimeToLive());
+    }
+
+    /**
+     * Sends a message asynchronously regardless of its delivery mode if asynchronous
+     * sending applies to this connection (JMSJCA.asyncsend, no interceptors), or
+     * synchronously otherwise. This method can be used by applications that need to 
+     * know the outcome of an asynchronous send, by casting the producer to this class.
+     *
+     * @param destination destination; null for the destination of the producer
+     * @param message message
+     * @param deliveryMode delivery mode
+     * @param priority priority
+     * @param timeToLive time to live
+     * @param listener optional; is notified of the outcome on the sending thread, or
+     *   before this method returns if the message was sent synchronously
+     * @return result
+     * @throws JMSException if the message could not be queued or sent
+     */
+    public AsyncSendPipeline.Result sendAsync(Destination destination, Message message, int deliveryMode,
+        int priority, long timeToLive, AsyncSendPipeline.Listener listener) throws JMSException {
+        if (mMgr == null) {
+            invokeOnClosed();
+        }
+        if (mAsync == null || mInterceptorChain != null) {
+            if (destination == null) {
+                send(message, deliveryMode, priority, timeToLive);
+            } else {
+                send(destination, message, deliveryMode, priority, timeToLive);
+            }
+            if (listener != null) {
+                listener.onCompletion(message);
+            }
+            return AsyncSendPipeline.Result.completed(message);
+        }
+        if (destination instanceof Unwrappable) {
+            destination = (Destination) ((Unwrappable) destination).getWrappedObject();
+        }
+        if (message instanceof Unwrappable) {
+            message = (Message) ((Unwrappable) message).getWrappedObject();
+        }
+        try {
+            if (destination == null) {
+                destination = mDelegate.getDestination();
+            }
+            AsyncSendPipeline.Result ret = mAsync.send(destination, message, deliveryMode, priority, 
+                timeToLive, listener);
+            mMgr.onSend();
+            return ret;
+        } catch (JMSException e) {
+            mMgr.exceptionOccurred(e);
+            throw e;
+        }
     }
 
     /**
@@ -293,11 +392,13 @@ public class WMessageProducer implements MessageProducer {
             if (message instanceof Unwrappable) {
                 message = (Message) ((Unwrappable) message).getWrappedObject();
             }
+            if (sendAsync(null, message)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.send(message);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, SEND1, contextData, message);
+                mInterceptorChain.invokeJMS(mDelegate, SEND1, null, message);
             }
             mMgr.onSend();
         } catch (JMSException e) {
@@ -327,11 +428,13 @@ public class WMessageProducer implements MessageProducer {
             if (message instanceof Unwrappable) {
                 message = (Message) ((Unwrappable) message).getWrappedObject();
             }
+            if (sendAsync(null, message, deliveryMode, priority, timeToLive)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.send(message, deliveryMode, priority, timeToLive);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, SEND4, contextData, message, deliveryMode, priority, timeToLive);
+                mInterceptorChain.invokeJMS(mDelegate, SEND4, null, message, deliveryMode, priority, timeToLive);
             }
             mMgr.onSend();
         } catch (JMSException e) {
@@ -361,11 +464,13 @@ public class WMessageProducer implements MessageProducer {
             message = (Message) ((Unwrappable) message).getWrappedObject();
         }
         try {
+            if (sendAsync(destination, message)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.send(destination, message);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, SEND2, contextData, destination, message);
+                mInterceptorChain.invokeJMS(mDelegate, SEND2, null, destination, message);
             }
             mMgr.onSend();
         } catch (JMSException e) {
@@ -399,11 +504,13 @@ public class WMessageProducer implements MessageProducer {
             message = (Message) ((Unwrappable) message).getWrappedObject();
         }
         try {
+            if (sendAsync(destination, message, deliveryMode, priority, timeToLive)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.send(destination, message, deliveryMode, priority, timeToLive);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, SEND5, contextData, destination
+                mInterceptorChain.invokeJMS(mDelegate, SEND5, null, destination
                     , message, deliveryMode, priority, timeToLive);
             }
             mMgr.onSend();
@@ -25,8 +25,6 @@ import javax.jms.Queue;
 import javax.jms.QueueSender;
 
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * A wrapper around a javax.jms.MessageConsumer; this wrapper is given out to the
@@ -108,11 +106,13 @@ public class WQueueSender extends WMessageProducer implements QueueSender {
             message = (Message) ((Unwrappable) message).getWrappedObject();
         }
         try {
+            if (sendAsync(queue, message)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.send(queue, message);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, SEND2, contextData, queue, message);
+                mInterceptorChain.invokeJMS(mDelegate, SEND2, null, queue, message);
             }
             mMgr.onSend();
         } catch (JMSException e) {
@@ -149,11 +149,13 @@ public class WQueueSender extends WMessageProducer implements QueueSender {
             message = (Message) ((Unwrappable) message).getWrappedObject();
         }
         try {
+            if (sendAsync(queue, message, int2, int3, long4)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.send(queue, message, int2, int3, long4);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, SEND5, contextData, queue, message, int2, int3, long4);
+                mInterceptorChain.invokeJMS(mDelegate, SEND5, null, queue, message, int2, int3, long4);
             }
             mMgr.onSend();
         } catch (JMSException e) {
@@ -25,8 +25,6 @@ import javax.jms.Topic;
 import javax.jms.TopicPublisher;
 
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * See WProducer
@@ -97,11 +95,13 @@ public class WTopicPublisher extends WMessageProducer implements TopicPublisher
             if (message instanceof Unwrappable) {
                 message = (Message) ((Unwrappable) message).getWrappedObject();
             }
+            if (sendAsync(null, message)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.publish(message);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, PUBLISH1, contextData, message);
+                mInterceptorChain.invokeJMS(mDelegate, PUBLISH1, null, message);
             }
             mMgr.onSend();
         } catch (JMSException e) {
@@ -131,11 +131,13 @@ public class WTopicPublisher extends WMessageProducer implements TopicPublisher
             if (message instanceof Unwrappable) {
                 message = (Message) ((Unwrappable) message).getWrappedObject();
             }
+            if (sendAsync(null, message, int1, int2, long3)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.publish(message, int1, int2, long3);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, PUBLISH4, contextData, message, int1, int2, long3);
+                mInterceptorChain.invokeJMS(mDelegate, PUBLISH4, null, message, int1, int2, long3);
             }
         } catch (JMSException e) {
             mMgr.exceptionOccurred(e);
@@ -167,11 +169,13 @@ public class WTopicPublisher extends WMessageProducer implements TopicPublisher
             if (message instanceof Unwrappable) {
                 message = (Message) ((Unwrappable) message).getWrappedObject();
             }
+            if (sendAsync(topic, message)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.publish(topic, message);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, PUBLISH2, contextData, topic, message);
+                mInterceptorChain.invokeJMS(mDelegate, PUBLISH2, null, topic, message);
             }
             mMgr.onSend();
         } catch (JMSException e) {
@@ -207,11 +211,13 @@ public class WTopicPublisher extends WMessageProducer implements TopicPublisher
             message = (Message) ((Unwrappable) message).getWrappedObject();
         }
         try {
+            if (sendAsync(topic, message, int2, int3, long4)) {
+                return;
+            }
             if (mInterceptorChain == null) {
                 mDelegate.publish(topic, message, int2, int3, long4);
             } else {
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                mInterceptorChain.invokeJMS(mDelegate, PUBLISH5, contextData, topic, message, int2, int3, long4);
+                mInterceptorChain.invokeJMS(mDelegate, PUBLISH5, null, topic, message, int2, int3, long4);
             }
             mMgr.onSend();
         } catch (JMSException e) {
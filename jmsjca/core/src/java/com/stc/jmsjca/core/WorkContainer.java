@@ -20,7 +20,6 @@ import com.stc.jmsjca.core.Delivery.ConnectionForMove;
 import com.stc.jmsjca.localization.Localizer;
 import com.stc.jmsjca.util.Exc;
 import com.stc.jmsjca.util.Logger;
-import com.stc.jmsjca.util.Semaphore;
 
 import javax.jms.Connection;
 import javax.jms.JMSException;
@@ -249,6 +248,7 @@ public class WorkContainer implements javax.resource.spi.work.Work,
                 mEndpoint = null;
             }
             mDelivery.workDone(this);
+            mDelivery.releaseContext();
             mDelivery.mActivation.exitContext();
         }
     }
@@ -300,7 +300,11 @@ public class WorkContainer implements javax.resource.spi.work.Work,
         }
         
         // Deliver messages
-        for (int i = 0, n = mMsgs.size(); i < n; i++) {
+        boolean asBatch = mDelivery.mBatchSize > 1 && mEndpoint.isBatchListener();
+        if (asBatch) {
+            deliverBatch(sc);
+        }
+        for (int i = 0, n = asBatch ? 0 : mMsgs.size(); i < n; i++) {
             Message message = mMsgs.get(i);
             if (mDelivery.mHoldUntilAck) {
                 message = wrapMsg(message, sc, mResult.getNOnMessageWasCalled(), mResult);
@@ -313,7 +317,7 @@ public class WorkContainer implements javax.resource.spi.work.Work,
         }
         
         // Deliver end of batch message
-        if (mDelivery.mBatchSize > 1 &&  mResult.getNOnMessageWasCalled() > 0) {
+        if (mDelivery.mBatchSize > 1 && !asBatch && mResult.getNOnMessageWasCalled() > 0) {
             // Msgs were delivered; signal end of batch
             Message m = new EndOfBatchMessage();
             if (mDelivery.mHoldUntilAck) {
@@ -340,6 +344,30 @@ public class WorkContainer implements javax.resource.spi.work.Work,
         }
     }
     
+    /**
+     * Delivers all messages in one call to an endpoint that implements 
+     * BatchMessageListener
+     * 
+     * @param sc ack handler for HUA
+     * @throws Exception propagated
+     */
+    private void deliverBatch(SC sc) throws Exception {
+        List<WMessageIn> batch = new ArrayList<WMessageIn>(mMsgs.size());
+        try {
+            for (int i = 0, n = mMsgs.size(); i < n; i++) {
+                batch.add(mDelivery.wrapMsg(mMsgs.get(i)).setBatchSize(mDelivery.mBatchSize, 
+                    mDelivery.mHoldUntilAck ? sc : null, i));
+            }
+        } catch (Exception e) {
+            mResult.setRollbackOnly(true);
+            mResult.setException(e);
+            mDelivery.mActivation.distress(e);
+            return;
+        }
+        mResult.resetDeliveryState();
+        mDelivery.deliverToEndpoint(mResult, mMessageMoveConnection, mEndpoint, batch, false);
+    }
+    
     /**
      * @param msgToWrap msg to wrap
      * @param ack ack handler
@@ -359,23 +387,16 @@ public class WorkContainer implements javax.resource.spi.work.Work,
     }
     
     private class SC extends AckHandler {
-        private int mAcksExpected;
-        private int mAcksReceived;
-        private boolean mIsRollbackOnly;
+        private volatile boolean mIsRollbackOnly;
 //        private Transaction mTx;
-        private Semaphore mSemaphore = new Semaphore(0);
+        private final AckWaiter mAcks = new AckWaiter();
 
         @Override
-        public synchronized void ack(boolean isRollbackOnly, Message m) throws JMSException {
+        public void ack(boolean isRollbackOnly, Message m) throws JMSException {
             if (isRollbackOnly) {
                 mIsRollbackOnly = true;
             }
-
-            mAcksReceived++;
-
-            if (mAcksReceived == mAcksExpected) {
-                mSemaphore.release();
-            }
+            mAcks.ack();
         }
         
         public void waitForAck(int acksExpected) {
@@ -383,15 +404,12 @@ public class WorkContainer implements javax.resource.spi.work.Work,
 //                mTx = mDelivery.getTransaction(true);
 //            }
 
-            synchronized (this) {
-                mAcksExpected = acksExpected;
-                if (mAcksReceived == mAcksExpected) {
-                    mSemaphore.release();
-                }
-            }
-            
+            mAcks.expect(acksExpected);
             try {
-                mSemaphore.acquire();
+                if (!mDelivery.awaitAcks(mAcks)) {
+                    // Stopping
+                    mIsRollbackOnly = true;
+                }
             } catch (InterruptedException e) {
                 sLog.error(LOCALE.x("E099: HUA was interrupted"));
                 Thread.interrupted();
@@ -0,0 +1,782 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.core;
+
+import com.stc.jmsjca.localization.Localizer;
+import com.stc.jmsjca.util.Exc;
+import com.stc.jmsjca.util.Logger;
+
+import javax.resource.ResourceException;
+import javax.resource.spi.ConnectionRequestInfo;
+import javax.resource.spi.ManagedConnection;
+import javax.resource.spi.ManagedConnectionFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>A connection manager with the same features and configuration as the
+ * XDefaultConnectionManager, but that does not serialize connection allocation and
+ * release on a monitor. It is selected with JMSJCA.poolengine=concurrent.</p>
+ *
+ * <pre>
+ * - Permits are handed out by a fair java.util.concurrent.Semaphore; threads that
+ *   wait for a connection are served in FIFO order, with the JMSJCA.pooltimeout
+ *   as before.
+ * - Idle connections are kept on lock-free (Treiber) stacks, one per ConnectionKey,
+ *   so that a request only looks at connections that match it; any connection on the
+ *   stack for the key of a request can be used. Each node holds the
+ *   connection in an atomic reference: a connection is claimed by CAS-ing the
+ *   reference to null, so that any node in the stack can be claimed without
+ *   unlinking it first. Claimed nodes are unlinked lazily.
+ * - A thread first tries to reclaim the connection it released last (thread
+ *   affinity); this is typically a hit for a thread that sends repeatedly.
+ * - The number of created connections is kept in an atomic counter that is
+ *   incremented before a connection is created, so that JMSJCA.poolmaxsize is never
+ *   exceeded.
+ * </pre>
+ *
+ * The invariant is the same as in the XDefaultConnectionManager: the number of
+ * available permits equals the number of idle connections plus the number of
+ * connections that can still be created. An idle connection is always pushed
+ * before its permit is released, and a slot is always freed before its permit is
+ * released, so that a thread that acquired a permit will always find either an idle
+ * connection or a free slot.
+ *
+ * Transaction related behavior (reuse of connections enlisted in the same
+ * transaction) is inherited from the XDefaultConnectionManager.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class XConcurrentConnectionManager extends XDefaultConnectionManager {
+    private static Logger sLog = Logger.getLogger(XConcurrentConnectionManager.class);
+    private static final Localizer LOCALE = Localizer.get();
+
+    /**
+     * Number of times an allocation is retried when neither an idle connection nor
+     * a free slot could be found due to concurrent activity
+     */
+    private static final int MAX_RETRIES = 100;
+
+    private Semaphore mPermits;
+    private final AtomicInteger mWaiters = new AtomicInteger();
+    private final AtomicInteger mPoolSize = new AtomicInteger();
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+    private final ConcurrentHashMap<ConnectionKey, StackPartition> mPartitions
+        = new ConcurrentHashMap<ConnectionKey, StackPartition>();
+    private final StackPartition mUnkeyed = new StackPartition(null);
+
+    /**
+     * The node last released by each thread; held weakly so that a thread that
+     * outlives the pool does not keep the idle connections, the pool and the RA
+     * classes reachable. Replaced by stop() to drop the entries of all threads.
+     */
+    private volatile ThreadLocal<WeakReference<IdleNode>> mAffinity = new ThreadLocal<WeakReference<IdleNode>>();
+
+    /**
+     * A node in an idle stack
+     */
+    private static final class IdleNode {
+        private final AtomicReference<ManagedConnection> mMC;
+        private final StackPartition mPartition;
+        private volatile IdleNode mNext;
+
+        public IdleNode(ManagedConnection mc, StackPartition partition) {
+            mMC = new AtomicReference<ManagedConnection>(mc);
+            mPartition = partition;
+        }
+    }
+
+    /**
+     * The idle stack for one key; connections that are not XManagedConnections are
+     * kept in a separate partition without a key
+     */
+    private static final class StackPartition extends PoolPartition {
+        private final AtomicReference<IdleNode> mHead = new AtomicReference<IdleNode>();
+
+        public StackPartition(ConnectionKey key) {
+            super(key);
+        }
+    }
+
+    /**
+     * Determines if an idle connection can be used
+     */
+    private interface Matcher {
+        boolean matches(ManagedConnection mc) throws ResourceException;
+    }
+
+    private static final Matcher ANY = new Matcher() {
+        public boolean matches(ManagedConnection mc) {
+            return true;
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param managedConnectionFactory mcf
+     */
+    public XConcurrentConnectionManager(XManagedConnectionFactory managedConnectionFactory) {
+        super(managedConnectionFactory);
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#initPool()
+     */
+    @Override
+    protected void initPool() {
+        mPermits = new Semaphore(getMaxSize(), true);
+    }
+
+    /**
+     * Pushes a connection on the idle stack
+     *
+     * @param mc connection
+     * @return node
+     */
+    private IdleNode push(ManagedConnection mc) {
+        ConnectionKey key = getKey(mc);
+        StackPartition p = key == null ? mUnkeyed : getPartition(key);
+        IdleNode node = new IdleNode(mc, p);
+        for (;;) {
+            IdleNode head = p.mHead.get();
+            node.mNext = head;
+            if (p.mHead.compareAndSet(head, node)) {
+                mIdleCount.incrementAndGet();
+                p.onIdle(1);
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Tries to take the connection out of the specified node
+     *
+     * @return connection or null if the node was already claimed or doesn't match
+     */
+    private ManagedConnection claim(IdleNode node, Matcher m) throws ResourceException {
+        ManagedConnection mc = node.mMC.get();
+        if (mc != null && m.matches(mc) && node.mMC.compareAndSet(mc, null)) {
+            mIdleCount.decrementAndGet();
+            node.mPartition.onIdle(-1);
+            return mc;
+        }
+        return null;
+    }
+
+    /**
+     * @return the key of the partition for the specified connection, or null if the 
+     *   connection was not created by the RA's own connection factory
+     */
+    private ConnectionKey getKey(ManagedConnection mc) {
+        if (mc instanceof XManagedConnection && ((XManagedConnection) mc).getManagedConnectionFactory() == getMCF()) {
+            return ((XManagedConnection) mc).getConnectionKey();
+        }
+        return null;
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#isPartitionFull(
+     *   javax.resource.spi.ManagedConnection)
+     */
+    @Override
+    protected boolean isPartitionFull(ManagedConnection mc) {
+        ConnectionKey key = getKey(mc);
+        if (getMaxIdlePerKey() <= 0 || key == null) {
+            return false;
+        }
+        StackPartition p = mPartitions.get(key);
+        return p != null && p.getIdleCount() >= getMaxIdlePerKey();
+    }
+
+    /**
+     * Returns the partition for the specified key; creates one if necessary
+     */
+    private StackPartition getPartition(ConnectionKey key) {
+        StackPartition ret = mPartitions.get(key);
+        if (ret == null) {
+            StackPartition p = new StackPartition(key);
+            ret = mPartitions.putIfAbsent(key, p);
+            if (ret == null) {
+                ret = p;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Finds and claims a matching idle connection in any partition; tries the 
+     * connection last released by this thread first.
+     *
+     * @param m matcher
+     * @return connection or null if none found
+     */
+    private ManagedConnection claimIdle(Matcher m) throws ResourceException {
+        ManagedConnection ret = claimAffinity(null, m);
+        if (ret == null) {
+            ret = scan(mUnkeyed, m);
+        }
+        for (Iterator<StackPartition> iter = mPartitions.values().iterator(); ret == null && iter.hasNext();/*-*/) {
+            ret = scan(iter.next(), m);
+        }
+        return ret;
+    }
+
+    /**
+     * Finds and claims a matching idle connection in the specified partition; tries 
+     * the connection last released by this thread first.
+     *
+     * @param p partition
+     * @param m matcher
+     * @return connection or null if none found
+     */
+    private ManagedConnection claimIdle(StackPartition p, Matcher m) throws ResourceException {
+        ManagedConnection ret = claimAffinity(p, m);
+        if (ret == null) {
+            ret = scan(p, m);
+        }
+        return ret;
+    }
+
+    /**
+     * Tries to claim the connection that was last released by this thread
+     *
+     * @param p partition the connection should be in; null for any
+     */
+    private ManagedConnection claimAffinity(StackPartition p, Matcher m) throws ResourceException {
+        ThreadLocal<WeakReference<IdleNode>> affinity = mAffinity;
+        WeakReference<IdleNode> ref = affinity.get();
+        if (ref != null) {
+            affinity.remove();
+            IdleNode last = ref.get();
+            if (last != null && (p == null || last.mPartition == p)) {
+                return claim(last, m);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scans the stack of a partition; unlinks claimed nodes on the fly
+     */
+    private ManagedConnection scan(StackPartition p, Matcher m) throws ResourceException {
+        ManagedConnection ret = null;
+        IdleNode prev = null;
+        for (IdleNode node = p.mHead.get(); ret == null && node != null; node = node.mNext) {
+            ret = claim(node, m);
+            if (ret == null && node.mMC.get() == null && prev != null) {
+                // Only ever skips claimed nodes, and claimed nodes never come back to
+                // life, so this cannot lose an idle connection
+                prev.mNext = node.mNext;
+            } else {
+                prev = node;
+            }
+        }
+
+        trimHead(p);
+        return ret;
+    }
+
+    /**
+     * Unlinks claimed nodes from the top of the stack
+     */
+    private void trimHead(StackPartition p) {
+        for (;;) {
+            IdleNode head = p.mHead.get();
+            if (head == null || head.mMC.get() != null) {
+                break;
+            }
+            p.mHead.compareAndSet(head, head.mNext);
+        }
+    }
+
+    /**
+     * Claims an idle connection that can be destroyed to make room for a connection
+     * for a different partition: a connection from the partition with the most idle
+     * connections is preferred, so that one partition cannot hold on to all
+     * connections.
+     *
+     * @return connection or null if none found
+     */
+    private ManagedConnection claimVictim() throws ResourceException {
+        StackPartition largest = null;
+        for (StackPartition p : mPartitions.values()) {
+            if (largest == null || p.getIdleCount() > largest.getIdleCount()) {
+                largest = p;
+            }
+        }
+        ManagedConnection ret = null;
+        if (largest != null) {
+            ret = scan(largest, ANY);
+        }
+        if (ret == null) {
+            ret = claimIdle(ANY);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the partition in which connections for the specified request can be 
+     * found, or null if the request is not for connections of this RA
+     */
+    private StackPartition getPartition(ManagedConnectionFactory mcf,
+        ConnectionRequestInfo descr) throws ResourceException {
+        if (mcf == getMCF() && descr instanceof XConnectionRequestInfo) {
+            return getPartition(getMCF().createConnectionKey((XConnectionRequestInfo) descr, getSubject()));
+        }
+        return null;
+    }
+
+    /**
+     * Creates a matcher for a request that is not for the RA's own connections
+     */
+    private Matcher createMatcher(final ManagedConnectionFactory mcf,
+        final ConnectionRequestInfo descr) {
+        return new Matcher() {
+            public boolean matches(ManagedConnection mc) throws ResourceException {
+                return mcf.matchManagedConnections(Collections.singleton(mc), getSubject(), descr) != null;
+            }
+        };
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#allocateFromPool(
+     *   javax.resource.spi.ManagedConnectionFactory, javax.resource.spi.ConnectionRequestInfo)
+     */
+    @Override
+    protected Object allocateFromPool(ManagedConnectionFactory mcf,
+        ConnectionRequestInfo descr) throws ResourceException {
+        // OBTAIN PERMIT
+        boolean acquired;
+        mWaiters.incrementAndGet();
+        try {
+            if (isStopped()) {
+                throw Exc.rsrcExc(LOCALE.x("E159: Resource adapter was stopped"));
+            }
+            acquired = mPermits.tryAcquire(getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw Exc.rsrcExc(LOCALE.x("Interrupted"));
+        } finally {
+            mWaiters.decrementAndGet();
+        }
+
+        // TIMEOUT
+        if (!acquired) {
+            throw Exc.rsrcExc(LOCALE.x("E158: Connection could not be acquired in the "
+                + "configured time of {0} ms; {1} connections are in use", Integer.toString(getTimeout())
+                , Integer.toString(getMaxSize())));
+        }
+
+        // OBTAIN CONNECTION
+        try {
+            return obtainConnection(mcf, descr);
+        } catch (ResourceException e) {
+            // Permit was acquired but not used
+            mPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a slot for a new connection if the pool has not reached its maximum
+     *
+     * @return true if a slot was taken
+     */
+    private boolean tryGrow() {
+        for (;;) {
+            int n = mPoolSize.get();
+            if (n >= getMaxSize()) {
+                return false;
+            }
+            if (mPoolSize.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Destroys a connection; does not touch the pool size or the permits
+     */
+    private void destroyQuietly(ManagedConnection mc) {
+        getStats().onDestroyed();
+        unregisterConnection(mc);
+        try {
+            mc.destroy();
+        } catch (Exception ex) {
+            sLog.error(LOCALE.x("E069: Unexpected exception when destroying a connection "
+                + "(connection={0}): {1}", mc, ex), ex);
+        }
+    }
+
+    /**
+     * Creates a connection for which a slot was already taken; frees the slot on
+     * failure
+     */
+    private ManagedConnection create(ManagedConnectionFactory mcf,
+        ConnectionRequestInfo descr) throws ResourceException {
+        getStats().onMiss();
+        try {
+            ManagedConnection mc = mcf.createManagedConnection(getSubject(), descr);
+            getStats().onCreated();
+            registerConnection(mc);
+            return mc;
+        } catch (ResourceException e) {
+            mPoolSize.decrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            mPoolSize.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a valid connection or throws an exception; a permit must have been
+     * acquired.
+     */
+    private Object obtainConnection(ManagedConnectionFactory mcf,
+        ConnectionRequestInfo descr) throws ResourceException {
+        if (sLog.isDebugEnabled()) {
+            sLog.debug("Allocating connection using " + mcf + "; request=" + descr);
+        }
+
+        // Any connection in the partition of the request is a match
+        StackPartition partition = getPartition(mcf, descr);
+        Matcher matcher = partition != null ? ANY : createMatcher(mcf, descr);
+        ManagedConnection mc = null;
+        for (int i = 0; mc == null; i++) {
+            if (isStopped()) {
+                throw Exc.rsrcExc(LOCALE.x("E161: RA is stopped"));
+            }
+
+            // Try to reuse from idle pool
+            mc = partition != null ? claimIdle(partition, matcher) : claimIdle(matcher);
+            if (partition != null && i == 0) {
+                if (mc != null) {
+                    partition.onHit();
+                } else {
+                    partition.onMiss();
+                }
+            }
+            if (mc != null) {
+                if (isInvalid(mcf, mc)) {
+                    destroyQuietly(mc);
+                    mPoolSize.decrementAndGet();
+                    mc = null;
+                } else {
+                    getStats().onHit();
+                    break;
+                }
+            }
+
+            // Can the pool grow?
+            if (tryGrow()) {
+                mc = create(mcf, descr);
+                break;
+            }
+
+            // Sacrifice an idle connection (its slot is reused)
+            ManagedConnection victim = claimVictim();
+            if (victim != null) {
+                destroyQuietly(victim);
+                mc = create(mcf, descr);
+                break;
+            }
+
+            // A connection is in transit between threads
+            if (i > MAX_RETRIES) {
+                throw Exc.rsrcExc(LOCALE.x("E162: Logic exception (current pool size={0}; semaphore={1})"
+                    , Integer.toString(mPoolSize.get()), Long.toString(mPermits.availablePermits())));
+            }
+            Thread.yield();
+        }
+
+        try {
+            return enlistAndGetHandle(mc, descr);
+        } catch (Exception e) {
+            destroyQuietly(mc);
+            mPoolSize.decrementAndGet();
+            throw Exc.rsrcExc(LOCALE.x("E073: Could not allocate connection: {0}", e), e);
+        }
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#returnToPool(
+     *   javax.resource.spi.ManagedConnection)
+     */
+    @Override
+    protected void returnToPool(ManagedConnection mc) {
+        if (isStopped() || isPartitionFull(mc)) {
+            destroyAndAdjust(mc);
+            return;
+        }
+
+        IdleNode node = push(mc);
+
+        // Did stop() drain the pool before the push was visible?
+        if (isStopped() && claim(node)) {
+            destroyAndAdjust(mc);
+            return;
+        }
+
+        mAffinity.set(new WeakReference<IdleNode>(node));
+        mPermits.release();
+    }
+
+    private boolean claim(IdleNode node) {
+        try {
+            return claim(node, ANY) != null;
+        } catch (ResourceException e) {
+            // Cannot happen with ANY
+            return false;
+        }
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#destroyAndAdjust(
+     *   javax.resource.spi.ManagedConnection)
+     */
+    @Override
+    protected void destroyAndAdjust(ManagedConnection mc) {
+        getStats().onDestroyed();
+        try {
+            mc.destroy();
+        } catch (Exception ex) {
+            sLog.error(LOCALE.x("E074: Unexpected exception destroying a connection: {0}", ex), ex);
+        }
+        unregisterConnection(mc);
+        mPoolSize.decrementAndGet();
+        if (mPermits != null) {
+            mPermits.release();
+        }
+    }
+
+    /**
+     * Claims all idle connections
+     *
+     * @return number of connections destroyed
+     */
+    private int destroyIdle(boolean onlyInvalid) {
+        int n = destroyIdle(mUnkeyed, onlyInvalid);
+        for (StackPartition p : mPartitions.values()) {
+            n += destroyIdle(p, onlyInvalid);
+        }
+        return n;
+    }
+
+    private int destroyIdle(StackPartition p, boolean onlyInvalid) {
+        int n = 0;
+        for (IdleNode node = p.mHead.get(); node != null; node = node.mNext) {
+            ManagedConnection mc = node.mMC.get();
+            if (mc == null) {
+                continue;
+            }
+            if (onlyInvalid && !(mc instanceof XManagedConnection && ((XManagedConnection) mc).isInvalid())) {
+                continue;
+            }
+            // The permit of an idle connection is taken first, as in takeIdle();
+            // destroyAndAdjust() releases it together with the slot
+            if (mPermits == null || !mPermits.tryAcquire()) {
+                break;
+            }
+            if (claim(node)) {
+                destroyAndAdjust(mc);
+                n++;
+            } else {
+                mPermits.release();
+            }
+        }
+        trimHead(p);
+        return n;
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#stop()
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        mAffinity = new ThreadLocal<WeakReference<IdleNode>>();
+        destroyIdle(false);
+
+        // Wake up waiters; they will find the stopped state
+        if (mPermits != null) {
+            mPermits.release(mWaiters.get());
+        }
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#takeIdle(java.util.Map)
+     */
+    @Override
+    protected ManagedConnection takeIdle(final Map<ManagedConnection, Object> exclude) {
+        if (isStopped() || !mPermits.tryAcquire()) {
+            return null;
+        }
+        ManagedConnection ret = null;
+        try {
+            ret = claimIdle(new Matcher() {
+                public boolean matches(ManagedConnection mc) {
+                    return !exclude.containsKey(mc);
+                }
+            });
+        } catch (ResourceException e) {
+            // Cannot happen with this matcher
+        }
+        if (ret == null) {
+            mPermits.release();
+        }
+        return ret;
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#reserveSlot(int)
+     */
+    @Override
+    protected boolean reserveSlot(int limit) {
+        if (isStopped() || !mPermits.tryAcquire()) {
+            return false;
+        }
+        for (;;) {
+            int n = mPoolSize.get();
+            if (n >= limit) {
+                mPermits.release();
+                return false;
+            }
+            if (mPoolSize.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#releaseSlot()
+     */
+    @Override
+    protected void releaseSlot() {
+        mPoolSize.decrementAndGet();
+        mPermits.release();
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#getIdleCount()
+     */
+    @Override
+    public int getIdleCount() {
+        return mIdleCount.get();
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#getPartitions()
+     */
+    @Override
+    public Collection<PoolPartition> getPartitions() {
+        return new ArrayList<PoolPartition>(mPartitions.values());
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#getPoolSize()
+     */
+    @Override
+    public int getPoolSize() {
+        return mPoolSize.get();
+    }
+
+    ///// TEST METHODS ///////////////////////////////////////////////////////////////////
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#testAddToPool(
+     *   javax.resource.spi.ManagedConnection)
+     */
+    @Override
+    public void testAddToPool(ManagedConnection mc) {
+        push(mc);
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#testIdleConsistency()
+     */
+    @Override
+    public void testIdleConsistency() {
+        if (mPermits.availablePermits() != mIdleCount.get() + (getMaxSize() - mPoolSize.get())) {
+            throw Exc.rtexc(LOCALE.x("E163: Inconsistent: semaphore={0}, idle={1}, max={2}, all={3}"
+                , Long.toString(mPermits.availablePermits()), Integer.toString(mIdleCount.get())
+                , Integer.toString(getMaxSize()), Integer.toString(mPoolSize.get())));
+        }
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#testConsistency()
+     */
+    @Override
+    public void testConsistency() {
+        if (isStopped()) {
+            return;
+        }
+        init();
+        if (mPermits.availablePermits() > getMaxSize() || mPoolSize.get() > getMaxSize()) {
+            throw Exc.rtexc(LOCALE.x("E163: Inconsistent: semaphore={0}, idle={1}, max={2}, all={3}"
+                , Long.toString(mPermits.availablePermits()), Integer.toString(mIdleCount.get())
+                , Integer.toString(getMaxSize()), Integer.toString(mPoolSize.get())));
+        }
+    }
+
+    /**
+     * Destroys all idle connections; for testing
+     *
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#clear()
+     */
+    @Override
+    public void clear() throws ResourceException {
+        testConsistency();
+        destroyIdle(false);
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#clearAll()
+     */
+    @Override
+    public void clearAll() throws ResourceException {
+        super.clearAll();
+        mPartitions.clear();
+        mUnkeyed.mHead.set(null);
+        mIdleCount.set(0);
+        mPoolSize.set(0);
+        if (mPermits != null) {
+            mPermits.drainPermits();
+            mPermits.release(getMaxSize());
+        }
+    }
+
+    /**
+     * @see com.stc.jmsjca.core.XDefaultConnectionManager#cleanInvalid()
+     */
+    @Override
+    public void cleanInvalid() throws ResourceException {
+        destroyIdle(true);
+    }
+}
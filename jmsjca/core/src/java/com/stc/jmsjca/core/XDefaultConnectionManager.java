@@ -21,7 +21,6 @@ import com.stc.jmsjca.util.Exc;
 import com.stc.jmsjca.util.FIFOSemaphore;
 import com.stc.jmsjca.util.Logger;
 import com.stc.jmsjca.util.Semaphore;
-import com.stc.jmsjca.util.Utility;
 
 import javax.resource.ResourceException;
 import javax.resource.spi.ConnectionEvent;
@@ -37,13 +36,19 @@ import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAResource;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <p>This manages connection in a managed or non-managed environment, e.g. in the 
@@ -56,6 +61,9 @@ import java.util.Set;
  * - steady size, minimum size, maximum size
  * connection validity
  * - periodically checks for failed connections
+ * maintenance (see runMaintenance()), starting shortly after the pool is created
+ * - creates connections up to the minimum size ahead of demand
+ * - destroys idle connections that have become invalid or stale (JMSJCA.idletimeout)
  * transaction enlistment 
  * - enlists in transaction if one is present
  * - keeps an enlisted connection open
@@ -158,6 +166,23 @@ import java.util.Set;
  * With counts being kept in separate places (the semaphore, maps), the implementation is
  * tricky: extreme care must be taken that all variables remain their consistency.
  * 
+ * Transaction scoped reuse (case 3 to 5) has a fast path for the typical case of a 
+ * thread that repeatedly obtains a connection, sends and closes the connection in one
+ * transaction: the first time the connection is closed in the transaction, it is 
+ * parked in a slot that is bound to the thread and the transaction (TxSlot) rather 
+ * than in the txidle pool. Subsequent requests from that thread in that transaction 
+ * take the connection from the slot, and close puts it back, without any locking. 
+ * The TxDeferredRelease clears the slot when the transaction completes; it may run on
+ * a different thread, so the connection in the slot is claimed with a CAS. If it runs 
+ * on the thread that owns the slot, it also removes the slot from the thread; 
+ * otherwise the emptied slot is removed the next time the thread uses the pool.
+ * 
+ * The idle connections of the RA's own connection factory are also kept in partitions
+ * by ConnectionKey. Connections with equal keys are interchangeable, so a request is 
+ * served by looking up the partition of its key rather than by offering the idle 
+ * connections to matchManagedConnections(). The number of idle connections in a 
+ * partition can be limited (JMSJCA.poolmaxidleperkey).
+ * 
  * </pre>
  *
  * @author Frank Kieviet
@@ -188,21 +213,133 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
     private Map<ManagedConnection, Object> mIdle 
     = Collections.synchronizedMap(new IdentityHashMap<ManagedConnection, Object>());  
 
+    // The idle connections of mIdle partitioned by ConnectionKey; guarded by this;
+    // connections that were not created by mFact are only in mIdle
+    private Map<ConnectionKey, IdlePartition> mPartitions = new HashMap<ConnectionKey, IdlePartition>();
+
     // key=Transaction, value=Set of managedconnection
     private Map<Transaction, Set<ManagedConnection>> mIdleEnlisted 
     = Collections.synchronizedMap(new IdentityHashMap<Transaction, Set<ManagedConnection>>()); 
     
+    // The connection that the current thread parked in its current transaction
+    private final ThreadLocal<TxSlot> mTxSlot = new ThreadLocal<TxSlot>();
+    
     private Subject mTestSubject; // for testing purposes
     private XManagedConnectionFactory mFact;
-    private int mMaxSize = 32;
+    private int mMaxSize = OutboundConfig.DEFAULT_POOL_MAXSIZE;
     private int mMinSize;
-    private int mTimeout = -1;
-    private boolean mIsInitialized;
-    private boolean mStopped;
+    private int mMaxIdlePerKey;
+    private int mTimeout;
+    private volatile boolean mIsInitialized;
+    private volatile boolean mStopped;
     private boolean mXATxFailureLogged;
+    private long mMaintenanceInterval;
+    private MaintenanceTask mMaintenanceTask;
+    private volatile ConnectionRequestInfo mLastRequest;
+    private boolean mPrewarmFailureLogged;
+    private boolean mInitFailureLogged;
+    private final PoolStats mStats = new PoolStats();
     
     private static final Localizer LOCALE = Localizer.get();
 
+    /**
+     * A connection that was closed in a transaction and that can be reused in that 
+     * transaction by the thread that closed it
+     */
+    private static final class TxSlot {
+        // Transaction; null once the transaction has completed
+        private volatile Transaction mTx;
+        // The connection whose TxDeferredRelease knows this slot; set by the owner 
+        // thread, cleared when the transaction completes
+        private volatile ManagedConnection mOwner;
+        // The connection if it is idle
+        private final AtomicReference<ManagedConnection> mIdle = new AtomicReference<ManagedConnection>();
+
+        public TxSlot(Transaction tx) {
+            mTx = tx;
+        }
+
+        /**
+         * Makes the connection available in the slot
+         */
+        public void park(ManagedConnection mc) {
+            mIdle.set(mc);
+            // If the transaction completed in the mean time, TxDeferredRelease may not 
+            // have seen the connection; it returns the connection to the pool anyway
+            if (mTx == null) {
+                mIdle.compareAndSet(mc, null);
+            }
+        }
+    }
+
+    /**
+     * The idle connections with the same key
+     */
+    private static final class IdlePartition extends PoolPartition {
+        // key: managedconnection, value=null; in the order in which they became idle
+        private final Map<ManagedConnection, Object> mConnections = new LinkedHashMap<ManagedConnection, Object>();
+
+        public IdlePartition(ConnectionKey key) {
+            super(key);
+        }
+        
+        /**
+         * @return the connection that has been idle the longest, or null if none
+         */
+        public ManagedConnection first() {
+            return mConnections.isEmpty() ? null : mConnections.keySet().iterator().next();
+        }
+    }
+    
+    /**
+     * Lower limit on the interval of the maintenance task in ms; this is also the 
+     * interval at which the maintenance task checks if maintenance is due
+     */
+    private static final long MIN_MAINTENANCE_INTERVAL = 1000;
+
+    /**
+     * Runs the maintenance of a pool on the timer of the RA. Refers to the pool 
+     * through a weak reference so that a pool that is no longer used can be garbage
+     * collected; the task cancels itself when that happens, when the pool is stopped,
+     * or when the pool turns out not to need maintenance.
+     */
+    private static final class MaintenanceTask extends TimerTask {
+        private final WeakReference<XDefaultConnectionManager> mPool;
+        private long mNextRun;
+
+        public MaintenanceTask(XDefaultConnectionManager pool) {
+            mPool = new WeakReference<XDefaultConnectionManager>(pool);
+        }
+
+        /**
+         * @see java.util.TimerTask#run()
+         */
+        @Override
+        public void run() {
+            XDefaultConnectionManager pool = mPool.get();
+            if (pool == null || pool.mStopped) {
+                cancel();
+                return;
+            }
+            
+            // The first run reads the configuration, so that the pool is filled up to
+            // its minimum size before it is first used
+            if (!pool.mIsInitialized && !pool.initForMaintenance()) {
+                return;
+            }
+            if (pool.mMaintenanceInterval <= 0) {
+                cancel();
+                return;
+            }
+            
+            long now = System.currentTimeMillis();
+            if (now >= mNextRun) {
+                mNextRun = now + pool.mMaintenanceInterval;
+                pool.runMaintenance();
+            }
+        }
+    }
+
     /**
      * Constructor
      *
@@ -218,24 +355,104 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
      * Connection pool properties may be set late in the construction process, so 
      * do lazy initialization
      */
-    private synchronized void init() {
+    protected void init() {
         if (mIsInitialized) {
             return;
         }
 
-        Properties p = mFact.getOptionsAsProperties();
-        mMaxSize = Utility.getIntProperty(p, Options.Out.POOL_MAXSIZE, mMaxSize);
-        mMinSize = Utility.getIntProperty(p, Options.Out.POOL_MINSIZE, mMinSize);
-        mTimeout = Utility.getIntProperty(p, Options.Out.POOL_TIMEOUT, mTimeout);
-        if (mTimeout == 0) {
-            mTimeout = Integer.MAX_VALUE;
+        synchronized (this) {
+            if (mIsInitialized) {
+                return;
+            }
+
+            OutboundConfig config = mFact.getConfig();
+            mMaxSize = config.getPoolMaxSize();
+            mMinSize = config.getPoolMinSize();
+            mMaxIdlePerKey = config.getPoolMaxIdlePerKey();
+            mTimeout = config.getPoolTimeout();
+            mMaintenanceInterval = config.getPoolMaintenanceInterval();
+            if (mMaintenanceInterval < 0) {
+                // Default: only when connections need to be kept ready
+                mMaintenanceInterval = mMinSize > 0 ? Math.max(MIN_MAINTENANCE_INTERVAL, 
+                    mFact.getEffectiveIdleTimeout() / 2) : 0;
+            }
+
+            initPool();
+            mIsInitialized = true;
         }
-        if (mTimeout < 0) {
-            mTimeout = 0;
+    }
+    
+    /**
+     * Reads the pool configuration on the maintenance thread; a failure is logged
+     * once and the next run tries again
+     * 
+     * @return true if the pool is initialized
+     */
+    private boolean initForMaintenance() {
+        try {
+            init();
+            return true;
+        } catch (RuntimeException e) {
+            if (!mInitFailureLogged) {
+                sLog.warn(LOCALE.x("E221: Unexpected exception in connection pool maintenance: {0}", e), e);
+                mInitFailureLogged = true;
+            } else if (sLog.isDebugEnabled()) {
+                sLog.debug("Pool configuration could not be read: " + e, e);
+            }
+            return false;
         }
-        
+    }
+
+    /**
+     * Creates the pool data structures once the pool configuration is known; called
+     * only once.
+     */
+    protected void initPool() {
         mSemaphore = new FIFOSemaphore(mMaxSize);
-        mIsInitialized = true;
+    }
+    
+    /**
+     * @return the maximum number of connections (JMSJCA.poolmaxsize)
+     */
+    protected int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the minimum number of connections (JMSJCA.poolminsize)
+     */
+    protected int getMinSize() {
+        return mMinSize;
+    }
+
+    /**
+     * @return the maximum number of idle connections per key (JMSJCA.poolmaxidleperkey);
+     *   0 if unlimited
+     */
+    protected int getMaxIdlePerKey() {
+        return mMaxIdlePerKey;
+    }
+
+    /**
+     * @return the time in ms to wait for a connection to become available 
+     * (JMSJCA.pooltimeout); 0 means no waiting
+     */
+    protected int getTimeout() {
+        return mTimeout;
+    }
+    
+    /**
+     * @return true if the RA was stopped
+     */
+    protected boolean isStopped() {
+        return mStopped;
+    }
+    
+    /**
+     * @return the subject used for testing (normally null)
+     */
+    protected Subject getSubject() {
+        return mTestSubject;
     }
     
     /**
@@ -263,8 +480,10 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
     
     /**
      * Gets the transaction manager IF APPLICABLE without throwing an exception
+     * 
+     * @return transaction, null if there is none or if it cannot be obtained
      */
-    private Transaction getXATxNoExc() {
+    protected Transaction getXATxNoExc() {
         try {
             return getXATx();
         } catch (Exception e) {
@@ -284,13 +503,17 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
         synchronized (this) {
             // Get all idle connections for destruction
             mcsToDestroy = mIdle.keySet().toArray(new ManagedConnection[mIdle.size()]);
-            mIdle.clear();
+            clearIdle();
             
             // Notify waiters about stopped state
             mStopped = true;
             if (mSemaphore != null) {
                 mSemaphore.release(mWaiters);
             }
+            
+            if (mMaintenanceTask != null) {
+                mMaintenanceTask.cancel();
+            }
         }
         
         // Destroy connections outside of synchronization block
@@ -327,25 +550,151 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
 
     /**
      * Finds a matching connection in the idle pool and returns it; adjusts pool
-     * parameters. Must be called from a synchronized method. Returns null if none found. 
+     * parameters. Must be called from a synchronized method. Returns null if none found.
+     * For requests for the RA's own connections, the key of the request is computed 
+     * (which evaluates the credentials once) and any connection in the partition for
+     * that key is a match; other requests go through matchManagedConnections().
      */
     private ManagedConnection findIdleConnectionAndAdjust(
         ManagedConnectionFactory mcf, ConnectionRequestInfo descr) throws ResourceException {
 
         ManagedConnection mc = null;
-        Set<ManagedConnection> candidates = mIdle.keySet();
-        mc = mcf.matchManagedConnections(candidates, mTestSubject, descr);
+        if (mcf == mFact && descr instanceof XConnectionRequestInfo) {
+            IdlePartition p = getPartition(mFact.createConnectionKey((XConnectionRequestInfo) descr, mTestSubject));
+            mc = p.first();
+            if (mc != null) {
+                p.onHit();
+            } else {
+                p.onMiss();
+            }
+        } else {
+            Set<ManagedConnection> candidates = mIdle.keySet();
+            mc = mcf.matchManagedConnections(candidates, mTestSubject, descr);
+        }
         if (mc != null) {
-            mIdle.remove(mc);
+            removeIdle(mc);
         }
 
         return mc;
     }
     
+    /**
+     * Returns the partition for the specified key; creates one if necessary. Must be
+     * called from a synchronized method.
+     */
+    private IdlePartition getPartition(ConnectionKey key) {
+        IdlePartition ret = mPartitions.get(key);
+        if (ret == null) {
+            ret = new IdlePartition(key);
+            mPartitions.put(key, ret);
+        }
+        return ret;
+    }
+    
+    /**
+     * @return the key of the partition for the specified connection, or null if the 
+     *   connection was not created by the RA's own connection factory 
+     */
+    private ConnectionKey getKey(ManagedConnection mc) {
+        if (mc instanceof XManagedConnection && ((XManagedConnection) mc).getManagedConnectionFactory() == mFact) {
+            return ((XManagedConnection) mc).getConnectionKey();
+        }
+        return null;
+    }
+    
+    /**
+     * Determines if the idle connections that are interchangeable with the specified
+     * connection have reached JMSJCA.poolmaxidleperkey, in which case the connection 
+     * should be destroyed rather than returned to the pool.
+     * 
+     * @param mc connection
+     * @return true if the partition for the connection is full
+     */
+    protected synchronized boolean isPartitionFull(ManagedConnection mc) {
+        ConnectionKey key = getKey(mc);
+        if (mMaxIdlePerKey <= 0 || key == null) {
+            return false;
+        }
+        IdlePartition p = mPartitions.get(key);
+        return p != null && p.mConnections.size() >= mMaxIdlePerKey;
+    }
+    
+    /**
+     * Adds a connection to the idle pool. Must be called from a synchronized method.
+     */
+    private void addIdle(ManagedConnection mc) {
+        mIdle.put(mc, null);
+        ConnectionKey key = getKey(mc);
+        if (key != null) {
+            IdlePartition p = getPartition(key);
+            p.mConnections.put(mc, null);
+            p.onIdle(1);
+        }
+    }
+    
+    /**
+     * Removes a connection from the idle pool. Must be called from a synchronized 
+     * method.
+     */
+    private void removeIdle(ManagedConnection mc) {
+        mIdle.remove(mc);
+        ConnectionKey key = getKey(mc);
+        if (key != null) {
+            IdlePartition p = mPartitions.get(key);
+            if (p != null && p.mConnections.keySet().remove(mc)) {
+                p.onIdle(-1);
+            }
+        }
+    }
+    
+    /**
+     * Empties the idle pool. Must be called from a synchronized method.
+     */
+    private void clearIdle() {
+        mIdle.clear();
+        for (IdlePartition p : mPartitions.values()) {
+            p.onIdle(-p.mConnections.size());
+            p.mConnections.clear();
+        }
+    }
+    
+    /**
+     * Selects an idle connection that can be destroyed to make room for a connection
+     * for a different partition: a connection from the partition with the most idle
+     * connections is chosen, so that one partition cannot hold on to all connections.
+     * Must be called from a synchronized method.
+     * 
+     * @return connection or null if there are no idle connections
+     */
+    private ManagedConnection selectVictim() {
+        IdlePartition largest = null;
+        for (IdlePartition p : mPartitions.values()) {
+            if (!p.mConnections.isEmpty() 
+                && (largest == null || p.mConnections.size() > largest.mConnections.size())) {
+                largest = p;
+            }
+        }
+        if (largest != null) {
+            return largest.first();
+        }
+        return mIdle.isEmpty() ? null : mIdle.keySet().iterator().next();
+    }
+    
+    /**
+     * @return the partitions of the idle pool, for diagnostics
+     */
+    public synchronized Collection<PoolPartition> getPartitions() {
+        return new ArrayList<PoolPartition>(mPartitions.values());
+    }
+    
     /**
      * Checks whether a connection is invalid; will NOT throw an exception
+     * 
+     * @param mcf factory
+     * @param mc connection to check
+     * @return true if invalid
      */
-    private boolean isInvalid(ManagedConnectionFactory mcf, ManagedConnection mc) {
+    protected boolean isInvalid(ManagedConnectionFactory mcf, ManagedConnection mc) {
         boolean ret = false;
         if (mcf == mFact || mcf instanceof javax.resource.spi.ValidatingManagedConnectionFactory) {
             ValidatingManagedConnectionFactory vmcf = (ValidatingManagedConnectionFactory) mcf;
@@ -385,46 +734,68 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
         
         init();
         
+        // Remember the shape of the requests for pre-warming; not if the request has 
+        // a clientID, since only one connection at a time can have that clientID
+        if (mcf == mFact && descr instanceof XConnectionRequestInfo 
+            && ((XConnectionRequestInfo) descr).getClientID() == null) {
+            mLastRequest = descr;
+        }
+        
         // Try to get from tx; this connection doesn't count against the semaphore
         Object ret = tryObtainConnectionFromTx(mcf, descr);
         
         if (ret == null) {
-            // OBTAIN SEMAPHORE
-            boolean acquired;
-            try {
-                synchronized (this) {
-                    mWaiters++;
-                    if (mStopped) {
-                        throw Exc.rsrcExc(LOCALE.x("E159: Resource adapter was stopped"));
-                    }
-                }
-                acquired = mSemaphore.attempt(mTimeout);
-            } catch (InterruptedException e) {
-                throw Exc.rsrcExc(LOCALE.x("Interrupted"));
-            } finally {
-                synchronized (this) {
-                    mWaiters--;
+            ret = allocateFromPool(mcf, descr);
+        }
+        return ret;
+    }
+    
+    /**
+     * Obtains a connection from the pool or creates a new one, blocking if the 
+     * pool is exhausted. The connection will be enlisted in the transaction if there
+     * is one.
+     * 
+     * @param mcf managedConnectionFactory
+     * @param descr how to create the connection
+     * @return connection handle
+     * @throws ResourceException on failure or timeout
+     */
+    protected Object allocateFromPool(ManagedConnectionFactory mcf,
+        ConnectionRequestInfo descr) throws ResourceException {
+        // OBTAIN SEMAPHORE
+        boolean acquired;
+        try {
+            synchronized (this) {
+                mWaiters++;
+                if (mStopped) {
+                    throw Exc.rsrcExc(LOCALE.x("E159: Resource adapter was stopped"));
                 }
             }
-            
-            // TIMEOUT
-            if (!acquired) {
-                throw Exc.rsrcExc(LOCALE.x("E158: Connection could not be acquired in the "
-                + "configured time of {0} ms; {1} connections are in use", Integer.toString(mTimeout)
-                , Integer.toString(mMaxSize)));
-            }
-            
-            // OBTAIN CONNECTION
-            try {
-                ret = obtainConnection(mcf, descr);
-            } catch (ResourceException e) {
-                // Semaphore was acquired, so in the case an exception was not obtained
-                // the semaphore should be reset to its original position
-                mSemaphore.release();
-                throw e;
+            acquired = mSemaphore.attempt(mTimeout);
+        } catch (InterruptedException e) {
+            throw Exc.rsrcExc(LOCALE.x("Interrupted"));
+        } finally {
+            synchronized (this) {
+                mWaiters--;
             }
         }
-        return ret;
+        
+        // TIMEOUT
+        if (!acquired) {
+            throw Exc.rsrcExc(LOCALE.x("E158: Connection could not be acquired in the "
+            + "configured time of {0} ms; {1} connections are in use", Integer.toString(mTimeout)
+            , Integer.toString(mMaxSize)));
+        }
+        
+        // OBTAIN CONNECTION
+        try {
+            return obtainConnection(mcf, descr);
+        } catch (ResourceException e) {
+            // Semaphore was acquired, so in the case an exception was not obtained
+            // the semaphore should be reset to its original position
+            mSemaphore.release();
+            throw e;
+        }
     }
 
     /**
@@ -472,8 +843,8 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
 
                 // Can and need to sacrifice an idle connection?
                 if (!done && !mIdle.isEmpty()) {
-                    toDestroy = mIdle.keySet().iterator().next();
-                    mIdle.remove(toDestroy);
+                    toDestroy = selectVictim();
+                    removeIdle(toDestroy);
                     // substitute the idle one by a new one (no change to size setting)
                     mAll.remove(toDestroy);
                     connectionNeedsToBeCreated = true;
@@ -492,11 +863,14 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
                     toDestroy = mc;
                     mAll.remove(mc);
                     connectionNeedsToBeCreated = true;
+                } else {
+                    mStats.onHit();
                 }
             }
             
             // Destroy a connection if required (outside of synchronized block)
             if (toDestroy != null) {
+                mStats.onDestroyed();
                 try {
                     toDestroy.destroy();
                 } catch (Exception ex) {
@@ -507,8 +881,10 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
 
             // Create a connection if required (outside of synchronized block)
             if (connectionNeedsToBeCreated) {
+                mStats.onMiss();
                 try {
                     mc = mcf.createManagedConnection(mTestSubject, descr);
+                    mStats.onCreated();
                     synchronized (this) {
                         mAll.put(mc, new ConnectionState());
                         // Note: size was already adjusted
@@ -526,19 +902,7 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
             if (mc != null) {
                 // Get notified of events
                 try {
-                    mc.addConnectionEventListener(mConnectionEventListener);
-
-                    // Enlist transaction
-                    Transaction tx = getXATxNoExc();
-                    if (tx != null) {
-                        tx.enlistResource(mc.getXAResource());
-                        // Need to delist from the tx before prepare/commit/rollback
-                        tx.registerSynchronization(new TxDelister(mc, tx));
-                    }
-
-                    // Return the connection handle to the client (the wrapper with the proper
-                    // interface)
-                    ret = mc.getConnection(mTestSubject, descr);
+                    ret = enlistAndGetHandle(mc, descr);
                 } catch (Exception e) {
                     // Destroy connection; size was already adjusted, so make sure that 
                     // now that a connection cannot be created, the size is put back
@@ -565,6 +929,52 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
         }
     }
     
+    /**
+     * Hands out a connection that was taken from the pool or was newly created:
+     * registers for events, enlists in the transaction if there is one, and 
+     * obtains the handle that is returned to the application.
+     * 
+     * @param mc connection
+     * @param descr request
+     * @return connection handle
+     * @throws Exception on failure; the caller should destroy the connection
+     */
+    protected Object enlistAndGetHandle(ManagedConnection mc, 
+        ConnectionRequestInfo descr) throws Exception {
+        mc.addConnectionEventListener(mConnectionEventListener);
+
+        // Enlist transaction
+        Transaction tx = getXATxNoExc();
+        if (tx != null) {
+            tx.enlistResource(mc.getXAResource());
+            // Need to delist from the tx before prepare/commit/rollback
+            tx.registerSynchronization(new TxDelister(mc, tx));
+        }
+
+        // Return the connection handle to the client (the wrapper with the proper
+        // interface)
+        return mc.getConnection(mTestSubject, descr);
+    }
+    
+    /**
+     * Keeps track of a newly created connection; required for transaction 
+     * bookkeeping
+     * 
+     * @param mc new connection
+     */
+    protected void registerConnection(ManagedConnection mc) {
+        mAll.put(mc, new ConnectionState());
+    }
+
+    /**
+     * Stops keeping track of a connection that was or is about to be destroyed
+     * 
+     * @param mc connection
+     */
+    protected void unregisterConnection(ManagedConnection mc) {
+        mAll.remove(mc);
+    }
+
     private Object tryObtainConnectionFromTx(ManagedConnectionFactory mcf,
         ConnectionRequestInfo descr) throws ResourceException {     
 
@@ -577,14 +987,25 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
             Transaction tx = getXATxNoExc();
             Object ret = null;
 
-            synchronized (this) {
-                // Try to reuse idle in transaction
-                if (tx != null) {
-                    mc = findIdleConnectionInTxAndAdjust(mcf, descr, tx);
+            // Try the connection this thread parked in this transaction
+            if (tx != null) {
+                mc = claimFromTxSlot(mcf, descr, tx);
+            } else {
+                removeCompletedTxSlot();
+            }
+
+            if (mc == null) {
+                synchronized (this) {
+                    // Try to reuse idle in transaction
+                    if (tx != null) {
+                        mc = findIdleConnectionInTxAndAdjust(mcf, descr, tx);
+                    }
                 }
             }
 
             if (mc != null) {
+                mStats.onHit();
+                
                 // Get notified of events
                 mc.addConnectionEventListener(mConnectionEventListener);
 
@@ -599,10 +1020,84 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
         }
     }
     
+    /**
+     * Takes the connection that the current thread parked in the specified transaction
+     * if it matches the request. A connection matches if it was created for an equal
+     * request, so that the effective credentials are also equal.
+     * 
+     * @return connection or null if none
+     */
+    private ManagedConnection claimFromTxSlot(ManagedConnectionFactory mcf, 
+        ConnectionRequestInfo descr, Transaction tx) {
+        TxSlot slot = mTxSlot.get();
+        if (slot != null && slot.mTx == null) {
+            mTxSlot.remove();
+            return null;
+        }
+        if (slot == null || slot.mTx != tx || mcf != mFact) {
+            return null;
+        }
+        ManagedConnection mc = slot.mIdle.get();
+        if (mc instanceof XManagedConnection && descr != null 
+            && descr.equals(((XManagedConnection) mc).getDescription())
+            && slot.mIdle.compareAndSet(mc, null)) {
+            return mc;
+        }
+        return null;
+    }
+    
+    /**
+     * Removes the slot of the current thread if its transaction has completed, so that
+     * the thread does not keep a reference to the pool's objects
+     */
+    private void removeCompletedTxSlot() {
+        TxSlot slot = mTxSlot.get();
+        if (slot != null && slot.mTx == null) {
+            mTxSlot.remove();
+        }
+    }
+    
+    /**
+     * Returns the slot of the current thread for the specified transaction; creates a
+     * new one if the thread's slot is for a different transaction.
+     */
+    private TxSlot getTxSlot(Transaction tx) {
+        TxSlot ret = mTxSlot.get();
+        if (ret == null || ret.mTx != tx) {
+            ret = new TxSlot(tx);
+            mTxSlot.set(ret);
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns a connection that is no longer in use (and has been cleaned up) to the
+     * idle pool, or destroys it if the RA was stopped or if there are too many idle
+     * connections with the same key.
+     * 
+     * @param mc connection
+     */
+    protected void returnToPool(ManagedConnection mc) {
+        boolean destroy;
+        synchronized (this) {
+            destroy = mStopped || isPartitionFull(mc);
+            if (!destroy) {
+                addIdle(mc);
+                mSemaphore.release();
+            }
+        }
+        
+        if (destroy) {
+            destroyAndAdjust(mc);
+        }
+    }
+    
     /**
      * Destroys a connection and removes it from the global list
+     * 
+     * @param mc connection
      */
-    private void destroyAndAdjust(ManagedConnection mc) {
+    protected void destroyAndAdjust(ManagedConnection mc) {
         // Destroy
         try {
             mc.destroy();
@@ -610,14 +1105,206 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
             sLog.error(LOCALE.x("E074: Unexpected exception destroying a connection: {0}", ex), ex);
         }
         
+        mStats.onDestroyed();
+        
         // Unregister
         synchronized (this) {
             mAll.remove(mc);
+            mCurrentPoolsize--;
         }
         
         mSemaphore.release();
     }
     
+    /**
+     * Schedules the background task that creates connections up to the minimum pool 
+     * size and that destroys idle connections that have become invalid or stale. The
+     * task runs on the timer of the RA; its first run reads the pool configuration, 
+     * so that connections are created ahead of demand even if the pool was not used 
+     * yet. It stops if the maintenance interval (JMSJCA.poolmaintenanceinterval) is 0.
+     */
+    public void startMaintenance() {
+        MaintenanceTask task;
+        synchronized (this) {
+            if (mMaintenanceTask != null || mStopped) {
+                return;
+            }
+            task = new MaintenanceTask(this);
+            mMaintenanceTask = task;
+        }
+        getRAJMSResourceAdapter().schedulePoolMaintenance(task, MIN_MAINTENANCE_INTERVAL);
+    }
+    
+    /**
+     * Performs one maintenance cycle: validates all idle connections and destroys 
+     * the ones that are invalid or stale, then creates connections up to the minimum 
+     * pool size. Runs on the maintenance thread, i.e. off the request path; public 
+     * for testing.
+     */
+    public void runMaintenance() {
+        try {
+            evictIdle();
+            prewarm();
+        } catch (RuntimeException e) {
+            // An exception would cancel the timer
+            sLog.warn(LOCALE.x("E221: Unexpected exception in connection pool maintenance: {0}", e), e);
+        }
+    }
+
+    /**
+     * Validates each idle connection once
+     */
+    private void evictIdle() {
+        Map<ManagedConnection, Object> seen = new IdentityHashMap<ManagedConnection, Object>();
+        for (;;) {
+            ManagedConnection mc = takeIdle(seen);
+            if (mc == null) {
+                break;
+            }
+            seen.put(mc, null);
+            mStats.onValidated();
+            if (isInvalid(mFact, mc)) {
+                if (sLog.isDebugEnabled()) {
+                    sLog.debug("Evicting idle connection " + mc);
+                }
+                mStats.onEvicted();
+                destroyAndAdjust(mc);
+            } else {
+                returnToPool(mc);
+            }
+        }
+    }
+    
+    /**
+     * Creates connections until the minimum pool size is reached. Connections are 
+     * created for the most recent request, or for a default request if there was no
+     * request yet.
+     */
+    private void prewarm() {
+        ConnectionRequestInfo descr = mLastRequest;
+        while (!mStopped && reserveSlot(mMinSize)) {
+            ManagedConnection mc;
+            try {
+                if (descr == null) {
+                    descr = mFact.createPrewarmRequestInfo();
+                }
+                mc = mFact.createManagedConnection(mTestSubject, descr);
+            } catch (Exception e) {
+                releaseSlot();
+                if (!mPrewarmFailureLogged) {
+                    sLog.warn(LOCALE.x("E222: Connection could not be created ahead of demand; "
+                        + "pool will be filled on demand: {0}", e), e);
+                    mPrewarmFailureLogged = true;
+                }
+                return;
+            }
+            registerConnection(mc);
+            mStats.onCreated();
+            mStats.onPrewarmed();
+            boolean full = isPartitionFull(mc);
+            returnToPool(mc);
+            if (full) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Takes an idle connection out of the pool together with its permit so that it 
+     * can be inspected; the connection must be given back using returnToPool() or 
+     * destroyAndAdjust(). Does not wait.
+     * 
+     * @param exclude connections that should not be returned
+     * @return connection or null if there are no more idle connections 
+     */
+    protected ManagedConnection takeIdle(Map<ManagedConnection, Object> exclude) {
+        synchronized (this) {
+            if (mStopped) {
+                return null;
+            }
+            for (Iterator<ManagedConnection> iter = mIdle.keySet().iterator(); iter.hasNext();/*-*/) {
+                ManagedConnection mc = iter.next();
+                if (!exclude.containsKey(mc)) {
+                    if (!attemptNoWait()) {
+                        return null;
+                    }
+                    removeIdle(mc);
+                    return mc;
+                }
+            }
+        }
+        return null;
+    }
+    
+    private boolean attemptNoWait() {
+        try {
+            return mSemaphore.attempt(0);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Reserves room for a connection that is about to be created ahead of demand: 
+     * takes a permit and increments the pool size. Does not wait. The connection 
+     * must be given to returnToPool(), or the slot must be given back with 
+     * releaseSlot().
+     * 
+     * @param limit the pool size up to which a slot can be reserved
+     * @return true if a slot was reserved
+     */
+    protected boolean reserveSlot(int limit) {
+        synchronized (this) {
+            if (mStopped || mCurrentPoolsize >= limit || !attemptNoWait()) {
+                return false;
+            }
+            mCurrentPoolsize++;
+            return true;
+        }
+    }
+    
+    /**
+     * Gives back a slot reserved with reserveSlot() if the connection could not be 
+     * created
+     */
+    protected void releaseSlot() {
+        synchronized (this) {
+            mCurrentPoolsize--;
+        }
+        mSemaphore.release();
+    }
+    
+    /**
+     * @return pool statistics
+     */
+    public PoolStats getStats() {
+        return mStats;
+    }
+    
+    /**
+     * @return the number of connections created or being created
+     */
+    public synchronized int getPoolSize() {
+        return mCurrentPoolsize;
+    }
+
+    /**
+     * @return the number of idle connections
+     */
+    public int getIdleCount() {
+        return mIdle.size();
+    }
+    
+    /**
+     * @return description of the state of the pool for diagnostics
+     */
+    public String dumpPoolInfo() {
+        return getClass().getName() + ": size=" + getPoolSize() + ", idle=" + getIdleCount() 
+            + ", max=" + mMaxSize + ", min=" + mMinSize + ", " + mStats + ", partitions=" + getPartitions()
+            + (mFact.isProducerPoolingOn() ? ", producerpool=[" + mFact.getProducerPoolStats() + "]" : "")
+            + (mFact.getAsyncSendStats() == null ? "" : ", asyncsend=[" + mFact.getAsyncSendStats() + "]");
+    }
+
     private class TxDelister implements Synchronization {
         private ManagedConnection mMC;
         private Transaction mTX;
@@ -649,26 +1336,32 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
     private class TxDeferredRelease implements Synchronization {
         private ManagedConnection mMC;
         private Transaction mTx;
+        private TxSlot mSlot;
 
-        public TxDeferredRelease(ManagedConnection mc, Transaction tx) {
+        public TxDeferredRelease(ManagedConnection mc, Transaction tx, TxSlot slot) {
             mMC = mc;
             mTx = tx;
+            mSlot = slot;
         }
 
         /**
          * @see javax.transaction.Synchronization#afterCompletion(int)
          */
         public void afterCompletion(int status) {
-            ManagedConnection toBeDestroyed = null;
+            if (mSlot != null) {
+                mSlot.mTx = null;
+                mSlot.mOwner = null;
+                mSlot.mIdle.compareAndSet(mMC, null);
+                if (mTxSlot.get() == mSlot) {
+                    mTxSlot.remove();
+                }
+            }
+            
+            boolean isBad;
             synchronized (XDefaultConnectionManager.this) {
                 ConnectionState state = mAll.get(mMC);
                 state.setTxDeferredReleaseRegistered(false);
-                if (state.isBad() || mStopped) {
-                    toBeDestroyed = mMC;
-                } else {
-                    mIdle.put(mMC, null);
-                    mSemaphore.release();
-                }
+                isBad = state.isBad();
                 Set<ManagedConnection> candidates = mIdleEnlisted.get(mTx);
                 if (candidates != null) {
                     candidates.remove(mMC);
@@ -678,8 +1371,10 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
                 }
             }
             
-            if (toBeDestroyed != null) {
+            if (isBad) {
                 destroyAndAdjust(mMC);
+            } else {
+                returnToPool(mMC);
             }
         }
 
@@ -700,29 +1395,22 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
 
         if (tx == null) {
             // No transaction: simply cleanup and add to pool
-            ManagedConnection toDestroy = null;
+            boolean cleanedUp = false;
             try {
                 mc.cleanup();
-                synchronized (this) {
-                    if (mStopped) {
-                        toDestroy = mc;
-                    } else {
-                        mIdle.put(mc, null);
-                        mSemaphore.release();
-                    }
-                }
+                cleanedUp = true;
             } catch (Exception e) {
                 if (sLog.isDebugEnabled()) {
                     sLog.debug("Caught exception in cleanup(); connection will be destroyed: " + e, e);
                 }
-                toDestroy = mc;
             }
             
-            if (toDestroy != null) {
+            if (!cleanedUp) {
                 destroyAndAdjust(mc);
             } else {
+                returnToPool(mc);
                 if (sLog.isDebugEnabled()) {
-                    sLog.debug("Connection closed event received; added connection " + mc + " to idle-pool");
+                    sLog.debug("Connection closed event received; returned connection " + mc + " to idle-pool");
                 }
             }
         } else {
@@ -737,8 +1425,17 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
                 }
             }
             
-            // Put in TxIdle pool
+            // Fast path: the connection is already parked in this thread's slot for this
+            // transaction, and its TxDeferredRelease knows the slot
+            TxSlot slot = getTxSlot(tx);
+            if (cleanupException == null && slot.mOwner == mc) {
+                slot.park(mc);
+                return;
+            }
+            
+            // Put in TxIdle pool or in the slot
             boolean isAlreadyRegistered;
+            boolean inSlot = false;
             synchronized (this) {
                 ConnectionState state = mAll.get(mc);
 
@@ -747,32 +1444,53 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
                     state.setBad(cleanupException);
                 }
                 
-                // Add to idleInTx pool
-                Set<ManagedConnection> idleInTx = mIdleEnlisted.get(tx);
-                if (idleInTx == null) {
-                    idleInTx = new HashSet<ManagedConnection>();
-                    mIdleEnlisted.put(tx, idleInTx);
-                }
-                idleInTx.add(mc);
-                
                 // Figure out if tx listener is required
                 isAlreadyRegistered = state.isTxDeferredReleaseRegistered();
                 if (!isAlreadyRegistered) {
                     state.setTxDeferredReleaseRegistered(true);
+                    inSlot = !state.isBad() && slot.mOwner == null;
+                }
+                
+                // Add to idleInTx pool
+                if (!inSlot) {
+                    addIdleInTx(tx, mc);
                 }
             }
             
             // Add behavior when commit() is called
             if (!isAlreadyRegistered) {
                 try {
-                    tx.registerSynchronization(new TxDeferredRelease(mc, tx));
+                    tx.registerSynchronization(new TxDeferredRelease(mc, tx, inSlot ? slot : null));
                 } catch (Exception e) {
                     sLog.error(LOCALE.x("E076: Synchronization registration failed: {0}", e), e);
+                    if (inSlot) {
+                        inSlot = false;
+                        synchronized (this) {
+                            addIdleInTx(tx, mc);
+                        }
+                    }
                 }
             }
+            
+            if (inSlot) {
+                slot.mOwner = mc;
+                slot.park(mc);
+            }
         }
     }
     
+    /**
+     * Adds a connection to the txidle pool. Must be called from a synchronized method.
+     */
+    private void addIdleInTx(Transaction tx, ManagedConnection mc) {
+        Set<ManagedConnection> idleInTx = mIdleEnlisted.get(tx);
+        if (idleInTx == null) {
+            idleInTx = new HashSet<ManagedConnection>();
+            mIdleEnlisted.put(tx, idleInTx);
+        }
+        idleInTx.add(mc);
+    }
+    
     private class Listener implements ConnectionEventListener, java.io.Serializable {
         public void connectionClosed(ConnectionEvent connectionEvent) {
             ManagedConnection mc = (ManagedConnection) connectionEvent.getSource();
@@ -832,8 +1550,17 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
      *
      * @param mc ManagedConnection
      */
-    public void testAddToPool(ManagedConnection mc) {
-        mIdle.put(mc, null);
+    public synchronized void testAddToPool(ManagedConnection mc) {
+        addIdle(mc);
+    }
+    
+    /**
+     * For testing only
+     * 
+     * @return true if the current thread has a slot for transaction scoped reuse
+     */
+    public boolean testHasTxSlot() {
+        return mTxSlot.get() != null;
     }
     
     /**
@@ -874,7 +1601,9 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
             ManagedConnection mc = iter.next();
             mc.destroy();
         }
-        mIdle.clear();
+        synchronized (this) {
+            clearIdle();
+        }
     }
 
     /**
@@ -889,7 +1618,9 @@ public class XDefaultConnectionManager implements ConnectionManager, RAStopListe
             mc.destroy();
         }
         mAll.clear();
-        mIdle.clear();
+        synchronized (this) {
+            clearIdle();
+        }
         mCurrentPoolsize = 0;
     }
 
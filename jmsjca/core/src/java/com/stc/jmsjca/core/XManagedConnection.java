@@ -74,6 +74,9 @@ public class XManagedConnection implements ManagedConnection {
     private transient long mCreatedAt = System.currentTimeMillis();
     private String mUserid;
     private String mPassword;
+    private ConnectionKey mConnectionKey;
+    private AsyncSendPipeline mAsyncSendPipeline;
+    private boolean mAsyncSendPipelineChecked;
     private long mLastUsedSuccessfullyAt;
     private InterceptorChain mInterceptorChain;
 
@@ -98,6 +101,7 @@ public class XManagedConnection implements ManagedConnection {
             throw Exc.rsrcExc(LOCALE.x("E219: Could not instantiate interceptors: {0}", e), e);
         }
         
+        boolean forRecovery = descr == null;
         if (descr == null) {
             // This may be null during XA recovery; create a default one that will
             // work for XA recovery (just to create a connection)
@@ -114,6 +118,7 @@ public class XManagedConnection implements ManagedConnection {
         String[] uidpw = mcf.getEffectiveUseridAndPassword(descr, subject);
         mUserid = uidpw[0];
         mPassword = uidpw[1];
+        mConnectionKey = new ConnectionKey(descr, mUserid, mPassword);
         
         // Create session
         try {
@@ -165,6 +170,10 @@ public class XManagedConnection implements ManagedConnection {
             mLocalTransaction = new XLocalTransactionNOP();
         }
         
+        if (!forRecovery) {
+            mJSession.precreateProducers(mcf.getProducerPrecreate());
+        }
+        
         mLastUsedSuccessfullyAt = System.currentTimeMillis();
     }
 
@@ -302,6 +311,15 @@ public class XManagedConnection implements ManagedConnection {
      * @throws ResourceException failure
      */
     public void destroy() throws ResourceException {
+        AsyncSendPipeline pipeline;
+        synchronized (this) {
+            pipeline = mAsyncSendPipeline;
+            mAsyncSendPipeline = null;
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        
         if (mJSession != null) {
             if (sLog.isDebugEnabled()) {
                 sLog.debug("Destroying connection");
@@ -445,6 +463,16 @@ public class XManagedConnection implements ManagedConnection {
         return mConnectionDescription;
     }
 
+    /**
+     * Returns the key of the pool partition that this connection belongs to; 
+     * connections with equal keys are interchangeable
+     *
+     * @return key
+     */
+    public ConnectionKey getConnectionKey() {
+        return mConnectionKey;
+    }
+
     /**
      * Called by the connection handle when the application closes the handle. This
      * notifies this instance that the handle is closed, and that the physical connection
@@ -504,6 +532,9 @@ public class XManagedConnection implements ManagedConnection {
         if (sLog.isDebugEnabled()) {
             sLog.debug("Error occured in the connection", ex);
         }
+        
+        // Destinations may need to be resolved again on a new connection
+        getManagedConnectionFactory().getObjFactory().invalidateDestinations();
     }
 
     /**
@@ -619,6 +650,25 @@ public class XManagedConnection implements ManagedConnection {
         }
     }
 
+    /**
+     * Returns the pipeline for asynchronous sending; creates one if necessary. 
+     * Asynchronous sending only applies if turned on (JMSJCA.asyncsend), and if the
+     * connection can never participate in a transaction: a non-transacted XA 
+     * connection is enlisted in the JTA transaction if there is one, and the pipeline
+     * would send outside of that transaction.
+     *
+     * @return pipeline or null if messages should be sent synchronously
+     */
+    public synchronized AsyncSendPipeline getAsyncSendPipeline() {
+        if (!mAsyncSendPipelineChecked) {
+            mAsyncSendPipelineChecked = true;
+            if (mManagedConnectionFactory.getOptionNoXA() && !mConnectionDescription.getTransacted()) {
+                mAsyncSendPipeline = mManagedConnectionFactory.createAsyncSendPipeline(this);
+            }
+        }
+        return mAsyncSendPipeline;
+    }
+
     /**
      * Returns true if producer pooling is used
      *
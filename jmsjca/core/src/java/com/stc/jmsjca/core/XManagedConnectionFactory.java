@@ -24,10 +24,10 @@ import com.stc.jmsjca.util.InterceptorInfo;
 import com.stc.jmsjca.util.InterceptorLoader;
 import com.stc.jmsjca.util.Logger;
 import com.stc.jmsjca.util.Str;
-import com.stc.jmsjca.util.Utility;
 
 import javax.jms.JMSException;
 import javax.resource.ResourceException;
+import javax.resource.spi.ConnectionManager;
 import javax.resource.spi.ConnectionRequestInfo;
 import javax.resource.spi.ManagedConnection;
 import javax.resource.spi.ManagedConnectionFactory;
@@ -76,30 +76,16 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
     private long mIdleTimeoutBeanProperty = 30000;
     // End bean properties
 
-    private transient Properties mOptions;
-    private transient RAJMSObjectFactory mObjFactory;
-    
     // For special connectors such as WebLogic
     private transient DestinationCache mQueueCache;
     private transient DestinationCache mTopicCache;
     private transient TxMgr mTxMgr;
+    private transient Map<XDefaultConnectionManager, Object> mPools; // key=pool, value=null
 
-    // For lazy eval of options
-    private transient boolean mOptionsAreSet;
-    private transient String mRAUrl;
-    private transient String mRAOptionsStr;
-
-    // Options
-    private transient boolean mNoXA;
-    private transient boolean mIgnoreTx;
-    private transient boolean mClientContainer;
-    private transient boolean mBypassRA;
-    private transient boolean mOverrideIsSameRM;
-    private transient boolean mDoNotCacheConnectionFactories;
-    private transient boolean mStrict;
-    private transient boolean mEffectiveProducerPoolingOn;
-    private transient String mTxMgrLocatorClass;
-    private transient long mEffectiveIdleTimeout;
+    // Options: lazily evaluated, replaced when the configuration changes
+    private transient volatile OutboundConfig mConfig;
+    private transient ProducerPool.Stats mProducerPoolStats;
+    private transient AsyncSendStats mAsyncSendStats;
     
     // For diagnostics: counts how many MCs were created
     private transient int mCtMCCreated;
@@ -113,7 +99,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
     
     // Caching password credentials; key=Subject; value=PasswordCredential 
     private transient IdentityHashMap<Subject, PasswordCredential> mCredentialCache;
-    private transient InterceptorChainBuilder mInterceptorChainBuilder; 
+    private transient volatile InterceptorChainBuilder mInterceptorChainBuilder; 
     private static final int MAXCREDENTIALCACHE = 50;
 
     private static final Localizer LOCALE = Localizer.get();
@@ -185,7 +171,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return RAJMSObjectFactory
      */
     public RAJMSObjectFactory getObjFactory() {
-        return mObjFactory;
+        return getConfig().getObjFactory();
     }
 
     /**
@@ -387,7 +373,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
 
         XConnectionRequestInfo descr = (XConnectionRequestInfo) cxRequestInfo;
         
-        extractOptions();
+        getConfig();
 
         for (Iterator it = connectionSet.iterator(); it.hasNext();/*-*/) {
             Object obj = it.next();
@@ -428,6 +414,82 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
         return null;
     }
 
+    /**
+     * Computes the key of the pool partition in which connections for the specified
+     * request can be found, so that a pool can find a matching connection without
+     * testing every idle connection.
+     *
+     * @param descr request
+     * @param subject subject (may be null)
+     * @return key equal to XManagedConnection.getConnectionKey() of matching connections
+     * @throws ResourceException propagated
+     */
+    ConnectionKey createConnectionKey(XConnectionRequestInfo descr, Subject subject) 
+        throws ResourceException {
+        String[] uidpw = getEffectiveUseridAndPassword(descr, subject);
+        return new ConnectionKey(descr, uidpw[0], uidpw[1]);
+    }
+    
+    /**
+     * Creates the connection manager that is used when the application server does 
+     * not provide one (non-managed environment)
+     * 
+     * @return new connection manager
+     */
+    public ConnectionManager createDefaultConnectionManager() {
+        XDefaultConnectionManager ret;
+        if (getConfig().isConcurrentPool()) {
+            ret = new XConcurrentConnectionManager(this);
+        } else {
+            ret = new XDefaultConnectionManager(this);
+        }
+        
+        synchronized (this) {
+            if (mPools == null) {
+                mPools = new WeakHashMap<XDefaultConnectionManager, Object>();
+            }
+            mPools.put(ret, null);
+        }
+        
+        ret.startMaintenance();
+        return ret;
+    }
+    
+    /**
+     * Creates the request that is used to create connections ahead of demand when 
+     * no request has been made yet: a connection for a unified session without a
+     * clientID, using the credentials of the MCF or RA.
+     * 
+     * @return request
+     */
+    XConnectionRequestInfo createPrewarmRequestInfo() {
+        String[] useridpassword = getUserIdAndPasswordAndUrl(null, null);
+        boolean transacted = getOptionIgnoreNonTx();
+        return new XConnectionRequestInfo(javax.jms.Connection.class, javax.jms.Session.class, 
+            useridpassword[0], useridpassword[1], useridpassword[2], null, transacted, 
+            transacted ? javax.jms.Session.SESSION_TRANSACTED : javax.jms.Session.AUTO_ACKNOWLEDGE);
+    }
+    
+    /**
+     * Dumps the state of the connection pools that the RA manages for this MCF
+     * 
+     * @return String
+     */
+    public String dumpPoolInfo() {
+        Object[] pools;
+        synchronized (this) {
+            pools = mPools == null ? new Object[0] : mPools.keySet().toArray();
+        }
+        
+        StringBuffer ret = new StringBuffer();
+        for (int i = 0; i < pools.length; i++) {
+            if (pools[i] != null) {
+                ret.append("[" + ((XDefaultConnectionManager) pools[i]).dumpPoolInfo() + "]\n");
+            }
+        }
+        return ret.toString();
+    }
+
     /**
      * This method returns a set of invalid ManagedConnection objects chosen from a
      * specified set of ManagedConnection objects.
@@ -491,50 +553,51 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
         return mLogWriter;
     }
 
-    private synchronized void extractOptions() {
-        // Check if cached options need to be refreshed
-        if (mOptionsAreSet && mRAUrl == mRA.getConnectionURL() && mRAOptionsStr == mRA.getOptions()) {
-            // Note: in above if-conditions, == is intentional
-            return;
+    /**
+     * Returns the current configuration; this is called on every allocation and does
+     * not synchronize unless the configuration needs to be (re)built.
+     * 
+     * @return configuration snapshot, never null
+     */
+    OutboundConfig getConfig() {
+        OutboundConfig ret = mConfig;
+        if (ret == null || !ret.isCurrent(mRA)) {
+            ret = buildConfig();
+        }
+        return ret;
+    }
+
+    private synchronized OutboundConfig buildConfig() {
+        // Another thread may have built the configuration already
+        OutboundConfig ret = mConfig;
+        if (ret != null && ret.isCurrent(mRA)) {
+            return ret;
         }
-        
-        // Effective URL for ObjectFactory: fact takes precedence 
-        mObjFactory =  mRA.createObjectFactory(mRA, null, this);
         
         // Cache RA URL and Options to detect changes in these values
-        mRAUrl = mRA.lookUpLDAP(mRA.getConnectionURL());
-        mRAOptionsStr = mRA.getOptions();
+        String raUrl = mRA.getConnectionURL();
+        String raOptionsStr = mRA.getOptions();
         
+        // Effective URL for ObjectFactory: fact takes precedence 
+        RAJMSObjectFactory o = mRA.createObjectFactory(mRA, null, this);
         Properties p = new Properties();
         try {
-            mObjFactory.getProperties(p, mRA, null, this, null);
+            o.getProperties(p, mRA, null, this, null);
         } catch (JMSException e) {
             throw Exc.rtexc(LOCALE.x("E220: Could not decode configuration: {0}", e), e);
         }
-        mOptions = p;
-
-        // Extract values; system properties have highest precedence
-        mClientContainer = Utility.isTrue(p.getProperty(Options.Out.CLIENTCONTAINER), false);
-        mClientContainer = Utility.getSystemProperty(Options.Out.CLIENTCONTAINER, mClientContainer);
-        mIgnoreTx = Utility.isTrue(p.getProperty(Options.Out.IGNORETX), !mClientContainer);
-        mIgnoreTx = Utility.getSystemProperty(Options.Out.IGNORETX, mIgnoreTx);
-        mNoXA = Utility.isTrue(p.getProperty(Options.NOXA), mClientContainer);
-        mNoXA = Utility.getSystemProperty(Options.NOXA, mNoXA);
-        mBypassRA = Utility.isTrue(p.getProperty(Options.Out.BYPASSRA), false);
-        mBypassRA = Utility.getSystemProperty(Options.Out.BYPASSRA, mBypassRA);
-        mOverrideIsSameRM = Utility.isTrue(p.getProperty(Options.OVERRIDEISSAMERM), false);
-        mDoNotCacheConnectionFactories = Utility.isTrue(p.getProperty(Options.Out.DONOTCACHECONNECTIONFACTORIES), 
-            !getObjFactory().shouldCacheConnectionFactories());
-        mStrict = Utility.isTrue(p.getProperty(Options.Out.STRICT), false);
-        mStrict = Utility.getSystemProperty(Options.Out.STRICT, mStrict);
-        mTxMgrLocatorClass = p.getProperty(Options.TXMGRLOCATOR, TxMgr.class.getName());
-        mTxMgrLocatorClass = Utility.getSystemProperty(Options.TXMGRLOCATOR, mTxMgrLocatorClass);
-        mEffectiveProducerPoolingOn = Utility.isTrue(p.getProperty(Options.Out.PRODUCER_POOLING, null)
-            , mProducerPoolingOnBeanProperty || getObjFactory().shouldUseProducerPooling());
-        
-        mEffectiveIdleTimeout = Long.parseLong(p.getProperty(Options.Out.STALETIMEOUT, Long.toString(mIdleTimeoutBeanProperty)));
+        ret = new OutboundConfig(raUrl, raOptionsStr, o, p, mProducerPoolingOnBeanProperty, 
+            mIdleTimeoutBeanProperty);
+
+        if (mProducerPoolStats == null) {
+            mProducerPoolStats = new ProducerPool.Stats();
+        }
+        if (ret.isAsyncSend() && mAsyncSendStats == null) {
+            mAsyncSendStats = new AsyncSendStats();
+        }
         
-        mOptionsAreSet = true;
+        mConfig = ret;
+        return ret;
     }
 
     /**
@@ -637,6 +700,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      */
     public void setProducerPooling(String setOn) {
         mProducerPoolingOnBeanProperty = "true".equalsIgnoreCase(setOn);
+        mConfig = null;
         if (sLog.isDebugEnabled()) {
             sLog.debug("Setting mProducerPoolingOn to " + mProducerPoolingOnBeanProperty);
         }
@@ -657,8 +721,53 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return true if on
      */
     public boolean isProducerPoolingOn() {
-        extractOptions();
-        return mEffectiveProducerPoolingOn;
+        return getConfig().isProducerPoolingOn();
+    }
+
+    /**
+     * @return maximum number of pooled producers per connection
+     */
+    public int getProducerPoolSize() {
+        return getConfig().getProducerPoolSize();
+    }
+
+    /**
+     * @return destinations for which producers are created in advance; may be null
+     */
+    public String getProducerPrecreate() {
+        return getConfig().getProducerPrecreate();
+    }
+
+    /**
+     * @return statistics of producer pooling
+     */
+    public ProducerPool.Stats getProducerPoolStats() {
+        getConfig();
+        return mProducerPoolStats;
+    }
+
+    /**
+     * Creates the pipeline for asynchronous sending for the specified connection
+     *
+     * @param mc connection
+     * @return new pipeline or null if asynchronous sending is not turned on 
+     *   (JMSJCA.asyncsend)
+     */
+    public AsyncSendPipeline createAsyncSendPipeline(XManagedConnection mc) {
+        OutboundConfig config = getConfig();
+        if (!config.isAsyncSend()) {
+            return null;
+        }
+        return new AsyncSendPipeline(mc, config.getAsyncSendCapacity(), config.getAsyncSendBatch(), 
+            config.getAsyncSendTimeout(), mAsyncSendStats);
+    }
+
+    /**
+     * @return statistics of asynchronous sending; null if never turned on
+     */
+    public AsyncSendStats getAsyncSendStats() {
+        getConfig();
+        return mAsyncSendStats;
     }
 
     /**
@@ -762,7 +871,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      */
     public void setOptions(String options) {
         mOptionsStr = options;
-        mOptionsAreSet = false;
+        mConfig = null;
     }
 
     /**
@@ -771,8 +880,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return String
      */
     public Properties getOptionsAsProperties() {
-        extractOptions();
-        return mOptions;
+        return getConfig().getOptions();
     }
 
     /**
@@ -781,8 +889,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return boolean
      */
     public boolean getOptionNoXA() {
-        extractOptions();
-        return mNoXA;
+        return getConfig().isNoXA();
     }
 
     /**
@@ -791,8 +898,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return boolean
      */
     public boolean getOptionClientContainer() {
-        extractOptions();
-        return mClientContainer;
+        return getConfig().isClientContainer();
     }
 
     /**
@@ -803,8 +909,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return boolean
      */
     public boolean getOptionIgnoreNonTx() {
-        extractOptions();
-        return mIgnoreTx;
+        return getConfig().isIgnoreTx();
     }
 
     /**
@@ -813,16 +918,14 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return boolean
      */
     public boolean getOptionBypassRA() {
-        extractOptions();
-        return mBypassRA;
+        return getConfig().isBypassRA();
     }
 
     /**
      * @return true if the XAResource needs to be wrapped to override isSameRM
      */
     public boolean isOverrideIsSameRM() {
-        extractOptions();
-        return mOverrideIsSameRM;
+        return getConfig().isOverrideIsSameRM();
     }
     
     /**
@@ -831,8 +934,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return boolean
      */
     public boolean getOptionDoNotCacheConnectionFactories() {
-        extractOptions();
-        return mDoNotCacheConnectionFactories;
+        return getConfig().isDoNotCacheConnectionFactories();
     }
 
     /**
@@ -841,8 +943,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return boolean
      */
     public boolean getOptionStrict() {
-        extractOptions();
-        return mStrict;
+        return getConfig().isStrict();
     }
     
     /**
@@ -889,6 +990,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
         ret.append("Class: " + getClass() + ";\n");
         ret.append("Managed connections created: " + mCtMCCreated + ";\n");
         ret.append("Managed connections destroyed: " + mCtMCDestroyed + ";\n");
+        ret.append("Connection pools:\n" + dumpPoolInfo());
         ret.append("Current managed connections:\n");
         
         Object[] factories;
@@ -943,10 +1045,10 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
     public synchronized TxMgr getTxMgr() {
         if (mTxMgr == null) {
             try {
-                Class<?> c = Class.forName(mTxMgrLocatorClass, false, this.getClass().getClassLoader()); 
+                OutboundConfig config = getConfig();
+                Class<?> c = Class.forName(config.getTxMgrLocatorClass(), false, this.getClass().getClassLoader()); 
                 TxMgr txmgr = (TxMgr) c.newInstance();
-                extractOptions();
-                txmgr.init(mOptions);
+                txmgr.init(config.getOptions());
                 mTxMgr = txmgr;
             } catch (Exception e) {
                 sLog.warn(LOCALE.x("E088: Transaction manager locator cannot be initialized: {0}", e), e);
@@ -959,8 +1061,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
      * @return idle timeout in ms
      */
     public long getEffectiveIdleTimeout() {
-        extractOptions();
-        return mEffectiveIdleTimeout;
+        return getConfig().getIdleTimeout();
     }
     
     /**
@@ -984,6 +1085,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
                 , Long.toString(idleTimeout)));
         }
         mIdleTimeoutBeanProperty = idleTimeout;
+        mConfig = null;
     }
     
     /**
@@ -993,8 +1095,7 @@ public abstract class XManagedConnectionFactory implements ManagedConnectionFact
     public InterceptorChainBuilder getInterceptorChainBuilder() throws Exception {
         if (mInterceptorChainBuilder == null) {
             // Interceptors
-            String serviceName = getOptionsAsProperties()
-            .getProperty(Options.Interceptor.SERVICENAME, Options.Interceptor.DEFAULT_SERVICENAME);
+            String serviceName = getConfig().getInterceptorServiceName();
             HashMap<Class<?>, InterceptorInfo> interceptors = InterceptorLoader.getInterceptors(serviceName);
             mInterceptorChainBuilder = new InterceptorChainBuilder(interceptors.values());
         }
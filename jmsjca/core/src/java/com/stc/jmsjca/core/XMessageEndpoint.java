@@ -24,8 +24,7 @@ import javax.jms.Message;
 import javax.resource.spi.endpoint.MessageEndpoint;
 
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 /**
  * Encapsulates an endpoint plus interceptors
@@ -60,11 +59,7 @@ public class XMessageEndpoint {
             ((javax.jms.MessageListener) mEndpoint).onMessage(m);
         } else {
             try {
-                // Create context data map
-                Map<String, Object> contextData = new HashMap<String, Object>();
-                contextData.put(Options.Interceptor.KEY_MESSAGE, m);
-                
-                mInterceptorChain.invoke(mEndpoint, mTargetMethod, contextData, m);
+                mInterceptorChain.invoke(mEndpoint, mTargetMethod, Options.Interceptor.KEY_MESSAGE, m, m);
             } catch (RuntimeException e) {
                 throw e;
             } catch (Exception e) {
@@ -73,6 +68,23 @@ public class XMessageEndpoint {
         }
     }
 
+    /**
+     * @return true if the endpoint can receive a batch of messages in one call
+     *   (not if there are interceptors: these operate on single messages)
+     */
+    public boolean isBatchListener() {
+        return mInterceptorChain == null && mEndpoint instanceof BatchMessageListener;
+    }
+
+    /**
+     * Delivers a batch of messages to the endpoint in one call; see isBatchListener()
+     * 
+     * @param msgs messages
+     */
+    public void onMessages(List<Message> msgs) {
+        ((BatchMessageListener) mEndpoint).onMessages(msgs);
+    }
+
     /**
      * Delegates the MessagEndpoint#release() method 
      */
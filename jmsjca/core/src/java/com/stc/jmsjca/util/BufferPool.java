@@ -0,0 +1,92 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of byte buffers of a fixed size, so that copying large payloads
+ * does not allocate a new buffer each time. Safe for use by multiple threads; a
+ * buffer that is taken should be given back when the caller is done with it.
+ * If the pool is empty, a new buffer is allocated; if the pool is full, a buffer
+ * that is given back is left to the garbage collector.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class BufferPool {
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final ConcurrentLinkedQueue<byte[]> mPool = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger mNPooled = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param bufferSize size of each buffer
+     * @param maxPooled maximum number of idle buffers kept
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    /**
+     * @return size of the buffers
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if the pool is empty
+     *
+     * @return buffer of getBufferSize() bytes
+     */
+    public byte[] take() {
+        byte[] ret = mPool.poll();
+        if (ret != null) {
+            mNPooled.decrementAndGet();
+            return ret;
+        }
+        return new byte[mBufferSize];
+    }
+
+    /**
+     * Returns a buffer to the pool
+     *
+     * @param buf buffer obtained through take()
+     */
+    public void give(byte[] buf) {
+        if (buf == null || buf.length != mBufferSize) {
+            return;
+        }
+        if (mNPooled.incrementAndGet() <= mMaxPooled) {
+            mPool.add(buf);
+        } else {
+            mNPooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of idle buffers in the pool
+     */
+    public int size() {
+        return mNPooled.get();
+    }
+}
@@ -20,22 +20,34 @@ import com.stc.jmsjca.localization.Localizer;
 
 import javax.interceptor.InvocationContext;
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents a full interceptor chain. A different chain is built for each endpoint and 
  * is reused for all messages ever sent to that endpoint.
  * 
+ * Since an endpoint processes one message at a time, the chain keeps one invocation 
+ * context that is reused for each invocation; a new context is only created if the 
+ * chain is invoked while the context is in use, e.g. recursively. Invocations of
+ * MessageListener.onMessage() at the end of the chain are done directly rather than
+ * through reflection.
+ * 
  * @author fkieviet
  */
 public class InterceptorChain {
-    private List<InterceptorInstance> mInterceptors;
+    private final InterceptorInstance[] mInterceptors;
+    private final AtomicReference<XInvocationContext> mIdleContext = new AtomicReference<XInvocationContext>();
     private static final Localizer LOCALE = Localizer.get();
+    private static final Method ON_MESSAGE = InterceptorUtil.getMethod(MessageListener.class, "onMessage"
+        , Message.class);
 
     /**
      * Constructor
@@ -46,35 +58,61 @@ public class InterceptorChain {
      */
     public InterceptorChain(List<InterceptorInstance> interceptors) {
         super();
-        mInterceptors = interceptors;
+        mInterceptors = interceptors.toArray(new InterceptorInstance[interceptors.size()]);
     }
 
     /**
-     * The invocation context that is passed around to the interceptors. A new 
-     * context is used for each message. 
+     * The invocation context that is passed around to the interceptors. A context is
+     * reused for subsequent messages, but is used for only one message at a time. 
      * 
      * @author fkieviet
      */
     public class XInvocationContext implements InvocationContext {
-        private Iterator<InterceptorInstance> mIterator;
+        private int mCursor;
         private Object[] mParameters;
         private Map<String, Object> mContextData;
+        private Map<String, Object> mOwnContextData;
         private Method mEndpointMethod;
         private Object mEndpoint;
+        private MessageListener mListener;
 
         /**
-         * Constructor
+         * Prepares the context for an invocation
          * 
-         * @param it live iterator that is going over the list of iterators
+         * @param endpoint target
+         * @param endpointMethod method to invoke on the target
+         * @param contextData context data; if null, a map owned by this context is used
          * @param args method arguments (the JMS Message)
          */
-        public XInvocationContext(Iterator<InterceptorInstance> it, Object endpoint
-            , Method endpointMethod, Map<String, Object> contextData, Object[] args) {
-            mIterator = it;
+        private void init(Object endpoint, Method endpointMethod, Map<String, Object> contextData
+            , Object[] args) {
+            mCursor = 0;
             mEndpointMethod = endpointMethod;
             mEndpoint = endpoint;
-            mContextData = contextData;
             mParameters = args;
+            if (contextData == null) {
+                if (mOwnContextData == null) {
+                    mOwnContextData = new HashMap<String, Object>();
+                }
+                contextData = mOwnContextData;
+            }
+            mContextData = contextData;
+            mListener = endpoint instanceof MessageListener && ON_MESSAGE.equals(endpointMethod) 
+                ? (MessageListener) endpoint : null;
+        }
+
+        /**
+         * Releases all references so that the context can be reused
+         */
+        private void clear() {
+            mEndpointMethod = null;
+            mEndpoint = null;
+            mListener = null;
+            mParameters = null;
+            mContextData = null;
+            if (mOwnContextData != null) {
+                mOwnContextData.clear();
+            }
         }
 
         public Map<String, Object> getContextData() {
@@ -108,8 +146,12 @@ public class InterceptorChain {
         public Object proceed() throws Exception {
             // Call the next interceptor, or the final endpoint
             try {
-                if (mIterator.hasNext()) {
-                    return mIterator.next().invoke(this);
+                if (mCursor < mInterceptors.length) {
+                    return mInterceptors[mCursor++].invoke(this);
+                } else if (mListener != null && mParameters != null && mParameters.length == 1 
+                    && mParameters[0] instanceof Message) {
+                    mListener.onMessage((Message) mParameters[0]);
+                    return null;
                 } else {
                     return mEndpointMethod.invoke(mEndpoint, mParameters);
                 }
@@ -135,15 +177,44 @@ public class InterceptorChain {
      *
      * @param endpoint target endpoint object
      * @param endpointMethod to invoke on target endpoint object
-     * @param contextData contextdata passed to interceptors
+     * @param contextData contextdata passed to interceptors; if null, an empty map
+     *   is passed that is only valid for the duration of the invocation
      * @param args parameters to pass to the final endpoint
      * @return return value of the method on the final endpoint
      * @throws Exception propagated
      */
     public Object invoke(Object endpoint, Method endpointMethod
         , Map<String, Object> contextData, Object... args) throws Exception {
-        Iterator<InterceptorInstance> it = mInterceptors.iterator();
-        XInvocationContext ctx = new XInvocationContext(it, endpoint, endpointMethod, contextData, args);
+        return invoke0(endpoint, endpointMethod, contextData, null, null, args);
+    }
+
+    /**
+     * Invoke the final endpoint through the chain of interceptors, with one entry in
+     * the context data
+     *
+     * @param endpoint target endpoint object
+     * @param endpointMethod to invoke on target endpoint object
+     * @param key key of the entry in the context data
+     * @param value value of the entry in the context data
+     * @param args parameters to pass to the final endpoint
+     * @return return value of the method on the final endpoint
+     * @throws Exception propagated
+     */
+    public Object invoke(Object endpoint, Method endpointMethod
+        , String key, Object value, Object... args) throws Exception {
+        return invoke0(endpoint, endpointMethod, null, key, value, args);
+    }
+
+    private Object invoke0(Object endpoint, Method endpointMethod, Map<String, Object> contextData
+        , String key, Object value, Object[] args) throws Exception {
+        XInvocationContext ctx = mIdleContext.getAndSet(null);
+        if (ctx == null) {
+            ctx = new XInvocationContext();
+        }
+        ctx.init(endpoint, endpointMethod, contextData, args);
+        if (key != null) {
+            ctx.getContextData().put(key, value);
+        }
         try {
             return ctx.proceed();
         } catch (InvocationTargetException e) {
@@ -151,6 +222,9 @@ public class InterceptorChain {
                 throw (Exception) e.getTargetException();
             }
             throw e;
+        } finally {
+            ctx.clear();
+            mIdleContext.set(ctx);
         }
     }
 
@@ -188,7 +188,14 @@ public final class InterceptorLoader {
                     }
                 } else {
                     InterceptorInfo c = new InterceptorInfo(class1, svcDescriptorURL, iLine);
-                    c.setMethod(getInterceptor(class1));
+                    Method m = getInterceptor(class1);
+                    try {
+                        // Avoids the access check on each invocation
+                        m.setAccessible(true);
+                    } catch (SecurityException ignore) {
+                        // ignore
+                    }
+                    c.setMethod(m);
                     toAddTo.put(class1, c);
                 }
             } catch (Exception e) {
@@ -0,0 +1,265 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded map that evicts the least recently used entries, and optionally
+ * entries that have not been accessed for a specified time (TTL). It is safe for
+ * use by multiple threads: the keys are spread over a number of segments, and each
+ * segment is locked separately, so threads that access different keys seldom contend.
+ *
+ * The size limit and the LRU order are maintained per segment; the index as a whole
+ * holds at most the specified number of entries. With small sizes there is only one
+ * segment so that the LRU order is exact.
+ *
+ * @param <K> key
+ * @param <V> value
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class LRUIndex<K, V> {
+    /**
+     * Minimum number of entries per segment; the index will not be split up any
+     * further than this
+     */
+    private static final int MIN_SEGMENT_SIZE = 256;
+
+    private final Segment<K, V>[] mSegments;
+    private final int mMask;
+    private final long mTTLNanos;
+    private final StripedCounter mHits = new StripedCounter();
+    private final StripedCounter mMisses = new StripedCounter();
+    private final StripedCounter mEvictions = new StripedCounter();
+
+    /**
+     * A slot: the value and when it was last accessed
+     */
+    private static final class Slot<V> {
+        private final V mValue;
+        private long mLastAccess;
+
+        public Slot(V value, long now) {
+            mValue = value;
+            mLastAccess = now;
+        }
+    }
+
+    /**
+     * A segment is a LinkedHashMap in access order; must be locked when accessed
+     */
+    private static final class Segment<K, V> extends LinkedHashMap<K, Slot<V>> {
+        private static final long serialVersionUID = 1L;
+        private final int mCapacity;
+        private final long mTTLNanos;
+        private final StripedCounter mEvictions;
+
+        public Segment(int capacity, long ttlNanos, StripedCounter evictions) {
+            super(16, 0.75f, true);
+            mCapacity = capacity;
+            mTTLNanos = ttlNanos;
+            mEvictions = evictions;
+        }
+
+        /**
+         * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+         */
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Slot<V>> eldest) {
+            if (size() > mCapacity) {
+                mEvictions.increment();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Removes entries that have expired; since the entries are in access order,
+         * the expired ones are at the beginning
+         */
+        public void expire(long now) {
+            for (Iterator<Slot<V>> iter = values().iterator(); iter.hasNext();/*-*/) {
+                Slot<V> e = iter.next();
+                if (now - e.mLastAccess <= mTTLNanos) {
+                    break;
+                }
+                iter.remove();
+                mEvictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxSize maximum number of entries
+     * @param ttlMs time in ms after which an entry that was not accessed is evicted;
+     *   0 means that entries are only evicted when the index is full
+     */
+    public LRUIndex(int maxSize, long ttlMs) {
+        if (maxSize < 1) {
+            maxSize = 1;
+        }
+        int n = 1;
+        while (n < StripedCounter.defaultStripes() * 2 && maxSize / (n * 2) >= MIN_SEGMENT_SIZE) {
+            n <<= 1;
+        }
+        mMask = n - 1;
+        mTTLNanos = ttlMs * 1000000L;
+        mSegments = newSegments(n);
+        for (int i = 0; i < n; i++) {
+            // Distribute the remainder so that the total is exactly maxSize
+            mSegments[i] = new Segment<K, V>(maxSize / n + (i < maxSize % n ? 1 : 0), mTTLNanos, 
+                mEvictions);
+        }
+    }
+
+    /**
+     * Creates an empty array of segments; an array of a generic type cannot be 
+     * created directly
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Segment<K, V>[] newSegments(int n) {
+        return (Segment<K, V>[]) new Segment<?, ?>[n];
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return mSegments[h & mMask];
+    }
+
+    /**
+     * Looks up a value and marks it as most recently used
+     *
+     * @param key key
+     * @return value or null if not found or if evicted
+     */
+    public V get(K key) {
+        Segment<K, V> s = segmentFor(key);
+        long now = mTTLNanos > 0 ? System.nanoTime() : 0;
+        synchronized (s) {
+            Slot<V> e = s.get(key);
+            if (e != null && mTTLNanos > 0 && now - e.mLastAccess > mTTLNanos) {
+                s.remove(key);
+                mEvictions.increment();
+                e = null;
+            }
+            if (e == null) {
+                mMisses.increment();
+                return null;
+            }
+            e.mLastAccess = now;
+            mHits.increment();
+            return e.mValue;
+        }
+    }
+
+    /**
+     * Adds a value unless there is a value already for the specified key; may evict
+     * the least recently used value.
+     *
+     * @param key key
+     * @param value value to add
+     * @return the value that was already associated with the key, or null if the
+     *   specified value was added
+     */
+    public V putIfAbsent(K key, V value) {
+        Segment<K, V> s = segmentFor(key);
+        long now = mTTLNanos > 0 ? System.nanoTime() : 0;
+        synchronized (s) {
+            Slot<V> e = s.get(key);
+            if (e != null) {
+                e.mLastAccess = now;
+                return e.mValue;
+            }
+            if (mTTLNanos > 0) {
+                s.expire(now);
+            }
+            s.put(key, new Slot<V>(value, now));
+            return null;
+        }
+    }
+
+    /**
+     * Removes all entries; the hit, miss and eviction counters are not affected
+     */
+    public void clear() {
+        for (int i = 0; i < mSegments.length; i++) {
+            synchronized (mSegments[i]) {
+                mSegments[i].clear();
+            }
+        }
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        int ret = 0;
+        for (int i = 0; i < mSegments.length; i++) {
+            synchronized (mSegments[i]) {
+                ret += mSegments[i].size();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return number of segments (for testing)
+     */
+    public int getNSegments() {
+        return mSegments.length;
+    }
+
+    /**
+     * @return number of lookups that found a value
+     */
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    /**
+     * @return number of lookups that did not find a value
+     */
+    public long getMisses() {
+        return mMisses.sum();
+    }
+
+    /**
+     * @return number of entries evicted because the index was full or because they
+     *   expired
+     */
+    public long getEvictions() {
+        return mEvictions.sum();
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters
+     */
+    public void resetStats() {
+        mHits.reset();
+        mMisses.reset();
+        mEvictions.reset();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies (or any other non-negative long value) that can
+ * be updated from many threads concurrently, and that can be used to obtain
+ * percentiles such as the median or the 99th percentile.
+ *
+ * Values are counted in log-linear buckets: each power of two is divided into
+ * 8 sub-buckets, so that a percentile is accurate within 12.5%. Values smaller than
+ * 8 are counted exactly. Each thread updates its own stripe of buckets so that
+ * threads do not compete for the same memory locations.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    /**
+     * Number of buckets in each stripe
+     */
+    static final int NBUCKETS = bucketOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray mBuckets;
+    private final int mMask;
+    private final StripedCounter mTotal;
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Constructor
+     */
+    public LatencyHistogram() {
+        this(StripedCounter.defaultStripes());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param nStripes number of stripes; will be rounded up to a power of two
+     */
+    public LatencyHistogram(int nStripes) {
+        int n = StripedCounter.powerOfTwo(nStripes);
+        mMask = n - 1;
+        mBuckets = new AtomicLongArray(n * NBUCKETS);
+        mTotal = new StripedCounter(n);
+    }
+
+    /**
+     * @param value value to classify
+     * @return the index of the bucket that the specified value falls in
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return the largest value that falls in the specified bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BITS) - 1;
+        long sub = bucket & (SUB_COUNT - 1);
+        return ((SUB_COUNT + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value
+     *
+     * @param value value, typically a latency in microseconds
+     */
+    public void record(long value) {
+        int stripe = StripedCounter.threadStripe(mMask);
+        mBuckets.incrementAndGet(stripe * NBUCKETS + bucketOf(value));
+        mTotal.add(value);
+
+        // Only contended when a new maximum is reached, which is rare
+        for (long max = mMax.get(); value > max; max = mMax.get()) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return sums up all stripes
+     */
+    private long[] snapshot() {
+        long[] ret = new long[NBUCKETS];
+        for (int s = 0; s <= mMask; s++) {
+            int base = s * NBUCKETS;
+            for (int i = 0; i < NBUCKETS; i++) {
+                ret[i] += mBuckets.get(base + i);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        long ret = 0;
+        long[] buckets = snapshot();
+        for (int i = 0; i < buckets.length; i++) {
+            ret += buckets[i];
+        }
+        return ret;
+    }
+
+    /**
+     * @return the highest value recorded
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return the average of all values recorded, 0 if nothing was recorded
+     */
+    public long getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : mTotal.sum() / n;
+    }
+
+    /**
+     * Returns the value below which the specified fraction of the recorded values
+     * falls, e.g. 0.99 for the 99th percentile.
+     *
+     * @param fraction between 0 and 1
+     * @return upper bound of the bucket in which the percentile falls, 0 if nothing
+     *   was recorded
+     */
+    public long getPercentile(double fraction) {
+        long[] buckets = snapshot();
+        long n = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            n += buckets[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(fraction * n);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Clears all recorded values; values recorded concurrently may or may not be lost
+     */
+    public void reset() {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            mBuckets.set(i, 0);
+        }
+        mTotal.reset();
+        mMax.set(0);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "n=" + getCount()
+            + ", mean=" + getMean()
+            + ", p50=" + getPercentile(0.5)
+            + ", p99=" + getPercentile(0.99)
+            + ", p999=" + getPercentile(0.999)
+            + ", max=" + getMax();
+    }
+}
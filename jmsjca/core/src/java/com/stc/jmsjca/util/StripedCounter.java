@@ -0,0 +1,155 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent updates over a number of cells (stripes) so that
+ * many threads that update the counter at a high rate do not contend on a single
+ * memory location or monitor. Updating is cheap; reading the value sums up all
+ * cells and is therefore more expensive. If updates happen while the value is being
+ * read, the value returned is not an atomic snapshot.
+ *
+ * Threads are mapped onto cells by their thread id. Cells are spaced a cache line
+ * apart to avoid false sharing.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public class StripedCounter {
+    /**
+     * Number of longs between two cells (8 longs = 64 bytes = one cache line)
+     */
+    private static final int PAD = 8;
+
+    /**
+     * Upper limit on the number of stripes
+     */
+    private static final int MAX_STRIPES = 64;
+
+    private final AtomicLongArray mCells;
+    private final int mMask;
+
+    /**
+     * Constructor; uses as many stripes as there are processors
+     */
+    public StripedCounter() {
+        this(defaultStripes());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param nStripes number of cells; will be rounded up to a power of two
+     */
+    public StripedCounter(int nStripes) {
+        int n = powerOfTwo(nStripes);
+        mMask = n - 1;
+        mCells = new AtomicLongArray(n * PAD);
+    }
+
+    /**
+     * @param n minimum
+     * @return smallest power of two that is equal to or greater than n, limited
+     *   to MAX_STRIPES
+     */
+    static int powerOfTwo(int n) {
+        int ret = 1;
+        while (ret < n && ret < MAX_STRIPES) {
+            ret <<= 1;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of stripes that is suitable for this machine
+     */
+    public static int defaultStripes() {
+        return powerOfTwo(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Maps the current thread onto a stripe
+     *
+     * @param mask number of stripes minus one (number of stripes must be power of two)
+     * @return stripe index between 0 and mask (inclusive)
+     */
+    static int threadStripe(int mask) {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & mask;
+    }
+
+    /**
+     * Adds the specified value to the counter
+     *
+     * @param delta value to add (may be negative)
+     * @return the new value of the cell that was updated; this is NOT the value of the
+     *   counter but can be used to do something every so many updates by the same
+     *   thread without having to sum up the counter
+     */
+    public long add(long delta) {
+        return mCells.addAndGet(threadStripe(mMask) * PAD, delta);
+    }
+
+    /**
+     * Adds one to the counter
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Subtracts one from the counter
+     */
+    public void decrement() {
+        add(-1);
+    }
+
+    /**
+     * @return the current value of the counter
+     */
+    public long sum() {
+        long ret = 0;
+        for (int i = 0; i <= mMask; i++) {
+            ret += mCells.get(i * PAD);
+        }
+        return ret;
+    }
+
+    /**
+     * Sets the counter to zero; updates that happen concurrently may or may not
+     * be lost.
+     */
+    public void reset() {
+        for (int i = 0; i <= mMask; i++) {
+            mCells.set(i * PAD, 0);
+        }
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
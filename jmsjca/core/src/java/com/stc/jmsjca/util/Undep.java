@@ -21,6 +21,8 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -34,6 +36,7 @@ public final class Undep implements InvocationHandler {
     private Class<?> mItf;
     private Object mTarget;
     private String mClassname;
+    private Map<Method, Method> mMethods = new ConcurrentHashMap<Method, Method>();
         
     private Undep(Class<?> itf, Object target) {
         mTarget = target;
@@ -65,9 +68,13 @@ public final class Undep implements InvocationHandler {
             mTarget = constructor.newInstance(args);
             return null;
         } else {
-            Class<?>[] argtypes = method.getParameterTypes();
-            // TODO: do argument type conversions
-            Method m = mTarget.getClass().getMethod(method.getName(), argtypes);
+            Method m = mMethods.get(method);
+            if (m == null) {
+                Class<?>[] argtypes = method.getParameterTypes();
+                // TODO: do argument type conversions
+                m = mTarget.getClass().getMethod(method.getName(), argtypes);
+                mMethods.put(method, m);
+            }
             
             // TODO: do argument conversions
             return m.invoke(mTarget, args);
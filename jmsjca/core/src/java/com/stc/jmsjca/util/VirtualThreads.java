@@ -0,0 +1,110 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads if the JVM supports them (Java 21 and later), and
+ * platform threads otherwise. Since the connector is compiled for older JVMs, the
+ * virtual thread builder is accessed through reflection.
+ *
+ * @author fkieviet
+ * @version $Revision: 1.1 $
+ */
+public final class VirtualThreads {
+    private static Logger sLog = Logger.getLogger(VirtualThreads.class);
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual", new Class<?>[0]);
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", new Class<?>[] {String.class});
+            unstarted = builder.getMethod("unstarted", new Class<?>[] {Runnable.class});
+        } catch (Exception e) {
+            // Not supported
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the JVM can create virtual threads
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Before Java 24, a virtual thread that waits inside a synchronized block or 
+     * method cannot unmount, and keeps its carrier thread occupied
+     * 
+     * @return true if virtual threads are supported but are pinned while waiting on 
+     *   a monitor
+     */
+    public static boolean isPinnedByMonitors() {
+        return isSupported() && isPinnedByMonitors(System.getProperty("java.specification.version"));
+    }
+
+    /**
+     * @param specVersion java.specification.version of a JVM
+     * @return true if virtual threads of that JVM are pinned while waiting on a 
+     *   monitor; public for testing
+     */
+    public static boolean isPinnedByMonitors(String specVersion) {
+        try {
+            return Integer.parseInt(specVersion) < 24;
+        } catch (NumberFormatException e) {
+            // E.g. 1.8
+            return true;
+        }
+    }
+
+    /**
+     * Creates an unstarted thread
+     *
+     * @param r what the thread should run
+     * @param name name of the thread
+     * @param virtual true if a virtual thread should be created if supported
+     * @return new thread
+     */
+    public static Thread newThread(Runnable r, String name, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null, new Object[0]);
+                builder = NAME.invoke(builder, new Object[] {name});
+                return (Thread) UNSTARTED.invoke(builder, new Object[] {r});
+            } catch (Exception e) {
+                if (sLog.isDebugEnabled()) {
+                    sLog.debug("Virtual thread could not be created; using a platform thread: " + e, e);
+                }
+            }
+        }
+        return new Thread(r, name);
+    }
+}
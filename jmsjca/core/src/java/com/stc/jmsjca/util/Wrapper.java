@@ -22,8 +22,8 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>This is a universal wrapper around a delegate interface. All methods defined in
@@ -43,6 +43,12 @@ import java.util.Set;
  * invokeOnClosed() to be called. This method needs to be overridden and may throw an
  * exception if that is the desired behavior.</p>
  *
+ * <p>Which object a method is forwarded to, and which method is called on it, is
+ * determined only once per wrapper and interface method; subsequent calls
+ * only cost a map lookup and the reflective call itself. Wrappers for interfaces that
+ * are called frequently should rather be implemented as static delegates (see
+ * NoProxyWrapper).</p>
+ *
  * @author Frank Kieviet
  * @version $Revision: 1.7 $
  */
@@ -51,7 +57,7 @@ public abstract class Wrapper implements InvocationHandler {
     private Class<?> mItf;
     private Object mInterceptor;
     private Object mWrapper;
-    private Set<String> mInterceptedMethods;
+    private Map<Method, Route> mRoutes;
     private ClassLoader mClassloader;
     private Object mDelegate;
     private int mCtExceptions;
@@ -60,6 +66,19 @@ public abstract class Wrapper implements InvocationHandler {
 
     private static final Localizer LOCALE = Localizer.get();
 
+    /**
+     * Where an interface method is forwarded to
+     */
+    private static final class Route {
+        private final Method mMethod;
+        private final boolean mIntercepted;
+
+        public Route(Method method, boolean intercepted) {
+            mMethod = method;
+            mIntercepted = intercepted;
+        }
+    }
+
     /**
      * Initializes the object
      *
@@ -74,16 +93,10 @@ public abstract class Wrapper implements InvocationHandler {
         Object interceptor, String signature) {
         mItf = itf;
         mInterceptor = interceptor;
-        mInterceptedMethods = new HashSet<String>();
         mClassloader = classloader;
         mDelegate = delegate;
         mSignature = signature;
-
-        // Cache method names in interceptor
-        Method[] methods = mInterceptor.getClass().getMethods();
-        for (int i = 0; i < methods.length; i++) {
-            mInterceptedMethods.add(methods[i].getName());
-        }
+        mRoutes = new ConcurrentHashMap<Method, Route>();
 
         createNewWrapper();
     }
@@ -280,6 +293,29 @@ public abstract class Wrapper implements InvocationHandler {
         return ret;
     }
 
+    /**
+     * Determines where the specified interface method should be forwarded to: the
+     * interceptor if it has a method with the same name and parameter types, the
+     * delegate otherwise.
+     *
+     * @param method interface method
+     * @return route
+     */
+    private Route getRoute(Method method) {
+        Route ret = mRoutes.get(method);
+        if (ret == null) {
+            try {
+                Method m = mInterceptor.getClass().getMethod(method.getName(), method.getParameterTypes());
+                ret = new Route(m, true);
+            } catch (NoSuchMethodException ignore) {
+                // ignore: not intercepted
+                ret = new Route(method, false);
+            }
+            mRoutes.put(method, ret);
+        }
+        return ret;
+    }
+
     /**
      * Required by the InvocationHandler interface; called on each invocation of the
      * interface. Delegates the call to either the delegate or the interceptor.
@@ -298,23 +334,9 @@ public abstract class Wrapper implements InvocationHandler {
             invokeOnClosed(proxy, method, args);
         } else {
 
-            // Check if interceptor method exists
-            if (!mInterceptedMethods.contains(method.getName())) {
-                // Name doesn't exist: don't even bother to try to locate the method
-                target = getDelegate();
-            } else {
-                try {
-                    // Locate the method; may fail if there is a method with the same name
-                    // but mismatching parameters (this probably IS an error though --
-                    // consider throwing an exception)
-                    method = mInterceptor.getClass().getMethod(method.
-                        getName(), method.getParameterTypes());
-                    target = mInterceptor;
-                } catch (NoSuchMethodException ignore) {
-                    // ignore: name existed but likely parameter types mismatch
-                    target = getDelegate();
-                }
-            }
+            Route route = getRoute(method);
+            method = route.mMethod;
+            target = route.mIntercepted ? mInterceptor : getDelegate();
 
             // Delegate method
             try {
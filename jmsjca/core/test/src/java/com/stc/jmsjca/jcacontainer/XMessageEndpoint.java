@@ -16,6 +16,7 @@
 
 package com.stc.jmsjca.jcacontainer;
 
+import com.stc.jmsjca.core.BatchMessageListener;
 import com.stc.jmsjca.localization.LocalizedString;
 import com.stc.jmsjca.util.Exc;
 
@@ -96,6 +97,8 @@ public class XMessageEndpoint implements MessageEndpoint, InvocationHandler {
         try {
             if (method.equals(mMethod)) {
                 return invokeTarget(args);
+            } else if (method.getDeclaringClass() == BatchMessageListener.class) {
+                return method.invoke(mTarget, args);
             } else {
                 return method.invoke(this, args);
             }
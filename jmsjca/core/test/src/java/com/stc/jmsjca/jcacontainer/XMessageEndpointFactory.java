@@ -16,6 +16,8 @@
 
 package com.stc.jmsjca.jcacontainer;
 
+import com.stc.jmsjca.core.BatchMessageListener;
+
 import javax.resource.spi.UnavailableException;
 import javax.resource.spi.endpoint.MessageEndpoint;
 import javax.resource.spi.endpoint.MessageEndpointFactory;
@@ -48,8 +50,10 @@ public class XMessageEndpointFactory implements MessageEndpointFactory {
         Object target = mFact.createMDB();
         
         XMessageEndpoint ep = new XMessageEndpoint(this, xar, target, mMethod, mTxMgr);
-        MessageEndpoint ret = (MessageEndpoint) Proxy.newProxyInstance(
-            mItf.getClassLoader(), new Class[] { mItf, MessageEndpoint.class }, ep);
+        Class<?>[] itfs = target instanceof BatchMessageListener 
+            ? new Class[] { mItf, MessageEndpoint.class, BatchMessageListener.class } 
+            : new Class[] { mItf, MessageEndpoint.class };
+        MessageEndpoint ret = (MessageEndpoint) Proxy.newProxyInstance(mItf.getClassLoader(), itfs, ep);
         
         return ret;
     }
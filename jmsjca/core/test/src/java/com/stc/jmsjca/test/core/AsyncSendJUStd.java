@@ -0,0 +1,121 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.core.TxMgr;
+import com.stc.jmsjca.core.XMCFUnifiedXA;
+import com.stc.jmsjca.core.XManagedConnectionFactory;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import junit.framework.TestCase;
+
+public class AsyncSendJUStd extends TestCase {
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+    private TestTransactionManager mTxMgr;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+        mTxMgr = new TestTransactionManager();
+        TxMgr.setUnitTestTxMgr(mTxMgr);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRA.stop();
+        MemoryJMS.reset(getName());
+        TxMgr.setUnitTestTxMgr(null);
+    }
+
+    private XManagedConnectionFactory createMCF(String... options) {
+        XManagedConnectionFactory mcf = new XMCFUnifiedXA();
+        mcf.setResourceAdapter(mRA);
+        StringBuilder s = new StringBuilder();
+        s.append(Options.Out.ASYNC_SEND).append("=true\n");
+        s.append(Options.Out.IGNORETX).append("=false\n");
+        for (int i = 0; i < options.length; i++) {
+            s.append(options[i]).append("\n");
+        }
+        mcf.setOptions(s.toString());
+        return mcf;
+    }
+
+    private ConnectionFactory createCF(XManagedConnectionFactory mcf) throws Exception {
+        return (ConnectionFactory) mcf.createConnectionFactory(mcf.createDefaultConnectionManager());
+    }
+
+    private void send(ConnectionFactory cf, String dest, String text) throws Exception {
+        Connection c = cf.createConnection();
+        try {
+            Session s = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer p = s.createProducer(s.createQueue(dest));
+            p.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            p.send(s.createTextMessage(text));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testXAConnectionSendsInTransaction() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF();
+        ConnectionFactory cf = createCF(mcf);
+
+        // Rolled back with the transaction
+        mTxMgr.begin();
+        send(cf, "q", "1");
+        mTxMgr.rollback();
+        assertFalse(mServer.waitForSize("q", 1, 500));
+
+        // Committed with the transaction
+        mTxMgr.begin();
+        send(cf, "q", "2");
+        assertEquals(0, mServer.size("q"));
+        mTxMgr.commit();
+        assertEquals(1, mServer.size("q"));
+        assertEquals(0, mcf.getAsyncSendStats().getEnqueued());
+    }
+
+    public void testXAConnectionWithoutTransactionSendsSynchronously() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF();
+        ConnectionFactory cf = createCF(mcf);
+
+        send(cf, "q", "1");
+        assertEquals(1, mServer.size("q"));
+        assertEquals(0, mcf.getAsyncSendStats().getEnqueued());
+    }
+
+    public void testNoXAConnectionSendsAsynchronously() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.NOXA + "=true");
+        ConnectionFactory cf = createCF(mcf);
+
+        for (int i = 0; i < 10; i++) {
+            send(cf, "q", Integer.toString(i));
+        }
+        assertTrue(mServer.waitForSize("q", 10, 5000));
+        assertEquals(10, mcf.getAsyncSendStats().getEnqueued());
+    }
+}
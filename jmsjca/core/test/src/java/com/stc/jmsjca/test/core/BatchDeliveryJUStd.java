@@ -0,0 +1,264 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.BatchMessageListener;
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.core.RAJMSActivationSpec;
+import com.stc.jmsjca.core.TxMgr;
+import com.stc.jmsjca.core.WMessageIn;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.TextMessage;
+import javax.resource.ResourceException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class BatchDeliveryJUStd extends TestCase {
+    private static final String DEST = "Queue1";
+    private static final String DLQ = "DLQ";
+    
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRA.stop();
+        MemoryJMS.reset(getName());
+        TxMgr.setUnitTestTxMgr(null);
+    }
+    
+    private RAJMSActivationSpec createSpec(int batchSize) throws ResourceException {
+        RAJMSActivationSpec spec = new MemoryJMS.ActivationSpec();
+        spec.setResourceAdapter(mRA);
+        spec.setDestinationType(Queue.class.getName());
+        spec.setDestination(DEST);
+        spec.setConcurrencyMode("sync");
+        spec.setEndpointPoolMaxSize(Integer.valueOf(1));
+        spec.setBatchSize(Integer.valueOf(batchSize));
+        spec.setRedeliveryHandling("1:0");
+        spec.setOptions(Options.In.RECEIVE_TIMEOUT + "=500");
+        return spec;
+    }
+    
+    private void send(String prefix, int n) {
+        for (int i = 0; i < n; i++) {
+            mServer.send(DEST, prefix + i);
+        }
+    }
+    
+    /**
+     * Records the batches delivered; process() can be overridden to act on a batch
+     */
+    private static class BatchMDB implements MessageListener, BatchMessageListener {
+        private final List<List<String>> mBatches = new ArrayList<List<String>>();
+        private int mNOnMessage;
+        
+        public synchronized void onMessage(Message m) {
+            mNOnMessage++;
+        }
+        
+        public void onMessages(List<Message> msgs) {
+            List<String> texts = new ArrayList<String>();
+            int iCall;
+            try {
+                for (Message m : msgs) {
+                    texts.add(((TextMessage) m).getText());
+                }
+                synchronized (this) {
+                    iCall = mBatches.size();
+                    mBatches.add(texts);
+                    notifyAll();
+                }
+                process(iCall, msgs);
+            } catch (JMSException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        
+        protected void process(int iCall, List<Message> msgs) throws JMSException {
+        }
+        
+        public synchronized List<List<String>> getBatches() {
+            return new ArrayList<List<String>>(mBatches);
+        }
+        
+        public synchronized int getNOnMessage() {
+            return mNOnMessage;
+        }
+        
+        public synchronized Set<String> waitForDistinct(int n, long timeout) throws InterruptedException {
+            long until = System.currentTimeMillis() + timeout;
+            for (;;) {
+                Set<String> ret = new HashSet<String>();
+                for (List<String> batch : mBatches) {
+                    ret.addAll(batch);
+                }
+                long wait = until - System.currentTimeMillis();
+                if (ret.size() >= n || wait <= 0) {
+                    return ret;
+                }
+                wait(wait);
+            }
+        }
+    }
+    
+    private void activate(BatchMDB mdb, RAJMSActivationSpec spec, boolean cmt) throws Exception {
+        MockContainer c = new MockContainer(mdb);
+        if (!cmt) {
+            c.setNoTx();
+        }
+        mRA.start(c.getBootstrapContext());
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+    }
+    
+    private void doTestDelivery(boolean cmt) throws Throwable {
+        BatchMDB mdb = new BatchMDB();
+        RAJMSActivationSpec spec = createSpec(10);
+        send("m", 25);
+        
+        activate(mdb, spec, cmt);
+        assertEquals(25, mdb.waitForDistinct(25, 30000).size());
+        mRA.stop();
+        
+        // All messages were delivered once through onMessages()
+        int n = 0;
+        for (List<String> batch : mdb.getBatches()) {
+            assertTrue(batch.size() <= 10);
+            n += batch.size();
+        }
+        assertEquals(25, n);
+        assertTrue(mdb.getBatches().size() >= 3);
+        assertEquals(0, mdb.getNOnMessage());
+        assertEquals(0, mServer.size(DEST));
+        if (!cmt) {
+            assertEquals(0, mServer.getRollbacks());
+        }
+    }
+    
+    public void testDelivery() throws Throwable {
+        doTestDelivery(false);
+    }
+    
+    public void testDeliveryCMT() throws Throwable {
+        doTestDelivery(true);
+    }
+    
+    /**
+     * The first batch is rolled back; its messages should be delivered again
+     */
+    private void doTestRollback(BatchMDB mdb) throws Throwable {
+        RAJMSActivationSpec spec = createSpec(10);
+        send("m", 25);
+        
+        activate(mdb, spec, false);
+        assertEquals(25, mdb.waitForDistinct(25, 30000).size());
+        mRA.stop();
+        
+        List<List<String>> batches = mdb.getBatches();
+        int n = 0;
+        for (List<String> batch : batches) {
+            n += batch.size();
+        }
+        assertEquals(25 + batches.get(0).size(), n);
+        assertEquals(batches.get(0), batches.get(1));
+        assertEquals(0, mdb.getNOnMessage());
+        assertEquals(0, mServer.size(DEST));
+        assertEquals(1, mServer.getRollbacks());
+    }
+    
+    public void testRollbackOnException() throws Throwable {
+        doTestRollback(new BatchMDB() {
+            @Override
+            protected void process(int iCall, List<Message> msgs) {
+                if (iCall == 0) {
+                    throw new RuntimeException("Failure in first batch");
+                }
+            }
+        });
+    }
+    
+    public void testRollbackOnSetRollbackOnly() throws Throwable {
+        doTestRollback(new BatchMDB() {
+            @Override
+            protected void process(int iCall, List<Message> msgs) throws JMSException {
+                if (iCall == 0) {
+                    msgs.get(msgs.size() - 1).setBooleanProperty(WMessageIn.SETROLLBACKONLY, true);
+                }
+            }
+        });
+    }
+    
+    /**
+     * In HUA mode, the transaction should complete when all messages that were passed
+     * to the endpoint were acknowledged, also if some messages of the batch were 
+     * moved to the DLQ by the redelivery handler instead
+     */
+    public void testHoldUntilAck() throws Throwable {
+        BatchMDB mdb = new BatchMDB() {
+            @Override
+            protected void process(int iCall, List<Message> msgs) throws JMSException {
+                if (iCall == 0) {
+                    // These will be received together with the redelivered messages
+                    send("n", 5);
+                    msgs.get(0).setBooleanProperty(WMessageIn.SETROLLBACKONLY, true);
+                }
+                for (Message m : msgs) {
+                    m.acknowledge();
+                }
+            }
+        };
+        RAJMSActivationSpec spec = createSpec(10);
+        spec.setHoldUntilAck("1");
+        spec.setRedeliveryHandling("1:move(queue:" + DLQ + ")");
+        send("m", 5);
+        
+        activate(mdb, spec, false);
+        assertEquals(10, mdb.waitForDistinct(10, 30000).size());
+        assertTrue(mServer.waitForSize(DLQ, 5, 30000));
+        mRA.stop();
+        
+        List<List<String>> batches = mdb.getBatches();
+        assertEquals(5, batches.get(0).size());
+        int n = 0;
+        for (List<String> batch : batches.subList(1, batches.size())) {
+            for (String s : batch) {
+                assertTrue(s, s.startsWith("n"));
+            }
+            n += batch.size();
+        }
+        assertEquals(5, n);
+        assertEquals(0, mServer.size(DEST));
+        assertEquals(1, mServer.getRollbacks());
+    }
+}
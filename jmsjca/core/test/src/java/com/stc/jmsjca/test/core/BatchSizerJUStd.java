@@ -0,0 +1,105 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.BatchSizer;
+
+import junit.framework.TestCase;
+
+public class BatchSizerJUStd extends TestCase {
+    private static final long MS = 1000000L;
+    
+    /**
+     * Reports batches of n messages that start every intervalMs and take commitMs to
+     * commit
+     */
+    private static void run(BatchSizer s, int nBatches, int n, long intervalMs, long commitMs) {
+        for (int i = 0; i < nBatches; i++) {
+            s.onBatchCompleted(n, i * intervalMs * MS, commitMs * MS);
+        }
+    }
+    
+    public void testNotAdaptive() throws Throwable {
+        BatchSizer s = new BatchSizer(50, 100, false, 1);
+        run(s, 100, 1, 1000, 1);
+        assertEquals(50, s.getTarget());
+        assertEquals(100, s.getBatches());
+        assertEquals(1.0, s.getAverage(), 0.001);
+    }
+    
+    public void testBacklog() throws Throwable {
+        // 10 messages every 5 ms: 2 msg/ms
+        BatchSizer s = new BatchSizer(50, 100, true, 1);
+        run(s, 100, 10, 5, 4);
+        assertEquals(50, s.getTarget());
+    }
+    
+    public void testLowRate() throws Throwable {
+        // One message per second: not worth waiting for a second message
+        BatchSizer s = new BatchSizer(50, 100, true, 1);
+        run(s, 10, 1, 1000, 1);
+        assertEquals(1, s.getTarget());
+    }
+    
+    public void testSingleMessageBatches() throws Throwable {
+        // One message every 10 ms: 0.1 msg/ms, so 10.1 messages within the deadline 
+        // plus commit time
+        BatchSizer s = new BatchSizer(50, 100, true, 1);
+        run(s, 100, 1, 10, 1);
+        assertEquals(11, s.getTarget());
+    }
+    
+    public void testImmediateBatchesWithIdleTime() throws Throwable {
+        // 5 messages that are available at once, every 50 ms; the idle time between 
+        // the batches counts
+        BatchSizer s = new BatchSizer(50, 100, true, 1);
+        run(s, 100, 5, 50, 1);
+        assertEquals(11, s.getTarget());
+    }
+    
+    public void testReceivers() throws Throwable {
+        // The arrivals are shared by two workers
+        BatchSizer s = new BatchSizer(50, 100, true, 2);
+        run(s, 100, 5, 50, 1);
+        assertEquals(6, s.getTarget());
+    }
+    
+    public void testConcurrentStarts() throws Throwable {
+        // Two workers start their batches at almost the same time every 50 ms, in 
+        // either order; this is the same rate as 10 messages every 50 ms
+        BatchSizer s = new BatchSizer(50, 100, true, 2);
+        for (int i = 0; i < 100; i++) {
+            long t = i * 50 * MS;
+            s.onBatchCompleted(5, t + (i % 2) * 1000, MS);
+            s.onBatchCompleted(5, t + ((i + 1) % 2) * 1000, MS);
+        }
+        assertEquals(11, s.getTarget());
+    }
+    
+    public void testAdapts() throws Throwable {
+        BatchSizer s = new BatchSizer(50, 100, true, 1);
+        run(s, 100, 1, 1000, 1);
+        assertEquals(1, s.getTarget());
+        
+        // Traffic picks up
+        for (int i = 0; i < 100; i++) {
+            s.onBatchCompleted(10, (100000 + i * 5) * MS, 4 * MS);
+        }
+        assertEquals(50, s.getTarget());
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.core.PoolPartition;
+import com.stc.jmsjca.core.TxMgr;
+import com.stc.jmsjca.core.XDefaultConnectionManager;
+import com.stc.jmsjca.core.XMCFUnifiedXA;
+import com.stc.jmsjca.core.XManagedConnectionFactory;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import javax.transaction.Transaction;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class ConnectionPoolJUStd extends TestCase {
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+    private TestTransactionManager mTxMgr;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+        mTxMgr = new TestTransactionManager();
+        TxMgr.setUnitTestTxMgr(mTxMgr);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRA.stop();
+        MemoryJMS.reset(getName());
+        TxMgr.setUnitTestTxMgr(null);
+    }
+
+    private XManagedConnectionFactory createMCF(String... options) {
+        XManagedConnectionFactory mcf = new XMCFUnifiedXA();
+        mcf.setResourceAdapter(mRA);
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < options.length; i++) {
+            s.append(options[i]).append("\n");
+        }
+        mcf.setOptions(s.toString());
+        return mcf;
+    }
+
+    private XDefaultConnectionManager createPool(XManagedConnectionFactory mcf) {
+        return (XDefaultConnectionManager) mcf.createDefaultConnectionManager();
+    }
+
+    private ConnectionFactory createCF(XManagedConnectionFactory mcf, XDefaultConnectionManager pool)
+        throws Exception {
+        return (ConnectionFactory) mcf.createConnectionFactory(pool);
+    }
+
+    /**
+     * Creates a connection and a session so that a managed connection is taken from
+     * the pool
+     */
+    private Connection take(ConnectionFactory cf) throws JMSException {
+        Connection c = cf.createConnection();
+        try {
+            c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        } catch (JMSException e) {
+            c.close();
+            throw e;
+        }
+        return c;
+    }
+
+    private Connection take(ConnectionFactory cf, String user) throws JMSException {
+        Connection c = cf.createConnection(user, user);
+        try {
+            c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        } catch (JMSException e) {
+            c.close();
+            throw e;
+        }
+        return c;
+    }
+
+    private static PoolPartition getPartition(XDefaultConnectionManager pool, String user) {
+        for (PoolPartition p : pool.getPartitions()) {
+            if (p.getKey().toString().endsWith("/" + user)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private static void closeAll(List<Connection> cs) throws JMSException {
+        for (Connection c : cs) {
+            c.close();
+        }
+        cs.clear();
+    }
+
+    public void testConcurrentMaxSize() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_ENGINE + "=" + Options.Out.POOL_ENGINE_CONCURRENT,
+            Options.Out.POOL_MAXSIZE + "=3", Options.Out.POOL_TIMEOUT + "=100");
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        List<Connection> cs = new ArrayList<Connection>();
+        for (int i = 0; i < 3; i++) {
+            cs.add(take(cf));
+        }
+        assertEquals(3, pool.getPoolSize());
+        assertEquals(0, pool.getIdleCount());
+        try {
+            take(cf);
+            fail("Pool exceeded its maximum size");
+        } catch (JMSException expected) {
+            // ok
+        }
+        assertEquals(3, pool.getPoolSize());
+        assertEquals(3, mServer.getConnectionsCreated());
+
+        closeAll(cs);
+        assertEquals(3, pool.getIdleCount());
+        pool.testIdleConsistency();
+
+        // Idle connections are reused
+        for (int i = 0; i < 3; i++) {
+            cs.add(take(cf));
+        }
+        assertEquals(3, mServer.getConnectionsCreated());
+        closeAll(cs);
+        pool.testIdleConsistency();
+    }
+
+    public void testConcurrentTimeout() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_ENGINE + "=" + Options.Out.POOL_ENGINE_CONCURRENT,
+            Options.Out.POOL_MAXSIZE + "=1", Options.Out.POOL_TIMEOUT + "=300");
+        XDefaultConnectionManager pool = createPool(mcf);
+        final ConnectionFactory cf = createCF(mcf, pool);
+
+        Connection c = take(cf);
+        long t0 = System.currentTimeMillis();
+        try {
+            take(cf);
+            fail("Should have timed out");
+        } catch (JMSException expected) {
+            // ok
+        }
+        long dt = System.currentTimeMillis() - t0;
+        assertTrue("Waited " + dt, dt >= 250 && dt < 5000);
+
+        // A waiter gets the connection when it is released in time
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    take(cf).close();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+                done.countDown();
+            }
+        }.start();
+        Thread.sleep(50);
+        c.close();
+        done.await();
+        assertNull(failure.get());
+        pool.testIdleConsistency();
+    }
+
+    public void testConcurrentIdleConsistency() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_ENGINE + "=" + Options.Out.POOL_ENGINE_CONCURRENT,
+            Options.Out.POOL_MAXSIZE + "=4", Options.Out.POOL_TIMEOUT + "=30000");
+        final XDefaultConnectionManager pool = createPool(mcf);
+        final ConnectionFactory cf = createCF(mcf, pool);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            take(cf).close();
+                            pool.testConsistency();
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertNull(failure.get());
+        assertTrue(pool.getPoolSize() <= 4);
+        assertEquals(pool.getPoolSize(), pool.getIdleCount());
+        pool.testIdleConsistency();
+    }
+
+    public void testConcurrentStopWakesWaiters() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_ENGINE + "=" + Options.Out.POOL_ENGINE_CONCURRENT,
+            Options.Out.POOL_MAXSIZE + "=1", Options.Out.POOL_TIMEOUT + "=60000");
+        XDefaultConnectionManager pool = createPool(mcf);
+        final ConnectionFactory cf = createCF(mcf, pool);
+
+        Connection c = take(cf);
+        final AtomicReference<Throwable> result = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        take(cf).close();
+                    } catch (Throwable e) {
+                        result.set(e);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        Thread.sleep(200);
+        assertEquals(2, done.getCount());
+
+        pool.stop();
+        long t0 = System.currentTimeMillis();
+        done.await();
+        assertTrue(System.currentTimeMillis() - t0 < 5000);
+        assertTrue(result.get() instanceof JMSException);
+
+        // The connection in use is destroyed when it is returned
+        c.close();
+        assertEquals(0, pool.getPoolSize());
+        assertEquals(0, mServer.getConnectionsOpen());
+    }
+
+    private static int countMaintenanceThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && "JMSJCA pool maintenance".equals(t.getName())) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static int waitForMaintenanceThreads(int expected) throws InterruptedException {
+        int n = countMaintenanceThreads();
+        for (int i = 0; i < 100 && n != expected; i++) {
+            Thread.sleep(50);
+            n = countMaintenanceThreads();
+        }
+        return n;
+    }
+
+    public void testConfigurationIsReadLazily() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF();
+        XDefaultConnectionManager pool = createPool(mcf);
+        mcf.setOptions(Options.Out.POOL_MAXSIZE + "=1\n" + Options.Out.POOL_TIMEOUT + "=100\n");
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        Connection c = take(cf);
+        try {
+            take(cf);
+            fail("Maximum pool size set after creating the pool was not used");
+        } catch (JMSException expected) {
+            // ok
+        }
+        c.close();
+    }
+
+    public void testOptionsChangedWhileConnectionInUse() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF();
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        // Changing the options discards the configuration; the connection in use 
+        // still needs the object factory when it is returned to the pool
+        Connection c = take(cf);
+        mcf.setOptions(Options.Out.POOL_MAXSIZE + "=2\n");
+        c.close();
+        assertEquals(1, pool.getIdleCount());
+        
+        c = take(cf);
+        mcf.setIdleTimeout("1000");
+        assertNotNull(mcf.getObjFactory());
+        c.close();
+        assertEquals(1, mServer.getConnectionsCreated());
+    }
+
+    public void testPrewarm() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_MINSIZE + "=3", Options.Out.POOL_MAXSIZE + "=5");
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        take(cf).close();
+        assertEquals(1, pool.getPoolSize());
+        pool.runMaintenance();
+        assertEquals(3, pool.getPoolSize());
+        assertEquals(3, pool.getIdleCount());
+        assertEquals(2, pool.getStats().getPrewarmed());
+        pool.testIdleConsistency();
+    }
+
+    public void testPrewarmBeforeFirstUse() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_MINSIZE + "=2", Options.Out.POOL_MAXSIZE + "=5");
+        XDefaultConnectionManager pool = createPool(mcf);
+
+        // The maintenance thread fills the pool without the pool being used
+        for (int i = 0; i < 100 && pool.getIdleCount() < 2; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, pool.getPoolSize());
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(2, pool.getStats().getPrewarmed());
+        assertEquals(2, mServer.getConnectionsCreated());
+
+        // Which are then used
+        take(createCF(mcf, pool)).close();
+        assertEquals(2, mServer.getConnectionsCreated());
+        pool.testIdleConsistency();
+    }
+
+    public void testPrewarmSkipsClientID() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_MINSIZE + "=3", Options.Out.POOL_MAXSIZE + "=5");
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        Connection c = cf.createConnection();
+        c.setClientID("cid");
+        c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        c.close();
+
+        // The idle connection still has the clientID, so pre-warmed connections should
+        // not try to use it
+        pool.runMaintenance();
+        assertEquals(3, pool.getPoolSize());
+        assertEquals(2, pool.getStats().getPrewarmed());
+        assertEquals(Collections.singleton("cid"), mServer.getClientIDs());
+        pool.testIdleConsistency();
+    }
+
+    public void testMaintenanceTimerIsSharedAndStopped() throws Throwable {
+        assertEquals(0, waitForMaintenanceThreads(0));
+        for (int i = 0; i < 3; i++) {
+            XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_MINSIZE + "=1", 
+                Options.Out.POOL_MAINTENANCE_INTERVAL + "=1000");
+            XDefaultConnectionManager pool = createPool(mcf);
+            take(createCF(mcf, pool)).close();
+        }
+        assertEquals(1, countMaintenanceThreads());
+        mRA.stop();
+        assertEquals(0, waitForMaintenanceThreads(0));
+    }
+
+    public void testMaintenanceDoesNotHoldPool() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_MINSIZE + "=1", 
+            Options.Out.POOL_MAINTENANCE_INTERVAL + "=1000");
+        XDefaultConnectionManager pool = createPool(mcf);
+        take(createCF(mcf, pool)).close();
+
+        WeakReference<XDefaultConnectionManager> ref = new WeakReference<XDefaultConnectionManager>(pool);
+        pool = null;
+        for (int i = 0; i < 100 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(ref.get());
+    }
+
+    public void testConcurrentAffinityDoesNotHoldPool() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_ENGINE + "=" + Options.Out.POOL_ENGINE_CONCURRENT);
+        XDefaultConnectionManager pool = createPool(mcf);
+        take(createCF(mcf, pool)).close();
+        assertEquals(1, pool.getIdleCount());
+
+        // This thread outlives the pool; its affinity should not keep the idle
+        // connection and with it the MCF alive
+        WeakReference<XManagedConnectionFactory> ref = new WeakReference<XManagedConnectionFactory>(mcf);
+        pool = null;
+        mcf = null;
+        for (int i = 0; i < 100 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(ref.get());
+    }
+
+    public void testConcurrentAffinityAfterStop() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_ENGINE + "=" + Options.Out.POOL_ENGINE_CONCURRENT);
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+        take(cf).close();
+        pool.stop();
+        assertEquals(0, pool.getPoolSize());
+        assertEquals(0, mServer.getConnectionsOpen());
+        pool.testIdleConsistency();
+    }
+
+    private void doTestPartitionLookup(String engine) throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_ENGINE + "=" + engine,
+            Options.Out.POOL_MAXSIZE + "=10");
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        List<Connection> cs = new ArrayList<Connection>();
+        for (int i = 0; i < 3; i++) {
+            cs.add(take(cf, "a"));
+            cs.add(take(cf, "b"));
+        }
+        closeAll(cs);
+        assertEquals(6, pool.getIdleCount());
+        assertEquals(3, getPartition(pool, "a").getIdleCount());
+        assertEquals(3, getPartition(pool, "b").getIdleCount());
+
+        // Served from the partition of the request
+        for (int i = 0; i < 3; i++) {
+            cs.add(take(cf, "b"));
+        }
+        assertEquals(6, mServer.getConnectionsCreated());
+        assertEquals(3, getPartition(pool, "a").getIdleCount());
+        assertEquals(0, getPartition(pool, "b").getIdleCount());
+        assertEquals(3, getPartition(pool, "b").getHits());
+
+        // No idle connection for this key: a new one is created
+        cs.add(take(cf, "c"));
+        assertEquals(7, mServer.getConnectionsCreated());
+        assertEquals(1, getPartition(pool, "c").getMisses());
+        closeAll(cs);
+        pool.testIdleConsistency();
+    }
+
+    public void testPartitionLookup() throws Throwable {
+        doTestPartitionLookup("default");
+    }
+
+    public void testConcurrentPartitionLookup() throws Throwable {
+        doTestPartitionLookup(Options.Out.POOL_ENGINE_CONCURRENT);
+    }
+
+    private void doTestMaxIdlePerKey(String engine) throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_ENGINE + "=" + engine,
+            Options.Out.POOL_MAXSIZE + "=10", Options.Out.POOL_MAXIDLE_PER_KEY + "=2");
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        List<Connection> cs = new ArrayList<Connection>();
+        for (int i = 0; i < 4; i++) {
+            cs.add(take(cf, "a"));
+        }
+        closeAll(cs);
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(2, pool.getPoolSize());
+        assertEquals(2, mServer.getConnectionsOpen());
+        pool.testIdleConsistency();
+
+        // Other keys are not affected
+        for (int i = 0; i < 2; i++) {
+            cs.add(take(cf, "b"));
+        }
+        closeAll(cs);
+        assertEquals(4, pool.getIdleCount());
+        assertEquals(2, getPartition(pool, "a").getIdleCount());
+        assertEquals(2, getPartition(pool, "b").getIdleCount());
+        pool.testIdleConsistency();
+    }
+
+    public void testMaxIdlePerKey() throws Throwable {
+        doTestMaxIdlePerKey("default");
+    }
+
+    public void testConcurrentMaxIdlePerKey() throws Throwable {
+        doTestMaxIdlePerKey(Options.Out.POOL_ENGINE_CONCURRENT);
+    }
+
+    public void testTxSlotFastPath() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_MAXSIZE + "=5");
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        // Reused in the transaction from the slot
+        mTxMgr.begin();
+        for (int i = 0; i < 5; i++) {
+            take(cf).close();
+            assertTrue(pool.testHasTxSlot());
+            assertEquals(0, pool.getIdleCount());
+        }
+        assertEquals(1, mServer.getConnectionsCreated());
+        mTxMgr.commit();
+
+        // Returned to the pool and forgotten by the thread
+        assertFalse(pool.testHasTxSlot());
+        assertEquals(1, pool.getIdleCount());
+        pool.testIdleConsistency();
+
+        // Next transaction
+        mTxMgr.begin();
+        take(cf).close();
+        mTxMgr.commit();
+        assertFalse(pool.testHasTxSlot());
+        assertEquals(1, mServer.getConnectionsCreated());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testTxSlotCompletedOnOtherThread() throws Throwable {
+        XManagedConnectionFactory mcf = createMCF(Options.Out.POOL_MAXSIZE + "=5");
+        XDefaultConnectionManager pool = createPool(mcf);
+        ConnectionFactory cf = createCF(mcf, pool);
+
+        mTxMgr.begin();
+        take(cf).close();
+        final Transaction tx = mTxMgr.suspend();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mTxMgr.resume(tx);
+                    mTxMgr.commit();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertNull(failure.get());
+
+        // The connection is back in the pool; the emptied slot is removed on next use
+        assertEquals(1, pool.getIdleCount());
+        assertTrue(pool.testHasTxSlot());
+        take(cf).close();
+        assertFalse(pool.testHasTxSlot());
+        assertEquals(1, mServer.getConnectionsCreated());
+        pool.testIdleConsistency();
+    }
+}
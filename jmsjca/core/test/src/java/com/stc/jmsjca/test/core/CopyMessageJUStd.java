@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.core.RAJMSObjectFactory;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class CopyMessageJUStd extends TestCase {
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+    private Connection mConnection;
+    private Session mSession;
+    private RAJMSObjectFactory mFactory;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+        mConnection = mServer.getConnectionFactory().createConnection();
+        mSession = mConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        mFactory = new MemoryJMS.ObjectFactory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mConnection.close();
+        MemoryJMS.reset(getName());
+    }
+    
+    private Message copy(Message m) throws JMSException {
+        return mFactory.copyMessage(m, mSession, false, false, mRA);
+    }
+    
+    private static byte[] createBody(int n) {
+        byte[] ret = new byte[n];
+        new Random(n).nextBytes(ret);
+        return ret;
+    }
+    
+    private static BytesMessage createBytesMessage(byte[] body) throws JMSException {
+        BytesMessage ret = MemoryJMS.createBytesMessage();
+        ret.writeBytes(body);
+        ret.reset();
+        return ret;
+    }
+    
+    private static byte[] getBody(BytesMessage m) throws JMSException {
+        m.reset();
+        byte[] ret = new byte[(int) m.getBodyLength()];
+        assertEquals(ret.length, Math.max(0, m.readBytes(ret)));
+        return ret;
+    }
+    
+    public void testBytesPartiallyRead() throws Throwable {
+        byte[] body = createBody(100);
+        BytesMessage m = createBytesMessage(body);
+        for (int i = 0; i < 10; i++) {
+            m.readByte();
+        }
+        
+        BytesMessage copy = (BytesMessage) copy(m);
+        assertTrue(Arrays.equals(body, getBody(copy)));
+    }
+    
+    public void testBytesLargerThanBuffer() throws Throwable {
+        byte[] body = createBody(3 * 64 * 1024 + 17);
+        BytesMessage copy = (BytesMessage) copy(createBytesMessage(body));
+        assertTrue(Arrays.equals(body, getBody(copy)));
+    }
+    
+    public void testBytesEmpty() throws Throwable {
+        BytesMessage copy = (BytesMessage) copy(createBytesMessage(new byte[0]));
+        assertEquals(0, getBody(copy).length);
+    }
+    
+    public void testHeadersWithoutProperties() throws Throwable {
+        TextMessage m = mSession.createTextMessage("x");
+        m.setJMSCorrelationID("corr");
+        m.setJMSReplyTo(mSession.createQueue("reply"));
+        m.setJMSType("type");
+        assertFalse(m.getPropertyNames().hasMoreElements());
+        
+        TextMessage copy = (TextMessage) copy(m);
+        assertEquals("x", copy.getText());
+        assertEquals("corr", copy.getJMSCorrelationID());
+        assertEquals(m.getJMSReplyTo(), copy.getJMSReplyTo());
+        assertEquals("type", copy.getJMSType());
+        assertFalse(copy.getPropertyNames().hasMoreElements());
+    }
+    
+    public void testProperties() throws Throwable {
+        Message m = mSession.createMessage();
+        m.setStringProperty("JMSXGroupID", "group");
+        m.setIntProperty("count", 3);
+        
+        Message copy = copy(m);
+        assertEquals("group", copy.getStringProperty(Options.MessageProperties.MSG_PROP_PREFIX + "JMSXGroupID"));
+        assertNull(copy.getObjectProperty("JMSXGroupID"));
+        assertEquals(3, copy.getIntProperty("count"));
+        assertEquals(2, Collections.list(copy.getPropertyNames()).size());
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.AckWaiter;
+import com.stc.jmsjca.core.ConcurrencyController;
+import com.stc.jmsjca.core.DeliveryStats;
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.util.LatencyHistogram;
+import com.stc.jmsjca.util.StripedCounter;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class DeliveryStatsJUStd extends TestCase {
+    
+    public void testCounterMultipleThreads() throws Throwable {
+        final StripedCounter c = new StripedCounter(4);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        c.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(80000, c.sum());
+        c.reset();
+        assertEquals(0, c.sum());
+    }
+    
+    public void testHistogramPercentiles() throws Throwable {
+        LatencyHistogram h = new LatencyHistogram(2);
+        assertEquals(0, h.getPercentile(0.5));
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(500, h.getMean());
+        
+        // Accuracy is 1/8th
+        long p50 = h.getPercentile(0.5);
+        assertTrue("p50=" + p50, p50 >= 500 && p50 <= 500 * 9 / 8);
+        long p99 = h.getPercentile(0.99);
+        assertTrue("p99=" + p99, p99 >= 990 && p99 <= 1000);
+        
+        h.reset();
+        assertEquals(0, h.getCount());
+    }
+    
+    public void testHistogramSmallAndLargeValues() throws Throwable {
+        LatencyHistogram h = new LatencyHistogram(1);
+        h.record(3);
+        assertEquals(3, h.getPercentile(1.0));
+        h.record(Long.MAX_VALUE);
+        assertEquals(2, h.getCount());
+        assertEquals(3, h.getPercentile(0.5));
+    }
+    
+    public void testStats() throws Throwable {
+        DeliveryStats s = new DeliveryStats();
+        for (int i = 0; i < 1500; i++) {
+            s.aboutToDeliverMessage();
+            s.onMessageCompleted(2000000);
+            s.messageDelivered();
+            s.msgDeliveryCommit();
+        }
+        s.msgDeliveryRollback();
+        
+        assertEquals(1500, s.getNMessages());
+        assertEquals(0, s.getNActiveEndpoints());
+        assertEquals(1, s.getNHighestEndpoints());
+        
+        Map<String, Long> dump = s.getDump();
+        assertEquals(1500, dump.get(Options.Stats.DELIVERY_COMMITS).longValue());
+        assertEquals(1, dump.get(Options.Stats.ROLLBACKS).longValue());
+        assertTrue(dump.get(Options.Stats.TIME_AT_SAMPLEPOINT_0).longValue() != 0);
+        assertTrue(dump.get(Options.Stats.TIME_AT_SAMPLEPOINT_1).longValue() != 0);
+        assertEquals(0, dump.get(Options.Stats.TIME_AT_SAMPLEPOINT_2).longValue());
+        long p50 = dump.get(Options.Stats.LATENCY_P50).longValue();
+        assertTrue("p50=" + p50, p50 >= 2000 && p50 <= 2000 * 9 / 8);
+        
+        s.reset();
+        assertEquals(0, s.getNMessages());
+        assertEquals(0, s.getOnMessageLatency().getCount());
+    }
+    
+    public void testConcurrencyController() throws Throwable {
+        // Interval of 0: reconsider on every call
+        ConcurrencyController c = new ConcurrencyController(2, 10, 0, 2.0);
+        assertEquals(10, c.getLimit());
+        c.onMessage(1000000);
+        assertEquals(10, c.getLimit());
+        
+        // Latency increases: back off multiplicatively to the minimum
+        c.onMessage(10000000);
+        assertEquals(ConcurrencyController.DECREASE, c.getLastDecision());
+        assertEquals(7, c.getLimit());
+        for (int i = 0; i < 3; i++) {
+            c.onMessage(10000000);
+        }
+        assertEquals(2, c.getLimit());
+        
+        // Latency back to normal, not idle: grow additively
+        c.onMessage(1000000);
+        assertEquals(ConcurrencyController.INCREASE, c.getLastDecision());
+        assertEquals(3, c.getLimit());
+        
+        // Limit enforced
+        for (int i = 0; i < 3; i++) {
+            assertTrue(c.acquire(0));
+        }
+        assertFalse(c.acquire(10));
+        c.release();
+        assertTrue(c.acquire(0));
+        assertEquals(3, c.getActive());
+        assertTrue(c.toString(), c.toString().indexOf("limit=3") >= 0);
+    }
+    
+    public void testConcurrencyControllerBacklog() throws Throwable {
+        ConcurrencyController c = new ConcurrencyController(2, 10, 50, 2.0);
+        Thread.sleep(60);
+        c.onMessage(1000000);
+        Thread.sleep(60);
+        c.onMessage(10000000);
+        assertEquals(7, c.getLimit());
+        
+        // Endpoints that wait to become active while other endpoints wait for messages
+        // do not indicate a backlog
+        for (int i = 0; i < 7; i++) {
+            assertTrue(c.acquire(0));
+        }
+        assertFalse(c.acquire(10));
+        c.onIdle();
+        Thread.sleep(60);
+        c.onMessage(1000000);
+        assertEquals(ConcurrencyController.HOLD, c.getLastDecision());
+        assertEquals(7, c.getLimit());
+        
+        // A message that waited for an endpoint does
+        c.onIdle();
+        c.onSaturated();
+        Thread.sleep(60);
+        c.onMessage(1000000);
+        assertEquals(ConcurrencyController.INCREASE, c.getLastDecision());
+        assertEquals(8, c.getLimit());
+    }
+    
+    public void testAckWaiter() throws Throwable {
+        // Ack before the message is counted
+        AckWaiter w = new AckWaiter();
+        w.ack();
+        w.expect(1);
+        assertTrue(w.await());
+        
+        // Woken up by the last ack
+        final AckWaiter w2 = new AckWaiter();
+        w2.expect(2);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                w2.ack();
+                w2.ack();
+            }
+        };
+        t.start();
+        assertTrue(w2.await());
+        t.join();
+        
+        // Cancelled
+        final AckWaiter w3 = new AckWaiter();
+        w3.expect(1);
+        t = new Thread() {
+            @Override
+            public void run() {
+                w3.cancel();
+            }
+        };
+        t.start();
+        assertFalse(w3.await());
+        t.join();
+        
+        DeliveryStats s = new DeliveryStats();
+        s.onAcksCompleted(5000000);
+        assertEquals(1, s.getAckLatency().getCount());
+        assertTrue(s.toString(), s.toString().indexOf("ackWait(us)") >= 0);
+    }
+}
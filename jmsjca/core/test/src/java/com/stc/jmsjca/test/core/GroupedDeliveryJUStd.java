@@ -0,0 +1,285 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.core.RAJMSActivationSpec;
+import com.stc.jmsjca.core.TxMgr;
+
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.TextMessage;
+import javax.resource.ResourceException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class GroupedDeliveryJUStd extends TestCase {
+    private static final String DEST = "Queue1";
+    private static final String DLQ = "DLQ";
+    private static final int NGROUPS = 5;
+    private static final int NPERGROUP = 40;
+    
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRA.stop();
+        MemoryJMS.reset(getName());
+        TxMgr.setUnitTestTxMgr(null);
+    }
+    
+    private RAJMSActivationSpec createSpec(int nLanes, String options) throws ResourceException {
+        RAJMSActivationSpec spec = new MemoryJMS.ActivationSpec();
+        spec.setResourceAdapter(mRA);
+        spec.setDestinationType(Queue.class.getName());
+        spec.setDestination(DEST);
+        spec.setConcurrencyMode("grouped");
+        spec.setEndpointPoolMaxSize(Integer.valueOf(nLanes));
+        spec.setBatchSize(Integer.valueOf(50));
+        spec.setRedeliveryHandling("1:0");
+        spec.setOptions(Options.In.RECEIVE_TIMEOUT + "=500" + (options == null ? "" : "\n" + options));
+        return spec;
+    }
+    
+    private void sendGroups() {
+        for (int i = 0; i < NPERGROUP; i++) {
+            for (int g = 0; g < NGROUPS; g++) {
+                MemoryJMS.Msg m = new MemoryJMS.Msg();
+                m.setText("g" + g + "-" + i);
+                m.setStringProperty("JMSXGroupID", "g" + g);
+                m.setIntProperty("seq", i);
+                mServer.send(DEST, m);
+            }
+        }
+    }
+    
+    /**
+     * Records the messages delivered
+     */
+    private static class Recorder implements MessageListener {
+        private final List<String> mDelivered = new ArrayList<String>();
+        private String mFailOnce;
+        private String mFailAlways;
+        private long mDelay;
+        
+        public void onMessage(Message m) {
+            String text;
+            try {
+                text = ((TextMessage) m).getText();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            if (mDelay > 0) {
+                try {
+                    Thread.sleep(mDelay);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            synchronized (this) {
+                mDelivered.add(text);
+                notifyAll();
+                if (text.equals(mFailOnce)) {
+                    mFailOnce = null;
+                    throw new RuntimeException("Failure on " + text);
+                }
+                if (text.equals(mFailAlways)) {
+                    throw new RuntimeException("Failure on " + text);
+                }
+            }
+        }
+        
+        public synchronized List<String> getDelivered() {
+            return new ArrayList<String>(mDelivered);
+        }
+        
+        public synchronized Set<String> waitForDistinct(int n, long timeout) throws InterruptedException {
+            long until = System.currentTimeMillis() + timeout;
+            for (;;) {
+                Set<String> ret = new HashSet<String>(mDelivered);
+                long wait = until - System.currentTimeMillis();
+                if (ret.size() >= n || wait <= 0) {
+                    return ret;
+                }
+                wait(wait);
+            }
+        }
+    }
+    
+    private static Map<String, List<Integer>> perGroup(List<String> delivered) {
+        Map<String, List<Integer>> ret = new HashMap<String, List<Integer>>();
+        for (String s : delivered) {
+            String g = s.substring(0, s.indexOf('-'));
+            List<Integer> seqs = ret.get(g);
+            if (seqs == null) {
+                seqs = new ArrayList<Integer>();
+                ret.put(g, seqs);
+            }
+            seqs.add(Integer.valueOf(s.substring(s.indexOf('-') + 1)));
+        }
+        return ret;
+    }
+    
+    public void testOrderPerGroup() throws Throwable {
+        Recorder mdb = new Recorder();
+        MockContainer c = new MockContainer(mdb);
+        c.setNoTx();
+        RAJMSActivationSpec spec = createSpec(3, null);
+        sendGroups();
+        
+        mRA.start(c.getBootstrapContext());
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+        assertEquals(NGROUPS * NPERGROUP, mdb.waitForDistinct(NGROUPS * NPERGROUP, 30000).size());
+        mRA.endpointDeactivation(c.getMessageEndpointFactory(), spec);
+        
+        List<String> delivered = mdb.getDelivered();
+        assertEquals(NGROUPS * NPERGROUP, delivered.size());
+        Map<String, List<Integer>> groups = perGroup(delivered);
+        assertEquals(NGROUPS, groups.size());
+        for (Map.Entry<String, List<Integer>> g : groups.entrySet()) {
+            List<Integer> seqs = g.getValue();
+            for (int i = 0; i < NPERGROUP; i++) {
+                assertEquals(g.getKey(), i, seqs.get(i).intValue());
+            }
+        }
+        assertEquals(0, mServer.size(DEST));
+        assertEquals(0, mServer.getRollbacks());
+    }
+    
+    /**
+     * A failure rolls back the receipt of all messages in the transaction; the 
+     * messages of other groups that were already processed should not be processed 
+     * again, nor be counted as redelivered: only the failing message should end up 
+     * in the DLQ
+     */
+    private void doTestFailure(boolean cmt) throws Throwable {
+        Recorder mdb = new Recorder();
+        mdb.mFailAlways = "g1-3";
+        MockContainer c = new MockContainer(mdb);
+        if (!cmt) {
+            c.setNoTx();
+        }
+        RAJMSActivationSpec spec = createSpec(cmt ? 1 : 3, cmt ? Options.NOXA + "=true" : null);
+        spec.setRedeliveryHandling("2:move(queue:" + DLQ + ")");
+        sendGroups();
+        
+        mRA.start(c.getBootstrapContext());
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+        assertEquals(NGROUPS * NPERGROUP, mdb.waitForDistinct(NGROUPS * NPERGROUP, 30000).size());
+        assertTrue(mServer.waitForSize(DLQ, 1, 30000));
+        mRA.endpointDeactivation(c.getMessageEndpointFactory(), spec);
+        
+        assertEquals(0, mServer.size(DEST));
+        assertTrue(mServer.getRollbacks() >= 1);
+        
+        // Only the failed message was moved
+        List<MemoryJMS.Msg> dlq = mServer.drain(DLQ);
+        assertEquals(1, dlq.size());
+        assertEquals("g1-3", dlq.get(0).getText());
+        
+        // All other messages were processed once, in order
+        List<String> delivered = mdb.getDelivered();
+        delivered.removeAll(Collections.singleton("g1-3"));
+        assertEquals(delivered.toString(), NGROUPS * NPERGROUP - 1, delivered.size());
+        Map<String, List<Integer>> groups = perGroup(delivered);
+        for (Map.Entry<String, List<Integer>> g : groups.entrySet()) {
+            List<Integer> seqs = g.getValue();
+            for (int i = 0, j = 0; i < NPERGROUP; i++) {
+                if (!(g.getKey() + "-" + i).equals("g1-3")) {
+                    assertEquals(g.getKey(), i, seqs.get(j++).intValue());
+                }
+            }
+        }
+    }
+    
+    public void testFailure() throws Throwable {
+        doTestFailure(false);
+    }
+    
+    public void testFailureCMT() throws Throwable {
+        doTestFailure(true);
+    }
+    
+    public void testCMTRequiresXAEmulation() throws Throwable {
+        Recorder mdb = new Recorder();
+        MockContainer c = new MockContainer(mdb);
+        mRA.start(c.getBootstrapContext());
+        
+        // XA: rejected
+        RAJMSActivationSpec spec = createSpec(1, null);
+        try {
+            mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+            mRA.endpointDeactivation(c.getMessageEndpointFactory(), spec);
+            fail("Grouped delivery should be rejected with XA");
+        } catch (ResourceException expected) {
+            // ok
+        }
+        
+        // XA emulation: allowed
+        sendGroups();
+        spec = createSpec(1, Options.NOXA + "=true");
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+        assertEquals(NGROUPS * NPERGROUP, mdb.waitForDistinct(NGROUPS * NPERGROUP, 30000).size());
+        mRA.endpointDeactivation(c.getMessageEndpointFactory(), spec);
+        assertEquals(0, mServer.size(DEST));
+    }
+    
+    public void testDeactivation() throws Throwable {
+        Recorder mdb = new Recorder();
+        mdb.mDelay = 5;
+        MockContainer c = new MockContainer(mdb);
+        c.setNoTx();
+        RAJMSActivationSpec spec = createSpec(3, null);
+        sendGroups();
+        
+        mRA.start(c.getBootstrapContext());
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+        mdb.waitForDistinct(20, 30000);
+        mRA.endpointDeactivation(c.getMessageEndpointFactory(), spec);
+        
+        // No deliveries after deactivation
+        int n = mdb.getDelivered().size();
+        Thread.sleep(200);
+        assertEquals(n, mdb.getDelivered().size());
+        assertEquals(0, mServer.getConnectionsOpen());
+        
+        // No messages were lost
+        Set<String> all = new HashSet<String>(mdb.getDelivered());
+        for (MemoryJMS.Msg m : mServer.drain(DEST)) {
+            all.add(m.getText());
+        }
+        assertEquals(NGROUPS * NPERGROUP, all.size());
+    }
+}
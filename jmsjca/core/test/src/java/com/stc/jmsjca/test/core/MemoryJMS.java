@@ -0,0 +1,1147 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.RAJMSActivationSpec;
+import com.stc.jmsjca.core.RAJMSObjectFactory;
+import com.stc.jmsjca.core.RAJMSResourceAdapter;
+import com.stc.jmsjca.core.XManagedConnectionFactory;
+import com.stc.jmsjca.util.UrlParser;
+
+import javax.jms.BytesMessage;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.InvalidClientIDException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.TemporaryQueue;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicConnection;
+import javax.jms.TopicPublisher;
+import javax.jms.TopicSession;
+import javax.jms.TopicSubscriber;
+import javax.jms.XAQueueConnection;
+import javax.jms.XAQueueConnectionFactory;
+import javax.jms.XAQueueSession;
+import javax.jms.XATopicConnection;
+import javax.jms.XATopicConnectionFactory;
+import javax.jms.XATopicSession;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory JMS server with just enough functionality to run the resource adapter
+ * in unit tests without an external JMS server: destinations are simple queues (a
+ * topic behaves like a queue), messages are text messages, sessions can be transacted
+ * or XA, and messages are received synchronously or by a message listener that runs
+ * on a thread of its own. The RA connects to a server with a URL of the form 
+ * mem://name; each name denotes a separate server.
+ * 
+ * @author fkieviet
+ */
+public class MemoryJMS {
+    private static Map<String, MemoryJMS> sServers = new HashMap<String, MemoryJMS>();
+
+    private final String mName;
+    private final Map<String, LinkedList<Msg>> mDestinations = new HashMap<String, LinkedList<Msg>>();
+    private final Set<String> mClientIDs = new HashSet<String>();
+    private final AtomicInteger mConnectionsCreated = new AtomicInteger();
+    private final AtomicInteger mConnectionsOpen = new AtomicInteger();
+    private final AtomicInteger mCommits = new AtomicInteger();
+    private final AtomicInteger mRollbacks = new AtomicInteger();
+    private final AtomicInteger mMsgIDs = new AtomicInteger();
+    private final List<ConnHandler> mConnections = Collections.synchronizedList(new ArrayList<ConnHandler>());
+    private volatile Runnable mOnConnect;
+    private final Object mCF;
+
+    private MemoryJMS(String name) {
+        mName = name;
+        mCF = proxy(new Class[] {XAQueueConnectionFactory.class, XATopicConnectionFactory.class}, 
+            new CFHandler());
+    }
+
+    /**
+     * Returns the server with the specified name; creates one if necessary
+     */
+    public static synchronized MemoryJMS get(String name) {
+        MemoryJMS ret = sServers.get(name);
+        if (ret == null) {
+            ret = new MemoryJMS(name);
+            sServers.put(name, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Discards the server with the specified name and all its messages
+     */
+    public static synchronized void reset(String name) {
+        sServers.remove(name);
+    }
+
+    public String getUrl() {
+        return "mem://" + mName;
+    }
+
+    public ConnectionFactory getConnectionFactory() {
+        return (ConnectionFactory) mCF;
+    }
+
+    public int getConnectionsCreated() {
+        return mConnectionsCreated.get();
+    }
+
+    public int getConnectionsOpen() {
+        return mConnectionsOpen.get();
+    }
+
+    public int getCommits() {
+        return mCommits.get();
+    }
+
+    public int getRollbacks() {
+        return mRollbacks.get();
+    }
+
+    public synchronized Set<String> getClientIDs() {
+        return new HashSet<String>(mClientIDs);
+    }
+
+    /**
+     * Sets code that is run whenever a connection is being created, e.g. to block
+     * the creation
+     */
+    public void setOnConnect(Runnable onConnect) {
+        mOnConnect = onConnect;
+    }
+
+    /**
+     * Closes all connections as if the server went down; connections can still be
+     * created afterwards
+     */
+    public void killConnections() {
+        ConnHandler[] conns = mConnections.toArray(new ConnHandler[0]);
+        for (int i = 0; i < conns.length; i++) {
+            conns[i].close();
+        }
+    }
+
+    /**
+     * Puts a message directly on a destination
+     */
+    public void send(String dest, Msg m) {
+        if (m.getJMSMessageID() == null) {
+            m.setJMSMessageID("ID:" + mName + "-" + mMsgIDs.incrementAndGet());
+        }
+        enqueue(dest, m, false);
+    }
+
+    public Msg send(String dest, String text) {
+        Msg m = new Msg();
+        m.setText(text);
+        send(dest, m);
+        return m;
+    }
+
+    /**
+     * @return number of messages on a destination
+     */
+    public synchronized int size(String dest) {
+        return getQ(dest).size();
+    }
+
+    /**
+     * Removes all messages from a destination
+     */
+    public synchronized List<Msg> drain(String dest) {
+        List<Msg> ret = new ArrayList<Msg>(getQ(dest));
+        getQ(dest).clear();
+        return ret;
+    }
+
+    /**
+     * Waits until a destination has the specified number of messages
+     * 
+     * @return true if reached
+     */
+    public synchronized boolean waitForSize(String dest, int n, long timeout) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeout;
+        for (;;) {
+            if (getQ(dest).size() >= n) {
+                return true;
+            }
+            long wait = until - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+    }
+
+    private LinkedList<Msg> getQ(String dest) {
+        LinkedList<Msg> ret = mDestinations.get(dest);
+        if (ret == null) {
+            ret = new LinkedList<Msg>();
+            mDestinations.put(dest, ret);
+        }
+        return ret;
+    }
+
+    private synchronized void enqueue(String dest, Msg m, boolean atHead) {
+        if (atHead) {
+            getQ(dest).addFirst(m);
+        } else {
+            getQ(dest).addLast(m);
+        }
+        notifyAll();
+    }
+
+    private synchronized Msg take(String dest, long timeout, ConnHandler conn) throws InterruptedException {
+        long until = timeout == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+        for (;;) {
+            if (conn.mClosed) {
+                return null;
+            }
+            LinkedList<Msg> q = getQ(dest);
+            if (conn.mStarted && !q.isEmpty()) {
+                Msg ret = q.removeFirst();
+                ret.mDeliveryCount++;
+                notifyAll();
+                return ret;
+            }
+            long wait = until - System.currentTimeMillis();
+            if (wait <= 0) {
+                return null;
+            }
+            // Poll so that close() and start() are noticed
+            wait(Math.min(wait, 50));
+        }
+    }
+
+    private synchronized void addClientID(String id) throws JMSException {
+        if (!mClientIDs.add(id)) {
+            throw new InvalidClientIDException("ClientID " + id + " is already in use");
+        }
+    }
+
+    private synchronized void removeClientID(String id) {
+        mClientIDs.remove(id);
+    }
+
+    private static Object proxy(Class<?>[] itfs, InvocationHandler h) {
+        return Proxy.newProxyInstance(MemoryJMS.class.getClassLoader(), itfs, h);
+    }
+
+    private static String getName(Object dest) throws JMSException {
+        if (dest instanceof Queue) {
+            return ((Queue) dest).getQueueName();
+        } else if (dest instanceof Topic) {
+            return ((Topic) dest).getTopicName();
+        }
+        throw new JMSException("Not a destination: " + dest);
+    }
+
+    /**
+     * Dispatches a method to a method with the same name and number of parameters
+     */
+    private abstract static class Handler implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return getClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+            }
+            try {
+                return invoke(proxy, name, args == null ? new Object[0] : args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        protected abstract Object invoke(Object proxy, String name, Object[] args) throws Exception;
+        
+        protected Object unsupported(String name) throws JMSException {
+            throw new JMSException("Not supported by " + getClass().getSimpleName() + ": " + name);
+        }
+    }
+
+    private class CFHandler extends Handler {
+        @Override
+        protected Object invoke(Object proxy, String name, Object[] args) throws Exception {
+            if (!name.startsWith("create")) {
+                return unsupported(name);
+            }
+            Runnable onConnect = mOnConnect;
+            if (onConnect != null) {
+                onConnect.run();
+            }
+            mConnectionsCreated.incrementAndGet();
+            mConnectionsOpen.incrementAndGet();
+            ConnHandler h = new ConnHandler(name.startsWith("createXA"));
+            mConnections.add(h);
+            h.mProxy = proxy(h.mXA 
+                ? new Class[] {XAQueueConnection.class, XATopicConnection.class}
+                : new Class[] {QueueConnection.class, TopicConnection.class}, h);
+            return h.mProxy;
+        }
+    }
+
+    private class ConnHandler extends Handler {
+        private final boolean mXA;
+        private Object mProxy;
+        private String mClientID;
+        private volatile boolean mStarted;
+        private volatile boolean mClosed;
+        private int mDelivering;
+        private final List<SessionHandler> mSessions = Collections.synchronizedList(new ArrayList<SessionHandler>());
+
+        public ConnHandler(boolean xa) {
+            mXA = xa;
+        }
+
+        @Override
+        protected Object invoke(Object proxy, String name, Object[] args) throws Exception {
+            if (name.equals("createSession") && args.length == 0 || name.startsWith("createXA")) {
+                return createSession(true, false, javax.jms.Session.SESSION_TRANSACTED);
+            } else if (name.endsWith("Session")) {
+                return createSession(false, (Boolean) args[0], (Integer) args[1]);
+            } else if (name.equals("setClientID")) {
+                addClientID((String) args[0]);
+                mClientID = (String) args[0];
+                return null;
+            } else if (name.equals("getClientID")) {
+                return mClientID;
+            } else if (name.equals("start")) {
+                mStarted = true;
+                return null;
+            } else if (name.equals("stop")) {
+                stop();
+                return null;
+            } else if (name.equals("close")) {
+                close();
+                return null;
+            } else if (name.equals("setExceptionListener") || name.equals("getExceptionListener") 
+                || name.equals("getMetaData")) {
+                return null;
+            }
+            return unsupported(name);
+        }
+
+        private Object createSession(boolean xa, boolean transacted, int ackmode) throws JMSException {
+            if (mClosed) {
+                throw new JMSException("Connection closed");
+            }
+            SessionHandler h = new SessionHandler(this, xa, transacted, ackmode);
+            h.mProxy = proxy(xa 
+                ? new Class[] {XAQueueSession.class, XATopicSession.class, QueueSession.class, TopicSession.class}
+                : new Class[] {QueueSession.class, TopicSession.class}, h);
+            mSessions.add(h);
+            return h.mProxy;
+        }
+
+        /**
+         * As in JMS, stop() waits until message listeners have returned
+         */
+        private synchronized void stop() throws InterruptedException {
+            mStarted = false;
+            while (mDelivering > 0) {
+                wait();
+            }
+        }
+
+        private synchronized boolean beginDelivery() {
+            if (!mStarted || mClosed) {
+                return false;
+            }
+            mDelivering++;
+            return true;
+        }
+
+        private synchronized void endDelivery() {
+            mDelivering--;
+            notifyAll();
+        }
+
+        private void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mConnections.remove(this);
+            mConnectionsOpen.decrementAndGet();
+            if (mClientID != null) {
+                removeClientID(mClientID);
+            }
+            SessionHandler[] sessions = mSessions.toArray(new SessionHandler[0]);
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i].close();
+            }
+            synchronized (MemoryJMS.this) {
+                MemoryJMS.this.notifyAll();
+            }
+        }
+    }
+
+    private class SessionHandler extends Handler {
+        private final ConnHandler mConn;
+        private final boolean mXA;
+        private final boolean mTransacted;
+        private final int mAckMode;
+        private Object mProxy;
+        private boolean mClosed;
+        private volatile boolean mInXATx;
+        private final List<Object[]> mSent = new ArrayList<Object[]>();
+        private final List<Object[]> mReceived = new ArrayList<Object[]>();
+        private final MemXAResource mXAResource = new MemXAResource(this);
+
+        public SessionHandler(ConnHandler conn, boolean xa, boolean transacted, int ackmode) {
+            mConn = conn;
+            mXA = xa;
+            mTransacted = transacted;
+            mAckMode = ackmode;
+        }
+
+        @Override
+        protected Object invoke(Object proxy, String name, Object[] args) throws Exception {
+            if (name.equals("getSession") || name.equals("getQueueSession") || name.equals("getTopicSession")) {
+                return proxy;
+            } else if (name.equals("getXAResource")) {
+                return mXAResource;
+            } else if (name.equals("createQueue")) {
+                return new MemQueue((String) args[0]);
+            } else if (name.equals("createTopic")) {
+                return new MemTopic((String) args[0]);
+            } else if (name.equals("createTemporaryQueue")) {
+                return new MemTemporaryQueue("TemporaryQueue" + mMsgIDs.incrementAndGet());
+            } else if (name.equals("createProducer") || name.equals("createSender") 
+                || name.equals("createPublisher")) {
+                ProducerHandler h = new ProducerHandler(this, (Destination) args[0]);
+                return proxy(new Class[] {QueueSender.class, TopicPublisher.class}, h);
+            } else if (name.equals("createConsumer") || name.equals("createReceiver") 
+                || name.equals("createSubscriber") || name.equals("createDurableSubscriber")) {
+                ConsumerHandler h = new ConsumerHandler(this, (Destination) args[0]);
+                return proxy(new Class[] {QueueReceiver.class, TopicSubscriber.class}, h);
+            } else if (name.equals("createBytesMessage")) {
+                return createBytesMessage();
+            } else if (name.equals("createTextMessage") || name.equals("createMessage")) {
+                Msg ret = new Msg();
+                if (args.length == 1) {
+                    ret.setText((String) args[0]);
+                }
+                return ret;
+            } else if (name.equals("commit")) {
+                commit();
+                return null;
+            } else if (name.equals("rollback") || name.equals("recover")) {
+                rollback();
+                return null;
+            } else if (name.equals("close")) {
+                close();
+                return null;
+            } else if (name.equals("getTransacted")) {
+                return mTransacted;
+            } else if (name.equals("getAcknowledgeMode")) {
+                return mAckMode;
+            } else if (name.equals("setMessageListener") || name.equals("getMessageListener")) {
+                return null;
+            }
+            return unsupported(name);
+        }
+
+        private boolean isInTx() {
+            return mTransacted && !mXA || mInXATx;
+        }
+
+        private synchronized void onSend(String dest, Msg m) {
+            if (isInTx()) {
+                mSent.add(new Object[] {dest, m});
+            } else {
+                enqueue(dest, m, false);
+            }
+        }
+
+        private synchronized void onReceived(String dest, Msg m) {
+            if (isInTx()) {
+                mReceived.add(new Object[] {dest, m});
+            }
+        }
+
+        private synchronized void commit() {
+            for (Object[] s : mSent) {
+                enqueue((String) s[0], (Msg) s[1], false);
+            }
+            mSent.clear();
+            mReceived.clear();
+            mCommits.incrementAndGet();
+        }
+
+        private synchronized void rollback() {
+            mSent.clear();
+            for (int i = mReceived.size() - 1; i >= 0; i--) {
+                Object[] r = mReceived.get(i);
+                ((Msg) r[1]).mRedelivered = true;
+                enqueue((String) r[0], (Msg) r[1], true);
+            }
+            mReceived.clear();
+            mRollbacks.incrementAndGet();
+        }
+
+        private synchronized void close() {
+            if (!mClosed) {
+                mClosed = true;
+                if (!mReceived.isEmpty() || !mSent.isEmpty()) {
+                    rollback();
+                }
+            }
+        }
+    }
+
+    private class MemXAResource implements XAResource {
+        private final SessionHandler mSession;
+
+        public MemXAResource(SessionHandler session) {
+            mSession = session;
+        }
+
+        public void start(Xid xid, int flags) {
+            mSession.mInXATx = true;
+        }
+
+        public void end(Xid xid, int flags) {
+        }
+
+        public int prepare(Xid xid) {
+            return XA_OK;
+        }
+
+        public void commit(Xid xid, boolean onePhase) {
+            mSession.commit();
+            mSession.mInXATx = false;
+        }
+
+        public void rollback(Xid xid) {
+            mSession.rollback();
+            mSession.mInXATx = false;
+        }
+
+        public void forget(Xid xid) {
+        }
+
+        public Xid[] recover(int flag) {
+            return new Xid[0];
+        }
+
+        public boolean isSameRM(XAResource xar) {
+            return xar == this;
+        }
+
+        public int getTransactionTimeout() {
+            return 0;
+        }
+
+        public boolean setTransactionTimeout(int seconds) {
+            return false;
+        }
+    }
+
+    private class ProducerHandler extends Handler {
+        private final SessionHandler mSession;
+        private final Destination mDest;
+        private int mDeliveryMode = DeliveryMode.PERSISTENT;
+        private int mPriority = Message.DEFAULT_PRIORITY;
+        private long mTimeToLive;
+
+        public ProducerHandler(SessionHandler session, Destination dest) {
+            mSession = session;
+            mDest = dest;
+        }
+
+        @Override
+        protected Object invoke(Object proxy, String name, Object[] args) throws Exception {
+            if (name.equals("send") || name.equals("publish")) {
+                int i = 0;
+                Destination dest = mDest;
+                if (args[0] instanceof Destination) {
+                    dest = (Destination) args[i++];
+                }
+                Message m = (Message) args[i++];
+                int mode = args.length > i ? (Integer) args[i++] : mDeliveryMode;
+                int prio = args.length > i ? (Integer) args[i++] : mPriority;
+                m.setJMSDestination(dest);
+                m.setJMSDeliveryMode(mode);
+                m.setJMSPriority(prio);
+                m.setJMSTimestamp(System.currentTimeMillis());
+                m.setJMSMessageID("ID:" + mName + "-" + mMsgIDs.incrementAndGet());
+                mSession.onSend(getName(dest), Msg.copy(m));
+                return null;
+            } else if (name.equals("setDeliveryMode")) {
+                mDeliveryMode = (Integer) args[0];
+                return null;
+            } else if (name.equals("getDeliveryMode")) {
+                return mDeliveryMode;
+            } else if (name.equals("setPriority")) {
+                mPriority = (Integer) args[0];
+                return null;
+            } else if (name.equals("getPriority")) {
+                return mPriority;
+            } else if (name.equals("setTimeToLive")) {
+                mTimeToLive = (Long) args[0];
+                return null;
+            } else if (name.equals("getTimeToLive")) {
+                return mTimeToLive;
+            } else if (name.equals("getDestination") || name.equals("getQueue") || name.equals("getTopic")) {
+                return mDest;
+            } else if (name.startsWith("setDisable") || name.equals("close")) {
+                return null;
+            } else if (name.startsWith("getDisable")) {
+                return Boolean.FALSE;
+            }
+            return unsupported(name);
+        }
+    }
+
+    private class ConsumerHandler extends Handler {
+        private final SessionHandler mSession;
+        private final Destination mDest;
+        private volatile boolean mClosed;
+        private volatile MessageListener mListener;
+
+        public ConsumerHandler(SessionHandler session, Destination dest) {
+            mSession = session;
+            mDest = dest;
+        }
+
+        @Override
+        protected Object invoke(Object proxy, String name, Object[] args) throws Exception {
+            if (name.startsWith("receive")) {
+                long timeout = name.equals("receiveNoWait") ? 1 : args.length == 0 ? 0 : (Long) args[0];
+                if (mClosed || mSession.mClosed) {
+                    return null;
+                }
+                Msg m = take(getName(mDest), timeout, mSession.mConn);
+                if (m != null) {
+                    mSession.onReceived(getName(mDest), m);
+                }
+                return m;
+            } else if (name.equals("close")) {
+                mClosed = true;
+                return null;
+            } else if (name.equals("getQueue") || name.equals("getTopic")) {
+                return mDest;
+            } else if (name.equals("setMessageListener")) {
+                setMessageListener((MessageListener) args[0]);
+                return null;
+            } else if (name.equals("getMessageListener")) {
+                return mListener;
+            } else if (name.equals("getMessageSelector")) {
+                return null;
+            } else if (name.equals("getNoLocal")) {
+                return Boolean.FALSE;
+            }
+            return unsupported(name);
+        }
+
+        /**
+         * Starts a thread that delivers messages to the listener while the connection 
+         * is started, until the consumer, session or connection is closed or the 
+         * listener is replaced
+         */
+        private void setMessageListener(final MessageListener listener) throws JMSException {
+            mListener = listener;
+            if (listener == null) {
+                return;
+            }
+            final String dest = getName(mDest);
+            Thread t = new Thread("MemoryJMS listener " + dest) {
+                @Override
+                public void run() {
+                    ConnHandler conn = mSession.mConn;
+                    while (!mClosed && !mSession.mClosed && !conn.mClosed && mListener == listener) {
+                        try {
+                            if (!conn.beginDelivery()) {
+                                Thread.sleep(50);
+                                continue;
+                            }
+                            try {
+                                Msg m = take(dest, 50, conn);
+                                if (m != null) {
+                                    mSession.onReceived(dest, m);
+                                    listener.onMessage(m);
+                                }
+                            } finally {
+                                conn.endDelivery();
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (RuntimeException e) {
+                            // As in JMS, the next message is delivered
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public static class MemTemporaryQueue extends MemQueue implements TemporaryQueue {
+        public MemTemporaryQueue(String name) {
+            super(name);
+        }
+
+        public void delete() {
+        }
+    }
+
+    public static class MemQueue implements Queue {
+        private final String mName;
+
+        public MemQueue(String name) {
+            mName = name;
+        }
+
+        public String getQueueName() {
+            return mName;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof MemQueue && ((MemQueue) obj).mName.equals(mName);
+        }
+
+        @Override
+        public int hashCode() {
+            return mName.hashCode();
+        }
+    }
+
+    public static class MemTopic implements Topic {
+        private final String mName;
+
+        public MemTopic(String name) {
+            mName = name;
+        }
+
+        public String getTopicName() {
+            return mName;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof MemTopic && ((MemTopic) obj).mName.equals(mName);
+        }
+
+        @Override
+        public int hashCode() {
+            return mName.hashCode();
+        }
+    }
+
+    /**
+     * A text message
+     */
+    public static class Msg implements TextMessage {
+        private final Map<String, Object> mProperties = new LinkedHashMap<String, Object>();
+        private String mText;
+        private String mMessageID;
+        private long mTimestamp;
+        private String mCorrelationID;
+        private Destination mReplyTo;
+        private Destination mDestination;
+        private int mDeliveryMode = DeliveryMode.PERSISTENT;
+        private boolean mRedelivered;
+        private String mType;
+        private long mExpiration;
+        private int mPriority = DEFAULT_PRIORITY;
+        private int mDeliveryCount;
+
+        public static Msg copy(Message m) throws JMSException {
+            Msg ret = new Msg();
+            for (Enumeration<?> e = m.getPropertyNames(); e.hasMoreElements();) {
+                String name = (String) e.nextElement();
+                ret.mProperties.put(name, m.getObjectProperty(name));
+            }
+            if (m instanceof TextMessage) {
+                ret.mText = ((TextMessage) m).getText();
+            }
+            ret.mMessageID = m.getJMSMessageID();
+            ret.mTimestamp = m.getJMSTimestamp();
+            ret.mCorrelationID = m.getJMSCorrelationID();
+            ret.mReplyTo = m.getJMSReplyTo();
+            ret.mDestination = m.getJMSDestination();
+            ret.mDeliveryMode = m.getJMSDeliveryMode();
+            ret.mType = m.getJMSType();
+            ret.mExpiration = m.getJMSExpiration();
+            ret.mPriority = m.getJMSPriority();
+            return ret;
+        }
+
+        public int getDeliveryCount() {
+            return mDeliveryCount;
+        }
+
+        public void setText(String text) {
+            mText = text;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public String getJMSMessageID() {
+            return mMessageID;
+        }
+
+        public void setJMSMessageID(String id) {
+            mMessageID = id;
+        }
+
+        public long getJMSTimestamp() {
+            return mTimestamp;
+        }
+
+        public void setJMSTimestamp(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        public byte[] getJMSCorrelationIDAsBytes() {
+            return mCorrelationID == null ? null : mCorrelationID.getBytes();
+        }
+
+        public void setJMSCorrelationIDAsBytes(byte[] correlationID) {
+            mCorrelationID = correlationID == null ? null : new String(correlationID);
+        }
+
+        public void setJMSCorrelationID(String correlationID) {
+            mCorrelationID = correlationID;
+        }
+
+        public String getJMSCorrelationID() {
+            return mCorrelationID;
+        }
+
+        public Destination getJMSReplyTo() {
+            return mReplyTo;
+        }
+
+        public void setJMSReplyTo(Destination replyTo) {
+            mReplyTo = replyTo;
+        }
+
+        public Destination getJMSDestination() {
+            return mDestination;
+        }
+
+        public void setJMSDestination(Destination destination) {
+            mDestination = destination;
+        }
+
+        public int getJMSDeliveryMode() {
+            return mDeliveryMode;
+        }
+
+        public void setJMSDeliveryMode(int deliveryMode) {
+            mDeliveryMode = deliveryMode;
+        }
+
+        public boolean getJMSRedelivered() {
+            return mRedelivered;
+        }
+
+        public void setJMSRedelivered(boolean redelivered) {
+            mRedelivered = redelivered;
+        }
+
+        public String getJMSType() {
+            return mType;
+        }
+
+        public void setJMSType(String type) {
+            mType = type;
+        }
+
+        public long getJMSExpiration() {
+            return mExpiration;
+        }
+
+        public void setJMSExpiration(long expiration) {
+            mExpiration = expiration;
+        }
+
+        public int getJMSPriority() {
+            return mPriority;
+        }
+
+        public void setJMSPriority(int priority) {
+            mPriority = priority;
+        }
+
+        public void clearProperties() {
+            mProperties.clear();
+        }
+
+        public boolean propertyExists(String name) {
+            return getObjectProperty(name) != null;
+        }
+
+        public Object getObjectProperty(String name) {
+            if ("JMSXDeliveryCount".equals(name)) {
+                return mDeliveryCount == 0 ? null : Integer.valueOf(mDeliveryCount);
+            }
+            return mProperties.get(name);
+        }
+
+        private String str(String name) {
+            Object o = getObjectProperty(name);
+            return o == null ? null : o.toString();
+        }
+
+        public boolean getBooleanProperty(String name) {
+            return Boolean.valueOf(str(name)).booleanValue();
+        }
+
+        public byte getByteProperty(String name) {
+            return Byte.parseByte(str(name));
+        }
+
+        public short getShortProperty(String name) {
+            return Short.parseShort(str(name));
+        }
+
+        public int getIntProperty(String name) {
+            return Integer.parseInt(str(name));
+        }
+
+        public long getLongProperty(String name) {
+            return Long.parseLong(str(name));
+        }
+
+        public float getFloatProperty(String name) {
+            return Float.parseFloat(str(name));
+        }
+
+        public double getDoubleProperty(String name) {
+            return Double.parseDouble(str(name));
+        }
+
+        public String getStringProperty(String name) {
+            return str(name);
+        }
+
+        public Enumeration<?> getPropertyNames() {
+            return Collections.enumeration(new ArrayList<String>(mProperties.keySet()));
+        }
+
+        public void setBooleanProperty(String name, boolean value) {
+            mProperties.put(name, Boolean.valueOf(value));
+        }
+
+        public void setByteProperty(String name, byte value) {
+            mProperties.put(name, Byte.valueOf(value));
+        }
+
+        public void setShortProperty(String name, short value) {
+            mProperties.put(name, Short.valueOf(value));
+        }
+
+        public void setIntProperty(String name, int value) {
+            mProperties.put(name, Integer.valueOf(value));
+        }
+
+        public void setLongProperty(String name, long value) {
+            mProperties.put(name, Long.valueOf(value));
+        }
+
+        public void setFloatProperty(String name, float value) {
+            mProperties.put(name, Float.valueOf(value));
+        }
+
+        public void setDoubleProperty(String name, double value) {
+            mProperties.put(name, Double.valueOf(value));
+        }
+
+        public void setStringProperty(String name, String value) {
+            mProperties.put(name, value);
+        }
+
+        public void setObjectProperty(String name, Object value) {
+            mProperties.put(name, value);
+        }
+
+        public void acknowledge() {
+        }
+
+        public void clearBody() {
+            mText = null;
+        }
+
+        @Override
+        public String toString() {
+            return "Msg[" + mText + "]";
+        }
+    }
+
+    /**
+     * @return a new bytes message in write-only mode
+     */
+    public static BytesMessage createBytesMessage() {
+        return (BytesMessage) proxy(new Class[] {BytesMessage.class}, new BytesHandler());
+    }
+
+    /**
+     * A bytes message; the headers and properties are kept in a Msg
+     */
+    private static class BytesHandler extends Handler {
+        private final Msg mHeaders = new Msg();
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private byte[] mBody;
+        private int mPos;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() != Message.class) {
+                return super.invoke(proxy, method, args);
+            }
+            try {
+                return method.invoke(mHeaders, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        protected Object invoke(Object proxy, String name, Object[] args) throws Exception {
+            if (name.equals("writeBytes")) {
+                byte[] b = (byte[]) args[0];
+                if (args.length == 1) {
+                    mOut.write(b, 0, b.length);
+                } else {
+                    mOut.write(b, (Integer) args[1], (Integer) args[2]);
+                }
+                return null;
+            } else if (name.equals("reset")) {
+                mBody = mOut.toByteArray();
+                mPos = 0;
+                return null;
+            } else if (name.equals("getBodyLength")) {
+                return Long.valueOf(mBody.length);
+            } else if (name.equals("readByte")) {
+                if (mPos == mBody.length) {
+                    throw new MessageEOFException("End of body");
+                }
+                return mBody[mPos++];
+            } else if (name.equals("readBytes")) {
+                byte[] b = (byte[]) args[0];
+                int n = Math.min(args.length == 1 ? b.length : (Integer) args[1], mBody.length - mPos);
+                if (n == 0 && mPos == mBody.length) {
+                    return -1;
+                }
+                System.arraycopy(mBody, mPos, b, 0, n);
+                mPos += n;
+                return n;
+            }
+            return unsupported(name);
+        }
+    }
+
+    /**
+     * The resource adapter for the in-memory server
+     */
+    public static class RA extends RAJMSResourceAdapter {
+        /**
+         * @see com.stc.jmsjca.core.RAJMSResourceAdapter#createObjectFactory(
+         *   com.stc.jmsjca.core.RAJMSResourceAdapter, com.stc.jmsjca.core.RAJMSActivationSpec, 
+         *   com.stc.jmsjca.core.XManagedConnectionFactory)
+         */
+        @Override
+        public RAJMSObjectFactory createObjectFactory(RAJMSResourceAdapter ra, 
+            RAJMSActivationSpec spec, XManagedConnectionFactory fact) {
+            return new ObjectFactory();
+        }
+    }
+
+    public static class ObjectFactory extends RAJMSObjectFactory {
+        @Override
+        public ConnectionFactory createConnectionFactory(int domain, RAJMSResourceAdapter ra, 
+            RAJMSActivationSpec spec, XManagedConnectionFactory fact, String overrideUrl) throws JMSException {
+            UrlParser url = (UrlParser) getProperties(new Properties(), ra, spec, fact, overrideUrl);
+            return get(url.getHost()).getConnectionFactory();
+        }
+
+        @Override
+        public boolean isUrl(String url) {
+            return url != null && url.startsWith("mem://");
+        }
+
+        @Override
+        public String getJMSServerType() {
+            return "MEMORY";
+        }
+
+        @Override
+        public RAJMSActivationSpec createActivationSpec() {
+            return new ActivationSpec();
+        }
+    }
+
+    public static class ActivationSpec extends RAJMSActivationSpec {
+        @Override
+        public boolean isValidDestinationName(String name) {
+            return !empty(name);
+        }
+    }
+}
@@ -98,6 +98,11 @@ public class MockContainer {
     public void setNoTx() {
         mNoTx = true;
     }
+
+    public void setTransactionManager(TestTransactionManager txmgr) {
+        mTxMgr = txmgr;
+        TxMgr.setUnitTestTxMgr(txmgr);
+    }
     
 }
 
@@ -0,0 +1,188 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Activation;
+import com.stc.jmsjca.core.MoveConnectionPool;
+import com.stc.jmsjca.core.RAJMSActivationSpec;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class MoveConnectionPoolJUStd extends TestCase {
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+    private MoveConnectionPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+        RAJMSActivationSpec spec = new MemoryJMS.ActivationSpec();
+        spec.setResourceAdapter(mRA);
+        spec.setDestinationType(Queue.class.getName());
+        spec.setDestination("Queue1");
+        MockContainer c = new MockContainer(new MessageListener() {
+            public void onMessage(Message m) {
+            }
+        });
+        c.setNoTx();
+        mPool = new MoveConnectionPool(new Activation(mRA, c.getMessageEndpointFactory(), spec), 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.close();
+        MemoryJMS.reset(getName());
+    }
+    
+    public void testLeaseRelease() throws Throwable {
+        MoveConnectionPool.Lease a = mPool.lease(false);
+        MoveConnectionPool.Lease b = mPool.lease(false);
+        MoveConnectionPool.Lease c = mPool.lease(false);
+        assertEquals(1, mServer.getConnectionsCreated());
+        assertEquals(0, mPool.getIdleCount());
+        
+        // At most two idle sessions are kept
+        mPool.release(a);
+        mPool.release(b);
+        mPool.release(c);
+        assertEquals(2, mPool.getIdleCount());
+        
+        // Idle sessions are reused, most recent first
+        assertSame(b, mPool.lease(false));
+        assertSame(a, mPool.lease(false));
+        assertEquals(0, mPool.getIdleCount());
+        
+        // Each domain has its own connection
+        MoveConnectionPool.Lease t = mPool.lease(true);
+        assertTrue(t.isTopic());
+        assertEquals(2, mServer.getConnectionsCreated());
+        
+        mPool.release(t);
+        mPool.close();
+        assertEquals(0, mPool.getIdleCount());
+        assertEquals(0, mServer.getConnectionsOpen());
+    }
+    
+    public void testDiscardHealthy() throws Throwable {
+        MoveConnectionPool.Lease a = mPool.lease(false);
+        MoveConnectionPool.Lease b = mPool.lease(false);
+        mPool.release(b);
+        
+        // The connection is fine, so only the session is closed
+        mPool.discard(a);
+        assertEquals(1, mServer.getConnectionsOpen());
+        assertEquals(1, mPool.getIdleCount());
+        assertSame(b, mPool.lease(false));
+        mPool.lease(false);
+        assertEquals(1, mServer.getConnectionsCreated());
+    }
+    
+    public void testDiscardReconnectsOnce() throws Throwable {
+        MoveConnectionPool.Lease a = mPool.lease(false);
+        MoveConnectionPool.Lease b = mPool.lease(false);
+        MoveConnectionPool.Lease c = mPool.lease(false);
+        MoveConnectionPool.Lease d = mPool.lease(false);
+        mPool.release(d);
+        mServer.killConnections();
+        
+        // The first discard drops the connection and the idle sessions on it; the
+        // others leave the connection that replaced it alone
+        mPool.discard(a);
+        assertEquals(0, mPool.getIdleCount());
+        MoveConnectionPool.Lease e = mPool.lease(false);
+        assertEquals(2, mServer.getConnectionsCreated());
+        mPool.discard(b);
+        mPool.discard(c);
+        assertEquals(1, mServer.getConnectionsOpen());
+        mPool.lease(false);
+        assertEquals(2, mServer.getConnectionsCreated());
+        
+        // A healthy session is pooled, but not one from the broken connection
+        mPool.release(e);
+        mPool.release(d);
+        assertEquals(1, mPool.getIdleCount());
+        assertSame(e, mPool.lease(false));
+    }
+    
+    public void testConnectOutsideLock() throws Throwable {
+        final CountDownLatch connecting = new CountDownLatch(2);
+        final CountDownLatch connect = new CountDownLatch(1);
+        mServer.setOnConnect(new Runnable() {
+            public void run() {
+                connecting.countDown();
+                try {
+                    connect.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        mPool.release(mPool.lease(false));
+                    } catch (JMSException e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        
+        // Both endpoints connect at the same time, and the pool is not blocked
+        boolean concurrent = connecting.await(5, TimeUnit.SECONDS);
+        Thread probe = new Thread() {
+            @Override
+            public void run() {
+                mPool.getIdleCount();
+            }
+        };
+        probe.start();
+        probe.join(5000);
+        boolean blocked = probe.isAlive();
+        connect.countDown();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertTrue(concurrent);
+        assertFalse(blocked);
+        assertNull(failure.get());
+        
+        // Only one of the connections is kept
+        assertEquals(2, mServer.getConnectionsCreated());
+        assertEquals(1, mServer.getConnectionsOpen());
+        assertEquals(2, mPool.getIdleCount());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.core.ProducerPool;
+import com.stc.jmsjca.core.TxMgr;
+import com.stc.jmsjca.core.XDefaultConnectionManager;
+import com.stc.jmsjca.core.XMCFUnifiedXA;
+import com.stc.jmsjca.core.XManagedConnectionFactory;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import junit.framework.TestCase;
+
+public class ProducerPoolJUStd extends TestCase {
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+    private XManagedConnectionFactory mMCF;
+    private Connection mConnection;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+        TxMgr.setUnitTestTxMgr(new TestTransactionManager());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mConnection != null) {
+            mConnection.close();
+        }
+        mRA.stop();
+        MemoryJMS.reset(getName());
+        TxMgr.setUnitTestTxMgr(null);
+    }
+
+    private Session createSession(String... options) throws Exception {
+        mMCF = new XMCFUnifiedXA();
+        mMCF.setResourceAdapter(mRA);
+        StringBuilder s = new StringBuilder(Options.Out.PRODUCER_POOLING + "=true\n");
+        for (int i = 0; i < options.length; i++) {
+            s.append(options[i]).append("\n");
+        }
+        mMCF.setOptions(s.toString());
+        XDefaultConnectionManager pool = (XDefaultConnectionManager) mMCF.createDefaultConnectionManager();
+        ConnectionFactory cf = (ConnectionFactory) mMCF.createConnectionFactory(pool);
+        mConnection = cf.createConnection();
+        return mConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    }
+    
+    private static void assertStats(ProducerPool.Stats stats, long hits, long misses, long evictions, 
+        long precreated) {
+        String msg = stats.toString();
+        assertEquals(msg, hits, stats.getHits());
+        assertEquals(msg, misses, stats.getMisses());
+        assertEquals(msg, evictions, stats.getEvictions());
+        assertEquals(msg, precreated, stats.getPrecreated());
+    }
+    
+    public void testPrecreateIsNotAMiss() throws Throwable {
+        Session s = createSession(Options.Out.PRODUCER_PRECREATE + "=queue:Queue1, Queue2");
+        assertStats(mMCF.getProducerPoolStats(), 0, 0, 0, 2);
+        
+        s.createProducer(s.createQueue("Queue1"));
+        s.createProducer(s.createQueue("Queue2"));
+        s.createProducer(s.createQueue("Queue3"));
+        assertStats(mMCF.getProducerPoolStats(), 2, 1, 0, 2);
+    }
+    
+    public void testEvictsLeastRecentlyUsed() throws Throwable {
+        Session s = createSession(Options.Out.PRODUCER_POOL_SIZE + "=2");
+        MessageProducer p1 = s.createProducer(s.createQueue("Queue1"));
+        MessageProducer p2 = s.createProducer(s.createQueue("Queue2"));
+        MessageProducer p3 = s.createProducer(s.createQueue("Queue3"));
+        p1.close();
+        p2.close();
+        p3.close();
+        assertStats(mMCF.getProducerPoolStats(), 0, 3, 1, 0);
+        
+        // Queue1 was evicted
+        s.createProducer(s.createQueue("Queue1")).close();
+        assertStats(mMCF.getProducerPoolStats(), 0, 4, 2, 0);
+        
+        // Queue2 was evicted when Queue1 was returned, Queue3 is still pooled; taking it
+        // makes it the most recently used
+        s.createProducer(s.createQueue("Queue3")).close();
+        s.createProducer(s.createQueue("Queue2")).close();
+        assertStats(mMCF.getProducerPoolStats(), 1, 5, 3, 0);
+        s.createProducer(s.createQueue("Queue3"));
+        s.createProducer(s.createQueue("Queue2"));
+        assertStats(mMCF.getProducerPoolStats(), 3, 5, 3, 0);
+    }
+    
+    public void testTemporaryDestinationRebinding() throws Throwable {
+        Session s = createSession();
+        TemporaryQueue t1 = s.createTemporaryQueue();
+        TemporaryQueue t2 = s.createTemporaryQueue();
+        
+        MessageProducer p1 = s.createProducer(t1);
+        assertEquals(t1.getQueueName(), ((Queue) p1.getDestination()).getQueueName());
+        p1.send(s.createTextMessage("1"));
+        p1.close();
+        
+        // The anonymous producer is reused for the other temporary destination
+        MessageProducer p2 = s.createProducer(t2);
+        assertEquals(t2.getQueueName(), ((Queue) p2.getDestination()).getQueueName());
+        p2.send(s.createTextMessage("2"));
+        assertStats(mMCF.getProducerPoolStats(), 1, 1, 0, 0);
+        try {
+            p2.send(t1, s.createTextMessage("3"));
+            fail("Bound producer accepted a destination");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        p2.close();
+        
+        // ... and unbound when used as an anonymous producer
+        MessageProducer p3 = s.createProducer(null);
+        assertNull(p3.getDestination());
+        p3.send(t1, s.createTextMessage("4"));
+        assertStats(mMCF.getProducerPoolStats(), 2, 1, 0, 0);
+        
+        assertEquals(2, mServer.size(t1.getQueueName()));
+        assertEquals(1, mServer.size(t2.getQueueName()));
+    }
+}
@@ -17,20 +17,27 @@
 package com.stc.jmsjca.test.core;
 
 import com.stc.jmsjca.core.DeliveryStats;
+import com.stc.jmsjca.core.FileRedeliveryStore;
 import com.stc.jmsjca.core.Options;
 import com.stc.jmsjca.core.RAJMSActivationSpec;
 import com.stc.jmsjca.core.RedeliveryHandler;
+import com.stc.jmsjca.core.RedeliveryStore;
 import com.stc.jmsjca.core.WMessageIn;
 import com.stc.jmsjca.core.RedeliveryHandler.ActionInstruction;
 import com.stc.jmsjca.core.RedeliveryHandler.Move;
 import com.stc.jmsjca.localization.LocalizedString;
+import com.stc.jmsjca.util.LRUIndex;
 
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.Queue;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -538,4 +545,338 @@ public class ReliveryHandlerJUStd extends TestCase {
         assertTrue(movedat[0] == 16);
         assertTrue(shutdown[0]);
     }
+    
+    public void testIndexLRU() throws Throwable {
+        LRUIndex<String, String> index = new LRUIndex<String, String>(3, 0);
+        assertEquals(1, index.getNSegments());
+        assertNull(index.putIfAbsent("a", "A"));
+        assertNull(index.putIfAbsent("b", "B"));
+        assertNull(index.putIfAbsent("c", "C"));
+        assertEquals("A", index.putIfAbsent("a", "X"));
+        
+        // b is least recently used
+        assertEquals("A", index.get("a"));
+        assertNull(index.putIfAbsent("d", "D"));
+        assertEquals(3, index.size());
+        assertNull(index.get("b"));
+        assertEquals("C", index.get("c"));
+        assertEquals("D", index.get("d"));
+        assertEquals(1, index.getEvictions());
+        assertEquals(1, index.getMisses());
+        assertEquals(3, index.getHits());
+    }
+    
+    public void testIndexTTL() throws Throwable {
+        LRUIndex<String, String> index = new LRUIndex<String, String>(100, 50);
+        index.putIfAbsent("a", "A");
+        Thread.sleep(100);
+        assertNull(index.get("a"));
+        assertEquals(1, index.getEvictions());
+        index.putIfAbsent("b", "B");
+        assertEquals("B", index.get("b"));
+    }
+    
+    public void testIndexBounded() throws Throwable {
+        final LRUIndex<String, Integer> index = new LRUIndex<String, Integer>(20000, 0);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int t = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        index.putIfAbsent(t + "-" + j, Integer.valueOf(j));
+                        index.get(t + "-" + (j / 2));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertTrue(index.size() <= 20000);
+        assertEquals(80000 - index.size(), index.getEvictions());
+    }
+    
+    private RedeliveryHandler createHandler(RAJMSActivationSpec act, final long[] delay) {
+        return new RedeliveryHandler(act, new DeliveryStats(), 100) {
+            @Override
+            protected void delayMessageDelivery(Message m, Encounter e, long howLong
+                , LocalizedString logmsg, RedeliveryHandler.BaseCookie cookie) {
+                delay[0] += howLong;
+            }
+
+            @Override
+            protected void longDelayMessageDelivery(Message m, Encounter e, long howLong, LocalizedString logmsg, RedeliveryHandler.BaseCookie cookie) {
+            }
+
+            @Override
+            protected void deleteMessage(Message m, Encounter e, RedeliveryHandler.BaseCookie cookie) {
+            }
+
+            @Override
+            protected void move(Message m, Encounter e, boolean isTopic, String destinationName, RedeliveryHandler.BaseCookie cookie) throws Exception {
+            }
+
+            @Override
+            protected void stopConnector(String s) {
+            }
+        };
+    }
+    
+    public void testDeferredDelay() throws Throwable {
+        RAJMSActivationSpec act = new Spec();
+        act.setRedeliveryHandling("3:1000");
+        act.setDestinationType(Queue.class.getName());
+        final long[] delay = new long[1];
+        final int[] nWaited = new int[1];
+        final RedeliveryHandler.Encounter[] enc = new RedeliveryHandler.Encounter[1];
+        
+        RedeliveryHandler c = new RedeliveryHandler(act, new DeliveryStats(), 100) {
+            @Override
+            protected boolean deferMessageDelivery(Message m, Encounter e, long howLong
+                , LocalizedString logmsg, RedeliveryHandler.BaseCookie cookie) {
+                e.setDeferredUntil(System.currentTimeMillis() + howLong);
+                enc[0] = e;
+                return true;
+            }
+
+            @Override
+            protected boolean waitForDeferred(Message m, Encounter e, long left
+                , RedeliveryHandler.BaseCookie cookie) {
+                nWaited[0]++;
+                return false;
+            }
+
+            @Override
+            protected void delayMessageDelivery(Message m, Encounter e, long howLong
+                , LocalizedString logmsg, RedeliveryHandler.BaseCookie cookie) {
+                delay[0] += howLong;
+            }
+
+            @Override
+            protected void longDelayMessageDelivery(Message m, Encounter e, long howLong
+                , LocalizedString logmsg, RedeliveryHandler.BaseCookie cookie) {
+            }
+
+            @Override
+            protected void deleteMessage(Message m, Encounter e, RedeliveryHandler.BaseCookie cookie) {
+            }
+
+            @Override
+            protected void move(Message m, Encounter e, boolean isTopic, String destinationName
+                , RedeliveryHandler.BaseCookie cookie) throws Exception {
+            }
+
+            @Override
+            protected void stopConnector(String s) {
+            }
+        };
+        
+        WMessageIn m = new WMessageIn(new Msg("1x"));
+        assertTrue(c.shouldDeliver(null, m));
+        assertTrue(c.shouldDeliver(null, m));
+        
+        // Delay is deferred rather than waited for
+        assertFalse(c.shouldDeliver(null, m));
+        assertEquals(0, delay[0]);
+        assertEquals(0, nWaited[0]);
+        
+        // Seen again before expiration: not an encounter
+        assertFalse(c.shouldDeliver(null, m));
+        assertFalse(c.shouldDeliver(null, m));
+        assertEquals(2, nWaited[0]);
+        assertEquals(Integer.valueOf(3), m.getObjectProperty(Options.MessageProperties.REDELIVERYCOUNT));
+        
+        // Expired: delivered without waiting
+        enc[0].setDeferredUntil(System.currentTimeMillis() - 1);
+        assertTrue(c.shouldDeliver(null, m));
+        assertEquals(2, nWaited[0]);
+        assertEquals(Integer.valueOf(3), m.getObjectProperty(Options.MessageProperties.REDELIVERYCOUNT));
+        
+        // Next encounter
+        assertFalse(c.shouldDeliver(null, m));
+        assertEquals(Integer.valueOf(4), m.getObjectProperty(Options.MessageProperties.REDELIVERYCOUNT));
+        assertEquals(0, delay[0]);
+    }
+    
+    public void testStoreSurvivesRestart() throws Throwable {
+        File dir = File.createTempFile("redelivery", "");
+        dir.delete();
+        try {
+            RAJMSActivationSpec act = new Spec();
+            act.setRedeliveryHandling("5:10; 6:15; 10:30; 15:move(queue:a)");
+            act.setDestinationType(Queue.class.getName());
+            final long[] delay = new long[1];
+            
+            // Deliver 7 times, "restart", deliver 43 times: same as 50 times
+            FileRedeliveryStore store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            RedeliveryHandler c = createHandler(act, delay);
+            c.setStore(store);
+            WMessageIn m = new WMessageIn(new Msg("1x"));
+            for (int i = 0; i < 7; i++) {
+                c.shouldDeliver(null, m);
+            }
+            m.setStringProperty(Options.MessageProperties.USER_ROLLBACK_DATA_PREFIX + "1", "x");
+            store.close();
+            
+            store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            c = createHandler(act, delay);
+            c.setStore(store);
+            m = new WMessageIn(new Msg("1x"));
+            for (int i = 0; i < 43; i++) {
+                c.shouldDeliver(null, m);
+            }
+            assertEquals(220, delay[0]);
+            assertEquals("x", m.getStringProperty(Options.MessageProperties.USER_ROLLBACK_DATA_PREFIX + "1"));
+            assertEquals(Integer.valueOf(50), m.getObjectProperty(Options.MessageProperties.REDELIVERYCOUNT));
+            store.close();
+        } finally {
+            File[] files = dir.listFiles();
+            for (int i = 0; files != null && i < files.length; i++) {
+                files[i].delete();
+            }
+            dir.delete();
+        }
+    }
+    
+    private static File createTempDir() throws Exception {
+        File dir = File.createTempFile("redelivery", "");
+        dir.delete();
+        return dir;
+    }
+    
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+    
+    public void testStoreRecoversInterruptedCompaction() throws Throwable {
+        File dir = createTempDir();
+        try {
+            FileRedeliveryStore store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            store.save(new RedeliveryStore.Record("1x", System.currentTimeMillis(), 3, 0, null, null));
+            store.close();
+            
+            // Stopped after the file was renamed to the backup, while writing the new file
+            File f = store.getFile();
+            assertTrue(f.renameTo(new File(f.getPath() + ".bak")));
+            FileOutputStream tmp = new FileOutputStream(f.getPath() + ".tmp");
+            tmp.write(new byte[] {1, 2, 3});
+            tmp.close();
+            
+            store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            List<RedeliveryStore.Record> records = store.load();
+            assertEquals(1, records.size());
+            assertEquals(3, records.get(0).getNEncountered());
+            assertFalse(new File(f.getPath() + ".bak").exists());
+            assertFalse(new File(f.getPath() + ".tmp").exists());
+            store.close();
+        } finally {
+            deleteDir(dir);
+        }
+    }
+    
+    public void testStoreIgnoresCorruptRecord() throws Throwable {
+        File dir = createTempDir();
+        try {
+            FileRedeliveryStore store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            store.save(new RedeliveryStore.Record("1x", System.currentTimeMillis(), 3, 0, null, null));
+            store.close();
+            
+            // A record with an absurd msgid length
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(store.getFile(), true));
+            out.writeInt(Integer.MAX_VALUE);
+            out.write(new byte[100]);
+            out.close();
+            
+            store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            List<RedeliveryStore.Record> records = store.load();
+            assertEquals(1, records.size());
+            assertEquals("1x", records.get(0).getMsgid());
+            store.close();
+        } finally {
+            deleteDir(dir);
+        }
+    }
+    
+    public void testStoreTruncatesPartialRecord() throws Throwable {
+        File dir = createTempDir();
+        try {
+            FileRedeliveryStore store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            store.save(new RedeliveryStore.Record("1x", System.currentTimeMillis(), 3, 0, null, null));
+            store.close();
+            
+            // A partially written record: a msgid of 5 bytes of which only 1 was written
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(store.getFile(), true));
+            out.writeInt(5);
+            out.write('a');
+            out.close();
+            
+            // Records appended later should not be lost
+            store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            store.save(new RedeliveryStore.Record("2x", System.currentTimeMillis(), 4, 0, null, null));
+            store.close();
+            
+            store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            List<RedeliveryStore.Record> records = store.load();
+            assertEquals(2, records.size());
+            assertEquals("1x", records.get(0).getMsgid());
+            assertEquals("2x", records.get(1).getMsgid());
+            assertEquals(4, records.get(1).getNEncountered());
+            store.close();
+        } finally {
+            deleteDir(dir);
+        }
+    }
+    
+    public void testStoreCannotBeOpenedTwice() throws Throwable {
+        File dir = createTempDir();
+        try {
+            FileRedeliveryStore store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            try {
+                new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+                fail("Second store on the same file");
+            } catch (Exception expected) {
+                // ok
+            }
+            FileRedeliveryStore other = new FileRedeliveryStore(dir.getPath(), "Queue2", 100);
+            other.close();
+            store.close();
+            
+            // Can be reopened after close
+            store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            store.close();
+        } finally {
+            deleteDir(dir);
+        }
+    }
+    
+    public void testStoreRestoresActionCursor() throws Throwable {
+        File dir = createTempDir();
+        try {
+            RAJMSActivationSpec act = new Spec();
+            act.setRedeliveryHandling("2:10; 4:20");
+            act.setDestinationType(Queue.class.getName());
+            final long[] delay = new long[1];
+            
+            // Saved cursor is consistent with the encounter count: used
+            FileRedeliveryStore store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            store.save(new RedeliveryStore.Record("1x", System.currentTimeMillis(), 4, 2, null, null));
+            store.close();
+            store = new FileRedeliveryStore(dir.getPath(), "Queue1", 100);
+            RedeliveryHandler c = createHandler(act, delay);
+            c.setStore(store);
+            WMessageIn m = new WMessageIn(new Msg("1x"));
+            c.shouldDeliver(null, m);
+            assertEquals(20, delay[0]);
+            store.close();
+        } finally {
+            deleteDir(dir);
+        }
+    }
 }
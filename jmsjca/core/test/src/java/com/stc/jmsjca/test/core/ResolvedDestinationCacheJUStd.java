@@ -0,0 +1,189 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Activation;
+import com.stc.jmsjca.core.RAJMSActivationSpec;
+import com.stc.jmsjca.core.RAJMSObjectFactory;
+import com.stc.jmsjca.core.ResolvedDestinationCache;
+import com.stc.jmsjca.core.XMCFUnifiedXA;
+import com.stc.jmsjca.core.XManagedConnection;
+import com.stc.jmsjca.core.XManagedConnectionFactory;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class ResolvedDestinationCacheJUStd extends TestCase {
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+    private Connection mConnection;
+    private Session mSession;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+        mConnection = mServer.getConnectionFactory().createConnection();
+        mSession = mConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mConnection.close();
+        mRA.stop();
+        MemoryJMS.reset(getName());
+    }
+    
+    private Destination create(RAJMSObjectFactory o, String name, Properties options) throws JMSException {
+        return o.createDestination(mSession, false, false, null, null, mRA, name, options, QueueSession.class);
+    }
+    
+    private static Properties createOptions(String key, String value) {
+        Properties ret = new Properties();
+        ret.setProperty(key, value);
+        return ret;
+    }
+    
+    public void testHits() throws Throwable {
+        RAJMSObjectFactory o = new MemoryJMS.ObjectFactory();
+        Destination d = create(o, "Queue1", null);
+        assertEquals("Queue1", ((Queue) d).getQueueName());
+        assertSame(d, create(o, "Queue1", null));
+        assertSame(d, create(o, "Queue1", new Properties()));
+        
+        // The domain is part of the key
+        Destination t = o.createDestination(mSession, false, true, null, null, mRA, "Queue1", null, 
+            QueueSession.class);
+        assertNotSame(d, t);
+        
+        ResolvedDestinationCache cache = o.getDestinationCache();
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(50, cache.getHitRatio());
+    }
+    
+    public void testOptionsInKey() throws Throwable {
+        RAJMSObjectFactory o = new MemoryJMS.ObjectFactory();
+        Destination plain = create(o, "Queue1", null);
+        Destination a = create(o, "Queue1", createOptions("a", "1"));
+        Destination b = create(o, "Queue1", createOptions("a", "2"));
+        assertNotSame(plain, a);
+        assertNotSame(a, b);
+        assertSame(a, create(o, "Queue1", createOptions("a", "1")));
+        
+        // Changing the options after the lookup does not affect the key
+        Properties options = createOptions("b", "1");
+        Destination c = create(o, "Queue1", options);
+        options.setProperty("b", "2");
+        assertSame(c, create(o, "Queue1", createOptions("b", "1")));
+        assertNotSame(c, create(o, "Queue1", options));
+        
+        // jmsjca:// names are cached by the full name
+        Destination u = create(o, "jmsjca://?name=Queue1", null);
+        assertEquals("Queue1", ((Queue) u).getQueueName());
+        assertNotSame(plain, u);
+        assertSame(u, create(o, "jmsjca://?name=Queue1", null));
+    }
+    
+    public void testBoundedAndDisabled() throws Throwable {
+        RAJMSObjectFactory o = new MemoryJMS.ObjectFactory() {
+            @Override
+            protected int getDestinationCacheSize() {
+                return 2;
+            }
+        };
+        Destination d1 = create(o, "Queue1", null);
+        create(o, "Queue2", null);
+        create(o, "Queue3", null);
+        assertTrue(o.getDestinationCache().size() <= 2);
+        create(o, "Queue3", null);
+        assertNotSame(d1, create(o, "Queue1", null));
+        
+        RAJMSObjectFactory off = new MemoryJMS.ObjectFactory() {
+            @Override
+            protected int getDestinationCacheSize() {
+                return 0;
+            }
+        };
+        assertNull(off.getDestinationCache());
+        assertNotSame(create(off, "Queue1", null), create(off, "Queue1", null));
+        off.invalidateDestinations();
+    }
+    
+    public void testInvalidatedOnReconnect() throws Throwable {
+        RAJMSActivationSpec spec = new MemoryJMS.ActivationSpec();
+        spec.setResourceAdapter(mRA);
+        spec.setDestinationType(Queue.class.getName());
+        spec.setDestination("Queue1");
+        MockContainer c = new MockContainer(new MessageListener() {
+            public void onMessage(Message m) {
+            }
+        });
+        c.setNoTx();
+        mRA.start(c.getBootstrapContext());
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+        Activation a = (Activation) mRA.findActivation(c.getMessageEndpointFactory(), spec, false);
+        waitForState(a, Activation.CONNECTED);
+        
+        RAJMSObjectFactory o = a.getObjectFactory();
+        Destination d = create(o, "Other", null);
+        assertSame(d, create(o, "Other", null));
+        
+        a.distress(new JMSException("Connection lost"));
+        waitForState(a, Activation.CONNECTED);
+        assertNotSame(d, create(o, "Other", null));
+    }
+    
+    private static void waitForState(Activation a, int state) throws InterruptedException {
+        long until = System.currentTimeMillis() + 30000;
+        while (a.getState() != state && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, a.getState());
+    }
+    
+    public void testInvalidatedOnConnectionError() throws Throwable {
+        XManagedConnectionFactory mcf = new XMCFUnifiedXA();
+        mcf.setResourceAdapter(mRA);
+        XManagedConnection mc = (XManagedConnection) mcf.createManagedConnection(null, null);
+        try {
+            RAJMSObjectFactory o = mcf.getObjFactory();
+            Destination d = create(o, "Queue1", null);
+            assertSame(d, create(o, "Queue1", null));
+            
+            mc.notifyConnectionErrorOccured(new JMSException("Connection lost"));
+            assertEquals(0, o.getDestinationCache().size());
+            assertNotSame(d, create(o, "Queue1", null));
+        } finally {
+            mc.destroy();
+        }
+    }
+}
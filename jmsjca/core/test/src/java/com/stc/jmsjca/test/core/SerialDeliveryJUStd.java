@@ -0,0 +1,176 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.core.RAJMSActivationSpec;
+import com.stc.jmsjca.core.TxMgr;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.TextMessage;
+import javax.resource.ResourceException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SerialDeliveryJUStd extends TestCase {
+    private static final String DEST = "Queue1";
+    
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRA.stop();
+        MemoryJMS.reset(getName());
+        TxMgr.setUnitTestTxMgr(null);
+    }
+    
+    private RAJMSActivationSpec createSpec() throws ResourceException {
+        RAJMSActivationSpec spec = new MemoryJMS.ActivationSpec();
+        spec.setResourceAdapter(mRA);
+        spec.setDestinationType(Queue.class.getName());
+        spec.setDestination(DEST);
+        spec.setConcurrencyMode("serial");
+        spec.setRedeliveryHandling("1:0");
+        spec.setOptions(Options.In.RECEIVE_TIMEOUT + "=500");
+        return spec;
+    }
+    
+    /**
+     * Records the messages delivered; acknowledges them in HUA mode if so configured
+     */
+    private static class Recorder implements MessageListener {
+        private final List<String> mDelivered = new ArrayList<String>();
+        private final boolean mAck;
+        
+        public Recorder(boolean ack) {
+            mAck = ack;
+        }
+        
+        public void onMessage(Message m) {
+            try {
+                if (mAck) {
+                    m.acknowledge();
+                }
+                synchronized (this) {
+                    mDelivered.add(((TextMessage) m).getText());
+                    notifyAll();
+                }
+            } catch (JMSException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        
+        public synchronized List<String> waitFor(int n, long timeout) throws InterruptedException {
+            long until = System.currentTimeMillis() + timeout;
+            for (;;) {
+                long wait = until - System.currentTimeMillis();
+                if (mDelivered.size() >= n || wait <= 0) {
+                    return new ArrayList<String>(mDelivered);
+                }
+                wait(wait);
+            }
+        }
+    }
+    
+    private void activate(Recorder mdb, RAJMSActivationSpec spec, boolean cmt) throws Exception {
+        MockContainer c = new MockContainer(mdb);
+        if (!cmt) {
+            c.setNoTx();
+        }
+        mRA.start(c.getBootstrapContext());
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+    }
+    
+    private void doTestDelivery(boolean cmt) throws Throwable {
+        Recorder mdb = new Recorder(false);
+        for (int i = 0; i < 10; i++) {
+            mServer.send(DEST, "m" + i);
+        }
+        
+        activate(mdb, createSpec(), cmt);
+        List<String> delivered = mdb.waitFor(10, 30000);
+        mRA.stop();
+        
+        assertEquals(10, delivered.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("m" + i, delivered.get(i));
+        }
+        assertEquals(0, mServer.size(DEST));
+    }
+    
+    public void testDelivery() throws Throwable {
+        doTestDelivery(false);
+    }
+    
+    public void testDeliveryCMT() throws Throwable {
+        doTestDelivery(true);
+    }
+    
+    public void testHoldUntilAck() throws Throwable {
+        Recorder mdb = new Recorder(true);
+        RAJMSActivationSpec spec = createSpec();
+        spec.setHoldUntilAck("1");
+        mServer.send(DEST, "m");
+        
+        activate(mdb, spec, true);
+        assertEquals(1, mdb.waitFor(1, 30000).size());
+        mRA.stop();
+        assertEquals(0, mServer.size(DEST));
+        assertEquals(0, mServer.getRollbacks());
+    }
+    
+    /**
+     * The message is never acknowledged; deactivation should not wait for the
+     * acknowledgement
+     */
+    public void testHoldUntilAckStop() throws Throwable {
+        Recorder mdb = new Recorder(false);
+        RAJMSActivationSpec spec = createSpec();
+        spec.setHoldUntilAck("1");
+        mServer.send(DEST, "m");
+        
+        activate(mdb, spec, true);
+        assertEquals(1, mdb.waitFor(1, 30000).size());
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                mRA.stop();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        t.join(10000);
+        assertFalse("Deactivation waited for the acknowledgement", t.isAlive());
+        assertEquals(0, mServer.getConnectionsOpen());
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and Distribution License
+ * (the "License"). You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at https://glassfish.dev.java.net/public/CDDLv1.0.html.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each file and include the License file at
+ * https://glassfish.dev.java.net/public/CDDLv1.0.html. If applicable add the following below this
+ * CDDL HEADER, with the fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [year] [name of copyright owner]
+ */
+/*
+ * Copyright 2003-2007 Sun Microsystems, Inc. All Rights Reserved.
+ */
+
+
+package com.stc.jmsjca.test.core;
+
+import com.stc.jmsjca.core.Options;
+import com.stc.jmsjca.core.RAJMSActivationSpec;
+import com.stc.jmsjca.core.TxMgr;
+import com.stc.jmsjca.util.VirtualThreads;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.TextMessage;
+import javax.resource.ResourceException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.SystemException;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class SyncDeliveryJUStd extends TestCase {
+    private static final String DEST = "Queue1";
+    
+    private MemoryJMS mServer;
+    private MemoryJMS.RA mRA;
+
+    @Override
+    protected void setUp() throws Exception {
+        MemoryJMS.reset(getName());
+        mServer = MemoryJMS.get(getName());
+        mRA = new MemoryJMS.RA();
+        mRA.setConnectionURL(mServer.getUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRA.stop();
+        MemoryJMS.reset(getName());
+        TxMgr.setUnitTestTxMgr(null);
+    }
+    
+    private RAJMSActivationSpec createSpec(String mode, int n, String options) throws ResourceException {
+        RAJMSActivationSpec spec = new MemoryJMS.ActivationSpec();
+        spec.setResourceAdapter(mRA);
+        spec.setDestinationType(Queue.class.getName());
+        spec.setDestination(DEST);
+        spec.setConcurrencyMode(mode);
+        spec.setEndpointPoolMaxSize(Integer.valueOf(n));
+        spec.setRedeliveryHandling("1:0");
+        spec.setOptions(Options.In.RECEIVE_TIMEOUT + "=500" + (options == null ? "" : "\n" + options));
+        return spec;
+    }
+    
+    private void send(int n) {
+        for (int i = 0; i < n; i++) {
+            mServer.send(DEST, "m" + i);
+        }
+    }
+    
+    /**
+     * Records the messages delivered and the threads they were delivered on
+     */
+    private static class Recorder implements MessageListener {
+        private final List<String> mDelivered = new ArrayList<String>();
+        private final Set<Thread> mThreads = new HashSet<Thread>();
+        
+        public void onMessage(Message m) {
+            String text;
+            try {
+                text = ((TextMessage) m).getText();
+            } catch (JMSException e) {
+                throw new RuntimeException(e);
+            }
+            synchronized (this) {
+                mDelivered.add(text);
+                mThreads.add(Thread.currentThread());
+                notifyAll();
+            }
+            process(text);
+        }
+        
+        protected void process(String text) {
+        }
+        
+        public synchronized Set<Thread> getThreads() {
+            return new HashSet<Thread>(mThreads);
+        }
+        
+        public synchronized List<String> getDelivered() {
+            return new ArrayList<String>(mDelivered);
+        }
+        
+        public synchronized Set<String> waitForDistinct(int n, long timeout) throws InterruptedException {
+            long until = System.currentTimeMillis() + timeout;
+            for (;;) {
+                Set<String> ret = new HashSet<String>(mDelivered);
+                long wait = until - System.currentTimeMillis();
+                if (ret.size() >= n || wait <= 0) {
+                    return ret;
+                }
+                wait(wait);
+            }
+        }
+    }
+    
+    private void activate(Recorder mdb, RAJMSActivationSpec spec, boolean cmt) throws Exception {
+        MockContainer c = new MockContainer(mdb);
+        if (!cmt) {
+            c.setNoTx();
+        }
+        mRA.start(c.getBootstrapContext());
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+    }
+    
+    private static boolean isVirtual(Thread t) throws Exception {
+        try {
+            Method m = Thread.class.getMethod("isVirtual", new Class<?>[0]);
+            return ((Boolean) m.invoke(t, new Object[0])).booleanValue();
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Virtual mode delivers on virtual threads if the JVM supports them, and on 
+     * platform threads otherwise
+     */
+    private void doTestVirtual(boolean cmt, String options) throws Throwable {
+        Recorder mdb = new Recorder();
+        send(50);
+        
+        activate(mdb, createSpec("virtual", 4, options), cmt);
+        assertEquals(50, mdb.waitForDistinct(50, 30000).size());
+        mRA.stop();
+        
+        assertEquals(50, mdb.getDelivered().size());
+        assertEquals(0, mServer.size(DEST));
+        assertFalse(mdb.getThreads().isEmpty());
+        for (Thread t : mdb.getThreads()) {
+            assertEquals(t.toString(), VirtualThreads.isSupported(), isVirtual(t));
+        }
+    }
+    
+    public void testVirtual() throws Throwable {
+        doTestVirtual(false, null);
+    }
+    
+    public void testVirtualCMT() throws Throwable {
+        doTestVirtual(true, null);
+    }
+    
+    public void testVirtualPipelined() throws Throwable {
+        doTestVirtual(true, Options.In.OPTION_PIPELINED_COMMIT + "=true");
+    }
+    
+    /**
+     * In HUA mode the workers wait for the acknowledgements, which are sent from
+     * other threads
+     */
+    public void testVirtualHoldUntilAck() throws Throwable {
+        final List<Message> toAck = new ArrayList<Message>();
+        Recorder mdb = new Recorder() {
+            @Override
+            public void onMessage(Message m) {
+                super.onMessage(m);
+                synchronized (toAck) {
+                    toAck.add(m);
+                }
+            }
+        };
+        Thread acker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        Message[] msgs;
+                        synchronized (toAck) {
+                            msgs = toAck.toArray(new Message[toAck.size()]);
+                            toAck.clear();
+                        }
+                        for (int i = 0; i < msgs.length; i++) {
+                            msgs[i].acknowledge();
+                        }
+                        Thread.sleep(10);
+                    }
+                } catch (Exception e) {
+                    // Stopped
+                }
+            }
+        };
+        acker.setDaemon(true);
+        acker.start();
+        RAJMSActivationSpec spec = createSpec("virtual", 4, Options.In.OPTION_PIPELINED_COMMIT + "=true");
+        spec.setHoldUntilAck("1");
+        send(20);
+        
+        try {
+            activate(mdb, spec, true);
+            assertEquals(20, mdb.waitForDistinct(20, 30000).size());
+            assertTrue(mServer.waitForSize(DEST, 0, 30000));
+        } finally {
+            mRA.stop();
+            acker.interrupt();
+        }
+        // Delivered once: no transaction was rolled back for a missing ack
+        assertEquals(20, mdb.getDelivered().size());
+    }
+    
+    /**
+     * Records the transactions that were started while a lane was delivering
+     */
+    private static class TurnChecker extends TestTransactionManager {
+        private int mInOnMessage;
+        private int mBegunDuringDelivery;
+        
+        @Override
+        public void begin() throws NotSupportedException, SystemException {
+            synchronized (this) {
+                if (mInOnMessage > 0) {
+                    mBegunDuringDelivery++;
+                }
+            }
+            super.begin();
+        }
+        
+        public synchronized void enter() {
+            mInOnMessage++;
+        }
+        
+        public synchronized void exit() {
+            mInOnMessage--;
+        }
+        
+        public synchronized int getBegunDuringDelivery() {
+            return mBegunDuringDelivery;
+        }
+    }
+    
+    /**
+     * With pipelined commit, a lane should start its transaction only when it is its
+     * turn to receive, i.e. not while the other lane is delivering; a lane that rolls
+     * back should not affect the other lane
+     */
+    private void doTestPipelinedTurns(int batchSize) throws Throwable {
+        final TurnChecker tm = new TurnChecker();
+        Recorder mdb = new Recorder() {
+            @Override
+            public void onMessage(Message m) {
+                if (!(m instanceof TextMessage)) {
+                    // End of batch
+                    return;
+                }
+                tm.enter();
+                try {
+                    super.onMessage(m);
+                    Thread.sleep(5);
+                    if ("m15".equals(((TextMessage) m).getText()) && !m.getJMSRedelivered()) {
+                        throw new RuntimeException("Rolls back the transaction of m15");
+                    }
+                } catch (JMSException e) {
+                    throw new RuntimeException(e);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    tm.exit();
+                }
+            }
+        };
+        RAJMSActivationSpec spec = createSpec("sync", 1, Options.In.OPTION_PIPELINED_COMMIT + "=true");
+        spec.setBatchSize(Integer.valueOf(batchSize));
+        send(40);
+        
+        MockContainer c = new MockContainer(mdb);
+        c.setTransactionManager(tm);
+        mRA.start(c.getBootstrapContext());
+        mRA.endpointActivation(c.getMessageEndpointFactory(), spec);
+        assertEquals(40, mdb.waitForDistinct(40, 30000).size());
+        assertTrue(mServer.waitForSize(DEST, 0, 30000));
+        mRA.stop();
+        
+        // Both lanes were used, and no transaction was started while a lane delivered
+        assertEquals(2, mdb.getThreads().size());
+        assertEquals(0, tm.getBegunDuringDelivery());
+        
+        // Only the lane that failed rolled back: at most one batch was delivered twice,
+        // and m15 was part of it
+        List<String> delivered = mdb.getDelivered();
+        assertEquals(2, Collections.frequency(delivered, "m15"));
+        assertTrue(delivered.toString(), delivered.size() - 40 <= batchSize);
+        
+        // The lanes receive by turns, so apart from the redelivered messages, the
+        // messages are delivered in order
+        int next = 0;
+        for (String s : delivered) {
+            int i = Integer.parseInt(s.substring(1));
+            if (i == next) {
+                next++;
+            } else {
+                assertTrue(s + " in " + delivered, i < next);
+            }
+        }
+        assertEquals(40, next);
+    }
+    
+    public void testPipelinedTurns() throws Throwable {
+        doTestPipelinedTurns(1);
+    }
+    
+    public void testPipelinedTurnsBatch() throws Throwable {
+        doTestPipelinedTurns(5);
+    }
+    
+    public void testPinnedByMonitors() throws Throwable {
+        assertTrue(VirtualThreads.isPinnedByMonitors("1.8"));
+        assertTrue(VirtualThreads.isPinnedByMonitors("21"));
+        assertTrue(VirtualThreads.isPinnedByMonitors("23"));
+        assertFalse(VirtualThreads.isPinnedByMonitors("24"));
+        assertFalse(VirtualThreads.isPinnedByMonitors("25"));
+    }
+}
@@ -37,7 +37,7 @@ public class RASTCMSObjectFactorySync extends RASTCMSObjectFactory implements
     @Override
     public int adjustDeliveryMode(int mode, boolean xa) {
         int newMode = mode;
-        if (mode != RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC) {
+        if (!RAJMSActivationSpec.isSyncMode(mode)) {
             newMode = RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC;
             sLog.warn(LOCALIZER.x("E305: Current delivery mode [{0}]"
                 + " not supported; switching to [{1}].", 
@@ -55,7 +55,7 @@ public class RASTCMS453ObjectFactory extends RAJMSObjectFactory implements java.
     @Override
     public int adjustDeliveryMode(int mode, boolean xa) {
         int newMode = mode;
-        if (mode != RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC) {
+        if (!RAJMSActivationSpec.isSyncMode(mode)) {
             newMode = RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC;
 //            sLog.warn("Current delivery mode ["
 //                + RAJMSActivationSpec.DELIVERYCONCURRENCY_STRS[mode]
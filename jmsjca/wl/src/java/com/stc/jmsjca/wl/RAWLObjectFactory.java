@@ -140,7 +140,7 @@ public class RAWLObjectFactory extends RAJMSObjectFactory implements java.io.Ser
     @Override
     public int adjustDeliveryMode(int mode, boolean xa) {
         int newMode = mode;
-        if (mode != RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC) {
+        if (!RAJMSActivationSpec.isSyncMode(mode)) {
             // && mode != RAJMSActivationSpec.DELIVERYCONCURRENCY_SERIAL) {
             newMode = RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC;
             sLog.warn(LOCALE.x("E820: Delivery mode ''{0}'' not supported; "
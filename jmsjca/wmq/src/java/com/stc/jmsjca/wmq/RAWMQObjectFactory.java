@@ -146,7 +146,7 @@ public class RAWMQObjectFactory extends RAJMSObjectFactory implements java.io.Se
     public int adjustDeliveryMode(int mode, boolean xa) {
         int newMode = mode;
         if (xa) {
-            if (mode != RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC) {
+            if (!RAJMSActivationSpec.isSyncMode(mode)) {
                 newMode = RAJMSActivationSpec.DELIVERYCONCURRENCY_SYNC;
                 sLog.warn(LOCALE.x("E820: Delivery mode {0} is not supported; "
                     + " using {1} instead.", 